@@ -0,0 +1,1119 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InterpolatedModel;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+/**
+ * Direct alternative to {@link TileConfiguration#optimize(double, int, int, double)}
+ * for tiles with affine models in 2D or 3D.  Instead of fitting one tile
+ * at a time against its neighbors until the configuration relaxes, the
+ * normal equations of all tiles are assembled into one sparse matrix and
+ * solved with a Cholesky factorization, which needs no more iterations for
+ * long chains and large grids than for two tiles.
+ *
+ * The solved energy is
+ * <pre>
+ * sum_matches w |A_i p - A_j q|^2 + sum_tiles lambda_i / (1 - lambda_i) sum_p w |(L_i - R_i)(p - c_i)|^2
+ * </pre>
+ * with A_i the affine of tile i, L_i its linear part, c_i the centroid of
+ * its points and R_i the linear part of the regularizer of an
+ * {@link InterpolatedModel} fitted to A_i.  This is the energy whose local
+ * minimizer per tile is (about) the interpolated model, i.e. what the
+ * iterative optimizer converges to.  Supported tile models are
+ * <ul>
+ * <li>affine models (no regularization),</li>
+ * <li>translation models and interpolated models with a translation
+ * regularizer (exact, also for lambda = 1),</li>
+ * <li>interpolated models of an affine model and any other regularizer
+ * (rigid, similarity, ...) with lambda &lt; 1, R_i is refitted after each
+ * solve until the configuration does not change anymore.</li>
+ * </ul>
+ *
+ * Outliers are damped by iteratively reweighted least squares: after the
+ * first solve, matches with a residual r larger than dampFactor times the
+ * median residual c get the weight c / r (Huber).
+ *
+ * A match between two tiles is counted once if both tiles store it with
+ * shared points (as {@link Tile#connect(Tile, Collection)} does) and if a
+ * tile stores the same match twice.  As in {@link TileConfiguration}, the
+ * second point of a match is only moved if it is a point of another tile's
+ * own matches.  A match that only one tile stores therefore pulls that
+ * tile towards the current world coordinates of the second point, like a
+ * match to a tile that is not optimized.
+ *
+ * The matrix is ordered with reverse Cuthill-McKee such that the Cholesky
+ * factor fits into the envelope of the matrix.  The memory is therefore
+ * about the number of tiles times the bandwidth, i.e. the width of a grid
+ * or the maximum slice distance of a series.
+ */
+public class DirectTileOptimizer {
+
+	/* relative Levenberg damping of all free parameters towards their current values for tiles with degenerate points, the bias is removed by the next solve */
+	private static final double levenbergDamping = 1e-12;
+
+	final private int maxIterations;
+	final private double maxChange;
+	final private double maxAllowedError;
+	final private double dampFactor;
+
+	private int n;
+	private int m;
+
+	private int numTiles;
+	private double[][] affines;
+	private double[] mu;
+	private boolean[] hardLinear;
+
+	/* one tile per connected set of tiles without fixed tiles has a fixed translation and keeps its regularizer's rotation (and scale) */
+	private boolean[] anchors;
+	private boolean[] hasExternalMatches;
+	private Model<?>[] regularizers;
+
+	/* local points, weights and bounding boxes of the matches of each tile */
+	private double[][] tilePoints;
+	private double[][] tileWeights;
+	private double[][] tileMin;
+	private double[][] tileMax;
+
+	/* parameters are solved for points normalized per tile, (p - centroid) / scale, for a well conditioned matrix */
+	private double[][] tileCentroids;
+	private double[] tileScales;
+
+	/* all matches between two tiles once, b = -1 for points of tiles that are not optimized */
+	private int numMatches;
+	private int[] matchA;
+	private int[] matchB;
+	private int[] matchEdge;
+	private double[] matchP;
+	private double[] matchQ;
+	private double[] matchWeights;
+	private double[] robustWeights;
+
+	private int[] edgeA;
+	private int[] edgeB;
+	private int[][] adjacency;
+
+	/* two points of a match between two tiles by identity, the point of the tile with the lower index first */
+	private static final class PointPair {
+
+		final Point a;
+		final Point b;
+
+		PointPair(final Point a, final Point b) {
+
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return 31 * System.identityHashCode(a) + System.identityHashCode(b);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			return o instanceof PointPair && ((PointPair)o).a == a && ((PointPair)o).b == b;
+		}
+	}
+
+	/**
+	 * @param maxIterations maximum number of solves, usually two, more for
+	 *     non-translation regularizers and outlier damping
+	 * @param maxChange stop when no tile corner moves more than this between two solves
+	 * @param maxAllowedError stop when the weighted mean residual of all
+	 *     matches is not larger than this, as the iterative optimizer does,
+	 *     &lt;= 0 to always solve until maxChange or maxIterations
+	 * @param dampFactor residuals larger than dampFactor times the median
+	 *     residual are damped, &lt;= 0 for no damping
+	 */
+	public DirectTileOptimizer(
+			final int maxIterations,
+			final double maxChange,
+			final double maxAllowedError,
+			final double dampFactor) {
+
+		this.maxIterations = maxIterations;
+		this.maxChange = maxChange;
+		this.maxAllowedError = maxAllowedError;
+		this.dampFactor = dampFactor;
+	}
+
+	/**
+	 * @param maxIterations maximum number of solves, usually two, more for
+	 *     non-translation regularizers and outlier damping
+	 * @param maxChange stop when no tile corner moves more than this between two solves
+	 * @param dampFactor residuals larger than dampFactor times the median
+	 *     residual are damped, &lt;= 0 for no damping
+	 */
+	public DirectTileOptimizer(
+			final int maxIterations,
+			final double maxChange,
+			final double dampFactor) {
+
+		this(maxIterations, maxChange, 0, dampFactor);
+	}
+
+	public DirectTileOptimizer() {
+
+		this(100, 0.01, 0);
+	}
+
+	/**
+	 * Optimizes all tiles of a {@link TileConfiguration} except its fixed
+	 * tiles and updates its errors.
+	 *
+	 * @return the error of the configuration after optimization
+	 */
+	public double optimize(final TileConfiguration tc) throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+
+		optimize(tc.getTiles(), tc.getFixedTiles());
+		tc.updateErrors();
+		return tc.getError();
+	}
+
+	/**
+	 * Optimizes all tiles except the fixed tiles.  Matches to tiles that
+	 * are not in tiles, and matches whose second point is not a point of
+	 * any tile's own matches, are matches to the current world coordinates
+	 * of their second point.
+	 *
+	 * @return the number of solves
+	 */
+	public int optimize(
+			final Collection<? extends Tile<?>> tiles,
+			final Collection<? extends Tile<?>> fixedTiles) throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+
+		final ArrayList<Tile<?>> tileList = new ArrayList<>(tiles);
+		if (tileList.isEmpty())
+			return 0;
+
+		final IdentityHashMap<Tile<?>, Boolean> fixedSet = new IdentityHashMap<>();
+		fixedTiles.forEach(t -> fixedSet.put(t, true));
+
+		init(tileList, fixedSet);
+
+		/* fixed tiles and tiles without matches */
+		final boolean[] fixed = new boolean[numTiles];
+		for (int i = 0; i < numTiles; ++i)
+			fixed[i] = fixedSet.containsKey(tileList.get(i)) || tilePoints[i].length == 0;
+
+		initAnchors(fixed);
+
+		int iteration = 0;
+		double change;
+		do {
+			updateRegularizers();
+			if (iteration > 0)
+				updateRobustWeights();
+
+			final double[][] previous = new double[numTiles][];
+			for (int i = 0; i < numTiles; ++i)
+				previous[i] = affines[i].clone();
+
+			solve(fixed);
+
+			change = maxChange(previous);
+			++iteration;
+		} while (iteration < maxIterations && change > maxChange && !isErrorAllowed());
+
+		for (int i = 0; i < numTiles; ++i)
+			if (!fixed[i])
+				setModel(tileList.get(i).getModel(), affines[i], lambda(tileList.get(i).getModel()), tilePoints[i], tileWeights[i]);
+
+		tileList.forEach(Tile::apply);
+
+		return iteration;
+	}
+
+	private void init(final ArrayList<Tile<?>> tileList, final IdentityHashMap<Tile<?>, Boolean> fixedSet) {
+
+		numTiles = tileList.size();
+
+		final IdentityHashMap<Point, Integer> pointTiles = new IdentityHashMap<>();
+		n = -1;
+		for (int i = 0; i < numTiles; ++i) {
+			for (final PointMatch pm : tileList.get(i).getMatches()) {
+				pointTiles.put(pm.getP1(), i);
+				n = pm.getP1().getL().length;
+			}
+		}
+		if (n == -1)
+			n = 2;
+		m = n + 1;
+
+		affines = new double[numTiles][];
+		mu = new double[numTiles];
+		hasExternalMatches = new boolean[numTiles];
+		hardLinear = new boolean[numTiles];
+		regularizers = new Model<?>[numTiles];
+		tilePoints = new double[numTiles][];
+		tileWeights = new double[numTiles][];
+		tileMin = new double[numTiles][];
+		tileMax = new double[numTiles][];
+		tileCentroids = new double[numTiles][];
+		tileScales = new double[numTiles];
+
+		final ArrayList<double[]> p = new ArrayList<>();
+		final ArrayList<double[]> q = new ArrayList<>();
+		final ArrayList<int[]> ab = new ArrayList<>();
+		final ArrayList<Double> w = new ArrayList<>();
+
+		final HashMap<Long, Integer> edges = new HashMap<>();
+		final ArrayList<int[]> edgeList = new ArrayList<>();
+		final HashSet<PointPair> pairs = new HashSet<>();
+
+		for (int i = 0; i < numTiles; ++i) {
+
+			final Tile<?> tile = tileList.get(i);
+			final Model<?> model = tile.getModel();
+
+			affines[i] = new double[n * m];
+			toAffine(model, affines[i]);
+			if (!fixedSet.containsKey(tile))
+				initRegularization(i, model);
+
+			final int numPoints = tile.getMatches().size();
+			tilePoints[i] = new double[numPoints * n];
+			tileWeights[i] = new double[numPoints];
+			tileMin[i] = new double[n];
+			tileMax[i] = new double[n];
+			Arrays.fill(tileMin[i], Double.POSITIVE_INFINITY);
+			Arrays.fill(tileMax[i], Double.NEGATIVE_INFINITY);
+
+			int k = 0;
+			for (final PointMatch pm : tile.getMatches()) {
+
+				final double[] l = pm.getP1().getL();
+				for (int d = 0; d < n; ++d) {
+					tilePoints[i][k * n + d] = l[d];
+					tileMin[i][d] = Math.min(tileMin[i][d], l[d]);
+					tileMax[i][d] = Math.max(tileMax[i][d], l[d]);
+				}
+				tileWeights[i][k] = pm.getWeight();
+				++k;
+
+				final Integer j = pointTiles.get(pm.getP2());
+				if (j == null) {
+					p.add(l);
+					q.add(pm.getP2().getW().clone());
+					ab.add(new int[]{i, -1, -1});
+					hasExternalMatches[i] = true;
+					w.add(pm.getWeight());
+				} else if (j != i) {
+					/* a match is usually stored by both tiles (Tile#connect), count it once from the tile with the lower index */
+					final int a = Math.min(i, j);
+					final int b = Math.max(i, j);
+					final Point pa = j > i ? pm.getP1() : pm.getP2();
+					final Point pb = j > i ? pm.getP2() : pm.getP1();
+					if (!pairs.add(new PointPair(pa, pb)))
+						continue;
+					final long key = (long)a * numTiles + b;
+					Integer e = edges.get(key);
+					if (e == null) {
+						e = edgeList.size();
+						edges.put(key, e);
+						edgeList.add(new int[]{a, b});
+					}
+					p.add(pa.getL());
+					q.add(pb.getL());
+					ab.add(new int[]{a, b, e});
+					w.add(pm.getWeight());
+				}
+			}
+		}
+
+		for (int i = 0; i < numTiles; ++i) {
+			tileCentroids[i] = new double[n];
+			double sumWeights = 0;
+			for (int k = 0; k < tileWeights[i].length; ++k) {
+				sumWeights += tileWeights[i][k];
+				for (int d = 0; d < n; ++d)
+					tileCentroids[i][d] += tileWeights[i][k] * tilePoints[i][k * n + d];
+			}
+			if (sumWeights > 0)
+				for (int d = 0; d < n; ++d)
+					tileCentroids[i][d] /= sumWeights;
+
+			double sumSquares = 0;
+			for (int k = 0; k < tileWeights[i].length; ++k)
+				for (int d = 0; d < n; ++d)
+					sumSquares += tileWeights[i][k] * Math.pow(tilePoints[i][k * n + d] - tileCentroids[i][d], 2);
+			tileScales[i] = sumSquares > 0 ? Math.sqrt(sumSquares / sumWeights) : 1;
+		}
+
+		numMatches = ab.size();
+		matchA = new int[numMatches];
+		matchB = new int[numMatches];
+		matchEdge = new int[numMatches];
+		matchP = new double[numMatches * n];
+		matchQ = new double[numMatches * n];
+		matchWeights = new double[numMatches];
+		robustWeights = new double[numMatches];
+		for (int k = 0; k < numMatches; ++k) {
+			matchA[k] = ab.get(k)[0];
+			matchB[k] = ab.get(k)[1];
+			matchEdge[k] = ab.get(k)[2];
+			normalize(matchA[k], p.get(k), matchP, k * n);
+			if (matchB[k] >= 0)
+				normalize(matchB[k], q.get(k), matchQ, k * n);
+			else
+				System.arraycopy(q.get(k), 0, matchQ, k * n, n);
+			matchWeights[k] = w.get(k);
+			robustWeights[k] = 1;
+		}
+
+		edgeA = new int[edgeList.size()];
+		edgeB = new int[edgeList.size()];
+		final int[] degree = new int[numTiles];
+		for (int e = 0; e < edgeA.length; ++e) {
+			edgeA[e] = edgeList.get(e)[0];
+			edgeB[e] = edgeList.get(e)[1];
+			++degree[edgeA[e]];
+			++degree[edgeB[e]];
+		}
+		adjacency = new int[numTiles][];
+		for (int i = 0; i < numTiles; ++i)
+			adjacency[i] = new int[degree[i]];
+		Arrays.fill(degree, 0);
+		for (int e = 0; e < edgeA.length; ++e) {
+			adjacency[edgeA[e]][degree[edgeA[e]]++] = edgeB[e];
+			adjacency[edgeB[e]][degree[edgeB[e]]++] = edgeA[e];
+		}
+	}
+
+	/**
+	 * Removes the gauge freedom of connected sets of tiles that are neither
+	 * connected to fixed tiles nor to tiles that are not optimized.  The
+	 * first tile of such a set is fixed if no tile is regularized (global
+	 * affine), otherwise its translation is fixed and its regularizer is
+	 * not linearized (global translation and rotation).
+	 */
+	private void initAnchors(final boolean[] fixed) {
+
+		anchors = new boolean[numTiles];
+		final boolean[] visited = new boolean[numTiles];
+		final int[] queue = new int[numTiles];
+		for (int start = 0; start < numTiles; ++start) {
+			if (visited[start])
+				continue;
+			visited[start] = true;
+			int head = 0, tail = 0;
+			queue[tail++] = start;
+			boolean isAnchored = false;
+			boolean isRegularized = false;
+			while (head < tail) {
+				final int i = queue[head++];
+				isAnchored |= fixed[i] || hasExternalMatches[i];
+				isRegularized |= mu[i] > 0 || hardLinear[i];
+				for (final int j : adjacency[i]) {
+					if (!visited[j]) {
+						visited[j] = true;
+						queue[tail++] = j;
+					}
+				}
+			}
+			if (!isAnchored) {
+				if (isRegularized)
+					anchors[start] = true;
+				else
+					fixed[start] = true;
+			}
+		}
+	}
+
+	private static boolean isAffine(final Model<?> model) {
+
+		return model instanceof AffineModel2D || model instanceof AffineModel3D;
+	}
+
+	private static boolean isTranslation(final Model<?> model) {
+
+		return model instanceof TranslationModel2D || model instanceof TranslationModel3D;
+	}
+
+	private static double lambda(final Model<?> model) {
+
+		if (model instanceof InterpolatedModel)
+			return isAffine(((InterpolatedModel<?, ?, ?>)model).getB()) ? 0 : ((InterpolatedModel<?, ?, ?>)model).getLambda();
+		else if (isTranslation(model))
+			return 1;
+		else
+			return 0;
+	}
+
+	private void initRegularization(final int i, final Model<?> model) {
+
+		if (isAffine(model))
+			return;
+
+		if (isTranslation(model)) {
+			hardLinear[i] = true;
+		} else if (model instanceof InterpolatedModel && isAffine(((InterpolatedModel<?, ?, ?>)model).getA())) {
+			final Model<?> regularizer = ((InterpolatedModel<?, ?, ?>)model).getB();
+			final double lambda = lambda(model);
+			if (lambda <= 0)
+				return;
+			if (isTranslation(regularizer)) {
+				if (lambda >= 1)
+					hardLinear[i] = true;
+				else
+					mu[i] = lambda / (1.0 - lambda);
+			} else if (lambda < 1) {
+				mu[i] = lambda / (1.0 - lambda);
+				regularizers[i] = regularizer.copy();
+			} else
+				throw new IllegalArgumentException("Regularizer " + regularizer.getClass().getSimpleName() + " with lambda = 1 is not supported by the direct solver, use TileConfiguration.");
+		} else
+			throw new IllegalArgumentException("Model " + model.getClass().getSimpleName() + " is not supported by the direct solver, use TileConfiguration.");
+
+		/* translation regularizers do not rotate */
+		if (hardLinear[i])
+			for (int d = 0; d < n; ++d)
+				for (int k = 0; k < n; ++k)
+					affines[i][d * m + k] = d == k ? 1 : 0;
+	}
+
+	/**
+	 * Row packed n x (n + 1) affine of a coordinate transform.
+	 */
+	private void toAffine(final CoordinateTransform transform, final double[] affine) {
+
+		final double[] t = transform.apply(new double[n]);
+		for (int d = 0; d < n; ++d)
+			affine[d * m + n] = t[d];
+
+		for (int k = 0; k < n; ++k) {
+			final double[] x = new double[n];
+			x[k] = 1;
+			final double[] y = transform.apply(x);
+			for (int d = 0; d < n; ++d)
+				affine[d * m + k] = y[d] - t[d];
+		}
+	}
+
+	private void normalize(final int i, final double[] point, final double[] target, final int offset) {
+
+		for (int d = 0; d < n; ++d)
+			target[offset + d] = (point[d] - tileCentroids[i][d]) / tileScales[i];
+	}
+
+	/**
+	 * @return the affine for normalized points of tile i, L' = L scale, t' = t + L centroid
+	 */
+	private double[] normalizedAffine(final int i) {
+
+		final double[] affine = affines[i].clone();
+		for (int d = 0; d < n; ++d) {
+			for (int k = 0; k < n; ++k) {
+				affine[d * m + n] += affines[i][d * m + k] * tileCentroids[i][k];
+				affine[d * m + k] *= tileScales[i];
+			}
+		}
+		return affine;
+	}
+
+	private void setNormalizedAffine(final int i, final double[] normalizedAffine) {
+
+		for (int d = 0; d < n; ++d) {
+			affines[i][d * m + n] = normalizedAffine[d * m + n];
+			for (int k = 0; k < n; ++k) {
+				affines[i][d * m + k] = normalizedAffine[d * m + k] / tileScales[i];
+				affines[i][d * m + n] -= affines[i][d * m + k] * tileCentroids[i][k];
+			}
+		}
+	}
+
+	private void apply(final double[] affine, final double[] points, final int offset, final double[] target) {
+
+		for (int d = 0; d < n; ++d) {
+			double s = affine[d * m + n];
+			for (int k = 0; k < n; ++k)
+				s += affine[d * m + k] * points[offset + k];
+			target[d] = s;
+		}
+	}
+
+	private ArrayList<PointMatch> createMatches(final double[] affine, final double[] points, final double[] weights) {
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int k = 0; k < weights.length; ++k) {
+			final double[] l = Arrays.copyOfRange(points, k * n, k * n + n);
+			final double[] w = new double[n];
+			apply(affine, points, k * n, w);
+			matches.add(new PointMatch(new Point(l), new Point(w), weights[k]));
+		}
+		return matches;
+	}
+
+	/**
+	 * Fits the regularizers to the current affines.
+	 */
+	private void updateRegularizers() throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+
+		for (int i = 0; i < numTiles; ++i) {
+			if (regularizers[i] != null && tileWeights[i].length > 0)
+				regularizers[i].fit(createMatches(affines[i], tilePoints[i], tileWeights[i]));
+		}
+	}
+
+	private double residual(final double[][] normalizedAffines, final int k, final double[] p, final double[] q) {
+
+		apply(normalizedAffines[matchA[k]], matchP, k * n, p);
+		if (matchB[k] >= 0)
+			apply(normalizedAffines[matchB[k]], matchQ, k * n, q);
+		else
+			System.arraycopy(matchQ, k * n, q, 0, n);
+
+		double s = 0;
+		for (int d = 0; d < n; ++d)
+			s += (p[d] - q[d]) * (p[d] - q[d]);
+
+		return Math.sqrt(s);
+	}
+
+	private void updateRobustWeights() {
+
+		if (dampFactor <= 0 || numMatches == 0)
+			return;
+
+		final double[] p = new double[n];
+		final double[] q = new double[n];
+		final double[][] normalizedAffines = new double[numTiles][];
+		for (int i = 0; i < numTiles; ++i)
+			normalizedAffines[i] = normalizedAffine(i);
+
+		final double[] residuals = new double[numMatches];
+		for (int k = 0; k < numMatches; ++k)
+			residuals[k] = residual(normalizedAffines, k, p, q);
+
+		final double[] sorted = residuals.clone();
+		Arrays.sort(sorted);
+		final double c = dampFactor * sorted[numMatches / 2];
+
+		for (int k = 0; k < numMatches; ++k)
+			robustWeights[k] = residuals[k] <= c ? 1 : c / residuals[k];
+	}
+
+	/**
+	 * @return whether the weighted mean residual of all matches is not
+	 *     larger than maxAllowedError
+	 */
+	private boolean isErrorAllowed() {
+
+		if (maxAllowedError <= 0 || numMatches == 0)
+			return false;
+
+		final double[] p = new double[n];
+		final double[] q = new double[n];
+		final double[][] normalizedAffines = new double[numTiles][];
+		for (int i = 0; i < numTiles; ++i)
+			normalizedAffines[i] = normalizedAffine(i);
+
+		double sum = 0;
+		double sumWeights = 0;
+		for (int k = 0; k < numMatches; ++k) {
+			sum += matchWeights[k] * residual(normalizedAffines, k, p, q);
+			sumWeights += matchWeights[k];
+		}
+		return sumWeights > 0 && sum / sumWeights <= maxAllowedError;
+	}
+
+	/**
+	 * @return the maximum displacement of the bounding box corners of all tiles
+	 */
+	private double maxChange(final double[][] previous) {
+
+		final double[] corner = new double[n];
+		final double[] a = new double[n];
+		final double[] b = new double[n];
+		double max = 0;
+		for (int i = 0; i < numTiles; ++i) {
+			if (tileWeights[i].length == 0)
+				continue;
+			for (int c = 0; c < 1 << n; ++c) {
+				for (int d = 0; d < n; ++d)
+					corner[d] = ((c >> d) & 1) == 0 ? tileMin[i][d] : tileMax[i][d];
+				apply(affines[i], corner, 0, a);
+				apply(previous[i], corner, 0, b);
+				double s = 0;
+				for (int d = 0; d < n; ++d)
+					s += (a[d] - b[d]) * (a[d] - b[d]);
+				max = Math.max(max, Math.sqrt(s));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Reverse Cuthill-McKee order of the tiles.
+	 */
+	private int[] order() {
+
+		final Integer[] byDegree = new Integer[numTiles];
+		for (int i = 0; i < numTiles; ++i)
+			byDegree[i] = i;
+		Arrays.sort(byDegree, (a, b) -> Integer.compare(adjacency[a].length, adjacency[b].length));
+
+		final int[] order = new int[numTiles];
+		final boolean[] visited = new boolean[numTiles];
+		int head = 0, tail = 0;
+		for (final int start : byDegree) {
+			if (visited[start])
+				continue;
+			visited[start] = true;
+			order[tail++] = start;
+			while (head < tail) {
+				final int i = order[head++];
+				final int begin = tail;
+				for (final int j : adjacency[i]) {
+					if (!visited[j]) {
+						visited[j] = true;
+						order[tail++] = j;
+					}
+				}
+				final Integer[] neighbors = new Integer[tail - begin];
+				for (int k = 0; k < neighbors.length; ++k)
+					neighbors[k] = order[begin + k];
+				Arrays.sort(neighbors, (a, b) -> Integer.compare(adjacency[a].length, adjacency[b].length));
+				for (int k = 0; k < neighbors.length; ++k)
+					order[begin + k] = neighbors[k];
+			}
+		}
+
+		for (int k = 0; k < numTiles / 2; ++k) {
+			final int t = order[k];
+			order[k] = order[numTiles - 1 - k];
+			order[numTiles - 1 - k] = t;
+		}
+		return order;
+	}
+
+	/**
+	 * Tangents of the regularizer family at its fitted linear part R,
+	 * rotations R K and for similarities R itself.  Families without
+	 * tangents are fixed at R for a solve.
+	 */
+	private double[][] tangents(final int i, final double[] regularizerAffine) {
+
+		final Model<?> regularizer = regularizers[i];
+		final boolean isRigid = regularizer instanceof RigidModel2D || regularizer instanceof RigidModel3D;
+		final boolean isSimilarity = regularizer instanceof SimilarityModel2D || regularizer instanceof SimilarityModel3D;
+		if (!(isRigid || isSimilarity) || anchors[i])
+			return new double[0][];
+
+		/* skew symmetric generators */
+		final ArrayList<double[]> generators = new ArrayList<>();
+		for (int a = 0; a < n; ++a) {
+			for (int b = a + 1; b < n; ++b) {
+				final double[] k = new double[n * n];
+				k[a * n + b] = -1;
+				k[b * n + a] = 1;
+				generators.add(k);
+			}
+		}
+		if (isSimilarity) {
+			final double[] k = new double[n * n];
+			for (int d = 0; d < n; ++d)
+				k[d * n + d] = 1;
+			generators.add(k);
+		}
+
+		final double[][] tangents = new double[generators.size()][n * n];
+		for (int t = 0; t < tangents.length; ++t)
+			for (int r = 0; r < n; ++r)
+				for (int c = 0; c < n; ++c)
+					for (int k = 0; k < n; ++k)
+						tangents[t][r * n + c] += regularizerAffine[r * m + k] * generators.get(t)[k * n + c];
+
+		return tangents;
+	}
+
+	/**
+	 * Assembles and solves the normal equations for the current
+	 * regularizers and weights.  Without rigid or similarity regularizers,
+	 * all n rows of the affines are independent and share the same matrix
+	 * with m = n + 1 parameters per tile, otherwise the n * m parameters of
+	 * each tile are solved together, with the regularizer linearized at its
+	 * current fit (Gauss-Newton).
+	 */
+	private void solve(final boolean[] fixed) throws IllDefinedDataPointsException {
+
+		final boolean isCoupled = Arrays.stream(regularizers).anyMatch(r -> r instanceof RigidModel2D || r instanceof RigidModel3D || r instanceof SimilarityModel2D || r instanceof SimilarityModel3D);
+
+		/* parameters per tile and number of right hand sides */
+		final int bs = isCoupled ? n * m : m;
+		final int numRhs = isCoupled ? 1 : n;
+
+		final int mm = m * m;
+
+		/* data blocks m x m, shared by all rows of the affines */
+		final double[][] dataDiagonal = new double[numTiles][mm];
+		final double[][] dataOffDiagonal = new double[edgeA.length][mm];
+
+		/* right hand sides, [d * m + r] for row d and column r of the affine */
+		final double[][] rhs = new double[numTiles][n * m];
+
+		final double[] p = new double[m];
+		final double[] q = new double[m];
+		p[n] = 1;
+		q[n] = 1;
+		for (int k = 0; k < numMatches; ++k) {
+			System.arraycopy(matchP, k * n, p, 0, n);
+			System.arraycopy(matchQ, k * n, q, 0, n);
+			final double w = matchWeights[k] * robustWeights[k];
+			final double[] da = dataDiagonal[matchA[k]];
+			for (int r = 0; r < m; ++r)
+				for (int c = 0; c < m; ++c)
+					da[r * m + c] += w * p[r] * p[c];
+			if (matchB[k] >= 0) {
+				final double[] db = dataDiagonal[matchB[k]];
+				final double[] e = dataOffDiagonal[matchEdge[k]];
+				for (int r = 0; r < m; ++r) {
+					for (int c = 0; c < m; ++c) {
+						db[r * m + c] += w * q[r] * q[c];
+						e[r * m + c] -= w * p[r] * q[c];
+					}
+				}
+			} else {
+				final double[] ra = rhs[matchA[k]];
+				for (int d = 0; d < n; ++d)
+					for (int r = 0; r < m; ++r)
+						ra[d * m + r] += w * p[r] * q[d];
+			}
+		}
+
+		final double[][] diagonal = isCoupled ? new double[numTiles][] : dataDiagonal;
+		final double[][] offDiagonal = isCoupled ? new double[edgeA.length][] : dataOffDiagonal;
+		if (isCoupled) {
+			for (int i = 0; i < numTiles; ++i)
+				diagonal[i] = expand(dataDiagonal[i]);
+			for (int e = 0; e < edgeA.length; ++e)
+				offDiagonal[e] = expand(dataOffDiagonal[e]);
+		}
+
+		/* regularization towards R_i with the centered scatter matrix S_i of the tile's points */
+		final double[] regularizerAffine = new double[n * m];
+		for (int i = 0; i < numTiles; ++i) {
+			if (mu[i] == 0 || tileWeights[i].length == 0)
+				continue;
+
+			final double[] centroid = tileCentroids[i];
+			final double scale2 = tileScales[i] * tileScales[i];
+			final double[] scatter = new double[n * n];
+			for (int k = 0; k < tileWeights[i].length; ++k)
+				for (int r = 0; r < n; ++r)
+					for (int c = 0; c < n; ++c)
+						scatter[r * n + c] += tileWeights[i][k] * (tilePoints[i][k * n + r] - centroid[r]) * (tilePoints[i][k * n + c] - centroid[c]) / scale2;
+
+			/* R' = R scale for normalized points */
+			if (regularizers[i] == null)
+				for (int d = 0; d < n; ++d)
+					for (int k = 0; k < m; ++k)
+						regularizerAffine[d * m + k] = d == k ? 1 : 0;
+			else
+				toAffine(regularizers[i], regularizerAffine);
+
+			/* Q = mu (I x S - sum_t g_t g_t^T) with g_t = vec(U_t S) for the S-orthonormalized tangents U_t */
+			final double[] hessian = new double[n * n * n * n];
+			for (int d = 0; d < n; ++d)
+				for (int r = 0; r < n; ++r)
+					for (int c = 0; c < n; ++c)
+						hessian[(d * n + r) * n * n + d * n + c] = scatter[r * n + c];
+
+			final double[][] tangents = tangents(i, regularizerAffine);
+			final double[][] g = new double[tangents.length][n * n];
+			for (int t = 0; t < tangents.length; ++t) {
+				for (int s = 0; s < t; ++s) {
+					double dot = 0;
+					for (int k = 0; k < n * n; ++k)
+						dot += tangents[t][k] * g[s][k];
+					for (int k = 0; k < n * n; ++k)
+						tangents[t][k] -= dot * tangents[s][k];
+				}
+				multiply(tangents[t], scatter, g[t]);
+				double norm = 0;
+				for (int k = 0; k < n * n; ++k)
+					norm += tangents[t][k] * g[t][k];
+				norm = Math.sqrt(norm);
+				for (int k = 0; k < n * n; ++k) {
+					tangents[t][k] /= norm;
+					g[t][k] /= norm;
+				}
+				for (int a = 0; a < n * n; ++a)
+					for (int b = 0; b < n * n; ++b)
+						hessian[a * n * n + b] -= g[t][a] * g[t][b];
+			}
+
+			for (int a = 0; a < n * n; ++a) {
+				final int u = (a / n) * m + a % n;
+				for (int b = 0; b < n * n; ++b) {
+					final int v = (b / n) * m + b % n;
+					final double h = mu[i] * hessian[a * n * n + b];
+					rhs[i][u] += h * regularizerAffine[v] * tileScales[i];
+					if (isCoupled)
+						diagonal[i][u * bs + v] += h;
+					else if (a / n == 0 && b / n == 0)
+						diagonal[i][u * m + v] += h;
+				}
+			}
+		}
+
+		final double[][] x = new double[numTiles][];
+		for (int i = 0; i < numTiles; ++i)
+			x[i] = normalizedAffine(i);
+
+		/* free parameters in reverse Cuthill-McKee order */
+		final int[] freeIndex = new int[numTiles * bs];
+		final int[] tileFirstFree = new int[numTiles];
+		int numFree = 0;
+		for (final int i : order()) {
+			tileFirstFree[i] = numFree;
+			for (int r = 0; r < bs; ++r) {
+				if (fixed[i] || (hardLinear[i] && r % m < n) || (anchors[i] && r % m == n))
+					freeIndex[i * bs + r] = -1;
+				else
+					freeIndex[i * bs + r] = numFree++;
+			}
+		}
+
+		if (numFree == 0)
+			return;
+
+		/* envelope of the lower triangle */
+		final int[] first = new int[numFree];
+		final long[] rowOffset = new long[numFree + 1];
+		for (int i = 0; i < numTiles; ++i) {
+			int tileFirst = tileFirstFree[i];
+			for (final int j : adjacency[i])
+				tileFirst = Math.min(tileFirst, tileFirstFree[j]);
+			for (int r = 0; r < bs; ++r) {
+				final int u = freeIndex[i * bs + r];
+				if (u >= 0)
+					first[u] = tileFirst;
+			}
+		}
+		for (int u = 0; u < numFree; ++u)
+			rowOffset[u + 1] = rowOffset[u] + u - first[u] + 1;
+
+		if (rowOffset[numFree] > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("The envelope of the normal matrix is too large for the direct solver, use TileConfiguration.");
+
+		final double[] envelope = new double[(int)rowOffset[numFree]];
+		final double[][] b = new double[numRhs][numFree];
+
+		/* parameter r of a tile for right hand side d is [d * m + r] of the affine, coupled parameters are the affine */
+		final int rhsStride = isCoupled ? 0 : m;
+
+		for (int i = 0; i < numTiles; ++i) {
+			for (int r = 0; r < bs; ++r) {
+				final int u = freeIndex[i * bs + r];
+				if (u < 0)
+					continue;
+				for (int c = 0; c < bs; ++c) {
+					final int v = freeIndex[i * bs + c];
+					final double h = diagonal[i][r * bs + c];
+					if (v < 0) {
+						for (int d = 0; d < numRhs; ++d)
+							b[d][u] -= h * x[i][d * rhsStride + c];
+					} else if (v <= u)
+						envelope[(int)(rowOffset[u] + v - first[u])] += h;
+				}
+
+				/* damping towards the current parameters */
+				final double damping = levenbergDamping * diagonal[i][r * bs + r];
+				envelope[(int)(rowOffset[u] + u - first[u])] += damping;
+				for (int d = 0; d < numRhs; ++d)
+					b[d][u] += rhs[i][d * rhsStride + r] + damping * x[i][d * rhsStride + r];
+			}
+		}
+
+		for (int e = 0; e < edgeA.length; ++e) {
+			final int i = edgeA[e];
+			final int j = edgeB[e];
+			for (int r = 0; r < bs; ++r) {
+				final int u = freeIndex[i * bs + r];
+				for (int c = 0; c < bs; ++c) {
+					final int v = freeIndex[j * bs + c];
+					final double h = offDiagonal[e][r * bs + c];
+					if (h == 0)
+						continue;
+					if (u >= 0 && v >= 0) {
+						if (v <= u)
+							envelope[(int)(rowOffset[u] + v - first[u])] += h;
+						else
+							envelope[(int)(rowOffset[v] + u - first[v])] += h;
+					} else if (u >= 0) {
+						for (int d = 0; d < numRhs; ++d)
+							b[d][u] -= h * x[j][d * rhsStride + c];
+					} else if (v >= 0) {
+						for (int d = 0; d < numRhs; ++d)
+							b[d][v] -= h * x[i][d * rhsStride + r];
+					}
+				}
+			}
+		}
+
+		factorize(envelope, first, rowOffset);
+
+		for (int d = 0; d < numRhs; ++d) {
+			substitute(envelope, first, rowOffset, b[d]);
+			for (int i = 0; i < numTiles; ++i) {
+				for (int r = 0; r < bs; ++r) {
+					final int u = freeIndex[i * bs + r];
+					if (u >= 0)
+						x[i][d * rhsStride + r] = b[d][u];
+				}
+			}
+		}
+
+		for (int i = 0; i < numTiles; ++i)
+			if (!fixed[i])
+				setNormalizedAffine(i, x[i]);
+	}
+
+	/**
+	 * Kronecker product I_n x block of an m x m block.
+	 */
+	private double[] expand(final double[] block) {
+
+		final int bs = n * m;
+		final double[] expanded = new double[bs * bs];
+		for (int d = 0; d < n; ++d)
+			for (int r = 0; r < m; ++r)
+				for (int c = 0; c < m; ++c)
+					expanded[(d * m + r) * bs + d * m + c] = block[r * m + c];
+
+		return expanded;
+	}
+
+	/**
+	 * c = a b for n x n matrices.
+	 */
+	private void multiply(final double[] a, final double[] b, final double[] c) {
+
+		Arrays.fill(c, 0);
+		for (int r = 0; r < n; ++r)
+			for (int k = 0; k < n; ++k)
+				for (int s = 0; s < n; ++s)
+					c[r * n + s] += a[r * n + k] * b[k * n + s];
+	}
+
+	/**
+	 * In place envelope Cholesky factorization.
+	 */
+	static void factorize(final double[] envelope, final int[] first, final long[] rowOffset) throws IllDefinedDataPointsException {
+
+		for (int u = 0; u < first.length; ++u) {
+			final int ou = (int)rowOffset[u] - first[u];
+			for (int v = first[u]; v <= u; ++v) {
+				final int ov = (int)rowOffset[v] - first[v];
+				double s = envelope[ou + v];
+				for (int k = Math.max(first[u], first[v]); k < v; ++k)
+					s -= envelope[ou + k] * envelope[ov + k];
+				if (v < u)
+					envelope[ou + v] = s / envelope[ov + v];
+				else if (s > 0)
+					envelope[ou + u] = Math.sqrt(s);
+				else
+					throw new IllDefinedDataPointsException();
+			}
+		}
+	}
+
+	/**
+	 * Solves L L^T x = b in place.
+	 */
+	static void substitute(final double[] envelope, final int[] first, final long[] rowOffset, final double[] b) {
+
+		for (int u = 0; u < first.length; ++u) {
+			final int ou = (int)rowOffset[u] - first[u];
+			double s = b[u];
+			for (int k = first[u]; k < u; ++k)
+				s -= envelope[ou + k] * b[k];
+			b[u] = s / envelope[ou + u];
+		}
+		for (int u = first.length - 1; u >= 0; --u) {
+			final int ou = (int)rowOffset[u] - first[u];
+			b[u] /= envelope[ou + u];
+			for (int k = first[u]; k < u; ++k)
+				b[k] -= envelope[ou + k] * b[u];
+		}
+	}
+
+	/**
+	 * Sets a model to an affine by fitting it to the tile's points mapped
+	 * by the affine.  An interpolated model (1 - lambda) A + lambda B is
+	 * fitted to a target T such that it becomes the affine, for linear
+	 * regularizers T = A + (A - F) / (1 - lambda) with F the model fitted
+	 * to A is exact, non-linear regularizers are refined a few times.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private void setModel(
+			final Model model,
+			final double[] affine,
+			final double lambda,
+			final double[] points,
+			final double[] weights) throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+
+		if (lambda <= 0 || lambda >= 1) {
+			model.fit(createMatches(affine, points, weights));
+			return;
+		}
+
+		final double[] target = affine.clone();
+		final double[] fitted = new double[n * m];
+		for (int i = 0; i < 10; ++i) {
+			model.fit(createMatches(target, points, weights));
+			toAffine(model, fitted);
+
+			boolean isEqual = true;
+			final double step = i == 0 ? 1.0 / (1.0 - lambda) : 1.0;
+			for (int k = 0; k < n * m; ++k) {
+				isEqual &= Math.abs(affine[k] - fitted[k]) <= 1e-10 * (1 + Math.abs(affine[k]));
+				target[k] += step * (affine[k] - fitted[k]);
+			}
+			if (isEqual)
+				break;
+		}
+	}
+}
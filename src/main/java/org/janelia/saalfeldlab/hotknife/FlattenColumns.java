@@ -0,0 +1,129 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Column-wise equivalent of resampling a volume through the inverse of a
+ * {@link FlattenTransform}.
+ *
+ * The min and max height fields are constant along the flattened axis, so
+ * they are looked up once per column and the column is resampled with a
+ * 1D linear interpolation loop.  At integer x and y, this is the same
+ * sample that n-linear interpolation of the source would produce.  Values
+ * are clamped to the range of the target type like
+ * {@link net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory}.
+ */
+public class FlattenColumns {
+
+	private FlattenColumns() {}
+
+	/**
+	 * Fills a block in flattened coordinates.  The last dimension of the
+	 * block and the source is the flattened axis.
+	 *
+	 * @param source source volume, extended as required, e.g. with the
+	 * 		background value
+	 * @param minField height field of the min surface in source coordinates
+	 * @param maxField height field of the max surface in source coordinates
+	 * @param minPosition flattened position of the min surface
+	 * @param maxPosition flattened position of the max surface
+	 * @param target block in flattened coordinates
+	 */
+	public static <S extends RealType<S>, T extends RealType<T>, F extends RealType<F>> void flatten(
+			final RandomAccessible<S> source,
+			final RealRandomAccessible<F> minField,
+			final RealRandomAccessible<F> maxField,
+			final double minPosition,
+			final double maxPosition,
+			final RandomAccessibleInterval<T> target) {
+
+		final int n = target.numDimensions() - 1;
+		final double norm = maxPosition - minPosition;
+		final long zMin = target.min(n);
+		final int depth = (int)target.dimension(n);
+
+		final T t = Views.iterable(target).firstElement();
+		final double minValue = t.getMinValue();
+		final double maxValue = t.getMaxValue();
+
+		final RealRandomAccess<F> minAccess = minField.realRandomAccess();
+		final RealRandomAccess<F> maxAccess = maxField.realRandomAccess();
+		final RandomAccess<S> sourceAccess = source.randomAccess();
+		final RandomAccess<T> targetAccess = target.randomAccess();
+
+		final double[] sourcePositions = new double[depth];
+		double[] column = new double[depth + 2];
+
+		final Cursor<T> columns = Views.flatIterable(Views.hyperSlice(target, n, zMin)).localizingCursor();
+		while (columns.hasNext()) {
+			columns.fwd();
+
+			for (int d = 0; d < n; ++d) {
+				final long p = columns.getLongPosition(d);
+				minAccess.setPosition(p, d);
+				maxAccess.setPosition(p, d);
+				sourceAccess.setPosition(p, d);
+				targetAccess.setPosition(p, d);
+			}
+
+			final double minSurface = minAccess.get().getRealDouble();
+			final double maxSurface = maxAccess.get().getRealDouble();
+			final double scale = maxSurface - minSurface;
+
+			/* source positions as in FlattenTransform.applyInverse */
+			double zFirst = Double.MAX_VALUE;
+			double zLast = -Double.MAX_VALUE;
+			for (int z = 0; z < depth; ++z) {
+				final double zSource = (zMin + z - minPosition) / norm * scale + minSurface;
+				sourcePositions[z] = zSource;
+				zFirst = Math.min(zFirst, zSource);
+				zLast = Math.max(zLast, zSource);
+			}
+
+			/* read the source column once */
+			final long columnMin = (long)Math.floor(zFirst);
+			final int columnSize = (int)((long)Math.floor(zLast) - columnMin) + 2;
+			if (column.length < columnSize)
+				column = new double[columnSize];
+			sourceAccess.setPosition(columnMin, n);
+			for (int z = 0; z < columnSize; ++z) {
+				column[z] = sourceAccess.get().getRealDouble();
+				sourceAccess.fwd(n);
+			}
+
+			targetAccess.setPosition(zMin, n);
+			for (int z = 0; z < depth; ++z) {
+				final double zSource = sourcePositions[z];
+				final double zFloor = Math.floor(zSource);
+				final double w = zSource - zFloor;
+				final int i = (int)((long)zFloor - columnMin);
+				final double value = column[i] * (1.0 - w) + column[i + 1] * w;
+				targetAccess.get().setReal(Math.max(minValue, Math.min(maxValue, value)));
+				targetAccess.fwd(n);
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.janelia.saalfeldlab.hotknife;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Multi-threaded alternative to
+ * {@link PMCCScaleSpaceBlockFlow#opticFlow(FloatProcessor, FloatProcessor, int, ImageStack, ImageStack, double)}.
+ *
+ * Block sums, sums of squares and cross-products are looked up from summed
+ * area tables in double precision such that the cost per offset and block
+ * radius is constant per pixel.  Summed area tables of the two images are
+ * calculated once, the table of cross-products once per offset.  Rows are
+ * processed in parallel in a configurable {@link ForkJoinPool}.  Block
+ * windows are clipped to the overlap of both images at the current offset
+ * as in {@link mpicbg.ij.integral.BlockPMCC}, the result is the signed
+ * square of the PMCC and ties are resolved in favor of the first offset in
+ * the same order as the reference implementation.
+ *
+ * A pool created by {@link #IntegralPMCCBlockFlow(int)} is owned by the
+ * engine and shut down by {@link #close()}, pools passed in are left to
+ * the caller.
+ */
+public class IntegralPMCCBlockFlow implements PMCCScaleSpaceBlockFlow.OpticFlow, AutoCloseable
+{
+	final private ForkJoinPool pool;
+	final private boolean ownsPool;
+
+	private IntegralPMCCBlockFlow( final ForkJoinPool pool, final boolean ownsPool )
+	{
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+	}
+
+	public IntegralPMCCBlockFlow( final ForkJoinPool pool )
+	{
+		this( pool, false );
+	}
+
+	public IntegralPMCCBlockFlow( final int numThreads )
+	{
+		this( new ForkJoinPool( numThreads ), true );
+	}
+
+	public IntegralPMCCBlockFlow()
+	{
+		this( ForkJoinPool.commonPool() );
+	}
+
+	@Override
+	public void close()
+	{
+		if ( ownsPool )
+			pool.shutdown();
+	}
+
+	private void parallelFor( final int from, final int to, final IntConsumer body )
+	{
+		pool.submit( () -> IntStream.range( from, to ).parallel().forEach( body ) ).join();
+	}
+
+	/**
+	 * Integrates a (width + 1) * (height + 1) table in place whose first row
+	 * and column are 0.  Rows are accumulated in parallel, then columns in
+	 * parallel chunks of consecutive columns to stay cache friendly.
+	 *
+	 * @param table
+	 * @param w table width
+	 * @param h table height
+	 */
+	private void integrate( final double[] table, final int w, final int h )
+	{
+		parallelFor( 1, h, y -> {
+			final int row = y * w;
+			for ( int x = 2; x < w; ++x )
+				table[ row + x ] += table[ row + x - 1 ];
+		} );
+
+		final int chunkSize = 256;
+		final int numChunks = ( w + chunkSize - 1 ) / chunkSize;
+		parallelFor( 0, numChunks, chunk -> {
+			final int xMin = Math.max( 1, chunk * chunkSize );
+			final int xMax = Math.min( w, ( chunk + 1 ) * chunkSize );
+			for ( int y = 2; y < h; ++y )
+			{
+				final int row = y * w;
+				final int rowAbove = row - w;
+				for ( int x = xMin; x < xMax; ++x )
+					table[ row + x ] += table[ rowAbove + x ];
+			}
+		} );
+	}
+
+	private double[] sums( final float[] pixels, final int width, final int height, final boolean square )
+	{
+		final int w = width + 1;
+		final double[] table = new double[ w * ( height + 1 ) ];
+		parallelFor( 0, height, y -> {
+			final int row = ( y + 1 ) * w + 1;
+			final int rowPixels = y * width;
+			for ( int x = 0; x < width; ++x )
+			{
+				final double v = pixels[ rowPixels + x ];
+				table[ row + x ] = square ? v * v : v;
+			}
+		} );
+		integrate( table, w, height + 1 );
+		return table;
+	}
+
+	/**
+	 * Summed area table of ip1(x, y) * ip2(x - xo, y - yo) in ip1
+	 * coordinates, 0 outside of the overlap.
+	 */
+	private void crossProductSums(
+			final float[] pixels1,
+			final float[] pixels2,
+			final int width,
+			final int height,
+			final int xo,
+			final int yo,
+			final double[] table )
+	{
+		final int w = width + 1;
+		final int x0 = Math.max( 0, xo );
+		final int x1 = Math.min( width, width + xo );
+		final int y0 = Math.max( 0, yo );
+		final int y1 = Math.min( height, height + yo );
+		parallelFor( 0, height, y -> {
+			final int row = ( y + 1 ) * w + 1;
+			if ( y < y0 || y >= y1 )
+			{
+				for ( int x = 0; x < width; ++x )
+					table[ row + x ] = 0;
+				return;
+			}
+			final int rowPixels1 = y * width;
+			final int rowPixels2 = ( y - yo ) * width - xo;
+			for ( int x = 0; x < x0; ++x )
+				table[ row + x ] = 0;
+			for ( int x = x0; x < x1; ++x )
+				table[ row + x ] = ( double )pixels1[ rowPixels1 + x ] * pixels2[ rowPixels2 + x ];
+			for ( int x = x1; x < width; ++x )
+				table[ row + x ] = 0;
+		} );
+		integrate( table, w, height + 1 );
+	}
+
+	/**
+	 * Sum over the inclusive window [xMin, xMax] x [yMin, yMax].
+	 */
+	final static private double sum(
+			final double[] table,
+			final int w,
+			final int xMin,
+			final int yMin,
+			final int xMax,
+			final int yMax )
+	{
+		final int rowMin = yMin * w;
+		final int rowMax = ( yMax + 1 ) * w;
+		return table[ rowMax + xMax + 1 ] - table[ rowMin + xMax + 1 ] - table[ rowMax + xMin ] + table[ rowMin + xMin ];
+	}
+
+	@Override
+	public void opticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final ImageStack r,
+			final ImageStack shiftVectors,
+			final double scaleFactor )
+	{
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int w = width + 1;
+
+		final ArrayList< Double > radiusList = new ArrayList< Double >();
+
+		for ( double radius = 1; radius < r.getWidth() / 4; radius *= scaleFactor )
+		{
+			radiusList.add( radius );
+
+			final FloatProcessor ipRMax = new FloatProcessor( width, height );
+			final float[] ipRMaxPixels = ( float[] )ipRMax.getPixels();
+			for ( int i = 0; i < ipRMaxPixels.length; ++i )
+				ipRMaxPixels[ i ] = -1;
+			final ShortProcessor ipX = new ShortProcessor( width, height );
+			final ShortProcessor ipY = new ShortProcessor( width, height );
+
+			r.addSlice( "" + radius, ipRMax );
+			shiftVectors.addSlice( "" + radius, ipX );
+			shiftVectors.addSlice( "" + radius, ipY );
+		}
+
+		/* assemble into typed arrays for quicker access */
+		final float[][] rArrays = new float[ r.getSize() ][];
+		final short[][] xShiftArrays = new short[ rArrays.length ][];
+		final short[][] yShiftArrays = new short[ rArrays.length ][];
+		final int[] radii = new int[ rArrays.length ];
+		for ( int i = 0; i < radii.length; ++i )
+		{
+			rArrays[ i ] = ( float[] )r.getImageArray()[ i ];
+			xShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ i << 1 ];
+			yShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ ( i << 1 ) | 1 ];
+
+			radii[ i ] = ( int )Math.round( radiusList.get( i ) );
+		}
+
+		final float[] pixels1 = ( float[] )ip1.getPixels();
+		final float[] pixels2 = ( float[] )ip2.getPixels();
+
+		final double[] sumsX = sums( pixels1, width, height, false );
+		final double[] sumsXX = sums( pixels1, width, height, true );
+		final double[] sumsY = sums( pixels2, width, height, false );
+		final double[] sumsYY = sums( pixels2, width, height, true );
+		final double[] sumsXY = new double[ sumsX.length ];
+
+		final int h = height - distance;
+		final int wMax = width - distance;
+
+		for ( int yo = -distance; yo <= distance; ++yo )
+		{
+			for ( int xo = -distance; xo <= distance; ++xo )
+			{
+				// continue if radius is larger than maxDistance
+				if ( yo * yo + xo * xo > distance * distance ) continue;
+
+				crossProductSums( pixels1, pixels2, width, height, xo, yo, sumsXY );
+
+				/* overlap in ip1 coordinates */
+				final int x0 = Math.max( 0, xo );
+				final int x1 = Math.min( width, width + xo ) - 1;
+				final int y0 = Math.max( 0, yo );
+				final int y1 = Math.min( height, height + yo ) - 1;
+
+				final int fxo = xo;
+				final int fyo = yo;
+
+				parallelFor( distance, h, y -> {
+					final int row = y * width;
+					for ( int ri = 0; ri < radii.length; ++ri )
+					{
+						final int blockRadius = radii[ ri ];
+						final float[] ipRMaxPixels = rArrays[ ri ];
+						final short[] ipXPixels = xShiftArrays[ ri ];
+						final short[] ipYPixels = yShiftArrays[ ri ];
+
+						final int yMin = Math.max( y0, y - blockRadius );
+						final int yMax = Math.min( y1, y + blockRadius );
+						final int bh = yMax - yMin + 1;
+
+						for ( int x = distance; x < wMax; ++x )
+						{
+							final int xMin = Math.max( x0, x - blockRadius );
+							final int xMax = Math.min( x1, x + blockRadius );
+							final double n = ( xMax - xMin + 1 ) * bh;
+
+							final double sumX = sum( sumsX, w, xMin, yMin, xMax, yMax );
+							final double sumXX = sum( sumsXX, w, xMin, yMin, xMax, yMax );
+							final double sumY = sum( sumsY, w, xMin - fxo, yMin - fyo, xMax - fxo, yMax - fyo );
+							final double sumYY = sum( sumsYY, w, xMin - fxo, yMin - fyo, xMax - fxo, yMax - fyo );
+							final double sumXY = sum( sumsXY, w, xMin, yMin, xMax, yMax );
+
+							final double a = n * sumXY - sumX * sumY;
+							final double b = n * sumXX - sumX * sumX;
+							final double c = n * sumYY - sumY * sumY;
+							final float rSignedSquare = ( float )( a * Math.abs( a ) / ( b * c ) );
+
+							final int i = row + x;
+							if ( rSignedSquare > ipRMaxPixels[ i ] )
+							{
+								ipRMaxPixels[ i ] = rSignedSquare;
+								ipXPixels[ i ] = ( short )fxo;
+								ipYPixels[ i ] = ( short )fyo;
+							}
+						}
+					}
+				} );
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost z-surface h(x,y) through a cost volume under the constraint
+ * |h(x,y) - h(x',y')| &lt;= maxDz for 4-neighbors, the same problem that
+ * {@link de.mpicbg.scf.mincostsurface.MinCostZSurface} solves for a single
+ * surface.
+ *
+ * The surface is the upper boundary of a minimum closed set in the graph of
+ * Wu and Chen, solved as a minimum s-t cut with FIFO push-relabel and
+ * global relabeling.  Nodes are only created inside a z-band [lo, hi] per
+ * column, e.g. around the surface of a coarser scale level.  A band does
+ * not change the result if the unbanded optimum lies inside of it.
+ *
+ * All arrays are kept and grown as needed, so that an instance can be
+ * reused for many blocks without allocation.  Instances are not
+ * thread-safe.
+ */
+public class MinCostZSurfaceSolver {
+
+	/* cost quantization for integer capacities */
+	private static final double costScale = 1024;
+
+	private int numNodes;
+	private int numArcs;
+
+	private int[] columnStart = new int[0];
+	private int[] firstArc = new int[0];
+	private int[] currentArc = new int[0];
+	private int[] label = new int[0];
+	private long[] excess = new long[0];
+	private long[] sinkCapacity = new long[0];
+	private int[] queue = new int[0];
+	private boolean[] queued = new boolean[0];
+
+	private int[] arcHead = new int[0];
+	private int[] arcReverse = new int[0];
+	private long[] arcCapacity = new long[0];
+
+	private long infinity;
+
+	/**
+	 * Solves for the minimum cost surface.
+	 *
+	 * @param cost cost volume, x fastest, then y, then z
+	 * @param width
+	 * @param height
+	 * @param depth
+	 * @param lo lowest z per column (x fastest), null for 0
+	 * @param hi highest z per column (x fastest), null for depth - 1
+	 * @param maxDz
+	 * @return z of the surface per column (x fastest)
+	 */
+	public int[] solve(
+			final float[] cost,
+			final int width,
+			final int height,
+			final int depth,
+			final int[] lo,
+			final int[] hi,
+			final int maxDz) {
+
+		final int numColumns = width * height;
+		final int[] columnLo = new int[numColumns];
+		final int[] columnHi = new int[numColumns];
+		for (int c = 0; c < numColumns; ++c) {
+			columnLo[c] = lo == null ? 0 : Math.max(0, lo[c]);
+			columnHi[c] = hi == null ? depth - 1 : Math.min(depth - 1, hi[c]);
+		}
+		tightenBand(width, height, columnLo, columnHi, maxDz);
+
+		build(cost, width, height, columnLo, columnHi, maxDz);
+		maxPreflow();
+		return surface(width, height, columnLo, columnHi);
+	}
+
+	/**
+	 * Tightens the band to the z-ranges that a surface with the slope
+	 * constraint can reach, i.e. lo(x) &gt;= lo(x') - maxDz * |x - x'| and
+	 * hi(x) &lt;= hi(x') + maxDz * |x - x'| with the city block distance,
+	 * computed in a forward and a backward pass.  No feasible surface is
+	 * excluded, but now the bottom of each column is always reachable and
+	 * no node needs a neighbor above its band.
+	 */
+	private static void tightenBand(
+			final int width,
+			final int height,
+			final int[] lo,
+			final int[] hi,
+			final int maxDz) {
+
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int c = y * width + x;
+				if (x > 0) {
+					lo[c] = Math.max(lo[c], lo[c - 1] - maxDz);
+					hi[c] = Math.min(hi[c], hi[c - 1] + maxDz);
+				}
+				if (y > 0) {
+					lo[c] = Math.max(lo[c], lo[c - width] - maxDz);
+					hi[c] = Math.min(hi[c], hi[c - width] + maxDz);
+				}
+			}
+		}
+		for (int y = height - 1; y >= 0; --y) {
+			for (int x = width - 1; x >= 0; --x) {
+				final int c = y * width + x;
+				if (x < width - 1) {
+					lo[c] = Math.max(lo[c], lo[c + 1] - maxDz);
+					hi[c] = Math.min(hi[c], hi[c + 1] + maxDz);
+				}
+				if (y < height - 1) {
+					lo[c] = Math.max(lo[c], lo[c + width] - maxDz);
+					hi[c] = Math.min(hi[c], hi[c + width] + maxDz);
+				}
+				if (hi[c] < lo[c])
+					throw new IllegalArgumentException("no surface with maxDz = " + maxDz + " fits into the band at (" + x + ", " + y + ")");
+			}
+		}
+	}
+
+	private int node(final int column, final int z) {
+
+		return columnStart[column] + z;
+	}
+
+	/**
+	 * Builds the residual graph.  Node weights are w(z) = c(z) - c(z - 1),
+	 * negative weights are source, positive weights are sink capacities.
+	 * The bottom node of each column is always in the closed set, it has
+	 * no weight and no arcs.  Closure arcs point from z to z - 1 in the
+	 * same column and to z - maxDz in the neighboring columns.
+	 */
+	private void build(
+			final float[] cost,
+			final int width,
+			final int height,
+			final int[] lo,
+			final int[] hi,
+			final int maxDz) {
+
+		final int numColumns = width * height;
+		if (columnStart.length < numColumns + 1)
+			columnStart = new int[numColumns + 1];
+
+		/* columnStart is offset by -lo such that node(c, z) = columnStart[c] + z */
+		int n = 0;
+		for (int c = 0; c < numColumns; ++c) {
+			columnStart[c] = n - lo[c];
+			n += hi[c] - lo[c] + 1;
+		}
+		numNodes = n;
+
+		if (firstArc.length < numNodes + 1) {
+			final int size = numNodes + numNodes / 4 + 1;
+			firstArc = new int[size];
+			currentArc = new int[size];
+			label = new int[size];
+			excess = new long[size];
+			sinkCapacity = new long[size];
+			queue = new int[size];
+			queued = new boolean[size];
+		}
+		Arrays.fill(firstArc, 0, numNodes + 1, 0);
+		Arrays.fill(excess, 0, numNodes, 0);
+		Arrays.fill(sinkCapacity, 0, numNodes, 0);
+
+		final int[] dx = new int[] {-1, 1, 0, 0};
+		final int[] dy = new int[] {0, 0, -1, 1};
+
+		/* count arcs, firstArc[v + 1] holds the number of arcs of v */
+		long sumCapacity = 0;
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int c = y * width + x;
+				for (int z = lo[c] + 1; z <= hi[c]; ++z) {
+					final int v = node(c, z);
+					sumCapacity += Math.abs(quantize(cost, numColumns, c, z) - quantize(cost, numColumns, c, z - 1));
+					if (z - 1 > lo[c]) {
+						++firstArc[v + 1];
+						++firstArc[node(c, z - 1) + 1];
+					}
+					for (int i = 0; i < 4; ++i) {
+						final int xn = x + dx[i];
+						final int yn = y + dy[i];
+						if (xn < 0 || xn >= width || yn < 0 || yn >= height)
+							continue;
+						final int cn = yn * width + xn;
+						final int zn = z - maxDz;
+						if (zn > lo[cn]) {
+							++firstArc[v + 1];
+							++firstArc[node(cn, zn) + 1];
+						}
+					}
+				}
+			}
+		}
+		for (int v = 0; v < numNodes; ++v)
+			firstArc[v + 1] += firstArc[v];
+		numArcs = firstArc[numNodes];
+
+		if (arcHead.length < numArcs) {
+			final int size = numArcs + numArcs / 4;
+			arcHead = new int[size];
+			arcReverse = new int[size];
+			arcCapacity = new long[size];
+		}
+
+		/* any cut through an infinite arc is more expensive than all source and sink arcs together */
+		infinity = sumCapacity + 1;
+
+		/* fill arcs, currentArc is the next free slot of each node */
+		System.arraycopy(firstArc, 0, currentArc, 0, numNodes);
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int c = y * width + x;
+				for (int z = lo[c] + 1; z <= hi[c]; ++z) {
+					final int v = node(c, z);
+					final long w = quantize(cost, numColumns, c, z) - quantize(cost, numColumns, c, z - 1);
+					if (w < 0)
+						excess[v] = -w;
+					else
+						sinkCapacity[v] = w;
+					if (z - 1 > lo[c])
+						addArc(v, node(c, z - 1));
+					for (int i = 0; i < 4; ++i) {
+						final int xn = x + dx[i];
+						final int yn = y + dy[i];
+						if (xn < 0 || xn >= width || yn < 0 || yn >= height)
+							continue;
+						final int cn = yn * width + xn;
+						final int zn = z - maxDz;
+						if (zn > lo[cn])
+							addArc(v, node(cn, zn));
+					}
+				}
+			}
+		}
+	}
+
+	private static long quantize(final float[] cost, final int numColumns, final int column, final int z) {
+
+		return Math.round(cost[z * numColumns + column] * costScale);
+	}
+
+	private void addArc(final int from, final int to) {
+
+		final int a = currentArc[from]++;
+		final int b = currentArc[to]++;
+		arcHead[a] = to;
+		arcCapacity[a] = infinity;
+		arcReverse[a] = b;
+		arcHead[b] = from;
+		arcCapacity[b] = 0;
+		arcReverse[b] = a;
+	}
+
+	/**
+	 * Exact distance labels to the sink in the residual graph, numNodes for
+	 * nodes that cannot reach the sink.
+	 */
+	private void globalRelabel() {
+
+		Arrays.fill(label, 0, numNodes, numNodes);
+		int head = 0;
+		int tail = 0;
+		for (int v = 0; v < numNodes; ++v) {
+			if (sinkCapacity[v] > 0) {
+				label[v] = 1;
+				queue[tail++] = v;
+			}
+		}
+		while (head < tail) {
+			final int w = queue[head++];
+			final int d = label[w] + 1;
+			for (int a = firstArc[w]; a < firstArc[w + 1]; ++a) {
+				final int u = arcHead[a];
+				if (label[u] == numNodes && arcCapacity[arcReverse[a]] > 0) {
+					label[u] = d;
+					queue[tail++] = u;
+				}
+			}
+		}
+		System.arraycopy(firstArc, 0, currentArc, 0, numNodes);
+	}
+
+	/**
+	 * FIFO push-relabel until no node with a label below numNodes has
+	 * excess.  The flow into the sink is then maximal and the nodes that
+	 * cannot reach the sink in the residual graph form the source side of a
+	 * minimum cut.
+	 */
+	private void maxPreflow() {
+
+		globalRelabel();
+
+		int head = 0;
+		int size = 0;
+		final int capacity = queue.length;
+		Arrays.fill(queued, 0, numNodes, false);
+		for (int v = 0; v < numNodes; ++v) {
+			if (excess[v] > 0 && label[v] < numNodes) {
+				queue[(head + size++) % capacity] = v;
+				queued[v] = true;
+			}
+		}
+
+		long relabels = 0;
+		while (size > 0) {
+			final int v = queue[head];
+			head = (head + 1) % capacity;
+			--size;
+			queued[v] = false;
+
+			if (label[v] >= numNodes)
+				continue;
+
+			/* discharge */
+			while (excess[v] > 0) {
+				if (label[v] == 1 && sinkCapacity[v] > 0) {
+					final long delta = Math.min(excess[v], sinkCapacity[v]);
+					sinkCapacity[v] -= delta;
+					excess[v] -= delta;
+					continue;
+				}
+				final int end = firstArc[v + 1];
+				int a = currentArc[v];
+				for (; a < end; ++a) {
+					final int w = arcHead[a];
+					if (arcCapacity[a] > 0 && label[v] == label[w] + 1) {
+						final long delta = Math.min(excess[v], arcCapacity[a]);
+						arcCapacity[a] -= delta;
+						arcCapacity[arcReverse[a]] += delta;
+						excess[v] -= delta;
+						excess[w] += delta;
+						if (!queued[w] && label[w] < numNodes) {
+							queue[(head + size++) % capacity] = w;
+							queued[w] = true;
+						}
+						if (excess[v] == 0)
+							break;
+					}
+				}
+				currentArc[v] = a;
+				if (excess[v] == 0)
+					break;
+
+				/* relabel */
+				int minLabel = sinkCapacity[v] > 0 ? 0 : numNodes;
+				for (int b = firstArc[v]; b < end; ++b)
+					if (arcCapacity[b] > 0)
+						minLabel = Math.min(minLabel, label[arcHead[b]]);
+				label[v] = Math.min(numNodes, minLabel + 1);
+				currentArc[v] = firstArc[v];
+
+				if (++relabels % numNodes == 0) {
+					globalRelabel();
+					/* re-queue all active nodes with their new labels */
+					head = 0;
+					size = 0;
+					Arrays.fill(queued, 0, numNodes, false);
+					for (int u = 0; u < numNodes; ++u) {
+						if (excess[u] > 0 && label[u] < numNodes) {
+							queue[size++] = u;
+							queued[u] = true;
+						}
+					}
+					break;
+				}
+
+				if (label[v] >= numNodes)
+					break;
+			}
+		}
+	}
+
+	/**
+	 * The source side of the minimum cut is the set of nodes that cannot
+	 * reach the sink in the residual graph, the surface is its highest
+	 * node per column.
+	 */
+	private int[] surface(final int width, final int height, final int[] lo, final int[] hi) {
+
+		globalRelabel();
+
+		final int numColumns = width * height;
+		final int[] surface = new int[numColumns];
+		for (int c = 0; c < numColumns; ++c) {
+			int z = lo[c];
+			while (z < hi[c] && label[node(c, z + 1)] == numNodes)
+				++z;
+			surface[c] = z;
+		}
+		return surface;
+	}
+}
@@ -1500,7 +1500,7 @@ public class ModifyAlignment
 				System.out.println( "WARNING: transformscale does not match showscale, be careful!" );
 
 			//System.exit( 0 );
-			final RandomAccessibleInterval<DoubleType> positionField = N5Utils.open(n5in, datasetName);
+			final RandomAccessibleInterval<DoubleType> positionField = Transform.openPositionField(n5in, datasetName);
 			final int n = positionField.numDimensions() - 1;
 			final long[] translation = Arrays.copyOf(Grid.floorScaled(boundsMinSurface, transformScale), n + 1);
 
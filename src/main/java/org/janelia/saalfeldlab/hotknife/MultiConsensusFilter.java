@@ -17,12 +17,24 @@
 package org.janelia.saalfeldlab.hotknife;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
+import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.PointMatch;
+import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLib2;
 
 /**
@@ -32,12 +44,29 @@ import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLi
  */
 public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter {
 
+	/**
+	 * RANSAC iterations per task of a seeded round, each task samples from
+	 * its own random number generator such that results do not depend on
+	 * the number of threads.
+	 */
+	public static final int iterationsPerTask = 100;
+
+	/* one pool of daemon threads per number of threads, shared by all filters of this JVM */
+	private static final ConcurrentHashMap<Integer, ExecutorService> sharedServices = new ConcurrentHashMap<>();
+
 	final private Supplier<M> modelSupplier;
 	final private int numIterations;
 	final private double maxEpsilon;
 	final private double minInlierRatio;
 	final private int minNumInliers;
+	final private Long seed;
+	/* not serialized, a deserialized filter runs in the calling thread with identical results */
+	final private transient ExecutorService service;
 
+	/**
+	 * Samples RANSAC hypotheses from the shared random number generator of
+	 * {@link Model}, results depend on all other RANSAC runs in this JVM.
+	 */
 	public MultiConsensusFilter(
 			final Supplier<M> modelSupplier,
 			final int numIterations,
@@ -45,31 +74,326 @@ public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter
 			final double minInlierRatio,
 			final int minNumInliers) {
 
+		this(modelSupplier, numIterations, maxEpsilon, minInlierRatio, minNumInliers, null);
+	}
+
+	/**
+	 * Samples RANSAC hypotheses from a random number generator that is
+	 * seeded for each call of {@link #filter(List)}, results are
+	 * reproducible and independent of other threads.
+	 *
+	 * @param seed null to use the shared random number generator of {@link Model}
+	 */
+	public MultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final Long seed) {
+
+		this(modelSupplier, numIterations, maxEpsilon, minInlierRatio, minNumInliers, seed, 1);
+	}
+
+	/**
+	 * Runs the RANSAC iterations of each round in a pool of numThreads
+	 * threads that is shared by all filters of this JVM with the same
+	 * numThreads, such that concurrent filters, e.g. in the tasks of a Spark
+	 * executor, do not multiply the number of threads.  Results are
+	 * identical for any number of threads.
+	 *
+	 * @param seed required for numThreads &gt; 1
+	 */
+	public MultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final Long seed,
+			final int numThreads) {
+
+		this(modelSupplier, numIterations, maxEpsilon, minInlierRatio, minNumInliers, seed, numThreads > 1 ? sharedService(numThreads) : null);
+	}
+
+	/**
+	 * Runs the RANSAC iterations of each round in service.  The service is
+	 * owned by the caller and not shut down by the filter.  Results are
+	 * identical for any service.
+	 *
+	 * @param seed required if service is not null
+	 * @param service null to run in the calling thread
+	 */
+	public MultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final Long seed,
+			final ExecutorService service) {
+
+		if (seed == null && service != null)
+			throw new IllegalArgumentException("Multi-threaded RANSAC requires a seed.");
+
 		this.modelSupplier = modelSupplier;
 		this.numIterations = numIterations;
 		this.maxEpsilon = maxEpsilon;
 		this.minInlierRatio = minInlierRatio;
 		this.minNumInliers = minNumInliers;
+		this.seed = seed;
+		this.service = service;
+	}
+
+	private static ExecutorService sharedService(final int numThreads) {
+
+		return sharedServices.computeIfAbsent(numThreads, n -> Executors.newFixedThreadPool(n, r -> {
+			final Thread thread = Executors.defaultThreadFactory().newThread(r);
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	/**
+	 * {@link Model#test(java.util.Collection, java.util.Collection, double, double, int)}
+	 * without applying the model to the matches which are shared by all
+	 * threads.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static boolean test(
+			final Model model,
+			final List<PointMatch> candidates,
+			final ArrayList<PointMatch> inliers,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers) {
+
+		inliers.clear();
+
+		final double epsilon2 = epsilon * epsilon;
+		for (final PointMatch m : candidates) {
+			final double[] p = model.apply(m.getP1().getL());
+			final double[] q = m.getP2().getW();
+			double d2 = 0;
+			for (int d = 0; d < p.length; ++d) {
+				final double dd = p[d] - q[d];
+				d2 += dd * dd;
+			}
+			if (d2 < epsilon2)
+				inliers.add(m);
+		}
+
+		final double ir = (double)inliers.size() / (double)candidates.size();
+		model.setCost(Math.max(0.0, Math.min(1.0, 1.0 - ir)));
+
+		return inliers.size() >= minNumInliers && ir > minInlierRatio;
 	}
 
+	/**
+	 * {@link Model#ransac(List, java.util.Collection, int, double, double, int)}
+	 * with a given random number generator.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static boolean ransac(
+			final Model model,
+			final List<PointMatch> candidates,
+			final ArrayList<PointMatch> inliers,
+			final int iterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final Random rnd) throws NotEnoughDataPointsException {
+
+		final int minNumMatches = model.getMinNumMatches();
+		if (candidates.size() < minNumMatches)
+			throw new NotEnoughDataPointsException(candidates.size() + " data points are not enough to solve the Model, at least " + minNumMatches + " data points required.");
+
+		final Model best = model.copy();
+		final Model m = model.copy();
+
+		/* model may carry the cost of a previous round */
+		best.setCost(Double.MAX_VALUE);
+
+		inliers.clear();
+
+		final HashSet<PointMatch> minMatches = new HashSet<>();
+
+		A: for (int i = 0; i < iterations; ++i) {
+
+			minMatches.clear();
+			while (minMatches.size() < minNumMatches)
+				minMatches.add(candidates.get(rnd.nextInt(candidates.size())));
+
+			try {
+				m.fit(minMatches);
+			} catch (final IllDefinedDataPointsException e) {
+				continue;
+			}
+
+			final ArrayList<PointMatch> tempInliers = new ArrayList<>();
+			int numInliers = 0;
+			boolean isGood = test(m, candidates, tempInliers, epsilon, minInlierRatio, minNumMatches);
+			while (isGood && numInliers < tempInliers.size()) {
+				numInliers = tempInliers.size();
+				try {
+					m.fit(tempInliers);
+				} catch (final IllDefinedDataPointsException e) {
+					continue A;
+				}
+				isGood = test(m, candidates, tempInliers, epsilon, minInlierRatio, minNumInliers);
+			}
+
+			if (isGood && m.betterThan(best) && tempInliers.size() >= minNumInliers) {
+				best.set(m);
+				inliers.clear();
+				inliers.addAll(tempInliers);
+			}
+		}
+
+		if (inliers.size() == 0)
+			return false;
+
+		model.set(best);
+		return true;
+	}
+
+	/**
+	 * Splits the iterations of {@link #ransac} into tasks of
+	 * {@link #iterationsPerTask} iterations with their own seeds drawn from
+	 * rnd, runs them in service (or in the current thread if service is
+	 * null), and keeps the best model of all tasks, the earliest task
+	 * winning ties.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static boolean ransac(
+			final Model model,
+			final List<PointMatch> candidates,
+			final ArrayList<PointMatch> inliers,
+			final int iterations,
+			final double epsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final Random rnd,
+			final ExecutorService service) throws NotEnoughDataPointsException {
+
+		final int minNumMatches = model.getMinNumMatches();
+		if (candidates.size() < minNumMatches)
+			throw new NotEnoughDataPointsException(candidates.size() + " data points are not enough to solve the Model, at least " + minNumMatches + " data points required.");
+
+		final ArrayList<Callable<ValuePair<Model, ArrayList<PointMatch>>>> tasks = new ArrayList<>();
+		for (int i = 0; i < iterations; i += iterationsPerTask) {
+			final int taskIterations = Math.min(iterationsPerTask, iterations - i);
+			final long taskSeed = rnd.nextLong();
+			tasks.add(() -> {
+				final Model taskModel = model.copy();
+				final ArrayList<PointMatch> taskInliers = new ArrayList<>();
+				if (ransac(taskModel, candidates, taskInliers, taskIterations, epsilon, minInlierRatio, minNumInliers, new Random(taskSeed)))
+					return new ValuePair<>(taskModel, taskInliers);
+				else
+					return null;
+			});
+		}
+
+		final ArrayList<ValuePair<Model, ArrayList<PointMatch>>> results = new ArrayList<>();
+		try {
+			if (service == null) {
+				for (final Callable<ValuePair<Model, ArrayList<PointMatch>>> task : tasks)
+					results.add(task.call());
+			} else {
+				for (final Future<ValuePair<Model, ArrayList<PointMatch>>> future : service.invokeAll(tasks))
+					results.add(future.get());
+			}
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		ValuePair<Model, ArrayList<PointMatch>> best = null;
+		for (final ValuePair<Model, ArrayList<PointMatch>> result : results)
+			if (result != null && (best == null || result.getA().betterThan(best.getA())))
+				best = result;
+
+		inliers.clear();
+		if (best == null)
+			return false;
+
+		model.set(best.getA());
+		inliers.addAll(best.getB());
+		return true;
+	}
+
+	/**
+	 * {@link Model#filterRansac(List, java.util.Collection, int, double, double, int, double)}
+	 * with a given random number generator.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static boolean filterRansac(
+			final Model model,
+			final List<PointMatch> candidates,
+			final ArrayList<PointMatch> inliers,
+			final int iterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double maxTrust,
+			final Random rnd,
+			final ExecutorService service) throws NotEnoughDataPointsException {
+
+		final ArrayList<PointMatch> temp = new ArrayList<>();
+		return
+				ransac(model, candidates, temp, iterations, maxEpsilon, minInlierRatio, minNumInliers, rnd, service) &&
+				model.filter(temp, inliers, maxTrust, minNumInliers);
+	}
+
+	/**
+	 * Removes all elements of toRemove from candidates in a single pass,
+	 * comparing by identity.
+	 */
+	private static void removeAll(final List<PointMatch> candidates, final List<PointMatch> toRemove) {
+
+		final Set<PointMatch> set = Collections.newSetFromMap(new IdentityHashMap<>(toRemove.size() * 2));
+		set.addAll(toRemove);
+		candidates.removeIf(set::contains);
+	}
+
+	/**
+	 * Finds consensus sets until no more model is found and removes them
+	 * from candidates.
+	 */
 	public ArrayList<ArrayList<PointMatch>> filterMultiConsensusSets(final List<PointMatch> candidates) {
 
 		final ArrayList<ArrayList<PointMatch>> inliers = new ArrayList<>();
 
 		final Model<?> model = modelSupplier.get();
+		final Random rnd = seed == null ? null : new Random(seed);
 
 		boolean modelFound = true;
 		do {
 			final ArrayList<PointMatch> modelInliers = new ArrayList<>();
+
+			/* Model#ransac accepts only hypotheses better than the model it is called on, forget the cost of the previous round */
+			model.setCost(Double.MAX_VALUE);
 			try {
-				modelFound = model.filterRansac(
-						candidates,
-						modelInliers,
-						numIterations,
-						maxEpsilon,
-						minInlierRatio,
-						minNumInliers,
-						3f);
+				if (rnd == null)
+					modelFound = model.filterRansac(
+							candidates,
+							modelInliers,
+							numIterations,
+							maxEpsilon,
+							minInlierRatio,
+							minNumInliers,
+							3f);
+				else
+					modelFound = filterRansac(
+							model,
+							candidates,
+							modelInliers,
+							numIterations,
+							maxEpsilon,
+							minInlierRatio,
+							minNumInliers,
+							3f,
+							rnd,
+							service);
 			}
 			catch (final NotEnoughDataPointsException e) {
 				modelFound = false;
@@ -77,7 +401,7 @@ public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter
 
 			if (modelFound) {
 				inliers.add(modelInliers);
-				candidates.removeAll(modelInliers);
+				removeAll(candidates, modelInliers);
 			}
 		} while (modelFound);
 
@@ -16,10 +16,12 @@ import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.array.ArrayRandomAccess;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.interpolation.InterpolatorFactory;
@@ -42,6 +44,26 @@ import net.imglib2.view.Views;
  */
 public class PMCCScaleSpaceBlockFlow
 {
+	/**
+	 * Block PMCC optic flow engine with the signature of
+	 * {@link PMCCScaleSpaceBlockFlow#opticFlow(FloatProcessor, FloatProcessor, int, ImageStack, ImageStack, double)}.
+	 */
+	public static interface OpticFlow
+	{
+		public void opticFlow(
+				final FloatProcessor ip1,
+				final FloatProcessor ip2,
+				final int distance,
+				final ImageStack r,
+				final ImageStack shiftVectors,
+				final double scaleFactor );
+	}
+
+	/**
+	 * Single-threaded reference engine based on {@link BlockPMCC}.
+	 */
+	public static final OpticFlow REFERENCE = PMCCScaleSpaceBlockFlow::opticFlow;
+
 	static public void opticFlow(
 			final FloatProcessor ip1,
 			final FloatProcessor ip2,
@@ -262,12 +284,90 @@ public class PMCCScaleSpaceBlockFlow
 	}
 
 
+	private static final DeformationFieldTransform< DoubleType > createDeformationFieldTransform(
+			final RandomAccessibleInterval< DoubleType > deformationX,
+			final RandomAccessibleInterval< DoubleType > deformationY )
+	{
+		return new DeformationFieldTransform<>(
+				Views.interpolate(
+						Views.extendBorder( deformationX ),
+						new NLinearInterpolatorFactory<>() ),
+				Views.interpolate(
+						Views.extendBorder( deformationY ),
+						new NLinearInterpolatorFactory<>() ) );
+	}
+
+	/**
+	 * Composes a dense deformation field d with a dense shift field s into a
+	 * new dense deformation field
+	 *
+	 * d'(x) = s(x) + d(x + s(x))
+	 *
+	 * such that x + d'(x) is the position of x transformed first by the
+	 * shift field and then by the existing deformation.  d is interpolated
+	 * n-linearly with border extension, s is sampled at the pixel
+	 * positions only.  The composition is evaluated once per pixel which
+	 * keeps the cost of evaluating the accumulated transformation
+	 * independent of the number of iterations.
+	 *
+	 * @param deformationX
+	 * @param deformationY
+	 * @param shiftX
+	 * @param shiftY
+	 * @param composedX
+	 * @param composedY
+	 */
+	public static final void composeDeformationFields(
+			final RandomAccessibleInterval< DoubleType > deformationX,
+			final RandomAccessibleInterval< DoubleType > deformationY,
+			final float[] shiftX,
+			final float[] shiftY,
+			final double[] composedX,
+			final double[] composedY )
+	{
+		final int width = ( int )deformationX.dimension( 0 );
+		final int height = ( int )deformationX.dimension( 1 );
+
+		final RealRandomAccess< DoubleType > dX = Views.interpolate(
+				Views.extendBorder( deformationX ),
+				new NLinearInterpolatorFactory< DoubleType >() ).realRandomAccess();
+		final RealRandomAccess< DoubleType > dY = Views.interpolate(
+				Views.extendBorder( deformationY ),
+				new NLinearInterpolatorFactory< DoubleType >() ).realRandomAccess();
+
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final double sx = shiftX[ i ];
+				final double sy = shiftY[ i ];
+				dX.setPosition( x + sx, 0 );
+				dX.setPosition( y + sy, 1 );
+				dY.setPosition( dX );
+				composedX[ i ] = sx + dX.get().get();
+				composedY[ i ] = sy + dY.get().get();
+			}
+		}
+	}
+
+
 	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
 			final FloatProcessor ip1,
 			final FloatProcessor ip2,
 			final short radius,
 			final double sigma,
 			final int numIterations)
+	{
+		return scaleSpaceOpticFlow( ip1, ip2, radius, sigma, numIterations, REFERENCE );
+	}
+
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final OpticFlow opticFlow )
 	{
 		/* create background mask */
 		final ByteProcessor backgroundMask = new ByteProcessor( ip1.getWidth(), ip1.getHeight() );
@@ -281,9 +381,12 @@ public class PMCCScaleSpaceBlockFlow
 		/* initialize composed weights */
 		FloatProcessor weights = null;
 
-		/* initialize position field with identity */
-		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
-		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
+		/* initialize accumulated deformation field with identity */
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		ArrayImg< DoubleType, DoubleArray > deformationX = ArrayImgs.doubles( width, height );
+		ArrayImg< DoubleType, DoubleArray > deformationY = ArrayImgs.doubles( width, height );
+		DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform( deformationX, deformationY );
 
 		/* filters to mask saturated pixels with noise */
 		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
@@ -295,15 +398,12 @@ public class PMCCScaleSpaceBlockFlow
 		/* repeat numIteration times for each scale */
 		for ( int j = 0; j < numIterations ; ++j )
 		{
-			@SuppressWarnings( "unchecked" )
+			/* resample the original moving image once through the accumulated deformation */
 			FloatProcessor ip2Transformed = Util.materialize(
 					createTransformedInterval(
 							ip2,
 							new FinalInterval( ip2.getWidth(), ip2.getHeight() ),
-							new PositionFieldTransform<>(
-									new RealRandomAccessible[]{
-										xPositions,
-										yPositions } ) ) );
+							deformationField ) );
 
 			ip2Transformed = filter1.process( ip2Transformed ).convertToFloatProcessor();
 			ip2Transformed = filter2.process( ip2Transformed ).convertToFloatProcessor();
@@ -311,7 +411,7 @@ public class PMCCScaleSpaceBlockFlow
 			final ImageStack seqR = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			final ImageStack seqFlowVectors = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 
-			opticFlow(
+			opticFlow.opticFlow(
 					ip1Filtered,
 					ip2Transformed,
 					radius,
@@ -355,24 +455,31 @@ public class PMCCScaleSpaceBlockFlow
 			shiftXFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 			shiftYFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 
-			/* append deformation field to existing transformation */
-			final DeformationFieldTransform< FloatType > deformationField = createDeformationFieldTransform(
-					shiftXFloat,
-					shiftYFloat );
-
-			xPositions = new RealTransformRandomAccessible<>(
-					xPositions,
-					deformationField );
-			yPositions = new RealTransformRandomAccessible<>(
-					yPositions,
-					deformationField );
+			/* bake the composition of the existing transformation and the new deformation field */
+			final double[] composedX = new double[ width * height ];
+			final double[] composedY = new double[ width * height ];
+			composeDeformationFields(
+					deformationX,
+					deformationY,
+					( float[] )shiftXFloat.getPixels(),
+					( float[] )shiftYFloat.getPixels(),
+					composedX,
+					composedY );
+
+			deformationX = ArrayImgs.doubles( composedX, width, height );
+			deformationY = ArrayImgs.doubles( composedY, width, height );
+			deformationField = createDeformationFieldTransform( deformationX, deformationY );
 		}
 
 		@SuppressWarnings( "unchecked" )
 		final PositionFieldTransform< DoubleType > transform = new PositionFieldTransform<>(
 				new RealRandomAccessible[]{
-						xPositions,
-						yPositions } );
+						new RealTransformRandomAccessible<>(
+								new RealPositionRealRandomAccessible( 2, 0 ),
+								deformationField ),
+						new RealTransformRandomAccessible<>(
+								new RealPositionRealRandomAccessible( 2, 1 ),
+								deformationField ) } );
 
 		return new ValuePair< PositionFieldTransform< DoubleType >, FloatProcessor >( transform, weights );
 	}
@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -31,7 +30,10 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureMatcher;
+import org.janelia.saalfeldlab.hotknife.util.KDForestMatcher;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.hotknife.util.Util;
 import org.janelia.saalfeldlab.n5.N5FSReader;
@@ -96,6 +98,18 @@ public class SparkAlignAffineGlobal {
 		@Option(name = "--scaleIndex", required = true, usage = "scale index, e.g. 4 (means scale = 1.0 / 2^4)")
 		private int scaleIndex = 0;
 
+		@Option(name = "--directSolver", required = false, usage = "solve the tile configuration with a sparse direct solver instead of iteratively")
+		private boolean directSolver = false;
+
+		@Option(name = "--directSolverDamp", required = false, usage = "damp matches of the direct solver with residuals larger than this times the median residual, <= 0 for no damping")
+		private double directSolverDamp = 0;
+
+		@Option(name = "--kdForest", required = false, usage = "match SIFT features approximately with a randomized k-d forest instead of comparing all pairs")
+		private boolean kdForest = false;
+
+		@Option(name = "--matchThreads", required = false, usage = "number of threads per face pair for matching with --kdForest and for RANSAC, RANSAC results do not depend on it")
+		private int matchThreads = 1;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -166,6 +180,31 @@ public class SparkAlignAffineGlobal {
 		public String getOutGroup() {
 			return outGroup;
 		}
+
+		/**
+		 * @return whether to use {@link DirectTileOptimizer}
+		 */
+		public boolean isDirectSolver() {
+			return directSolver;
+		}
+
+		/**
+		 * @return damp factor of {@link DirectTileOptimizer}, &lt;= 0 for no damping
+		 */
+		public double getDirectSolverDamp() {
+			return directSolverDamp;
+		}
+
+		/**
+		 * @return the {@link FeatureMatcher} for matching block faces
+		 */
+		public FeatureMatcher getFeatureMatcher() {
+			return kdForest ? new KDForestMatcher(matchThreads) : Align.bruteForceMatcher;
+		}
+
+		public int getMatchThreads() {
+			return matchThreads;
+		}
 	}
 
 
@@ -201,30 +240,44 @@ public class SparkAlignAffineGlobal {
 			final List<String> datasetNames,
 			final JavaPairRDD<String, ArrayList<Feature>> features) {
 
-		final ArrayList<String[]> pairs = new ArrayList<>();
-		for (int i = 2; i < datasetNames.size(); i += 2)
-			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+		return matchBlockFaces(sc, datasetNames, features, Align.bruteForceMatcher);
+	}
 
-		final Map<String, ArrayList<Feature>> featuresMap = features.collectAsMap();
 
-		final ArrayList<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tupleList = new ArrayList<>();
+	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], ArrayList<PointMatch>> matchBlockFaces(
+			final JavaSparkContext sc,
+			final List<String> datasetNames,
+			final JavaPairRDD<String, ArrayList<Feature>> features,
+			final FeatureMatcher matcher) {
 
-		for (final String[] pair : pairs)
-			tupleList.add(
-					new Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>(
-							new Tuple2<String, ArrayList<Feature>>(pair[0], featuresMap.get(pair[0])),
-							new Tuple2<String, ArrayList<Feature>>(pair[1], featuresMap.get(pair[1]))));
+		/* index of the pair and whether it is the first face by face name */
+		final HashMap<String, Tuple2<Integer, Boolean>> pairFaces = new HashMap<>();
+		final ArrayList<String[]> pairs = new ArrayList<>();
+		for (int i = 2; i < datasetNames.size(); i += 2) {
+			pairFaces.put(datasetNames.get(i - 1), new Tuple2<>(pairs.size(), true));
+			pairFaces.put(datasetNames.get(i), new Tuple2<>(pairs.size(), false));
+			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+		}
 
-		final JavaRDD<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tuples = sc.parallelize(tupleList);
+		/* bring the features of both faces of a pair together on the executors */
+		final JavaPairRDD<Integer, ArrayList<Feature>> firstFaces = features
+				.filter(entry -> pairFaces.containsKey(entry._1()) && pairFaces.get(entry._1())._2())
+				.mapToPair(entry -> new Tuple2<>(pairFaces.get(entry._1())._1(), entry._2()));
+		final JavaPairRDD<Integer, ArrayList<Feature>> secondFaces = features
+				.filter(entry -> pairFaces.containsKey(entry._1()) && !pairFaces.get(entry._1())._2())
+				.mapToPair(entry -> new Tuple2<>(pairFaces.get(entry._1())._1(), entry._2()));
+
+		final JavaPairRDD<Integer, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> tuples =
+				firstFaces.join(secondFaces, Math.max(1, pairs.size()));
 
 		final JavaPairRDD<String[], ArrayList<PointMatch>> candidateMatches = tuples.mapToPair(
 				tuple -> {
-					final ArrayList<PointMatch> candidates = Align.matchFeatures(
-							tuple._1()._2(),
+					final ArrayList<PointMatch> candidates = matcher.match(
+							tuple._2()._1(),
 							tuple._2()._2(),
 							0.92f);
 
-					final String[] key = new String[]{tuple._1()._1(), tuple._2()._1()};
+					final String[] key = pairs.get(tuple._1());
 
 					System.out.println(Arrays.toString(key) + " : " + candidates.size() + " matches found.");
 
@@ -243,7 +296,8 @@ public class SparkAlignAffineGlobal {
 			final int numIterations,
 			final double maxEpsilon,
 			final double minInlierRatio,
-			final int minNumInliers)
+			final int minNumInliers,
+			final int numThreads)
 	{
 		final JavaPairRDD<String[], ArrayList<PointMatch>> inlierMatches = candidateMatches.mapToPair(
 				tuple -> {
@@ -254,7 +308,9 @@ public class SparkAlignAffineGlobal {
 									numIterations,
 									maxEpsilon,
 									minInlierRatio,
-									minNumInliers).filter(tuple._2());
+									minNumInliers,
+									0L,
+									numThreads).filter(tuple._2());
 
 					System.out.printf("%s : %d inliers found.", Arrays.toString(tuple._1()), inliers.size());
 					System.out.println();
@@ -380,10 +436,14 @@ public class SparkAlignAffineGlobal {
 				datasetNames,
 				options.getScaleIndex());
 
+		/* features stay on the executors, only filtered matches are collected */
+		features.persist(StorageLevel.MEMORY_AND_DISK_SER());
+
 		final JavaPairRDD<String[], ArrayList<PointMatch>> matches = matchBlockFaces(
 				sc,
 				datasetNames,
-				features);
+				features,
+				options.getFeatureMatcher());
 
 		final JavaPairRDD<String[], ArrayList<PointMatch>> scaledMatches = matches.mapToPair(
 				entry -> {
@@ -399,7 +459,8 @@ public class SparkAlignAffineGlobal {
 				10000,
 				200,
 				0,
-				7);
+				7,
+				options.getMatchThreads());
 
 
 		/* remember fixed tiles if requested */
@@ -411,6 +472,8 @@ public class SparkAlignAffineGlobal {
 				fixedModels,
 				fixedTiles );
 
+		features.unpersist();
+
 		System.out.println( "fixedTiles: " + fixedTiles.size() );
 
 		/* optimize */
@@ -425,7 +488,10 @@ public class SparkAlignAffineGlobal {
 		/* three pass optimization, first using the regularizer exclusively ... */
 		try {
 			tc.preAlign();
-			tc.optimize(0.01, 5000, 200, 0.5);
+			if (options.isDirectSolver())
+				new DirectTileOptimizer(100, 0.01, options.getDirectSolverDamp()).optimize(tc);
+			else
+				tc.optimize(0.01, 5000, 200, 0.5);
 		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
@@ -437,7 +503,10 @@ public class SparkAlignAffineGlobal {
 						((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(0.1); } );
 
 		try {
-			tc.optimize(0.01, 5000, 200, 0.5);
+			if (options.isDirectSolver())
+				new DirectTileOptimizer(100, 0.01, options.getDirectSolverDamp()).optimize(tc);
+			else
+				tc.optimize(0.01, 5000, 200, 0.5);
 		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
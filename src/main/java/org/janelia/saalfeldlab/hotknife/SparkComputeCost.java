@@ -18,11 +18,14 @@ package org.janelia.saalfeldlab.hotknife;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
@@ -30,6 +33,7 @@ import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.cost.DagmarCost;
 import org.janelia.saalfeldlab.hotknife.cost.PreFilter;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
@@ -59,7 +63,6 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.SubsampleIntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -76,6 +79,10 @@ public class SparkComputeCost {
 	final static public String boundingBoxFormat = stackFormat + "/z/%d/box/%d,%d,%d,%d,%f";
 	final static public String renderParametersFormat = boundingBoxFormat + "/render-parameters";
 
+	final static public int COLUMN_PENDING = 0;
+	final static public int COLUMN_DONE = 1;
+	final static public int COLUMN_FAILED = 2;
+
 	@SuppressWarnings("serial")
 	public static class Options extends AbstractOptions implements Serializable {
 
@@ -99,6 +106,10 @@ public class SparkComputeCost {
 			return costDatasetName + "/s" + (firstStepScaleNumber + index);
 		}
 
+		public String getColumnStatusDatasetName() {
+			return costDatasetName + "/columnStatus";
+		}
+
 		@Option(name = "--costSteps",
 				aliases = { "-f", "--factors" },
 				usage = "Step sizes for computing cost, e.g. 6,1,6. " +
@@ -141,6 +152,12 @@ public class SparkComputeCost {
 		@Option(name = "--downsampleCostX", required = false, usage = "properly downsamples cost according to the cost step size (e.g. 6)")
 		private boolean downsampleCostX = false;
 
+		@Option(name = "--subsampledCost", required = false, usage = "computes the cost only at every costSteps[0]-th column of an anti-aliased image instead of subsampling a full resolution cost, replaces --downsampleCostX")
+		private boolean subsampledCost = false;
+
+		@Option(name = "--threadsPerTask", required = false, usage = "number of cost columns processed concurrently by each Spark task")
+		private int threadsPerTask = 1;
+
 		@Option(name = "--surfaceN5Output", usage = "N5 output group for surface heighfields, e.g. /heightfields/Sec39/v1_acquire_trimmed_sp1, omit to skip surface fit")
 		private String surfaceN5Output = null;
 
@@ -278,30 +295,52 @@ public class SparkComputeCost {
 
 		final boolean filter = options.normalizeImage;
 		final boolean gauss = options.downsampleCostX;
+		final boolean subsampled = options.subsampledCost;
+
+		final int threadsPerTask = Math.max(1, options.threadsPerTask);
 
-		rddSlices.foreachPartition( gridCoordPartition -> {
-			//gridCoords.forEach(gridCoord -> {
+		final String columnStatusDataset = options.getColumnStatusDatasetName();
+		final long[] gridSize = new long[] {gridXSize, gridZSize};
+		saveColumnStatus(n5w, columnStatusDataset, gridSize, null);
 
-			//ExecutorService executorService =  Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 2);
-			ExecutorService executorService =  Executors.newFixedThreadPool(1 );
-			//ExecutorService executorService =  Executors.newCachedThreadPool();
+		try {
+			rddSlices.foreachPartition( gridCoordPartition -> {
 
-			gridCoordPartition.forEachRemaining(gridCoord -> {
+				final ExecutorService columnExecutorService = Executors.newFixedThreadPool(threadsPerTask);
 
+				// at most threadsPerTask columns (and their cost volumes) in flight
+				final ArrayDeque<Future<Long[]>> futures = new ArrayDeque<>();
 				try {
-				    processColumn(
-						  n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, axisMode, gridCoord, executorService,
-						  options.bandSize, options.minGradient, options.slopeCorrXRange, options.slopeCorrBandFactor, options.maxSlope,
-						  options.minSlope, options.startThresh, options.kernelSize);
-				} catch (Exception e) {
-				    e.printStackTrace(); // TODO: is there a reason we are swallowing exceptions?
+					while (gridCoordPartition.hasNext()) {
+						final Long[] gridCoord = gridCoordPartition.next();
+						if (futures.size() == threadsPerTask)
+							getColumn(futures.poll());
+
+						futures.add(columnExecutorService.submit(() -> {
+							try {
+								processColumn(
+										n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, subsampled, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, axisMode, gridCoord,
+										options.bandSize, options.minGradient, options.slopeCorrXRange, options.slopeCorrBandFactor, options.maxSlope,
+										options.minSlope, options.startThresh, options.kernelSize);
+							} catch (final Exception e) {
+								throw new RuntimeException("Computing the cost of column " + gridCoord[0] + ", " + gridCoord[1] + " failed.", e);
+							}
+							return gridCoord;
+						}));
+					}
+					while (!futures.isEmpty())
+						getColumn(futures.poll());
+				} finally {
+					futures.forEach(future -> future.cancel(true));
+					columnExecutorService.shutdownNow();
 				}
-				
-			    });
-
-			executorService.shutdown();
+			});
+		} catch (final Exception e) {
+			saveColumnStatus(n5w, columnStatusDataset, gridSize, writtenColumns(rddSlices, costN5Path, costDataset, zcorrSize, zcorrBlockSize));
+			throw e;
+		}
 
-		    });
+		saveColumnStatus(n5w, columnStatusDataset, gridSize, writtenColumns(rddSlices, costN5Path, costDataset, zcorrSize, zcorrBlockSize));
 
 		final N5PathSupplier n5PathSupplier = new N5PathSupplier(costN5Path);
 		for (int i = 1; i < options.costStepsStrings.length; i++) {
@@ -345,6 +384,94 @@ public class SparkComputeCost {
 		}
 	}
 
+	/**
+	 * Finds the columns whose cost blocks were all written.
+	 * {@link #processColumn} writes the blocks of a column in increasing y
+	 * order and fails before writing further blocks, so a column is complete
+	 * if its last block can be read.  This does not depend on which task
+	 * attempt wrote the column, e.g. a column whose first attempt failed and
+	 * whose retry succeeded is complete.  Blocks left in the cost dataset by
+	 * an earlier run count as written.
+	 *
+	 * @return the grid coordinates of the complete columns
+	 */
+	private static List<Long[]> writtenColumns(
+			final JavaRDD<Long[]> gridCoords,
+			final String costN5Path,
+			final String costDataset,
+			final long[] zcorrSize,
+			final int[] zcorrBlockSize) {
+
+		final long lastYGrid = lastColumnBlock(zcorrSize, zcorrBlockSize);
+
+		return gridCoords.filter(gridCoord -> {
+			final N5Reader n5 = new N5FSReader(costN5Path);
+			final DatasetAttributes attributes = n5.getDatasetAttributes(costDataset);
+			try {
+				return n5.readBlock(costDataset, attributes, new long[]{gridCoord[0], lastYGrid, gridCoord[1]}) != null;
+			} catch (final Exception e) {
+				return false;
+			}
+		}).collect();
+	}
+
+	/**
+	 * @return the y grid coordinate of the last cost block of a column
+	 */
+	private static long lastColumnBlock(final long[] zcorrSize, final int[] zcorrBlockSize) {
+
+		return zcorrSize[1] / zcorrBlockSize[1];
+	}
+
+	/**
+	 * Waits for a column and rethrows its failure so that Spark fails (and
+	 * retries) the task.
+	 */
+	private static Long[] getColumn(final Future<Long[]> future) throws InterruptedException {
+
+		try {
+			return future.get();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Saves the status of all columns as a UINT8 dataset of grid x by grid z
+	 * columns, {@link #COLUMN_DONE} for columns that are done, and, if not
+	 * done, {@link #COLUMN_PENDING} before and {@link #COLUMN_FAILED} after
+	 * the columns were processed.
+	 *
+	 * @param n5w
+	 * @param columnStatusDataset
+	 * @param gridSize number of columns along x and z
+	 * @param doneColumns the columns that are done, null before processing
+	 * @throws IOException
+	 */
+	private static void saveColumnStatus(
+			final N5Writer n5w,
+			final String columnStatusDataset,
+			final long[] gridSize,
+			final List<Long[]> doneColumns) throws IOException {
+
+		final ArrayImg<UnsignedByteType, ByteArray> columnStatus = ArrayImgs.unsignedBytes(gridSize);
+		columnStatus.forEach(t -> t.set(doneColumns == null ? COLUMN_PENDING : COLUMN_FAILED));
+		if (doneColumns != null) {
+			final RandomAccess<UnsignedByteType> access = columnStatus.randomAccess();
+			for (final Long[] gridCoord : doneColumns) {
+				access.setPosition(new long[] {gridCoord[0], gridCoord[1]});
+				access.get().set(COLUMN_DONE);
+			}
+		}
+
+		final int[] blockSize = new int[] {
+				(int)Math.min(1024, gridSize[0]),
+				(int)Math.min(1024, gridSize[1])};
+		N5Utils.save(columnStatus, n5w, columnStatusDataset, blockSize, new GzipCompression());
+	}
+
 	private static void processColumn(
 			String n5Path,
 			String costN5Path,
@@ -352,13 +479,13 @@ public class SparkComputeCost {
 			String costDataset,
 			final boolean filter,
 			final boolean gauss,
+			final boolean subsampled,
 			int[] costBlockSize,
 			int[] zcorrBlockSize,
 			long[] zcorrSize,
 			int[] costSteps,
 			String axisMode,
 			Long[] gridCoord,
-			ExecutorService executorService,
 			int bandSize,
 			int minGradient,
 			int slopeCorrXRange,
@@ -371,12 +498,12 @@ public class SparkComputeCost {
 
 		RandomAccessibleInterval<UnsignedByteType> cost;
 		if (axisMode.equals("2")) {// This is the original mode
-			cost = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 2, gridCoord, executorService, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
+			cost = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, subsampled, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 2, gridCoord, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
 		} else if (axisMode.equals("0")) {// Compute along axis 0
-			cost = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 0, gridCoord, executorService, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
+			cost = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, subsampled, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 0, gridCoord, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
 		} else if (axisMode.equals("02")) {// Compute along both 0 and 2 then combine
-			RandomAccessibleInterval<UnsignedByteType> cost2 = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 2, gridCoord, executorService, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
-			RandomAccessibleInterval<UnsignedByteType> cost0 = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 0, gridCoord, executorService, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
+			RandomAccessibleInterval<UnsignedByteType> cost2 = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, subsampled, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 2, gridCoord, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
+			RandomAccessibleInterval<UnsignedByteType> cost0 = processColumnAlongAxis(n5Path, costN5Path, zcorrDataset, costDataset, filter, gauss, subsampled, costBlockSize, zcorrBlockSize, zcorrSize, costSteps, 0, gridCoord, bandSize, minGradient, slopeCorrXRange, slopeCorrBandFactor, maxSlope, minSlope, startThresh, kernelSize);
 			cost = mergeCosts(cost0, cost2);
 		} else {
 			throw new IllegalArgumentException("axisMode unknown: " + axisMode);
@@ -390,7 +517,7 @@ public class SparkComputeCost {
 		final N5Writer n5w = new N5FSWriter(costN5Path);
 
 		// Now loop over blocks and write
-		for( int yGrid = 0; yGrid <= Math.ceil(zcorrSize[1] / zcorrBlockSize[1]); yGrid++ ) {
+		for( int yGrid = 0; yGrid <= lastColumnBlock(zcorrSize, zcorrBlockSize); yGrid++ ) {
 			long[] gridOffset = new long[]{gridCoord[0], yGrid, gridCoord[1]};
 			RandomAccessibleInterval<UnsignedByteType> block = Views.interval(
 					Views.extendZero( cost ),
@@ -431,13 +558,13 @@ public class SparkComputeCost {
 			String costDataset,
 			final boolean filter,
 			final boolean gauss,
+			final boolean subsampled,
 			int[] costBlockSize,
 			int[] zcorrBlockSize,
 			long[] zcorrSize,
 			int[] costSteps,
 			int costAxis,
 			Long[] gridCoord,
-			ExecutorService executorService,
 			int bandSize,
 			int minGradient,
 			int slopeCorrXRange,
@@ -490,11 +617,11 @@ public class SparkComputeCost {
 			while( cc.hasNext() ) {
 				cc.fwd();
 				sliceAccess.setPosition(cc);
-				cc.get().set(sliceAccess.get());// FIXME: currently getting an index error here from the set() call
+				cc.get().set(sliceAccess.get());
 			}
 			} catch (Exception e) {
-			    System.out.println("Exception: " + zIdx + ":" + gridCoord[0] + ", " + gridCoord[1] + " :: " + cc.getDoublePosition(0) + ", " + cc.getDoublePosition(1));
-			    e.printStackTrace();
+				// do not leave a partially copied slice behind, e.g. for a corrupted block
+				throw new RuntimeException("Copying slice " + zIdx + " of column " + gridCoord[0] + ", " + gridCoord[1] + " failed at " + cc.getDoublePosition(0) + ", " + cc.getDoublePosition(1), e);
 			}
 
 		    //ImageJFunctions.show( sliceCopy );
@@ -519,56 +646,8 @@ public class SparkComputeCost {
 			//sliceCopy = ArrayImgs.unsignedBytes( (byte[])imp.getProcessor().getPixels(), new long[] { imp.getWidth(), imp.getHeight() } );
 			//ImageJFunctions.show( sliceCopy );
 
-			final Interval originalInterval = new FinalInterval( new long[] { 0, 0}, new long[] { slice.dimension(0) - 1, slice.dimension(1) - 1 } );
-			final Interval interval =
-					PreFilter.filter(
-							new ByteProcessor( (int)slice.dimension(0), (int)slice.dimension(1), sliceCopy.update( null ).getCurrentStorageArray() ),
-							filter );
-
-			final RandomAccessibleInterval< FloatType > costSliceFullRes;
-
-			if ( interval != null )
-			{
-				// not completely empty (otherwise just stays black)
-
-				// run on the cut out area where there are actual images (influences cost function!)
-				RandomAccessibleInterval<FloatType> costSliceFullResRaw = costFn.computeResin( Views.interval( sliceCopy, interval ), executorService);
-
-				if ( gauss )
-				{
-					double s = costSteps[0];
-					System.out.println( Math.sqrt( s*s - 0.5*0.5 ) );
-					Gauss3.gauss( new double[] { Math.sqrt( s*s - 0.5*0.5 ), 0 }, Views.extendBorder( costSliceFullResRaw ), costSliceFullResRaw );
-				}
-
-				costSliceFullResRaw = Views.interval( Views.extendZero( Views.translate( costSliceFullResRaw, interval.min( 0 ), interval.min( 1 ) ) ), originalInterval );
-
-				// TODO? if an entire column is full of zeros, cost should be uniformly 255
-				// right now: wherever the intensity is 0 the cost is 255
-				costSliceFullRes =
-						Converters.convertRAI(
-								sliceCopy,
-								costSliceFullResRaw,
-								(i0, i1, o) -> { if ( i0.get() == 0 ) o.set( 255 ); else o.set( i1.get() ); },
-								new FloatType() );
-			}
-			else
-			{
-				costSliceFullRes = 
-						Converters.convertRAI(
-								sliceCopy,
-								(i0, o) -> { o.set( 255 ); },
-								new FloatType() );
-			}
-
-			//ImageJFunctions.show( costSliceFullRes ).setDisplayRange(0, 255);;
-			//SimpleMultiThreading.threadHaltUnClean();
-
-			SubsampleIntervalView<FloatType> costSlice =
-					Views.subsample(
-							costSliceFullRes,
-							costSteps[0],
-							1);
+			final RandomAccessibleInterval<FloatType> costSlice =
+					computeCostSlice( sliceCopy, costFn, filter, gauss, subsampled, costSteps[0] );
 
 			//ImageJFunctions.show( costSlice );
 			//SimpleMultiThreading.threadHaltUnClean();
@@ -593,6 +672,106 @@ public class SparkComputeCost {
 		return cost;//CostUtils.floatAsUnsignedByte(CostUtils.initializeCost(cost));
 	}
 
+	/**
+	 * Computes the cost of a slice at every step-th column.
+	 *
+	 * With subsampled, the cost is computed only at the sampled columns of an
+	 * anti-aliased slice, otherwise at full resolution, optionally smoothed
+	 * along x (gauss), and then subsampled.
+	 *
+	 * @param sliceCopy the slice, is modified by the pre-filter
+	 * @param costFn
+	 * @param filter contrast normalization and median before cost computation
+	 * @param gauss smooth the full resolution cost along x before subsampling
+	 * @param subsampled compute the cost at sampled columns only
+	 * @param step the cost step along x
+	 * @return the cost, ceil(width / step) x height
+	 * @throws Exception
+	 */
+	static RandomAccessibleInterval<FloatType> computeCostSlice(
+			final ArrayImg<UnsignedByteType, ByteArray> sliceCopy,
+			final DagmarCost costFn,
+			final boolean filter,
+			final boolean gauss,
+			final boolean subsampled,
+			final int step) throws Exception {
+
+		final Interval interval =
+				PreFilter.filter(
+						new ByteProcessor( (int)sliceCopy.dimension(0), (int)sliceCopy.dimension(1), sliceCopy.update( null ).getCurrentStorageArray() ),
+						filter );
+
+		if ( subsampled )
+		{
+			final RandomAccessibleInterval<UnsignedByteType> sampledSlice = Views.subsample( sliceCopy, step, 1 );
+
+			if ( interval == null )
+				return Converters.convertRAI( sampledSlice, (i0, o) -> { o.set( 255 ); }, new FloatType() );
+
+			// PreFilter crops along y only, so the sampled columns of the interval are the sampled columns of the slice
+			// DagmarCost is single threaded and does not use an executor
+			costFn.setStepSize( step );
+			final RandomAccessibleInterval<FloatType> costSampledRaw =
+					Views.interval(
+							Views.extendZero( Views.translate( costFn.computeResin( Views.interval( sliceCopy, interval ), null ), 0, interval.min( 1 ) ) ),
+							sampledSlice );
+
+			// wherever the intensity is 0 the cost is 255
+			return Converters.convertRAI(
+					sampledSlice,
+					costSampledRaw,
+					(i0, i1, o) -> { if ( i0.get() == 0 ) o.set( 255 ); else o.set( i1.get() ); },
+					new FloatType() );
+		}
+
+		final Interval originalInterval = new FinalInterval( new long[] { 0, 0}, new long[] { sliceCopy.dimension(0) - 1, sliceCopy.dimension(1) - 1 } );
+
+		final RandomAccessibleInterval< FloatType > costSliceFullRes;
+
+		if ( interval != null )
+		{
+			// not completely empty (otherwise just stays black)
+
+			// run on the cut out area where there are actual images (influences cost function!)
+			// DagmarCost is single threaded and does not use an executor
+			RandomAccessibleInterval<FloatType> costSliceFullResRaw = costFn.computeResin( Views.interval( sliceCopy, interval ), null );
+
+			if ( gauss )
+			{
+				double s = step;
+				System.out.println( Math.sqrt( s*s - 0.5*0.5 ) );
+				Gauss3.gauss( new double[] { Math.sqrt( s*s - 0.5*0.5 ), 0 }, Views.extendBorder( costSliceFullResRaw ), costSliceFullResRaw );
+			}
+
+			costSliceFullResRaw = Views.interval( Views.extendZero( Views.translate( costSliceFullResRaw, interval.min( 0 ), interval.min( 1 ) ) ), originalInterval );
+
+			// TODO? if an entire column is full of zeros, cost should be uniformly 255
+			// right now: wherever the intensity is 0 the cost is 255
+			costSliceFullRes =
+					Converters.convertRAI(
+							sliceCopy,
+							costSliceFullResRaw,
+							(i0, i1, o) -> { if ( i0.get() == 0 ) o.set( 255 ); else o.set( i1.get() ); },
+							new FloatType() );
+		}
+		else
+		{
+			costSliceFullRes = 
+					Converters.convertRAI(
+							sliceCopy,
+							(i0, o) -> { o.set( 255 ); },
+							new FloatType() );
+		}
+
+		//ImageJFunctions.show( costSliceFullRes ).setDisplayRange(0, 255);;
+		//SimpleMultiThreading.threadHaltUnClean();
+
+		return Views.subsample(
+						costSliceFullRes,
+						step,
+						1);
+	}
+
 	private static Interval getZcorrInterval(Long gridX, Long gridZ, long[] zcorrSize, int[] zcorrBlockSize, int[] costSteps) {
 		long startX = ( gridX * costSteps[0] ) * zcorrBlockSize[0];
 		long startY = 0;
@@ -0,0 +1,175 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.StringArrayOptionHandler;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+
+/**
+ * Rewrites position field datasets in {@link Transform#PLANAR} or
+ * {@link Transform#INTERLEAVED} layout.  Inputs of either layout are
+ * accepted, boundsMin, boundsMax, and scale are preserved.
+ */
+public class SparkConvertPositionFieldLayout {
+
+	@SuppressWarnings("serial")
+	public static class Options extends AbstractOptions implements Serializable {
+
+		@Option(name = "--n5Path", required = true, usage = "N5 path, e.g. /nrs/flyem/data/tmp/Z0115-22.n5")
+		private String n5Path = null;
+
+		@Option(name = "-i", aliases = {"--inDatasetName"}, required = true, handler = StringArrayOptionHandler.class, usage = "input position field datasets, e.g. /align-13/Sec26-top")
+		private String[] inDatasetNames = null;
+
+		@Option(name = "-o", aliases = {"--outDatasetName"}, required = true, handler = StringArrayOptionHandler.class, usage = "output position field datasets, e.g. /align-13-interleaved/Sec26-top")
+		private String[] outDatasetNames = null;
+
+		@Option(name = "--layout", required = false, usage = "output layout, planar or interleaved")
+		private String layout = Transform.INTERLEAVED;
+
+		public Options(final String[] args) {
+
+			final CmdLineParser parser = new CmdLineParser(this);
+			try {
+				parser.parseArgument(args);
+				if (inDatasetNames.length != outDatasetNames.length)
+					System.err.println("Number of input and output datasets does not match.");
+				else if (!(Transform.PLANAR.equals(layout) || Transform.INTERLEAVED.equals(layout)))
+					System.err.println("Unknown layout '" + layout + "'.");
+				else
+					parsedSuccessfully = true;
+			} catch (final CmdLineException e) {
+				System.err.println(e.getMessage());
+				parser.printUsage(System.err);
+			}
+		}
+
+		public String getN5Path() {
+			return n5Path;
+		}
+
+		public String[] getInDatasetNames() {
+			return inDatasetNames;
+		}
+
+		public String[] getOutDatasetNames() {
+			return outDatasetNames;
+		}
+
+		public String getLayout() {
+			return layout;
+		}
+	}
+
+	/**
+	 * Rewrites position field datasets in the given layout.  All blocks of
+	 * all datasets are processed in one Spark job.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param inDatasetNames
+	 * @param outDatasetNames
+	 * @param layout {@link Transform#PLANAR} or {@link Transform#INTERLEAVED}
+	 * @throws IOException
+	 */
+	public static void convert(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String[] inDatasetNames,
+			final String[] outDatasetNames,
+			final String layout) throws IOException {
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		final List<Tuple2<Integer, long[][]>> gridBlocks = new ArrayList<>();
+		for (int i = 0; i < inDatasetNames.length; ++i) {
+
+			final RandomAccessibleInterval<DoubleType> positionField = Transform.openPositionField(n5, inDatasetNames[i]);
+			final int n = positionField.numDimensions() - 1;
+			final long[] dimensions = Intervals.dimensionsAsLongArray(Transform.fromPlanarLayout(positionField, layout));
+			final int[] blockSize = Transform.positionFieldBlockSize(n, layout);
+			final DatasetAttributes attributes = n5.getDatasetAttributes(inDatasetNames[i]);
+
+			n5.createDataset(
+					outDatasetNames[i],
+					new DatasetAttributes(
+							dimensions,
+							blockSize,
+							attributes.getDataType(),
+							attributes.getCompression()));
+			n5.setAttribute(outDatasetNames[i], "boundsMin", n5.getAttribute(inDatasetNames[i], "boundsMin", double[].class));
+			n5.setAttribute(outDatasetNames[i], "boundsMax", n5.getAttribute(inDatasetNames[i], "boundsMax", double[].class));
+			n5.setAttribute(outDatasetNames[i], "scale", n5.getAttribute(inDatasetNames[i], "scale", double.class));
+			n5.setAttribute(outDatasetNames[i], Transform.LAYOUT_ATTRIBUTE, layout);
+
+			for (final long[][] gridBlock : Grid.create(dimensions, blockSize))
+				gridBlocks.add(new Tuple2<>(i, gridBlock));
+		}
+
+		sc.parallelize(gridBlocks).foreach(
+				indexedGridBlock -> {
+					final int i = indexedGridBlock._1();
+					final long[][] gridBlock = indexedGridBlock._2();
+					final N5Writer n5Writer = new N5FSWriter(n5Path);
+					final RandomAccessibleInterval<DoubleType> positionField =
+							Transform.fromPlanarLayout(
+									Transform.openPositionField(new N5FSReader(n5Path), inDatasetNames[i]),
+									layout);
+					N5Utils.saveBlock(
+							Views.offsetInterval(positionField, gridBlock[0], gridBlock[1]),
+							n5Writer,
+							outDatasetNames[i],
+							gridBlock[2]);
+				});
+	}
+
+	public static final void main(final String... args) throws IOException {
+
+		final Options options = new Options(args);
+
+		if (!options.parsedSuccessfully)
+			return;
+
+		final SparkConf conf = new SparkConf().setAppName("SparkConvertPositionFieldLayout");
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+
+		convert(sc, options.getN5Path(), options.getInDatasetNames(), options.getOutDatasetNames(), options.getLayout());
+
+		sc.close();
+	}
+}
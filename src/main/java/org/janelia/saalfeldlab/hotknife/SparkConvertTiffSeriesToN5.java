@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.SparkConf;
@@ -40,11 +41,15 @@ import org.kohsuke.args4j.Option;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.io.Opener;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 /**
@@ -81,6 +86,9 @@ public class SparkConvertTiffSeriesToN5 {
 		@Option(name = "--firstSlice", required = false, usage = "first slice index (if not 0)")
 		private long firstSliceIndex = 0;
 
+		@Option(name = "--singlePass", required = false, usage = "write output blocks directly from blockSize[2] slices per task instead of re-blocking a temporary slices dataset, requires memory for blockSize[2] slices per task")
+		private boolean singlePass = false;
+
 		private final long[] sourceSize;
 
 		public Options(final String[] args) {
@@ -191,6 +199,63 @@ public class SparkConvertTiffSeriesToN5 {
 		public long getFirstSliceIndex() {
 			return firstSliceIndex;
 		}
+
+		/**
+		 * @return whether to write output blocks in a single pass
+		 */
+		public boolean isSinglePass() {
+			return singlePass;
+		}
+	}
+
+	private static DataType dataType(final ImagePlus imp) {
+
+		switch (imp.getType()) {
+		case ImagePlus.GRAY16:
+			return DataType.UINT16;
+		case ImagePlus.GRAY32:
+			return DataType.FLOAT32;
+		case ImagePlus.COLOR_RGB:
+			return DataType.UINT32;
+		default:
+			return DataType.UINT8;
+		}
+	}
+
+	/**
+	 * Opens a slice of the series cropped to min and size, RGB is
+	 * re-interpreted as {@link UnsignedIntType}.
+	 *
+	 * @return the cropped slice or null if it cannot be opened
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static RandomAccessibleInterval openSlice(
+			final String urlFormat,
+			final long sliceIndex,
+			final long[] min,
+			final long[] size) {
+
+		final ImagePlus imp = IJ.openImage(String.format(urlFormat, sliceIndex));
+		if (imp == null)
+			return null;
+
+		RandomAccessibleInterval img = ImagePlusImgs.from(imp);
+		if (imp.getType() == ImagePlus.COLOR_RGB)
+			img = Converters.convert(
+					(RandomAccessibleInterval<ARGBType>)img,
+					(a, b) -> {
+						b.set(a.get());
+					},
+					new UnsignedIntType());
+
+		return Views.offsetInterval(
+				img,
+				new long[]{
+						min[0],
+						min[1]},
+				new long[]{
+						size[0],
+						size[1]});
 	}
 
 
@@ -206,23 +271,7 @@ public class SparkConvertTiffSeriesToN5 {
 
 		final N5Writer n5 = new N5FSWriter(n5Path);
 
-		ImagePlus firstImp = IJ.openImage(String.format(urlFormat, firstSliceIndex));
-		final DataType type;
-		switch (firstImp.getType()) {
-		case ImagePlus.GRAY16:
-			type = DataType.UINT16;
-			break;
-		case ImagePlus.GRAY32:
-			type = DataType.FLOAT32;
-			break;
-		case ImagePlus.COLOR_RGB:
-			type = DataType.UINT32;
-			break;
-		default:
-			type = DataType.UINT8;
-			break;
-		}
-		firstImp = null;
+		final DataType type = dataType(IJ.openImage(String.format(urlFormat, firstSliceIndex)));
 
         final int[] slicesDatasetBlockSize = new int[]{
         		blockSize[0] * 8,
@@ -242,30 +291,11 @@ public class SparkConvertTiffSeriesToN5 {
 
 		rddSlices.foreach(sliceIndex -> {
 
-			final ImagePlus imp = IJ.openImage(String.format(urlFormat, sliceIndex + firstSliceIndex));
-			if (imp == null)
+			@SuppressWarnings("rawtypes")
+			final RandomAccessibleInterval slice = openSlice(urlFormat, sliceIndex + firstSliceIndex, min, size);
+			if (slice == null)
 				return;
 
-			@SuppressWarnings({ "unchecked", "rawtypes" })
-			RandomAccessibleInterval img = ImagePlusImgs.from(imp);
-			if (imp.getType() == ImagePlus.COLOR_RGB)
-				img = Converters.convert(
-						(RandomAccessibleInterval<ARGBType>)img,
-						(a, b) -> {
-							b.set(a.get());
-						},
-						new UnsignedIntType());
-
-			@SuppressWarnings({ "unchecked", "rawtypes" })
-			final RandomAccessibleInterval slice =
-					Views.offsetInterval(
-							img,
-							new long[]{
-									min[0],
-									min[1]},
-							new long[]{
-									size[0],
-									size[1]});
 			final N5Writer n5Local = new N5FSWriter(n5Path);
 			N5Utils.saveBlock(
 					Views.addDimension(slice, 0, 0),
@@ -276,6 +306,84 @@ public class SparkConvertTiffSeriesToN5 {
 	}
 
 
+	/**
+	 * Convert a TIFF series into an N5 dataset in a single pass.  Each task
+	 * owns a z-range of blockSize[2] slices, opens them, and writes all
+	 * (blockSize[0], blockSize[1], blockSize[2]) blocks of that range, so
+	 * no temporary slices dataset has to be written and re-blocked.  Each
+	 * task holds blockSize[2] cropped slices in memory.  Slices that cannot
+	 * be opened are written as 0 unless the entire range is missing.
+	 *
+	 * @param sc
+	 * @param urlFormat
+	 * @param n5Path
+	 * @param datasetName
+	 * @param min
+	 * @param size
+	 * @param blockSize
+	 * @param firstSliceIndex
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static final void saveTIFFSeriesBlocks(
+			final JavaSparkContext sc,
+			final String urlFormat,
+			final String n5Path,
+			final String datasetName,
+			final long[] min,
+			final long[] size,
+			final int[] blockSize,
+			final long firstSliceIndex) throws IOException {
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+
+		final DataType type = dataType(IJ.openImage(String.format(urlFormat, firstSliceIndex)));
+
+		n5.createDataset(
+				datasetName,
+				size,
+				blockSize,
+				type,
+				new GzipCompression());
+
+		final ArrayList<Long> blockSlices = new ArrayList<>();
+		for (long z = 0; z < size[2]; z += blockSize[2])
+			blockSlices.add(z);
+
+		final JavaRDD<Long> rddBlockSlices = sc.parallelize(blockSlices, Math.max(1, blockSlices.size()));
+
+		rddBlockSlices.foreach(zOffset -> {
+
+			final long depth = Math.min(blockSize[2], size[2] - zOffset);
+
+			final ArrayList<RandomAccessibleInterval> slices = new ArrayList<>();
+			NumericType zero = null;
+			for (long z = zOffset; z < zOffset + depth; ++z) {
+				final RandomAccessibleInterval slice = openSlice(urlFormat, z + min[2] + firstSliceIndex, min, size);
+				slices.add(slice);
+				if (slice != null && zero == null) {
+					zero = (NumericType)Util.getTypeFromInterval(slice).createVariable();
+					zero.setZero();
+				}
+			}
+			if (zero == null)
+				return;
+
+			for (int i = 0; i < slices.size(); ++i)
+				if (slices.get(i) == null)
+					slices.set(i, ConstantUtils.constantRandomAccessibleInterval(zero, 2, new FinalInterval(size[0], size[1])));
+
+			final RandomAccessibleInterval stack = Views.stack((List)slices);
+			final N5Writer n5Local = new N5FSWriter(n5Path);
+			N5Utils.saveBlock(
+					stack,
+					n5Local,
+					datasetName,
+					new long[]{0, 0, zOffset / blockSize[2]});
+		});
+	}
+
+
 	/**
 	 * Copy an existing N5 dataset into another with a different blockSize.
 	 *
@@ -342,26 +450,41 @@ public class SparkConvertTiffSeriesToN5 {
 		final SparkConf conf = new SparkConf().setAppName( "SparkConvertTiffSeriesToN5" );
         final JavaSparkContext sc = new JavaSparkContext(conf);
 
-        final String slicesDatasetName = options.getDatasetName() + "-slices";
-
-		/* parallelize over slices */
-        saveTIFFSeries(
-        		sc,
-        		options.getUrlFormat(),
-        		options.getN5Path(),
-        		slicesDatasetName,
-        		options.getMin(),
-        		options.getSize(),
-        		options.getBlockSize(),
-        		options.getFirstSliceIndex());
-
-		/* re-block */
-		reSave(
-				sc,
-				options.getN5Path(),
-				slicesDatasetName,
-				options.getDatasetName(),
-				options.getBlockSize());
+		if (options.isSinglePass()) {
+
+			/* parallelize over block depth z-ranges */
+			saveTIFFSeriesBlocks(
+					sc,
+					options.getUrlFormat(),
+					options.getN5Path(),
+					options.getDatasetName(),
+					options.getMin(),
+					options.getSize(),
+					options.getBlockSize(),
+					options.getFirstSliceIndex());
+		} else {
+
+			final String slicesDatasetName = options.getDatasetName() + "-slices";
+
+			/* parallelize over slices */
+			saveTIFFSeries(
+					sc,
+					options.getUrlFormat(),
+					options.getN5Path(),
+					slicesDatasetName,
+					options.getMin(),
+					options.getSize(),
+					options.getBlockSize(),
+					options.getFirstSliceIndex());
+
+			/* re-block */
+			reSave(
+					sc,
+					options.getN5Path(),
+					slicesDatasetName,
+					options.getDatasetName(),
+					options.getBlockSize());
+		}
 
 		sc.close();
 
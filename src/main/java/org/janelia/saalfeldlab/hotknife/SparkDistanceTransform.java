@@ -18,12 +18,16 @@ package org.janelia.saalfeldlab.hotknife;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.spark.SparkConf;
-import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
@@ -47,15 +51,18 @@ import net.imglib2.converter.Converters;
 import net.imglib2.img.NativeImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.SubsampleIntervalView;
 import net.imglib2.view.Views;
+import scala.Tuple2;
 
 /**
  *
@@ -87,7 +94,7 @@ public class SparkDistanceTransform {
 		private String resolutionString = null;
 		private double[] resolution;
 
-		@Option(name = "--padding", required = true, usage = "Initial padding of input, e.g. 64,64,6")
+		@Option(name = "--padding", required = true, usage = "Padding of input for the local pass, e.g. 64,64,6")
 		private String paddingString = null;
 		private long[] padding;
 
@@ -237,14 +244,526 @@ public class SparkDistanceTransform {
 		return targetBlock;
 	}
 
-	public static final void calculateDistanceTransform(
+	/**
+	 * Squared distances of the voxels of a grid block after the local pass,
+	 * for blocks that contain voxels whose distance could not be proven
+	 * exact from the padded neighborhood alone.
+	 */
+	@SuppressWarnings("serial")
+	private static class PartialDistances implements Serializable {
+
+		final long[][] gridBlock;
+
+		/* squared distances in flat order, infinite if unknown */
+		final float[] squareDistances;
+
+		/* upper bound for the squared distance of all uncertain voxels */
+		final double squareRadius;
+
+		PartialDistances(
+				final long[][] gridBlock,
+				final float[] squareDistances,
+				final double squareRadius) {
+
+			this.gridBlock = gridBlock;
+			this.squareDistances = squareDistances;
+			this.squareRadius = squareRadius;
+		}
+	}
+
+	/**
+	 * Squared distances of a grid block during the correction pass.  Along
+	 * each dimension, the samples are at all doubled global coordinates
+	 * owned by the block before that dimension is transformed, and at the
+	 * voxel centers of the block after.
+	 */
+	@SuppressWarnings("serial")
+	private static class DistanceSlab implements Serializable {
+
+		final long[][] gridBlock;
+
+		/* doubled global coordinates of the first sample */
+		final long[] min;
+
+		/* 1 for doubled coordinates, 2 for voxel centers */
+		final long[] step;
+
+		final long[] dimensions;
+
+		/* squared distances in flat order, infinite if unknown */
+		final float[] squareDistances;
+
+		DistanceSlab(
+				final long[][] gridBlock,
+				final long[] min,
+				final long[] step,
+				final long[] dimensions,
+				final float[] squareDistances) {
+
+			this.gridBlock = gridBlock;
+			this.min = min;
+			this.step = step;
+			this.dimensions = dimensions;
+			this.squareDistances = squareDistances;
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static RandomAccessibleInterval<UnsignedLongType> openLabels(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		final N5Reader n5BlockReader = new N5FSReader(n5Path);
+		final DatasetAttributes datasetAttributes = n5BlockReader.getDatasetAttributes(datasetName);
+		if (datasetAttributes.getDataType() == DataType.UINT64)
+			return N5Utils.open(n5BlockReader, datasetName);
+		else
+			return Converters.convert(
+					// for OpenJDK 8, Eclipse could do without the intermediate raw cast...
+					(RandomAccessibleInterval<IntegerType<?>>)(RandomAccessibleInterval)N5Utils.open(n5BlockReader, datasetName),
+					(a, b) -> b.set(a.getIntegerLong()),
+					new UnsignedLongType());
+	}
+
+	private static void saveDistances(
+			final float[] squareDistances,
+			final long[][] gridBlock,
+			final String n5OutputPath,
+			final String outputDatasetName) throws IOException {
+
+		final RandomAccessibleInterval<UnsignedShortType> convertedOutputBlock = Converters.convert(
+				(RandomAccessibleInterval<FloatType>)ArrayImgs.floats(squareDistances, gridBlock[1]),
+				(a, b) -> b.set(Math.min(65535, (int)Math.round(Math.sqrt(a.get())))),
+				new UnsignedShortType());
+
+		final N5FSWriter n5BlockWriter = new N5FSWriter(n5OutputPath);
+		N5Utils.saveNonEmptyBlock(convertedOutputBlock, n5BlockWriter, outputDatasetName, gridBlock[2], new UnsignedShortType(2));
+	}
+
+	/**
+	 * Local pass.  Calculates the distance transform of a grid block with
+	 * padding.  The boundaries between all voxel pairs inside of the padded
+	 * block are known, so the distance of a voxel is exact if it is not
+	 * larger than the distance of the voxel to the border of the padded
+	 * block.  If all voxels are exact, the block is saved.
+	 *
+	 * @return the partial distances if the block contains voxels that have
+	 * 		to be corrected in the correction pass, null otherwise
+	 */
+	private static PartialDistances calculateLocalDistances(
+			final RandomAccessibleInterval<UnsignedLongType> source,
+			final long[][] gridBlock,
+			final long[] padding,
+			final double[] resolution,
+			final String n5OutputPath,
+			final String outputDatasetName) throws IOException {
+
+		final int n = source.numDimensions();
+		final long[] dimensions = Intervals.dimensionsAsLongArray(source);
+
+		final double[] squareHalfResolution = new double[n];
+		Arrays.setAll(squareHalfResolution, i -> 0.25 * resolution[i] * resolution[i]);
+
+		final long[] paddedBlockMin = new long[n];
+		final long[] paddedBlockSize = new long[n];
+		final double[] scaledPaddedBlockSize = new double[n];
+		Arrays.setAll(paddedBlockMin, i -> gridBlock[0][i] - padding[i]);
+		Arrays.setAll(paddedBlockSize, i -> gridBlock[1][i] + 2 * padding[i]);
+		Arrays.setAll(scaledPaddedBlockSize, i -> paddedBlockSize[i] * resolution[i]);
+
+		final double maxScaledBlockSize = Arrays.stream(scaledPaddedBlockSize).max().getAsDouble();
+		final double squareMaxScaledBlockSize = maxScaledBlockSize * maxScaledBlockSize;
+
+		final IntervalView<UnsignedLongType> sourceBlock =
+				Views.offsetInterval(
+						Views.extendValue(
+								source,
+								new UnsignedLongType(Label.OUTSIDE)),
+						paddedBlockMin,
+						paddedBlockSize);
+
+		final NativeImg<FloatType, ?> target = createBoundaries(sourceBlock, (float)squareMaxScaledBlockSize, new UnsignedLongType(0));
+
+		/* make distance transform */
+		DistanceTransform.transform(target, DISTANCE_TYPE.EUCLIDIAN, squareHalfResolution);
+
+		final long[] minInside = new long[n];
+		final long[] dimensionsInside = new long[n];
+		Arrays.setAll(minInside, i -> padding[i] * 2 + 1);
+		Arrays.setAll(dimensionsInside, i -> gridBlock[1][i] * 2 - 1);
+
+		final IntervalView<FloatType> insideBlock = Views.offsetInterval(target, minInside, dimensionsInside);
+		final SubsampleIntervalView<FloatType> outputBlock = Views.subsample(insideBlock, 2);
+
+		final float[] squareDistances = new float[(int)Intervals.numElements(outputBlock)];
+		boolean isExact = true;
+		double squareRadius = 0;
+
+		final Cursor<FloatType> cursor = Views.flatIterable(outputBlock).localizingCursor();
+		for (int j = 0; cursor.hasNext(); ++j) {
+
+			final double squareDistance = cursor.next().get();
+
+			/* distances to the border of the padded block and to the nearest boundary outside of the dataset */
+			double minBorderDistance = Double.MAX_VALUE;
+			double minOutsideDistance = Double.MAX_VALUE;
+			for (int d = 0; d < n; ++d) {
+				final long t = minInside[d] + 2 * cursor.getLongPosition(d);
+				final double halfResolution = 0.5 * resolution[d];
+				minBorderDistance = Math.min(minBorderDistance, Math.min(t, target.max(d) - t) * halfResolution);
+				final long g = 2 * (gridBlock[0][d] + cursor.getLongPosition(d)) + 1;
+				minOutsideDistance = Math.min(minOutsideDistance, Math.min(g + 2, Math.abs(g - 2 * (dimensions[d] - 1))) * halfResolution);
+			}
+
+			final boolean isKnown = squareDistance < squareMaxScaledBlockSize;
+			squareDistances[j] = isKnown ? (float)squareDistance : Float.POSITIVE_INFINITY;
+			if (!isKnown || squareDistance > minBorderDistance * minBorderDistance) {
+				isExact = false;
+				squareRadius = Math.max(
+						squareRadius,
+						Math.min(squareDistances[j], minOutsideDistance * minOutsideDistance));
+			}
+		}
+
+		if (isExact) {
+			saveDistances(squareDistances, gridBlock, n5OutputPath, outputDatasetName);
+			return null;
+		} else
+			return new PartialDistances(gridBlock, squareDistances, squareRadius);
+	}
+
+	/**
+	 * Boundaries owned by a grid block, i.e. those between voxel pairs
+	 * whose first voxel is in the block, at all doubled global coordinates
+	 * of the block.  Blocks at the low border of the dataset also own the
+	 * boundaries to the outside.  Along each dimension, the doubled
+	 * coordinates of the blocks of a grid line are disjoint and cover all
+	 * boundaries.
+	 */
+	private static DistanceSlab createBoundarySlab(
+			final RandomAccessibleInterval<UnsignedLongType> source,
+			final long[][] gridBlock) {
+
+		final int n = source.numDimensions();
+
+		final long[] sourceMin = new long[n];
+		final long[] sourceSize = new long[n];
+		for (int d = 0; d < n; ++d) {
+			sourceMin[d] = gridBlock[0][d] - (gridBlock[0][d] == 0 ? 1 : 0);
+			sourceSize[d] = gridBlock[0][d] + gridBlock[1][d] + 1 - sourceMin[d];
+		}
+
+		final IntervalView<UnsignedLongType> sourceBlock =
+				Views.offsetInterval(
+						Views.extendValue(
+								source,
+								new UnsignedLongType(Label.OUTSIDE)),
+						sourceMin,
+						sourceSize);
+
+		final NativeImg<FloatType, ?> boundaries = createBoundaries(sourceBlock, Float.POSITIVE_INFINITY, new UnsignedLongType(0));
+
+		final long[] min = new long[n];
+		final long[] step = new long[n];
+		Arrays.setAll(min, i -> 2 * sourceMin[i]);
+		Arrays.fill(step, 1);
+
+		final float[] squareDistances = new float[(int)Intervals.numElements(boundaries)];
+		final Cursor<FloatType> cursor = Views.flatIterable(boundaries).cursor();
+		for (int j = 0; cursor.hasNext(); ++j)
+			squareDistances[j] = cursor.next().get();
+
+		return new DistanceSlab(gridBlock, min, step, Intervals.dimensionsAsLongArray(boundaries), squareDistances);
+	}
+
+	/**
+	 * Lower envelope of the parabolas weight * (x - y[i])^2 + f[i] for
+	 * strictly increasing y[i], ignoring infinite f[i], after Felzenszwalb
+	 * and Huttenlocher.  The indices of the parabolas in the envelope are
+	 * stored in v, and the lower limits of their ranges in z.
+	 *
+	 * @return the number of parabolas in the envelope
+	 */
+	private static int lowerEnvelope(
+			final double[] y,
+			final double[] f,
+			final int size,
+			final double weight,
+			final int[] v,
+			final double[] z) {
+
+		int k = -1;
+		for (int q = 0; q < size; ++q) {
+
+			if (f[q] == Double.POSITIVE_INFINITY)
+				continue;
+
+			double s = Double.NEGATIVE_INFINITY;
+			while (k >= 0) {
+				final int p = v[k];
+				s = ((f[q] + weight * y[q] * y[q]) - (f[p] + weight * y[p] * y[p])) / (2 * weight * (y[q] - y[p]));
+				if (s <= z[k])
+					--k;
+				else
+					break;
+			}
+			if (k < 0)
+				s = Double.NEGATIVE_INFINITY;
+
+			++k;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+
+		return k + 1;
+	}
+
+	private static int lineStride(final long[] dimensions, final int d) {
+
+		int stride = 1;
+		for (int e = 0; e < d; ++e)
+			stride *= dimensions[e];
+		return stride;
+	}
+
+	/**
+	 * The parabolas of the lower envelope of each line of a block along
+	 * dimension d that are minimal somewhere before or after the block.
+	 * They are all that the block contributes to the distances along the
+	 * line outside of the block.
+	 *
+	 * @return {before, after}, each per line the interleaved coordinates
+	 * 		and values of the parabolas or null if there are none, or null
+	 * 		instead of all lines if there are none in the entire block
+	 */
+	private static double[][][] outerEnvelopes(
+			final DistanceSlab slab,
+			final int d,
+			final double weight) {
+
+		final int length = (int)slab.dimensions[d];
+		final int stride = lineStride(slab.dimensions, d);
+		final int numLines = slab.squareDistances.length / length;
+
+		final double[] y = new double[length];
+		Arrays.setAll(y, i -> slab.min[d] + slab.step[d] * i);
+		final double[] f = new double[length];
+		final int[] v = new int[length];
+		final double[] z = new double[length + 1];
+
+		final double[][] before = new double[numLines][];
+		final double[][] after = new double[numLines][];
+		boolean isEmpty = true;
+
+		for (int o = 0; o < numLines; ++o) {
+
+			final int base = o % stride + o / stride * stride * length;
+			for (int i = 0; i < length; ++i)
+				f[i] = slab.squareDistances[base + i * stride];
+
+			final int m = lowerEnvelope(y, f, length, weight, v, z);
+			if (m == 0)
+				continue;
+
+			isEmpty = false;
+
+			int a = 0;
+			while (a < m && z[a] < y[0])
+				++a;
+			int b = m;
+			while (b > 0 && z[b] > y[length - 1])
+				--b;
+
+			before[o] = new double[2 * a];
+			for (int j = 0; j < a; ++j) {
+				before[o][2 * j] = y[v[j]];
+				before[o][2 * j + 1] = f[v[j]];
+			}
+			after[o] = new double[2 * (m - b)];
+			for (int j = b; j < m; ++j) {
+				after[o][2 * (j - b)] = y[v[j]];
+				after[o][2 * (j - b) + 1] = f[v[j]];
+			}
+		}
+
+		return isEmpty ? new double[][][] {null, null} : new double[][][] {before, after};
+	}
+
+	/**
+	 * Transforms a block along dimension d, including the outer envelopes
+	 * of the other blocks of the grid line, sorted by their grid position,
+	 * and samples the result at the voxel centers of the block.
+	 */
+	private static DistanceSlab transformLines(
+			final DistanceSlab slab,
+			final int d,
+			final double weight,
+			final List<Tuple2<Long, double[][]>> envelopes) {
+
+		final long self = slab.gridBlock[2][d];
+		final int length = (int)slab.dimensions[d];
+		final int stride = lineStride(slab.dimensions, d);
+		final int numLines = slab.squareDistances.length / length;
+
+		final long[] min = slab.min.clone();
+		final long[] step = slab.step.clone();
+		final long[] dimensions = slab.dimensions.clone();
+		min[d] = 2 * slab.gridBlock[0][d] + 1;
+		step[d] = 2;
+		dimensions[d] = slab.gridBlock[1][d];
+		final int outputLength = (int)dimensions[d];
+		final float[] squareDistances = new float[numLines * outputLength];
+
+		int capacity = length;
+		for (final Tuple2<Long, double[][]> envelope : envelopes) {
+			int maxSize = 0;
+			for (final double[] line : envelope._2())
+				if (line != null)
+					maxSize = Math.max(maxSize, line.length / 2);
+			capacity += maxSize;
+		}
+
+		final double[] y = new double[capacity];
+		final double[] f = new double[capacity];
+		final int[] v = new int[capacity];
+		final double[] z = new double[capacity + 1];
+
+		for (int o = 0; o < numLines; ++o) {
+
+			int size = 0;
+			for (final Tuple2<Long, double[][]> envelope : envelopes)
+				if (envelope._1() < self)
+					size = appendParabolas(envelope._2()[o], y, f, size);
+
+			final int base = o % stride + o / stride * stride * length;
+			for (int i = 0; i < length; ++i, ++size) {
+				y[size] = slab.min[d] + slab.step[d] * i;
+				f[size] = slab.squareDistances[base + i * stride];
+			}
+
+			for (final Tuple2<Long, double[][]> envelope : envelopes)
+				if (envelope._1() > self)
+					size = appendParabolas(envelope._2()[o], y, f, size);
+
+			final int m = lowerEnvelope(y, f, size, weight, v, z);
+
+			final int outputBase = o % stride + o / stride * stride * outputLength;
+			for (int i = 0, j = 0; i < outputLength; ++i) {
+				final float squareDistance;
+				if (m == 0)
+					squareDistance = Float.POSITIVE_INFINITY;
+				else {
+					final double x = min[d] + step[d] * i;
+					while (z[j + 1] < x)
+						++j;
+					final double dx = x - y[v[j]];
+					squareDistance = (float)(weight * dx * dx + f[v[j]]);
+				}
+				squareDistances[outputBase + i * stride] = squareDistance;
+			}
+		}
+
+		return new DistanceSlab(slab.gridBlock, min, step, dimensions, squareDistances);
+	}
+
+	private static int appendParabolas(
+			final double[] parabolas,
+			final double[] y,
+			final double[] f,
+			int size) {
+
+		if (parabolas != null) {
+			for (int i = 0; i < parabolas.length; i += 2, ++size) {
+				y[size] = parabolas[i];
+				f[size] = parabolas[i + 1];
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * One step of the correction pass.  Every block sends the outer
+	 * envelopes of its lines along dimension d to the blocks of the same
+	 * grid line in the region, and transforms its lines with those it
+	 * receives.
+	 */
+	private static JavaPairRDD<Long, DistanceSlab> transformDimension(
+			final JavaPairRDD<Long, DistanceSlab> slabs,
+			final int d,
+			final double weight,
+			final long[] gridDimensions,
+			final HashSet<Long> region) {
+
+		final JavaPairRDD<Long, Tuple2<Long, double[][]>> envelopes = slabs.flatMapToPair(keyAndSlab -> {
+
+			final DistanceSlab slab = keyAndSlab._2();
+			final double[][][] beforeAndAfter = outerEnvelopes(slab, d, weight);
+			final long[] position = slab.gridBlock[2].clone();
+			final long self = position[d];
+
+			final ArrayList<Tuple2<Long, Tuple2<Long, double[][]>>> messages = new ArrayList<>();
+			for (long k = 0; k < gridDimensions[d]; ++k) {
+				final double[][] envelope = k < self ? beforeAndAfter[0] : beforeAndAfter[1];
+				if (k == self || envelope == null)
+					continue;
+				position[d] = k;
+				final long key = IntervalIndexer.positionToIndex(position, gridDimensions);
+				if (region.contains(key))
+					messages.add(new Tuple2<>(key, new Tuple2<>(self, envelope)));
+			}
+			return messages.iterator();
+		});
+
+		return slabs
+				.cogroup(envelopes)
+				.mapValues(slabAndEnvelopes -> {
+					final ArrayList<Tuple2<Long, double[][]>> sortedEnvelopes = new ArrayList<>();
+					slabAndEnvelopes._2().forEach(sortedEnvelopes::add);
+					sortedEnvelopes.sort((a, b) -> Long.compare(a._1(), b._1()));
+					return transformLines(slabAndEnvelopes._1().iterator().next(), d, weight, sortedEnvelopes);
+				});
+	}
+
+	/**
+	 * Calculates the Euclidean distance transform of the label boundaries
+	 * of a label dataset in two passes.
+	 *
+	 * The local pass calculates the distance transform of each block with
+	 * the given padding and saves all blocks whose distances are exact.
+	 * The uncertain voxels of the remaining blocks are at most as far from
+	 * their nearest boundary as the local pass estimates, so their exact
+	 * distances only depend on the boundaries in the blocks within that
+	 * reach.  The correction pass calculates the separable distance
+	 * transform of the region of all those blocks, one dimension at a time.
+	 * Per dimension, each block exports the boundary distance profiles of
+	 * its lines, i.e. the parabolas of their lower envelopes that reach out
+	 * of the block, to the blocks of the same grid line in the region, and
+	 * transforms its own lines with the profiles of the others.  The
+	 * result is exact and equal to the distance transform of the entire
+	 * volume in one block.  No block is saved twice, larger padding saves
+	 * more blocks in the local pass and shrinks the region.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetName
+	 * @param n5OutputPath
+	 * @param outputDatasetName
+	 * @param blockSize
+	 * @param padding padding of the local pass
+	 * @param resolution
+	 * @return the number of blocks that were recomputed in the correction
+	 * 		pass
+	 * @throws IOException
+	 */
+	public static final long calculateDistanceTransform(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String datasetName,
 			final String n5OutputPath,
 			final String outputDatasetName,
 			final int[] blockSize,
-			final long[] initialPadding,
+			final long[] padding,
 			final double[] resolution) throws IOException {
 
 		final N5Reader n5Reader = new N5FSReader(n5Path);
@@ -253,9 +772,6 @@ public class SparkDistanceTransform {
 		final long[] dimensions = attributes.getDimensions();
 		final int n = dimensions.length;
 
-		final double[] squareHalfResolution = new double[n];
-		Arrays.setAll(squareHalfResolution, i -> 0.25 * resolution[i] * resolution[i]);
-
 		final N5Writer n5Writer = new N5FSWriter(n5OutputPath);
 		n5Writer.createDataset(
 				outputDatasetName,
@@ -264,103 +780,99 @@ public class SparkDistanceTransform {
 				DataType.UINT16,
 				new GzipCompression());
 
-		/*
-		 * grid block size for parallelization to minimize double loading of
-		 * blocks
-		 */
-		final JavaRDD<long[][]> rdd = sc.parallelize(
-				Grid.create(
-						dimensions,
-						blockSize,
-						blockSize));
-
-		rdd.foreach(gridBlock -> {
-
-			final N5Reader n5BlockReader = new N5FSReader(n5Path);
-			final DatasetAttributes datasetAttributes = n5BlockReader.getDatasetAttributes(datasetName);
-			final RandomAccessibleInterval<UnsignedLongType> source;
-			if (datasetAttributes.getDataType() == DataType.UINT64)
-				source = N5Utils.open(n5BlockReader, datasetName);
-			else
-				source = Converters.convert(
-						// for OpenJDK 8, Eclipse could do without the intermediate raw cast...
-						(RandomAccessibleInterval<IntegerType<?>>)(RandomAccessibleInterval)N5Utils.open(n5BlockReader, datasetName),
-						(a, b) -> b.set(a.getIntegerLong()),
-						new UnsignedLongType());
-
-			final long[] padding = initialPadding.clone();
-A:			for (boolean paddingIsTooSmall = true; paddingIsTooSmall; Arrays.setAll(padding, i -> padding[i] + initialPadding[i])) {
-
-				paddingIsTooSmall = false;
-
-				final double[] scaledPadding = new double[n];
-				Arrays.setAll(scaledPadding, i -> resolution[i] * padding[i]);
-				final double maxScaledPadding =  Arrays.stream(scaledPadding).max().getAsDouble();
-				final double squareMaxScaledPadding = maxScaledPadding * maxScaledPadding;
-
-				final long[] paddedBlockMin = new long[n];
-				final long[] paddedBlockSize = new long[n];
-				final double[] scaledPaddedBlockSize = new double[n];
-				Arrays.setAll(paddedBlockMin, i -> gridBlock[0][i] - padding[i]);
-				Arrays.setAll(paddedBlockSize, i -> gridBlock[1][i] + 2 * padding[i]);
-				Arrays.setAll(scaledPaddedBlockSize, i -> paddedBlockSize[i] * resolution[i]);
-
-				System.out.println(Arrays.toString(gridBlock[0]) + ", padding = " + Arrays.toString(padding) + ", padded blocksize = " + Arrays.toString(paddedBlockSize));
-
-				final double maxScaledBlockSize = Arrays.stream(scaledPaddedBlockSize).max().getAsDouble();
-				final double squareMaxScaledBlockSize = maxScaledBlockSize * maxScaledBlockSize;
-
-				final IntervalView<UnsignedLongType> sourceBlock =
-						Views.offsetInterval(
-								Views.extendValue(
-										source,
-										new UnsignedLongType(Label.OUTSIDE)),
-								paddedBlockMin,
-								paddedBlockSize);
-
-				final NativeImg<FloatType, ?> target = createBoundaries(sourceBlock, (float)squareMaxScaledBlockSize, new UnsignedLongType(0));
-
-				/* make distance transform */
-				DistanceTransform.transform(target, DISTANCE_TYPE.EUCLIDIAN, squareHalfResolution);
-
-				final long[] minInside = new long[n];
-				final long[] dimensionsInside = new long[n];
-				Arrays.setAll(minInside, i -> padding[i] * 2 + 1);
-				Arrays.setAll(dimensionsInside, i -> gridBlock[1][i] * 2 - 1);
-
-				final IntervalView<FloatType> insideBlock = Views.offsetInterval(target, minInside, dimensionsInside);
-
-				/* test whether distances at inside boundary are smaller than padding */
-				for (int d = 0; d < n; ++d) {
-
-					final IntervalView<FloatType> topSlice = Views.hyperSlice(insideBlock, d, 0);
-					for (final FloatType t : topSlice)
-						if (t.get() >= squareMaxScaledPadding) {
-							paddingIsTooSmall = true;
-							System.out.println("padding too small");
-							continue A;
-						}
-
-					final IntervalView<FloatType> botSlice = Views.hyperSlice(insideBlock, d, insideBlock.max(d));
-					for (final FloatType t : botSlice)
-						if (t.get() >= squareMaxScaledPadding) {
-							paddingIsTooSmall = true;
-							System.out.println("padding too small");
-							continue A;
-						}
+		final List<long[][]> grid = Grid.create(dimensions, blockSize, blockSize);
+		final long[] gridDimensions = new long[n];
+		Arrays.setAll(gridDimensions, i -> (dimensions[i] + blockSize[i] - 1) / blockSize[i]);
+
+		/* local pass */
+		final JavaPairRDD<Long, PartialDistances> partialDistances = sc
+				.parallelize(grid)
+				.map(gridBlock -> calculateLocalDistances(
+						openLabels(n5Path, datasetName),
+						gridBlock,
+						padding,
+						resolution,
+						n5OutputPath,
+						outputDatasetName))
+				.filter(partial -> partial != null)
+				.mapToPair(partial -> new Tuple2<>(IntervalIndexer.positionToIndex(partial.gridBlock[2], gridDimensions), partial))
+				.persist(StorageLevel.MEMORY_AND_DISK_SER());
+
+		final List<Tuple2<long[][], Double>> reach = partialDistances
+				.values()
+				.map(partial -> new Tuple2<>(partial.gridBlock, partial.squareRadius))
+				.collect();
+
+		/* blocks within reach of the uncertain voxels, block k owns the doubled coordinates [2 * k * blockSize, 2 * (k + 1) * blockSize) */
+		final HashSet<Long> region = new HashSet<>();
+		final ArrayList<long[][]> regionGridBlocks = new ArrayList<>();
+		for (final Tuple2<long[][], Double> partial : reach) {
+			final long[][] gridBlock = partial._1();
+			final double radius = Math.sqrt(partial._2());
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			for (int d = 0; d < n; ++d) {
+				final long doubledRadius = (long)Math.ceil(2 * radius / resolution[d]);
+				final long doubledMin = 2 * gridBlock[0][d] + 1 - doubledRadius;
+				final long doubledMax = 2 * (gridBlock[0][d] + gridBlock[1][d] - 1) + 1 + doubledRadius;
+				min[d] = Math.max(0, Math.floorDiv(doubledMin, 2 * blockSize[d]));
+				max[d] = Math.min(gridDimensions[d] - 1, Math.floorDiv(doubledMax, 2 * blockSize[d]));
+			}
+			final LocalizingIntervalIterator iterator = new LocalizingIntervalIterator(min, max);
+			while (iterator.hasNext()) {
+				iterator.fwd();
+				final long[] position = new long[n];
+				iterator.localize(position);
+				if (region.add(IntervalIndexer.positionToIndex(position, gridDimensions))) {
+					final long[] offset = new long[n];
+					final long[] size = new long[n];
+					Arrays.setAll(offset, i -> position[i] * blockSize[i]);
+					Arrays.setAll(size, i -> Math.min(blockSize[i], dimensions[i] - offset[i]));
+					regionGridBlocks.add(new long[][] {offset, size, position});
 				}
+			}
+		}
 
-				/* padding was sufficient, save */
-				final SubsampleIntervalView<FloatType> outputBlock = Views.subsample(insideBlock, 2);
-				final RandomAccessibleInterval<UnsignedShortType> convertedOutputBlock = Converters.convert(
-						outputBlock,
-						(a, b) -> b.set(Math.min(65535, (int)Math.round(Math.sqrt(a.get())))),
-						new UnsignedShortType());
-
-				final N5FSWriter n5BlockWriter = new N5FSWriter(n5OutputPath);
-				N5Utils.saveNonEmptyBlock(convertedOutputBlock, n5BlockWriter, outputDatasetName, gridBlock[2], new UnsignedShortType(2));
+		System.out.println(
+				"distance transform: " + grid.size() + " blocks, " +
+				(grid.size() - reach.size()) + " exact after the local pass, " +
+				reach.size() + " recomputed in a region of " + region.size() + " blocks");
+
+		/* correction pass */
+		if (!reach.isEmpty()) {
+
+			JavaPairRDD<Long, DistanceSlab> slabs = sc
+					.parallelize(regionGridBlocks)
+					.mapToPair(gridBlock -> new Tuple2<>(
+							IntervalIndexer.positionToIndex(gridBlock[2], gridDimensions),
+							createBoundarySlab(openLabels(n5Path, datasetName), gridBlock)))
+					.persist(StorageLevel.MEMORY_AND_DISK_SER());
+
+			for (int d = 0; d < n; ++d) {
+				final JavaPairRDD<Long, DistanceSlab> transformedSlabs =
+						transformDimension(slabs, d, 0.25 * resolution[d] * resolution[d], gridDimensions, region)
+						.persist(StorageLevel.MEMORY_AND_DISK_SER());
+				transformedSlabs.count();
+				slabs.unpersist();
+				slabs = transformedSlabs;
 			}
-		});
+
+			partialDistances
+					.join(slabs)
+					.foreach(partialAndSlab -> {
+						final PartialDistances partial = partialAndSlab._2()._1();
+						final float[] squareDistances = partialAndSlab._2()._2().squareDistances;
+						for (int j = 0; j < squareDistances.length; ++j)
+							squareDistances[j] = Math.min(squareDistances[j], partial.squareDistances[j]);
+						saveDistances(squareDistances, partial.gridBlock, n5OutputPath, outputDatasetName);
+					});
+
+			slabs.unpersist();
+		}
+
+		partialDistances.unpersist();
+
+		return reach.size();
 	}
 
 	public static final void main(final String... args) throws IOException, InterruptedException, ExecutionException {
@@ -21,15 +21,18 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.ops.CLLCN;
+import org.janelia.saalfeldlab.hotknife.ops.CoarseCLLCN;
 import org.janelia.saalfeldlab.hotknife.ops.ImageJStackOp;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Lazy;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.TransformCache;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -92,6 +95,9 @@ public class SparkExportAlignedSlabSeries {
 		@Option(name = "-n", aliases = {"--normalizeContrast"}, required = false, usage = "optionally normalize contrast")
 		private boolean normalizeContrast;
 
+		@Option(name = "--contrastTileSize", required = false, usage = "tile size for coarse block statistics of contrast normalization, 0 for per pixel block statistics")
+		private int contrastTileSize = 64;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -174,6 +180,14 @@ public class SparkExportAlignedSlabSeries {
 		public boolean normalizeContrast() {
 			return normalizeContrast;
 		}
+
+		/**
+		 * @return the tile size for coarse contrast normalization statistics,
+		 * 		0 for per pixel statistics
+		 */
+		public int getContrastTileSize() {
+			return contrastTileSize;
+		}
 	}
 
 	private static void saveBlock(
@@ -190,7 +204,9 @@ public class SparkExportAlignedSlabSeries {
 			final long[] dimensions,
 			final int[] blockSize,
 			final long[][] gridBlock,
-			final boolean normalizeContrast ) throws IOException {
+			final boolean normalizeContrast,
+			final int contrastTileSize,
+			final TransformCache.Counters transformCacheCounters ) throws IOException {
 
 		final N5Reader n5Input = new N5FSReader(n5PathInput);
 		final N5Writer n5Output = new N5FSWriter(n5PathOutput);
@@ -206,8 +222,8 @@ public class SparkExportAlignedSlabSeries {
 			/* do not include blocks that do not intersect with the gridBlock */
 			if (!((gridBlock[0][2] > zOffset + depth) | (gridBlock[0][2] + gridBlock[1][2] < zOffset))) {
 
-				final RealTransform top = Transform.loadScaledTransform(n5Input, group + "/" + transformDatasetNames[i * 2]);
-				final RealTransform bot = Transform.loadScaledTransform(n5Input, group + "/" + transformDatasetNames[i * 2 + 1]);
+				final RealTransform top = TransformCache.get(n5PathInput, group + "/" + transformDatasetNames[i * 2], transformCacheCounters);
+				final RealTransform bot = TransformCache.get(n5PathInput, group + "/" + transformDatasetNames[i * 2 + 1], transformCacheCounters);
 				final RealTransform transition =
 						new ClippedTransitionRealTransform(
 								top,
@@ -229,17 +245,20 @@ public class SparkExportAlignedSlabSeries {
 				if ( normalizeContrast )
 				{
 					final RandomAccessibleInterval<UnsignedByteType> sourceRaw = N5Utils.open(n5Input, datasetName);
-	
-					final int blockRadius = (int)Math.round(511);
-	
-					final ImageJStackOp<UnsignedByteType> cllcn =
-							new ImageJStackOp<>(
-									Views.extendZero(sourceRaw),
-									(fp) -> new CLLCN(fp).run(blockRadius, blockRadius, 3f, 10, 0.5f, true, true, true),
-									blockRadius,
-									0,
-									255);
-	
+
+					final int blockRadius = 511;
+
+					final Consumer<RandomAccessibleInterval<UnsignedByteType>> cllcn;
+					if (contrastTileSize > 0)
+						cllcn = new CoarseCLLCN<>(sourceRaw, contrastTileSize, blockRadius, 3, 10, 0.5, true, 0, 255);
+					else
+						cllcn = new ImageJStackOp<>(
+								Views.extendZero(sourceRaw),
+								(fp) -> new CLLCN(fp).run(blockRadius, blockRadius, 3f, 10, 0.5f, true, true, true),
+								blockRadius,
+								0,
+								255);
+
 					source = Lazy.process(
 							sourceRaw,
 							new int[] {128, 128, 16},
@@ -320,7 +339,6 @@ public class SparkExportAlignedSlabSeries {
 
 	public static final void main(final String... args) throws IOException, InterruptedException, ExecutionException {
 
-		// TODO: doesn't work right now, see saalfeld's change to ViewAlignedSlabSeries
 		final Options options = new Options(args);
 
 		if (!options.parsedSuccessfully)
@@ -352,7 +370,7 @@ public class SparkExportAlignedSlabSeries {
 		for (int i = 0; i < topOffsets.size(); ++i) {
 			long botOffset = botOffsets.get(i);
 			if (botOffset < 0) {
-				final long[] datasetDimensions = n5Input.getAttribute(datasetNames.get(i) + "/s0", "dimensions", long[].class);
+				final long[] datasetDimensions = n5Input.getDatasetAttributes(datasetNames.get(i)).getDimensions();
 				botOffset = datasetDimensions[2] + botOffset - 1;
 				botOffsets.set(i, botOffset);
 			}
@@ -380,6 +398,7 @@ public class SparkExportAlignedSlabSeries {
 		final String datasetNameOutput = options.getOutputDataset();
 		final int[] blockSize = options.getBlockSize();
 		final boolean normalizeContrast = options.normalizeContrast();
+		final int contrastTileSize = options.getContrastTileSize();
 
 		final String n5PathOutput = options.getN5OutputPath();
 
@@ -390,6 +409,7 @@ public class SparkExportAlignedSlabSeries {
 		final List<long[][]> grid = Grid.create(dimensions, new int[]{blockSize[0] * 8, blockSize[1] * 8, blockSize[2]}, blockSize);
 
 		final JavaRDD<long[][]> pGrid = sc.parallelize(grid);
+		final TransformCache.Counters transformCacheCounters = TransformCache.Counters.create(sc, "SparkExportAlignedSlabSeries");
 
 		pGrid.foreach(
 				gridBlock -> {
@@ -407,9 +427,13 @@ public class SparkExportAlignedSlabSeries {
 							dimensions,
 							blockSize,
 							gridBlock,
-							normalizeContrast);
+							normalizeContrast,
+							contrastTileSize,
+							transformCacheCounters);
 				});
 
+		transformCacheCounters.report();
+
 		sc.close();
 
 		n5Input.close();
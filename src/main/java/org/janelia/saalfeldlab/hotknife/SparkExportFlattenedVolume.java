@@ -36,6 +36,9 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -75,6 +78,9 @@ public class SparkExportFlattenedVolume implements Callable<Void>, Serializable
 	@Option(names = "--blockSize", split=",", description = "Size of output blocks, e.g. 128,128,128")
 	private int[] blockSize = new int[] {128, 128, 128};
 
+	@Option(names = {"--useFlattenTransform"}, description = "resample every voxel through FlattenTransform instead of flattening column-wise")
+	private boolean useFlattenTransform = false;
+
 	@Override
 	public Void call() throws IOException {
 
@@ -178,24 +184,49 @@ public class SparkExportFlattenedVolume implements Callable<Void>, Serializable
 					final RandomAccessibleInterval<FloatType> minField = N5Utils.open(n5FieldReader, minFieldName);
 					final RandomAccessibleInterval<FloatType> maxField = N5Utils.open(n5FieldReader, maxFieldName);
 
-					final FlattenTransform<DoubleType> flattenTransform = new FlattenTransform<>(
-							Transform.scaleAndShiftHeightFieldAndValues(minField, minFactors),
-							Transform.scaleAndShiftHeightFieldAndValues(maxField, maxFactors),
-							min,
-							max);
-
-					final RandomAccessibleInterval<UnsignedByteType> flattened =
-							Views.zeroMin(
-									Transform.createTransformedInterval(
-										rawVolume,
-										new FinalInterval(
-												new long[] {rawVolume.min(0), rawVolume.min(1), (int)Math.round(min - padding)},
-												new long[] {rawVolume.max(0), rawVolume.max(1), (int)Math.round(max + padding)}),
-										flattenTransform.inverse(),
-										new UnsignedByteType()));
-
-					final RandomAccessibleInterval<UnsignedByteType> sourceGridBlock = Views.offsetInterval(flattened, gridBlock[0], gridBlock[1]);
-					N5Utils.saveBlock(sourceGridBlock, n5Writer, outDataset, gridBlock[2]);
+					final RealRandomAccessible<DoubleType> minSurface = Transform.scaleAndShiftHeightFieldAndValues(minField, minFactors);
+					final RealRandomAccessible<DoubleType> maxSurface = Transform.scaleAndShiftHeightFieldAndValues(maxField, maxFactors);
+
+					final long[] flattenedMin = new long[] {rawVolume.min(0), rawVolume.min(1), (int)Math.round(min - padding)};
+
+					if (useFlattenTransform) {
+
+						final FlattenTransform<DoubleType> flattenTransform = new FlattenTransform<>(
+								minSurface,
+								maxSurface,
+								min,
+								max);
+
+						final RandomAccessibleInterval<UnsignedByteType> flattened =
+								Views.zeroMin(
+										Transform.createTransformedInterval(
+											rawVolume,
+											new FinalInterval(
+													flattenedMin,
+													new long[] {rawVolume.max(0), rawVolume.max(1), (int)Math.round(max + padding)}),
+											flattenTransform.inverse(),
+											new UnsignedByteType()));
+
+						final RandomAccessibleInterval<UnsignedByteType> sourceGridBlock = Views.offsetInterval(flattened, gridBlock[0], gridBlock[1]);
+						N5Utils.saveBlock(sourceGridBlock, n5Writer, outDataset, gridBlock[2]);
+
+					} else {
+
+						/* grid block in flattened coordinates */
+						final long[] blockMin = new long[3];
+						Arrays.setAll(blockMin, d -> gridBlock[0][d] + flattenedMin[d]);
+						final ArrayImg<UnsignedByteType, ?> block = ArrayImgs.unsignedBytes(gridBlock[1]);
+
+						FlattenColumns.flatten(
+								Views.extendValue(rawVolume, new UnsignedByteType()),
+								minSurface,
+								maxSurface,
+								min,
+								max,
+								Views.translate(block, blockMin));
+
+						N5Utils.saveBlock(block, n5Writer, outDataset, gridBlock[2]);
+					}
 				});
 
 		sc.close();
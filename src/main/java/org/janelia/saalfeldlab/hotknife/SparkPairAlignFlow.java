@@ -31,6 +31,7 @@ import org.janelia.saalfeldlab.hotknife.util.Align;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Spark;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.TransformCache;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -48,7 +49,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.array.ArrayLocalizingCursor;
 import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformSequence;
@@ -57,6 +57,8 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
+import scala.Tuple2;
+import scala.Tuple3;
 
 /**
  *
@@ -89,6 +91,12 @@ public class SparkPairAlignFlow {
 		@Option(name = "--sigma", required = false, usage = "smoothness filter of transform in scaled pixels")
 		private double sigma = 30.0;
 
+		@Option(name = "--maxConcurrentPairs", required = false, usage = "maximum number of slab pairs aligned concurrently, all pairs if <= 0")
+		private int maxConcurrentPairs = 0;
+
+		@Option(name = "--flowThreads", required = false, usage = "number of threads of the summed area table block PMCC engine per task, the single-threaded reference engine if <= 0")
+		private int flowThreads = 0;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -153,6 +161,16 @@ public class SparkPairAlignFlow {
 
 			return sigma;
 		}
+
+		public int getMaxConcurrentPairs() {
+
+			return maxConcurrentPairs;
+		}
+
+		public int getFlowThreads() {
+
+			return flowThreads;
+		}
 	}
 
 	/**
@@ -181,8 +199,8 @@ public class SparkPairAlignFlow {
 		final JavaRDD<long[]> gridCells = affines.map(
 				t -> {
 					final N5Writer n5 = new N5FSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
+					final RealTransform priorTransform = TransformCache.get(
+							n5Path,
 							priorTransformDatasetName);
 					final long[] gridOffset = Grid.gridCell(
 							t._1(),
@@ -214,138 +232,233 @@ public class SparkPairAlignFlow {
 
 
 	/**
+	 * Creates the (pair, grid offset) work items for a list of slab pairs.
+	 * Pairs are identified by the index of their first dataset.
+	 *
+	 * @param pairIndices
+	 * @param gridOffsets
+	 * @return
+	 */
+	public static List<Tuple2<Integer, long[]>> createPairGridCells(
+			final List<Integer> pairIndices,
+			final List<long[]> gridOffsets) {
+
+		final ArrayList<Tuple2<Integer, long[]>> pairGridCells = new ArrayList<>();
+		for (final int i : pairIndices)
+			for (final long[] offset : gridOffsets)
+				pairGridCells.add(new Tuple2<>(i, offset));
+
+		return pairGridCells;
+	}
+
+
+	/**
+	 * Splits the position field of a 2x2 block grid cell into its (up to)
+	 * four quadrants.  Each quadrant is keyed by (pair index, block x, block
+	 * y) of the output block that it overlaps and carries its quadrant index
+	 * qx + 2 * qy and the position field values in the flat
+	 * [width, height, 2] layout of an {@link ArrayImg}.
+	 *
 	 * This is fo 2D transformation fields only
 	 *
-	 * @param affines
-	 * @param n5Path
-	 * @param transformDatasetBaseName
-	 * @param transformScale
-	 * @param boundsMin
-	 * @param boundsMax
+	 * @param pairIndex
+	 * @param gridOffset
+	 * @param positionField zero-min position field of the grid cell
 	 * @param stepSize
-	 * @throws IOException
+	 * @return
 	 */
-	public static JavaRDD<long[]> composeOverlappingTransformGridCells(
-			final JavaRDD<long[]> gridCells,
-			final String n5Path,
-			final String transformDatasetBaseName,
-			final double transformScale,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize) throws IOException {
-
-		final DatasetAttributes attributes = Transform.createScaledTransformDataset(
-				new N5FSWriter(n5Path),
-				transformDatasetBaseName,
-				boundsMin,
-				boundsMax,
-				transformScale,
-				new int[] {stepSize, stepSize});
+	public static List<Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>>> splitGridCell(
+			final int pairIndex,
+			final long[] gridOffset,
+			final RandomAccessibleInterval<DoubleType> positionField,
+			final int stepSize) {
 
-		final long[] dimensions = attributes.getDimensions();
+		final int width = (int)positionField.dimension(0);
+		final int height = (int)positionField.dimension(1);
+		final int[] quadrantWidths = new int[] {Math.min(stepSize, width), width - stepSize};
+		final int[] quadrantHeights = new int[] {Math.min(stepSize, height), height - stepSize};
+
+		final double[][] quadrants = new double[4][];
+		for (int qy = 0; qy < 2; ++qy)
+			for (int qx = 0; qx < 2; ++qx)
+				if (quadrantWidths[qx] > 0 && quadrantHeights[qy] > 0)
+					quadrants[qx + 2 * qy] = new double[quadrantWidths[qx] * quadrantHeights[qy] * 2];
+
+		final Cursor<DoubleType> c = Views.flatIterable(positionField).localizingCursor();
+		while (c.hasNext()) {
+			final double v = c.next().get();
+			final int x = c.getIntPosition(0);
+			final int y = c.getIntPosition(1);
+			final int d = c.getIntPosition(2);
+			final int qx = x / stepSize;
+			final int qy = y / stepSize;
+			final int w = quadrantWidths[qx];
+			final int h = quadrantHeights[qy];
+			quadrants[qx + 2 * qy][x - qx * stepSize + w * (y - qy * stepSize + h * d)] = v;
+		}
 
-		final JavaRDD<long[]> mappedGridCells = gridCells.map(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
+		final ArrayList<Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>>> blocks = new ArrayList<>();
+		for (int qy = 0; qy < 2; ++qy)
+			for (int qx = 0; qx < 2; ++qx)
+				if (quadrants[qx + 2 * qy] != null)
+					blocks.add(
+							new Tuple2<>(
+									new Tuple3<>(pairIndex, gridOffset[0] + qx, gridOffset[1] + qy),
+									new Tuple2<>(qx + 2 * qy, quadrants[qx + 2 * qy])));
 
-					final long[] intervalMin = new long[]{gridOffset[0] * stepSize, gridOffset[1] * stepSize, 0};
-					final long[] intervalMax = new long[]{
-							Math.min(dimensions[0], intervalMin[0] + stepSize) - 1,
-							Math.min(dimensions[1], intervalMin[1] + stepSize) - 1,
-							1};
-
-					System.out.println(Arrays.toString(gridOffset) + " : " + Arrays.toString(intervalMin) + " > " + Arrays.toString(intervalMax) + " : " + transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1));
-
-					final IntervalView<DoubleType> t00 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t01 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t10 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t11 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-
-					final Cursor<DoubleType> c00 = t00.cursor();
-					final Cursor<DoubleType> c01 = t01.cursor();
-					final Cursor<DoubleType> c10 = t10.cursor();
-					final Cursor<DoubleType> c11 = t11.cursor();
-
-					final ArrayImg<DoubleType, ?> tt = ArrayImgs.doubles(t00.dimension(0), t00.dimension(1), 2);
-					final ArrayLocalizingCursor<DoubleType> c = tt.localizingCursor();
-
-					while (c.hasNext()) {
-						final DoubleType v = c.next();
-						final DoubleType v00 = c00.next();
-						final DoubleType v01 = c01.next();
-						final DoubleType v10 = c10.next();
-						final DoubleType v11 = c11.next();
-						final double lambdaX = c.getDoublePosition(0) / stepSize;
-						final double lambdaY = c.getDoublePosition(1) / stepSize;
-						final double d0 = (v10.get() - v00.get()) * lambdaX + v00.get();
-						final double d1 = (v11.get() - v01.get()) * lambdaX + v01.get();
-						v.set((d1 - d0) * lambdaY + d0);
-					}
+		return blocks;
+	}
 
-					final DatasetAttributes targetAttributes = new DatasetAttributes(
-							dimensions,
-							new int[]{stepSize, stepSize, 2},
-							DataType.FLOAT64,
-							new GzipCompression());
-					N5Utils.saveBlock(tt, n5, transformDatasetBaseName, targetAttributes, Arrays.copyOf(gridOffset, 3));
 
-					return cell;
-				});
+	/**
+	 * Bilinearly blends the overlapping grid cell quadrants of one output
+	 * block.  The quadrants are identified by their quadrant index
+	 * qx + 2 * qy in the grid cell that they originate from, i.e. quadrant 3
+	 * comes from the grid cell at (block x - 1, block y - 1) and quadrant 0
+	 * from the grid cell at (block x, block y).  At the min border of the
+	 * grid, the missing cells are replaced by the cell at the border.
+	 *
+	 * This is fo 2D transformation fields only
+	 *
+	 * @param blockX
+	 * @param blockY
+	 * @param quadrants
+	 * @param width
+	 * @param height
+	 * @param stepSize
+	 * @return
+	 */
+	public static double[] blendGridCellQuadrants(
+			final long blockX,
+			final long blockY,
+			final Iterable<Tuple2<Integer, double[]>> quadrants,
+			final int width,
+			final int height,
+			final int stepSize) {
 
-		return mappedGridCells;
+		final double[][] q = new double[4][];
+		for (final Tuple2<Integer, double[]> quadrant : quadrants)
+			q[quadrant._1()] = quadrant._2();
+
+		final int qx = blockX == 0 ? 0 : 1;
+		final int qy = blockY == 0 ? 0 : 1;
+		final double[] a00 = q[qx + 2 * qy];
+		final double[] a01 = q[qx];
+		final double[] a10 = q[2 * qy];
+		final double[] a11 = q[0];
+
+		final double[] blended = new double[width * height * 2];
+		for (int d = 0, i = 0; d < 2; ++d) {
+			for (int y = 0; y < height; ++y) {
+				final double lambdaY = (double)y / stepSize;
+				for (int x = 0; x < width; ++x, ++i) {
+					final double lambdaX = (double)x / stepSize;
+					final double d0 = (a10[i] - a00[i]) * lambdaX + a00[i];
+					final double d1 = (a11[i] - a01[i]) * lambdaX + a01[i];
+					blended[i] = (d1 - d0) * lambdaY + d0;
+				}
+			}
+		}
+		return blended;
 	}
 
 
-	public static void deleteGridCells(
-			final JavaRDD<long[]> gridCells,
+	/**
+	 * Blends the grid cell quadrants of all slab pairs and saves the
+	 * resulting blocks into the output transform datasets.  The output
+	 * transform dataset of pair <em>i</em> is
+	 * <code>outTransformDatasetNames[i + 1]</code>.
+	 *
+	 * This is fo 2D transformation fields only
+	 *
+	 * @param gridCellQuadrants
+	 * @param n5Path
+	 * @param outTransformDatasetNames
+	 * @param pairIndices
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @return number of saved blocks
+	 * @throws IOException
+	 */
+	public static long blendAndSaveGridCells(
+			final JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> gridCellQuadrants,
 			final String n5Path,
-			final String transformDatasetBaseName,
+			final String[] outTransformDatasetNames,
+			final List<Integer> pairIndices,
 			final double transformScale,
 			final double[] boundsMin,
 			final double[] boundsMax,
-			final int stepSize) {
+			final int stepSize) throws IOException {
 
-		gridCells.foreach(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-					n5.remove(transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]);
-				});
+		final N5Writer n5Writer = new N5FSWriter(n5Path);
+		DatasetAttributes attributes = null;
+		for (final int i : pairIndices)
+			attributes = Transform.createScaledTransformDataset(
+					n5Writer,
+					outTransformDatasetNames[i + 1],
+					boundsMin,
+					boundsMax,
+					transformScale,
+					new int[] {stepSize, stepSize});
+
+		/* all pairs share the same bounding box */
+		final long[] dimensions = attributes.getDimensions();
+
+		return gridCellQuadrants
+				.groupByKey()
+				.map(
+					block -> {
+						final long[] gridOffset = new long[] {block._1()._2(), block._1()._3(), 0};
+						final int width = (int)Math.min(stepSize, dimensions[0] - gridOffset[0] * stepSize);
+						final int height = (int)Math.min(stepSize, dimensions[1] - gridOffset[1] * stepSize);
+						final double[] blended = blendGridCellQuadrants(
+								gridOffset[0],
+								gridOffset[1],
+								block._2(),
+								width,
+								height,
+								stepSize);
+
+						final DatasetAttributes targetAttributes = new DatasetAttributes(
+								dimensions,
+								new int[]{stepSize, stepSize, 2},
+								DataType.FLOAT64,
+								new GzipCompression());
+						final N5Writer n5 = new N5FSWriter(n5Path);
+						N5Utils.saveBlock(
+								ArrayImgs.doubles(blended, width, height, 2),
+								n5,
+								outTransformDatasetNames[block._1()._1() + 1],
+								targetAttributes,
+								gridOffset);
+
+						return gridOffset;
+					})
+				.count();
 	}
 
 
-	static public JavaRDD<long[]> alignAndSaveAccumulatedGridCells(
+	/**
+	 * Aligns the grid cells of all slab pairs in <code>pairIndices</code> in
+	 * a single Spark job.  Pair <em>i</em> aligns dataset
+	 * <code>datasetNames[i + 1]</code> to <code>datasetNames[i]</code> and
+	 * reads the prior transforms <code>inTransformDatasetNames[i]</code> and
+	 * <code>inTransformDatasetNames[i + 1]</code>.  The accumulated grid cell
+	 * transforms are not saved but returned as position field quadrants
+	 * keyed by the output block that they overlap, see
+	 * {@link #splitGridCell(int, long[], RandomAccessibleInterval, int)}.
+	 * Prior transforms are loaded through the {@link TransformCache} of each
+	 * executor and counted in <code>transformCacheCounters</code>.
+	 */
+	static public JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> alignAccumulatedGridCells(
 			final JavaSparkContext sc,
 			final String n5Path,
-			final String datasetA,
-			final String datasetB,
+			final String[] datasetNames,
 			final int scaleIndex,
-			final String inTransformADataset,
-			final String inTransformBDataset,
-			final String outTransformDatasetBaseName,
+			final String[] inTransformDatasetNames,
+			final List<Integer> pairIndices,
 			final double[] boundsMin,
 			final double[] boundsMax,
 			final long[] scaledFloorMin,
@@ -354,26 +467,33 @@ public class SparkPairAlignFlow {
 			final List<long[]> gridOffsets,
 			final short radius,
 			final double sigma,
-			final int numIterations) throws IOException {
+			final int numIterations,
+			final int flowThreads,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 		final long gridCellWidth = stepSize * 2;
 
-		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
+		final JavaPairRDD<Integer, long[]> offsets = sc.parallelizePairs(createPairGridCells(pairIndices, gridOffsets));
 
-		final JavaRDD<long[]> gridCells =
-				offsets.map(offset -> {
+		final JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> gridCellQuadrants =
+				offsets.flatMapToPair(pairOffset -> {
 
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
+					final int i = pairOffset._1();
+					final long[] offset = pairOffset._2();
 
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							inTransformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							inTransformBDataset);
+					final N5Reader n5Reader = new N5FSReader(n5Path);
+					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetNames[i] + "/s" + scaleIndex);
+					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetNames[i + 1] + "/s" + scaleIndex);
+
+					final RealTransform transformA = TransformCache.get(
+							n5Path,
+							inTransformDatasetNames[i],
+							transformCacheCounters);
+					final RealTransform transformB = TransformCache.get(
+							n5Path,
+							inTransformDatasetNames[i + 1],
+							transformCacheCounters);
 
 					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
 							a,
@@ -395,19 +515,29 @@ public class SparkPairAlignFlow {
 					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
 
 					/* TODO consider padding if padding */
-					final RealTransform transform = Align.alignFlow(
-							gridBlockB,
-							gridBlockA,
-							radius,
-							sigma,
-							numIterations);
+					final RealTransform transform;
+					if (flowThreads > 0) {
+						try (final IntegralPMCCBlockFlow opticFlow = new IntegralPMCCBlockFlow(flowThreads)) {
+							transform = Align.alignFlow(
+									gridBlockB,
+									gridBlockA,
+									radius,
+									sigma,
+									numIterations,
+									opticFlow);
+						}
+					} else
+						transform = Align.alignFlow(
+								gridBlockB,
+								gridBlockA,
+								radius,
+								sigma,
+								numIterations);
 
-					final N5Writer n5 = new N5FSWriter(n5Path);
 					final long[] gridOffset = Grid.gridCell(
 							offset,
 							Grid.floorScaled(boundsMin, scale),
 							new int[]{stepSize, stepSize});
-					final String datasetName = outTransformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1];
 					final RealTransformSequence transformSequence = new RealTransformSequence();
 
 					/* TODO weight */
@@ -415,30 +545,37 @@ public class SparkPairAlignFlow {
 					transformSequence.add(transform);
 					transformSequence.add(new Scale2D(1.0 / scale,  1.0 / scale));
 					transformSequence.add(transformB);
-					Transform.saveScaledTransformBlock(
-							n5,
-							datasetName,
-							transformSequence,
-							scale,
-							boundsMin,
-							boundsMax,
-							gridOffset,
-							new int[] {stepSize, stepSize});
 
-					return offset;
+					final long[] intervalMin = new long[2];
+					Arrays.setAll(intervalMin, d -> gridOffset[d] * stepSize + scaledFloorMin[d]);
+					final long[] intervalMax = new long[2];
+					Arrays.setAll(intervalMax, d -> Math.min(scaledCeilMax[d], intervalMin[d] + gridCellWidth - 1));
+
+					final RandomAccessibleInterval<DoubleType> positionField =
+							Transform.createPositionFieldBlock(
+									Transform.createScaledRealTransform(transformSequence, 1.0 / scale),
+									new FinalInterval(intervalMin, intervalMax));
+
+					return splitGridCell(i, gridOffset, Views.zeroMin(positionField), stepSize).iterator();
 				});
 
-		return gridCells;
+		return gridCellQuadrants;
 	}
 
 
 	/**
-	 * Align a pair of transformed N5 sections using optic flow over a scale
+	 * Align pairs of transformed N5 sections using optic flow over a scale
 	 * space of block sizes on a grid of 50% overlapping cells.  The resulting
 	 * alignment is the composition of the prior transform and the interpolant
 	 * over the grid.  For grid cells, that do not return an alignment model,
 	 * the prior transformation is used.
 	 *
+	 * All pairs in <code>pairIndices</code> are processed concurrently.  The
+	 * position fields of the overlapping grid cells are not stored but
+	 * shuffled to the output blocks that they overlap where they are blended
+	 * and saved in a single pass.  Pair <em>i</em> aligns datasets
+	 * <code>datasetNames[i]</code> and <code>datasetNames[i + 1]</code>.
+	 *
 	 * TODO weigh the composition of the calculated flow field and prior
 	 * transformation by the weight (mask * R)
 	 *
@@ -447,8 +584,8 @@ public class SparkPairAlignFlow {
 	 * @param inGroupName
 	 * @param outGroupName
 	 * @param datasetNames
-	 * @param indexA
-	 * @param indexB
+	 * @param transformDatasetNames
+	 * @param pairIndices
 	 * @param transformScaleIndex
 	 * @param boundsMin
 	 * @param boundsMax
@@ -457,17 +594,19 @@ public class SparkPairAlignFlow {
 	 * @param radius
 	 * @param sigma
 	 * @param numIterations
+	 * @param flowThreads threads of the {@link IntegralPMCCBlockFlow} engine
+	 *   per grid cell, the single-threaded reference engine if &lt;= 0
+	 * @param transformCacheCounters counts transform cache lookups, may be null
 	 * @throws IOException
 	 */
-	public static void alignPairFlow(
+	public static void alignPairsFlow(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String inGroupName,
 			final String outGroupName,
-			final String datasetNameA,
-			final String datasetNameB,
-			final String transformDatasetNameA,
-			final String transformDatasetNameB,
+			final String[] datasetNames,
+			final String[] transformDatasetNames,
+			final List<Integer> pairIndices,
 			final int transformScaleIndex,
 			final double[] boundsMin,
 			final double[] boundsMax,
@@ -475,22 +614,27 @@ public class SparkPairAlignFlow {
 			final List<long[]> gridOffsets,
 			final short radius,
 			final double sigma,
-			final int numIterations) throws IOException {
+			final int numIterations,
+			final int flowThreads,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaRDD<long[]> gridCells = alignAndSaveAccumulatedGridCells(
+		final String[] inTransformDatasetNames = new String[transformDatasetNames.length];
+		final String[] outTransformDatasetNames = new String[transformDatasetNames.length];
+		Arrays.setAll(inTransformDatasetNames, i -> inGroupName + "/" + transformDatasetNames[i]);
+		Arrays.setAll(outTransformDatasetNames, i -> outGroupName + "/" + transformDatasetNames[i]);
+
+		final JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> gridCellQuadrants = alignAccumulatedGridCells(
 				sc,
 				n5Path,
-				datasetNameA,
-				datasetNameB,
+				datasetNames,
 				transformScaleIndex,
-				inGroupName + "/" + transformDatasetNameA,
-				inGroupName + "/" + transformDatasetNameB,
-				outGroupName + "/" + transformDatasetNameB,
+				inTransformDatasetNames,
+				pairIndices,
 				boundsMin,
 				boundsMax,
 				floorScaledMin,
@@ -499,31 +643,144 @@ public class SparkPairAlignFlow {
 				gridOffsets,
 				radius,
 				sigma,
-				numIterations);
-
-		gridCells.cache();
-		gridCells.count();
+				numIterations,
+				flowThreads,
+				transformCacheCounters);
 
-		final JavaRDD<long[]> composedGridCells = composeOverlappingTransformGridCells(
-				gridCells,
+		final long numBlocks = blendAndSaveGridCells(
+				gridCellQuadrants,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
+				outTransformDatasetNames,
+				pairIndices,
 				scale,
 				boundsMin,
 				boundsMax,
 				stepSize);
 
-		composedGridCells.cache();
-		composedGridCells.count();
+		System.out.println("Saved " + numBlocks + " blocks for " + pairIndices.size() + " pairs.");
+	}
+
+
+	/**
+	 * Align a pair of transformed N5 sections using optic flow over a scale
+	 * space of block sizes on a grid of 50% overlapping cells.
+	 *
+	 * @see #alignPairsFlow
+	 */
+	public static void alignPairFlow(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final int flowThreads) throws IOException {
+
+		final TransformCache.Counters transformCacheCounters = TransformCache.Counters.create(sc, "SparkPairAlignFlow");
 
-		deleteGridCells(
-				composedGridCells,
+		alignPairsFlow(
+				sc,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
-				scale,
+				inGroupName,
+				outGroupName,
+				new String[] {datasetNameA, datasetNameB},
+				new String[] {transformDatasetNameA, transformDatasetNameB},
+				Arrays.asList(0),
+				transformScaleIndex,
 				boundsMin,
 				boundsMax,
-				stepSize);
+				stepSize,
+				gridOffsets,
+				radius,
+				sigma,
+				numIterations,
+				flowThreads,
+				transformCacheCounters);
+
+		transformCacheCounters.report();
+	}
+
+
+	/**
+	 * Align all consecutive slab pairs (1, 2), (3, 4), ... of a series.  At
+	 * most <code>maxConcurrentPairs</code> pairs are aligned in one batch of
+	 * Spark jobs to bound the size of the grid cell shuffle, all pairs are
+	 * aligned in one batch if <code>maxConcurrentPairs &lt;= 0</code>.
+	 *
+	 * @throws IOException
+	 */
+	public static void alignSeriesFlow(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String[] datasetNames,
+			final String[] transformDatasetNames,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final int maxConcurrentPairs,
+			final int flowThreads) throws IOException {
+
+		final ArrayList<Integer> pairIndices = new ArrayList<>();
+		for (int i = 1; i < datasetNames.length - 2; i += 2)
+			pairIndices.add(i);
+
+		final int batchSize = maxConcurrentPairs <= 0 ? pairIndices.size() : maxConcurrentPairs;
+
+		final TransformCache.Counters transformCacheCounters = TransformCache.Counters.create(sc, "SparkPairAlignFlow");
+
+		for (int j = 0; j < pairIndices.size(); j += batchSize) {
+
+			final List<Integer> batch = pairIndices.subList(j, Math.min(pairIndices.size(), j + batchSize));
+
+			for (final int i : batch) {
+				System.out.printf(
+						"Aligning dataset %d : %s, %d : %s, %d grid cells",
+						i,
+						datasetNames[i],
+						i + 1,
+						datasetNames[i + 1],
+						gridOffsets.size());
+				System.out.println();
+			}
+
+			alignPairsFlow(
+					sc,
+					n5Path,
+					inGroupName,
+					outGroupName,
+					datasetNames,
+					transformDatasetNames,
+					new ArrayList<>(batch),
+					transformScaleIndex,
+					boundsMin,
+					boundsMax,
+					stepSize,
+					gridOffsets,
+					radius,
+					sigma,
+					numIterations,
+					flowThreads,
+					transformCacheCounters);
+		}
+
+		transformCacheCounters.report();
 	}
 
 
@@ -578,35 +835,23 @@ public class SparkPairAlignFlow {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
-		for (int i = 1; i < datasetNames.length - 2; i += 2) {
-
-			System.out.printf(
-					"Aligning dataset %d : %s, %d : %s, %d grid cells",
-					i,
-					datasetNames[i],
-					i + 1,
-					datasetNames[i + 1],
-					gridOffsets.size());
-			System.out.println();
-
-			alignPairFlow(
-					sc,
-					options.getN5Path(),
-					options.getInGroup(),
-					options.getOutGroup(),
-					datasetNames[i],
-					datasetNames[i + 1],
-					transformDatasetNames[i],
-					transformDatasetNames[i + 1],
-					options.getTransformScaleIndex(),
-					boundsMin,
-					boundsMax,
-					options.getStepSize(),
-					gridOffsets,
-					(short)Math.ceil(Math.abs(options.getMaxFilterEpsilon())),
-					options.getSigma(),
-					3);
-		}
+		alignSeriesFlow(
+				sc,
+				options.getN5Path(),
+				options.getInGroup(),
+				options.getOutGroup(),
+				datasetNames,
+				transformDatasetNames,
+				options.getTransformScaleIndex(),
+				boundsMin,
+				boundsMax,
+				options.getStepSize(),
+				gridOffsets,
+				(short)Math.ceil(Math.abs(options.getMaxFilterEpsilon())),
+				options.getSigma(),
+				3,
+				options.getMaxConcurrentPairs(),
+				options.getFlowThreads());
 
 		sc.close();
 	}
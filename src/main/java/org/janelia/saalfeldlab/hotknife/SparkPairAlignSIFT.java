@@ -29,8 +29,12 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureMatcher;
+import org.janelia.saalfeldlab.hotknife.util.FeatureStore;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.KDForestMatcher;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.TransformCache;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -43,11 +47,13 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import mpicbg.imagefeatures.Feature;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.InterpolatedAffineModel2D;
 import mpicbg.models.RigidModel2D;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
@@ -95,6 +101,12 @@ public class SparkPairAlignSIFT {
 		@Option(name = "--maxEpsilon", required = true, usage = "residual threshold for filter in world pixels")
 		private double maxFilterEpsilon = 50.0;
 
+		@Option(name = "--featureStore", required = false, usage = "extract SIFT features once per face and store them in N5 instead of extracting them for each grid cell")
+		private boolean featureStore = false;
+
+		@Option(name = "--kdForest", required = false, usage = "match SIFT features approximately with a randomized k-d forest instead of comparing all pairs")
+		private boolean kdForest = false;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -164,6 +176,96 @@ public class SparkPairAlignSIFT {
 
 			return maxFilterEpsilon;
 		}
+
+		public boolean useFeatureStore() {
+
+			return featureStore;
+		}
+
+		public FeatureMatcher getFeatureMatcher() {
+
+			return kdForest ? new KDForestMatcher() : Align.bruteForceMatcher;
+		}
+	}
+
+	/* SIFT parameters of the grid cells */
+	public static final double maxScale = 1.0;
+	public static final double minScale = 0.5;
+	public static final int fdSize = 4;
+
+	/**
+	 * Extracts SIFT features of faces on tiles of the size of a grid cell
+	 * and saves them in {@link FeatureStore}s, faces that have a store with
+	 * the same parameters are skipped.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetNames multi-scale dataset groups
+	 * @param scaleIndex
+	 * @param gridCellWidth
+	 */
+	public static void extractFaceFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final int gridCellWidth) {
+
+		final int margin = gridCellWidth / 8;
+
+		sc.parallelize(datasetNames, Math.max(1, datasetNames.size())).foreach(
+				datasetName -> {
+					final N5Writer n5 = new N5FSWriter(n5Path);
+					final String group = FeatureStore.featureGroup(datasetName, scaleIndex);
+					if (FeatureStore.exists(n5, group, gridCellWidth, margin, maxScale, minScale, fdSize))
+						return;
+
+					final RandomAccessibleInterval<FloatType> face = N5Utils.open(n5, datasetName + "/s" + scaleIndex);
+					final ArrayList<Feature> features = FeatureStore.extractFeatures(face, gridCellWidth, margin, maxScale, minScale, fdSize);
+					FeatureStore.save(n5, group, features, gridCellWidth, margin, maxScale, minScale, fdSize);
+					FeatureStore.invalidate(n5Path, group);
+				});
+	}
+
+	/**
+	 * Maps the stored features of a face that fall into a grid cell through
+	 * the current transform of the face.
+	 *
+	 * @param n5Path
+	 * @param datasetName multi-scale dataset group
+	 * @param scaleIndex
+	 * @param transformDataset scaled transform dataset, scale is resolved from scale property
+	 * @param gridBlockInterval grid cell, scaled according to scaleIndex
+	 * @param transformCacheCounters
+	 * @return features in world coordinates (not scaled)
+	 * @throws IOException
+	 */
+	public static ArrayList<Feature> loadGridCellFeatures(
+			final String n5Path,
+			final String datasetName,
+			final int scaleIndex,
+			final String transformDataset,
+			final Interval gridBlockInterval,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
+
+		final RealTransform transform = TransformCache.get(
+				n5Path,
+				transformDataset,
+				transformCacheCounters);
+
+		final ArrayList<Feature> features = FeatureStore.transformFeatures(
+				FeatureStore.get(n5Path, FeatureStore.featureGroup(datasetName, scaleIndex)),
+				Transform.createScaledRealTransform(transform, scaleIndex),
+				gridBlockInterval);
+
+		final double scale = 1 << scaleIndex;
+		features.forEach(
+				feature -> {
+					feature.location[0] *= scale;
+					feature.location[1] *= scale;
+				});
+
+		return features;
 	}
 
 	/**
@@ -184,6 +286,7 @@ public class SparkPairAlignSIFT {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param transformCacheCounters
 	 * @return
 	 * @throws IOException
 	 */
@@ -203,7 +306,57 @@ public class SparkPairAlignSIFT {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
+
+		return alignSIFT(
+				sc,
+				n5Path,
+				datasetA,
+				datasetB,
+				scaleIndex,
+				transformADataset,
+				transformBDataset,
+				boundsMin,
+				boundsMax,
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				false,
+				Align.bruteForceMatcher,
+				transformCacheCounters);
+	}
+
+	/**
+	 * @param useFeatureStore map stored features through the transforms
+	 * instead of extracting them from the transformed grid cells, see
+	 * {@link #extractFaceFeatures(JavaSparkContext, String, List, int, int)}
+	 * @param matcher matches the features of the grid cells
+	 */
+	public static JavaPairRDD<long[], double[]> alignSIFT(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final boolean useFeatureStore,
+			final FeatureMatcher matcher,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 
@@ -212,35 +365,9 @@ public class SparkPairAlignSIFT {
 		final JavaPairRDD<long[], double[]> affines =
 				offsets.mapToPair(offset -> {
 
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
-
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							transformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							transformBDataset);
-
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
-
 					final FinalInterval gridBlockInterval =
 							new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
 
-					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
-					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
-
 					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
 							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
 								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
@@ -260,17 +387,61 @@ public class SparkPairAlignSIFT {
 							0.0,
 							7);
 
-					final AffineTransform2D transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignSIFT(
-							gridBlockB,
-							gridBlockA,
-							1.0,
-							0.5,
-							4,
-							0.92,
-							1.0 / scale,
-							filter,
-							modelSupplier,
-							Transform::convertAndInvertAffine2DtoAffineTransform2D);
+					final AffineTransform2D transform;
+					if (useFeatureStore) {
+						final ArrayList<Feature> featuresA = loadGridCellFeatures(n5Path, datasetA, scaleIndex, transformADataset, gridBlockInterval, transformCacheCounters);
+						final ArrayList<Feature> featuresB = loadGridCellFeatures(n5Path, datasetB, scaleIndex, transformBDataset, gridBlockInterval, transformCacheCounters);
+
+						transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignFeatures(
+								featuresB,
+								featuresA,
+								0.92,
+								filter,
+								modelSupplier,
+								Transform::convertAndInvertAffine2DtoAffineTransform2D,
+								matcher);
+					} else {
+						final N5Reader n5Reader = new N5FSReader(n5Path);
+						final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
+						final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
+
+						final RealTransform transformA = TransformCache.get(
+								n5Path,
+								transformADataset,
+								transformCacheCounters);
+						final RealTransform transformB = TransformCache.get(
+								n5Path,
+								transformBDataset,
+								transformCacheCounters);
+
+						final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
+								a,
+								new FinalInterval(scaledFloorMin, scaledCeilMax),
+								Transform.createScaledRealTransform(transformA, scaleIndex),
+								new FloatType(0));
+
+						final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
+								b,
+								new FinalInterval(scaledFloorMin, scaledCeilMax),
+								Transform.createScaledRealTransform(transformB, scaleIndex),
+								new FloatType(0));
+
+						final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
+						final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
+
+						transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignSIFT(
+								gridBlockB,
+								gridBlockA,
+								maxScale,
+								minScale,
+								fdSize,
+								0.92,
+								1.0 / scale,
+								filter,
+								modelSupplier,
+								Transform::convertAndInvertAffine2DtoAffineTransform2D,
+								matcher);
+					}
 
 					return new Tuple2<long[], double[]>(offset, transform == null ? null : transform.getRowPackedCopy());
 				});
@@ -290,6 +461,7 @@ public class SparkPairAlignSIFT {
 	 * @param boundsMax
 	 * @param stepSize
 	 * @param transformScale
+	 * @param transformCacheCounters
 	 */
 	public static JavaRDD<long[]> saveAccumulatedAffineGridCells(
 			final JavaPairRDD<long[], double[]> affines,
@@ -299,14 +471,16 @@ public class SparkPairAlignSIFT {
 			final double[] boundsMin,
 			final double[] boundsMax,
 			final int stepSize,
-			final double transformScale) {
+			final double transformScale,
+			final TransformCache.Counters transformCacheCounters) {
 
 		final JavaRDD<long[]> gridCells = affines.map(
 				t -> {
 					final N5Writer n5 = new N5FSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
-							priorTransformDatasetName);
+					final RealTransform priorTransform = TransformCache.get(
+							n5Path,
+							priorTransformDatasetName,
+							transformCacheCounters);
 					final long[] gridOffset = Grid.gridCell(
 							t._1(),
 							Grid.floorScaled(boundsMin, transformScale),
@@ -532,6 +706,58 @@ public class SparkPairAlignSIFT {
 			final double lambdaFilter,
 			final double maxFilterEpsilon) throws IOException {
 
+		alignPairSIFT(
+				sc,
+				n5Path,
+				inGroupName,
+				outGroupName,
+				datasetNameA,
+				datasetNameB,
+				transformDatasetNameA,
+				transformDatasetNameB,
+				transformScaleIndex,
+				boundsMin,
+				boundsMax,
+				stepSize,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				false,
+				Align.bruteForceMatcher,
+				null);
+	}
+
+	/**
+	 * @param useFeatureStore extract SIFT features once per face and map
+	 * them through the transforms of the grid cells
+	 * @param matcher matches the features of the grid cells
+	 * @param transformCacheCounters counts transform cache lookups, may be null
+	 */
+	public static void alignPairSIFT(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final boolean useFeatureStore,
+			final FeatureMatcher matcher,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
+
+		if (useFeatureStore)
+			extractFaceFeatures(sc, n5Path, Arrays.asList(datasetNameA, datasetNameB), transformScaleIndex, stepSize * 2);
+
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
@@ -553,7 +779,10 @@ public class SparkPairAlignSIFT {
 				gridOffsets,
 				lambdaModel,
 				lambdaFilter,
-				maxFilterEpsilon);
+				maxFilterEpsilon,
+				useFeatureStore,
+				matcher,
+				transformCacheCounters);
 
 		affines.cache();
 		affines.count();
@@ -566,7 +795,8 @@ public class SparkPairAlignSIFT {
 				boundsMin,
 				boundsMax,
 				stepSize,
-				scale);
+				scale,
+				transformCacheCounters);
 
 		gridCells.cache();
 		gridCells.count();
@@ -644,6 +874,8 @@ public class SparkPairAlignSIFT {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final TransformCache.Counters transformCacheCounters = TransformCache.Counters.create(sc, "SparkPairAlignSIFT");
+
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -676,9 +908,14 @@ public class SparkPairAlignSIFT {
 					gridOffsets,
 					options.getLambdaModel(),
 					options.getLambdaFilter(),
-					options.getMaxFilterEpsilon());
+					options.getMaxFilterEpsilon(),
+					options.useFeatureStore(),
+					options.getFeatureMatcher(),
+					transformCacheCounters);
 		}
 
+		transformCacheCounters.report();
+
 		sc.close();
 	}
 }
@@ -29,14 +29,17 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureMatcher;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.TransformCache;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
+import mpicbg.imagefeatures.Feature;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.ErrorStatistic;
 import mpicbg.models.IdentityModel;
@@ -81,6 +84,7 @@ public class SparkPairAlignSIFTAverage {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param transformCacheCounters
 	 * @return
 	 * @throws IOException
 	 */
@@ -100,7 +104,57 @@ public class SparkPairAlignSIFTAverage {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
+
+		return alignSIFTAverage(
+				sc,
+				n5Path,
+				datasetA,
+				datasetB,
+				scaleIndex,
+				transformADataset,
+				transformBDataset,
+				boundsMin,
+				boundsMax,
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				false,
+				Align.bruteForceMatcher,
+				transformCacheCounters);
+	}
+
+	/**
+	 * @param useFeatureStore map stored features through the transforms
+	 * instead of extracting them from the transformed grid cells, see
+	 * {@link SparkPairAlignSIFT#extractFaceFeatures(JavaSparkContext, String, List, int, int)}
+	 * @param matcher matches the features of the grid cells
+	 */
+	public static JavaPairRDD<long[], Tuple2<double[], double[]>> alignSIFTAverage(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final boolean useFeatureStore,
+			final FeatureMatcher matcher,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 
@@ -109,35 +163,9 @@ public class SparkPairAlignSIFTAverage {
 		final JavaPairRDD<long[], Tuple2<double[], double[]>> affines =
 				offsets.mapToPair(offset -> {
 
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
-
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							transformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							transformBDataset);
-
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
-
 					final FinalInterval gridBlockInterval =
 							new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
 
-					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
-					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
-
 					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
 							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
 								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
@@ -157,15 +185,52 @@ public class SparkPairAlignSIFTAverage {
 							0.0,
 							10);
 
-					final ArrayList<PointMatch> matches = Align.filterMatchSIFT(
-							gridBlockB,
-							gridBlockA,
-							1.0,
-							0.5,
-							4,
-							0.92,
-							1.0 / scale,
-							filter);
+					final ArrayList<PointMatch> matches;
+					if (useFeatureStore) {
+						final ArrayList<Feature> featuresA = SparkPairAlignSIFT.loadGridCellFeatures(n5Path, datasetA, scaleIndex, transformADataset, gridBlockInterval, transformCacheCounters);
+						final ArrayList<Feature> featuresB = SparkPairAlignSIFT.loadGridCellFeatures(n5Path, datasetB, scaleIndex, transformBDataset, gridBlockInterval, transformCacheCounters);
+
+						matches = Align.filterMatchFeatures(featuresB, featuresA, 0.92, filter, matcher);
+					} else {
+						final N5Reader n5Reader = new N5FSReader(n5Path);
+						final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
+						final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
+
+						final RealTransform transformA = TransformCache.get(
+								n5Path,
+								transformADataset,
+								transformCacheCounters);
+						final RealTransform transformB = TransformCache.get(
+								n5Path,
+								transformBDataset,
+								transformCacheCounters);
+
+						final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
+								a,
+								new FinalInterval(scaledFloorMin, scaledCeilMax),
+								Transform.createScaledRealTransform(transformA, scaleIndex),
+								new FloatType(0));
+
+						final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
+								b,
+								new FinalInterval(scaledFloorMin, scaledCeilMax),
+								Transform.createScaledRealTransform(transformB, scaleIndex),
+								new FloatType(0));
+
+						final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
+						final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
+
+						matches = Align.filterMatchSIFT(
+								gridBlockB,
+								gridBlockA,
+								SparkPairAlignSIFT.maxScale,
+								SparkPairAlignSIFT.minScale,
+								SparkPairAlignSIFT.fdSize,
+								0.92,
+								1.0 / scale,
+								filter,
+								matcher);
+					}
 
 					final InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel> modelA =
 							new InterpolatedAffineModel2D<>(modelSupplier.get(), new IdentityModel(), 0.5);
@@ -246,6 +311,58 @@ public class SparkPairAlignSIFTAverage {
 			final double lambdaFilter,
 			final double maxFilterEpsilon) throws IOException {
 
+		alignPairSIFTAverage(
+				sc,
+				n5Path,
+				inGroupName,
+				outGroupName,
+				datasetNameA,
+				datasetNameB,
+				transformDatasetNameA,
+				transformDatasetNameB,
+				transformScaleIndex,
+				boundsMin,
+				boundsMax,
+				stepSize,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				false,
+				Align.bruteForceMatcher,
+				null);
+	}
+
+	/**
+	 * @param useFeatureStore extract SIFT features once per face and map
+	 * them through the transforms of the grid cells
+	 * @param matcher matches the features of the grid cells
+	 * @param transformCacheCounters counts transform cache lookups, may be null
+	 */
+	public static void alignPairSIFTAverage(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final boolean useFeatureStore,
+			final FeatureMatcher matcher,
+			final TransformCache.Counters transformCacheCounters) throws IOException {
+
+		if (useFeatureStore)
+			SparkPairAlignSIFT.extractFaceFeatures(sc, n5Path, Arrays.asList(datasetNameA, datasetNameB), transformScaleIndex, stepSize * 2);
+
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
@@ -267,7 +384,10 @@ public class SparkPairAlignSIFTAverage {
 				gridOffsets,
 				lambdaModel,
 				lambdaFilter,
-				maxFilterEpsilon);
+				maxFilterEpsilon,
+				useFeatureStore,
+				matcher,
+				transformCacheCounters);
 
 		affines.cache();
 		affines.count();
@@ -285,7 +405,8 @@ public class SparkPairAlignSIFTAverage {
 				boundsMin,
 				boundsMax,
 				stepSize,
-				scale);
+				scale,
+				transformCacheCounters);
 
 		final JavaRDD<long[]> gridCellsB = SparkPairAlignSIFT.saveAccumulatedAffineGridCells(
 				affinesB,
@@ -295,7 +416,8 @@ public class SparkPairAlignSIFTAverage {
 				boundsMin,
 				boundsMax,
 				stepSize,
-				scale);
+				scale,
+				transformCacheCounters);
 
 		gridCellsA.cache();
 		gridCellsA.count();
@@ -393,6 +515,8 @@ public class SparkPairAlignSIFTAverage {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final TransformCache.Counters transformCacheCounters = TransformCache.Counters.create(sc, "SparkPairAlignSIFTAverage");
+
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -425,9 +549,14 @@ public class SparkPairAlignSIFTAverage {
 					gridOffsets,
 					options.getLambdaModel(),
 					options.getLambdaFilter(),
-					options.getMaxFilterEpsilon());
+					options.getMaxFilterEpsilon(),
+					options.useFeatureStore(),
+					options.getFeatureMatcher(),
+					transformCacheCounters);
 		}
 
+		transformCacheCounters.report();
+
 		sc.close();
 	}
 }
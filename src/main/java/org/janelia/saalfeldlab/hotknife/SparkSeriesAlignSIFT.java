@@ -16,18 +16,20 @@
  */
 package org.janelia.saalfeldlab.hotknife;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -36,6 +38,7 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
 import org.janelia.saalfeldlab.hotknife.util.Align;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.hotknife.util.Transform.InterpolatedAffineModel2DSupplier;
@@ -57,6 +60,7 @@ import mpicbg.models.AffineModel2D;
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.InterpolatedAffineModel2D;
 import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
@@ -118,9 +122,21 @@ public class SparkSeriesAlignSIFT {
 		@Option(name = "--iterations", required = false, usage = "number of iterations")
 		private int numIterations = 200;
 
+		@Option(name = "--directSolver", required = false, usage = "solve the tile configuration with a sparse direct solver instead of iteratively")
+		private boolean directSolver = false;
+
+		@Option(name = "--directSolverDamp", required = false, usage = "damp matches of the direct solver with residuals larger than this times the median residual, <= 0 for no damping")
+		private double directSolverDamp = 0;
+
+		@Option(name = "--threadsPerTask", required = false, usage = "number of threads for RANSAC of one pair of sections, results do not depend on it")
+		private int threadsPerTask = 1;
+
 		@Option(name = "--tmpPath", required = true, usage = "path for temporary files, e.g. /nrs/flyem/data/tmp")
 		private String tmpPath = null;
 
+		@Option(name = "--cachePath", required = false, usage = "path for features, matches, and models that are reused when the series is aligned again, e.g. /nrs/flyem/data/tmp/cache")
+		private String cachePath = null;
+
 
 		public Options(final String[] args) {
 
@@ -181,6 +197,11 @@ public class SparkSeriesAlignSIFT {
 			return tmpPath;
 		}
 
+		public String getCachePath() {
+
+			return cachePath;
+		}
+
 		public double getMinIntensity() {
 
 			return minIntensity;
@@ -195,17 +216,69 @@ public class SparkSeriesAlignSIFT {
 
 			return numIterations;
 		}
+
+		/**
+		 * @return whether to use {@link DirectTileOptimizer}
+		 */
+		public boolean isDirectSolver() {
+
+			return directSolver;
+		}
+
+		/**
+		 * @return damp factor of {@link DirectTileOptimizer}, &lt;= 0 for no damping
+		 */
+		public double getDirectSolverDamp() {
+
+			return directSolverDamp;
+		}
+
+		public int getThreadsPerTask() {
+
+			return threadsPerTask;
+		}
 	}
 
+	/**
+	 * Writes to a temporary file first, so that cached files are either
+	 * complete or missing.
+	 */
+	private static void write(final byte[] bytes, final String filePath) throws IOException {
+
+		final Path path = Paths.get(filePath);
+		final Path tmpPath = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		Files.write(tmpPath, bytes);
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Saves features as a flat binary file, the number of features and the
+	 * descriptor size followed by location (double), scale, orientation,
+	 * and descriptor (float) of each feature.
+	 *
+	 * @param features
+	 * @param filePath
+	 * @return whether the features were saved
+	 */
 	public static boolean saveFeatures(
 			final ArrayList<Feature> features,
 			final String filePath) {
 
-		try (
-				final FileOutputStream fileStream = new FileOutputStream(new File(filePath));
-				final ObjectOutputStream objectStream = new ObjectOutputStream(fileStream)) {
+		final int descriptorSize = features.isEmpty() ? 0 : features.get(0).descriptor.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + features.size() * (24 + 4 * descriptorSize));
+		buffer.putInt(features.size());
+		buffer.putInt(descriptorSize);
+		for (final Feature feature : features) {
+			buffer.putDouble(feature.location[0]);
+			buffer.putDouble(feature.location[1]);
+			buffer.putFloat((float)feature.scale);
+			buffer.putFloat((float)feature.orientation);
+			for (final float value : feature.descriptor)
+				buffer.putFloat(value);
+		}
 
-			objectStream.writeObject(features);
+		try {
+			write(buffer.array(), filePath);
 		} catch (final IOException e) {
 			e.printStackTrace();
 			return false;
@@ -213,22 +286,409 @@ public class SparkSeriesAlignSIFT {
 		return true;
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Reads features saved by {@link #saveFeatures(ArrayList, String)}.
+	 *
+	 * @param filePath
+	 * @return the features or null if they could not be read
+	 */
 	public static final ArrayList<Feature> readFeatures(final String filePath) {
 
-		ArrayList<Feature> features;
-		try (
-				final FileInputStream fileStream = new FileInputStream(new File(filePath));
-				final ObjectInputStream objectStream = new ObjectInputStream(fileStream)) {
-
-			features = (ArrayList<Feature>)objectStream.readObject();
-		} catch (final IOException | ClassNotFoundException e) {
+		final ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filePath)));
+		} catch (final IOException e) {
 			e.printStackTrace();
-			features = null;
+			return null;
 		}
+
+		final int numFeatures = buffer.getInt();
+		final int descriptorSize = buffer.getInt();
+		final ArrayList<Feature> features = new ArrayList<>(numFeatures);
+		for (int i = 0; i < numFeatures; ++i) {
+			final double[] location = new double[]{buffer.getDouble(), buffer.getDouble()};
+			final double scale = buffer.getFloat();
+			final double orientation = buffer.getFloat();
+			final float[] descriptor = new float[descriptorSize];
+			for (int j = 0; j < descriptorSize; ++j)
+				descriptor[j] = buffer.getFloat();
+			features.add(new Feature(scale, orientation, location, descriptor));
+		}
+		return features;
+	}
+
+	/**
+	 * Creates all pairs (i, j) of indices with 0 &lt; j - i &lt; distance.
+	 * Pairs are generated per first index i and keep the order of the
+	 * indices, so every partition covers a contiguous range of slices.
+	 *
+	 * @param sc
+	 * @param indices
+	 * @param distance
+	 * @return
+	 */
+	public static JavaPairRDD<Integer, Integer> bandPairs(
+			final JavaSparkContext sc,
+			final List<Integer> indices,
+			final int distance) {
+
+		final TreeSet<Integer> indexSet = new TreeSet<>(indices);
+
+		return sc.parallelize(new ArrayList<>(indexSet)).flatMapToPair(
+				i -> indexSet
+						.subSet(i, false, i + distance, false)
+						.stream()
+						.map(j -> new Tuple2<>(i, j))
+						.iterator());
+	}
+
+	/**
+	 * Saves point matches as a flat binary file, the number of matches
+	 * followed by the local coordinates of both points and the weight of
+	 * each match.
+	 *
+	 * @param matches
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public static void saveMatches(
+			final List<PointMatch> matches,
+			final String filePath) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + matches.size() * 40);
+		buffer.putInt(matches.size());
+		for (final PointMatch match : matches) {
+			final double[] p1 = match.getP1().getL();
+			final double[] p2 = match.getP2().getL();
+			buffer.putDouble(p1[0]);
+			buffer.putDouble(p1[1]);
+			buffer.putDouble(p2[0]);
+			buffer.putDouble(p2[1]);
+			buffer.putDouble(match.getWeight());
+		}
+
+		write(buffer.array(), filePath);
+	}
+
+	/**
+	 * Reads point matches saved by {@link #saveMatches(List, String)}.
+	 *
+	 * @param filePath
+	 * @return the matches
+	 * @throws IOException
+	 */
+	public static ArrayList<PointMatch> readMatches(final String filePath) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filePath)));
+
+		final int numMatches = buffer.getInt();
+		final ArrayList<PointMatch> matches = new ArrayList<>(numMatches);
+		for (int i = 0; i < numMatches; ++i) {
+			final Point p1 = new Point(new double[]{buffer.getDouble(), buffer.getDouble()});
+			final Point p2 = new Point(new double[]{buffer.getDouble(), buffer.getDouble()});
+			matches.add(new PointMatch(p1, p2, buffer.getDouble()));
+		}
+		return matches;
+	}
+
+	/**
+	 * Saves a row-packed 2D affine.
+	 *
+	 * @param affine
+	 * @param filePath
+	 * @throws IOException
+	 */
+	public static void saveAffine(final double[] affine, final String filePath) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8 * affine.length);
+		for (final double value : affine)
+			buffer.putDouble(value);
+
+		write(buffer.array(), filePath);
+	}
+
+	/**
+	 * Reads a row-packed 2D affine saved by
+	 * {@link #saveAffine(double[], String)}.
+	 *
+	 * @param filePath
+	 * @return the affine or null if there is none
+	 * @throws IOException
+	 */
+	public static double[] readAffine(final String filePath) throws IOException {
+
+		if (!Files.exists(Paths.get(filePath)))
+			return null;
+
+		final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filePath)));
+
+		final double[] affine = new double[6];
+		for (int i = 0; i < affine.length; ++i)
+			affine[i] = buffer.getDouble();
+		return affine;
+	}
+
+	private static String hex(final byte[] bytes) {
+
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static MessageDigest sha1() {
+
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * SHA-1 of the pixels of a section and the parameters it is processed
+	 * with.  Features and matches of a section are cached under this key,
+	 * so they are reused as long as neither the section nor the parameters
+	 * change.  Models are cached by {@link #modelKey(String, String, int)}.
+	 *
+	 * @param section
+	 * @param parameters
+	 * @return
+	 */
+	public static String sectionKey(
+			final RandomAccessibleInterval<? extends RealType<?>> section,
+			final double... parameters) {
+
+		final MessageDigest digest = sha1();
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for (final long d : Intervals.dimensionsAsLongArray(section))
+			buffer.putLong(d);
+		for (final double parameter : parameters)
+			buffer.putDouble(parameter);
+		for (final RealType<?> t : Views.flatIterable(section)) {
+			if (buffer.remaining() < 8) {
+				digest.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			buffer.putDouble(t.getRealDouble());
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Key of the saved model of a section.  Models are saved by position in
+	 * the series and not by content such that a section that changed
+	 * starts from the model of the section it replaces.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @param sectionIndex
+	 * @return
+	 */
+	public static String modelKey(
+			final String n5Path,
+			final String datasetName,
+			final int sectionIndex) {
+
+		final MessageDigest digest = sha1();
+		digest.update((n5Path + ":" + datasetName + ":" + sectionIndex).getBytes(StandardCharsets.UTF_8));
+
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Key of the matches of two sections.
+	 *
+	 * @param sectionKey1
+	 * @param sectionKey2
+	 * @param parameters
+	 * @return
+	 */
+	public static String pairKey(
+			final String sectionKey1,
+			final String sectionKey2,
+			final double... parameters) {
+
+		final MessageDigest digest = sha1();
+		digest.update((sectionKey1 + "-" + sectionKey2).getBytes(StandardCharsets.UTF_8));
+		final ByteBuffer buffer = ByteBuffer.allocate(8 * parameters.length);
+		for (final double parameter : parameters)
+			buffer.putDouble(parameter);
+		digest.update(buffer.array());
+
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Extracts and saves the SIFT features of all sections whose features
+	 * are not yet in cacheDirName/features.
+	 *
+	 * @return the key of each section, null for sections whose features
+	 *   could not be saved
+	 */
+	public static List<String> extractFeatures(
+			final JavaSparkContext sc,
+			final String n5Input,
+			final String inDataset,
+			final int nSlices,
+			final float minIntensity,
+			final float maxIntensity,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final String cacheDirName) throws IOException {
+
+		final String featuresDirName = cacheDirName + "/features";
+		Files.createDirectories(Paths.get(featuresDirName));
+
+		final float intensityScale = 255.0f / (maxIntensity - minIntensity);
+
+		final ArrayList<Integer> slices = new ArrayList<>();
+		for (int i = 0; i < nSlices; ++i)
+			slices.add(new Integer(i));
+
+		final JavaRDD<Integer> rddSlices = sc.parallelize(slices);
+
+		final JavaRDD<String> rddKeys = rddSlices.map(
+				i ->  {
+					final RandomAccessibleInterval slice = (RandomAccessibleInterval)slice(n5Input, inDataset, i);
+					final String key = sectionKey(slice, minIntensity, maxIntensity, maxScale, minScale, fdSize);
+					final String filePath = featuresDirName + "/" + key;
+					if (Files.exists(Paths.get(filePath)))
+						return key;
+
+					final boolean saved = saveFeatures(
+							Align.extractFeatures(
+									Converters.convert(
+											(RandomAccessibleInterval<RealType<?>>)slice,
+											(a, b) -> {
+												b.setReal((a.getRealFloat() - minIntensity) * intensityScale);
+											},
+											new FloatType()),
+									maxScale,
+									minScale,
+									fdSize),
+							filePath);
+
+					return saved ? key : null;
+				});
+
+		return rddKeys.collect();
+	}
+
+	/**
+	 * Matches all pairs of sections with 0 &lt; j - i &lt; distance.
+	 * Matches are cached in cacheDirName/matches by
+	 * {@link #pairKey(String, String, double...)}, only pairs without
+	 * cached matches are matched and counted in matchedPairs.
+	 *
+	 * @param sc
+	 * @param sectionKeys from
+	 *   {@link #extractFeatures(JavaSparkContext, String, String, int, float, float, double, double, int, String)}
+	 * @param distance
+	 * @param maxEpsilon
+	 * @param cacheDirName
+	 * @param matchedPairs
+	 * @param numThreads threads for RANSAC of one pair, results do not depend on it
+	 * @return
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Integer, Integer>, ArrayList<PointMatch>> matchFeatures(
+			final JavaSparkContext sc,
+			final List<String> sectionKeys,
+			final int distance,
+			final double maxEpsilon,
+			final String cacheDirName,
+			final LongAccumulator matchedPairs,
+			final int numThreads) throws IOException {
+
+		final String featuresDirName = cacheDirName + "/features";
+		final String matchesDirName = cacheDirName + "/matches";
+		Files.createDirectories(Paths.get(matchesDirName));
+
+		final ArrayList<String> keys = new ArrayList<>(sectionKeys);
+		final ArrayList<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < keys.size(); ++i)
+			if (keys.get(i) != null)
+				indices.add(i);
+
+		final JavaPairRDD<Integer, Integer> rddPairs = bandPairs(sc, indices, distance);
+
+		return rddPairs.mapPartitionsToPair(pairs -> {
+
+			/* pairs are sorted by first index, keep the features of the next distance slices */
+			final HashMap<Integer, ArrayList<Feature>> features = new HashMap<>();
+			final ArrayList<Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>>> partitionMatches = new ArrayList<>();
+			while (pairs.hasNext()) {
+				final Tuple2<Integer, Integer> pair = pairs.next();
+				final String filePath = matchesDirName + "/" + pairKey(keys.get(pair._1()), keys.get(pair._2()), maxEpsilon);
+				if (Files.exists(Paths.get(filePath))) {
+					partitionMatches.add(new Tuple2<>(pair, readMatches(filePath)));
+					continue;
+				}
+
+				features.keySet().removeIf(k -> k < pair._1());
+				final ArrayList<Feature> features1 = features.computeIfAbsent(pair._1(), k -> readSectionFeatures(featuresDirName, keys, k));
+				final ArrayList<Feature> features2 = features.computeIfAbsent(pair._2(), k -> readSectionFeatures(featuresDirName, keys, k));
+				final ArrayList<PointMatch> pairMatches = new ArrayList<>(Align.sampleRandomly(
+						Align.filterMatchFeatures(
+								features1,
+								features2,
+								0.92,
+								new MultiConsensusFilter<>(
+//										new Transform.InterpolatedAffineModel2DSupplier(
+//												(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+//												(Supplier<RigidModel2D> & Serializable)RigidModel2D::new, 0.25),
+//										(Supplier<TranslationModel2D> & Serializable)TranslationModel2D::new,
+										(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
+										1000,
+										maxEpsilon,
+										0,
+										10,
+										0L,
+										numThreads)),
+						64));
+				saveMatches(pairMatches, filePath);
+				matchedPairs.add(1);
+				partitionMatches.add(new Tuple2<>(pair, pairMatches));
+			}
+			return partitionMatches.iterator();
+		});
+	}
+
+	/**
+	 * Reads the features of a section for matching and fails if they are
+	 * missing or cannot be read, e.g. because the features directory was
+	 * cleaned up after the section keys were collected.
+	 */
+	private static ArrayList<Feature> readSectionFeatures(
+			final String featuresDirName,
+			final List<String> keys,
+			final int index) {
+
+		final String filePath = featuresDirName + "/" + keys.get(index);
+		final ArrayList<Feature> features = readFeatures(filePath);
+		if (features == null)
+			throw new RuntimeException("Features of section " + index + " could not be read from " + filePath + ".");
 		return features;
 	}
 
+	/**
+	 * Creates the model of a tile from a row-packed affine.
+	 */
+	private static InterpolatedAffineModel2D<AffineModel2D, TranslationModel2D> createModel(
+			final double[] affine,
+			final double lambda) {
+
+		final AffineModel2D a = new AffineModel2D();
+		a.set(affine[0], affine[3], affine[1], affine[4], affine[2], affine[5]);
+		final TranslationModel2D b = new TranslationModel2D();
+		b.set(affine[2], affine[5]);
+		return new InterpolatedAffineModel2D<>(a, b, lambda);
+	}
+
 	public static <T extends NativeType<T>> RandomAccessibleInterval<T> slice(
 			final String n5Path,
 			final String n5Dataset,
@@ -298,78 +758,61 @@ public class SparkSeriesAlignSIFT {
 
 
 
-		final ArrayList<Integer> slices = new ArrayList<>();
-		for (int i = 0; i < nSlices; ++i)
-			slices.add(new Integer(i));
-
-		final JavaRDD<Integer> rddSlices = sc.parallelize(slices);
-
-		/* save features */
-		final JavaPairRDD<Integer, Boolean> rddFeatures = rddSlices.mapToPair(
-				i ->  {
-					final RandomAccessibleInterval slice = (RandomAccessibleInterval)slice(n5Input, inDataset, i);
-					return new Tuple2<>(
-							i,
-							saveFeatures(
-									Align.extractFeatures(
-											Converters.convert(
-													(RandomAccessibleInterval<RealType<?>>)slice,
-													(a, b) -> {
-														b.setReal((a.getRealFloat() - minIntensity) * intensityScale);
-													},
-													new FloatType()),
-											maxScale,
-											minScale,
-											fdSize),
-									tmpDirName + "/" + i)
-//							true
-							);
-				});
-
-		/* cache the booleans, so features aren't regenerated every time */
-		rddFeatures.cache();
-
-		/* run feature extraction */
-		rddFeatures.count();
+		final String cacheDirName = options.getCachePath() == null ? tmpDirName : options.getCachePath();
+		final String modelsDirName = cacheDirName + "/models";
+		Files.createDirectories(Paths.get(modelsDirName));
 
+		/* extract and save features */
+		final List<String> sectionKeys = extractFeatures(
+				sc,
+				n5Input,
+				inDataset,
+				nSlices,
+				minIntensity,
+				maxIntensity,
+				maxScale,
+				minScale,
+				fdSize,
+				cacheDirName);
 
 		/* match features */
-		final JavaRDD<Integer> rddIndices = rddFeatures.filter(pair -> pair._2()).map(pair -> pair._1());
-		final JavaPairRDD<Integer, Integer> rddPairs = rddIndices.cartesian(rddIndices).filter(
-				pair -> {
-					final int diff = pair._2() - pair._1();
-					return diff > 0 && diff < distance;
-				});
-		final JavaPairRDD<Tuple2<Integer, Integer>, ArrayList<PointMatch>> matches = rddPairs.mapToPair(pair -> {
-					final ArrayList<Feature> features1 = readFeatures(tmpDirName + "/" + pair._1());
-					final ArrayList<Feature> features2 = readFeatures(tmpDirName + "/" + pair._2());
-					return new Tuple2<>(
-							new Tuple2<>(pair._1(), pair._2()),
-							new ArrayList<>(Align.sampleRandomly(
-								Align.filterMatchFeatures(
-										features1,
-										features2,
-										0.92,
-										new MultiConsensusFilter<>(
-	//											new Transform.InterpolatedAffineModel2DSupplier(
-	//													(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
-	//													(Supplier<RigidModel2D> & Serializable)RigidModel2D::new, 0.25),
-//												(Supplier<TranslationModel2D> & Serializable)TranslationModel2D::new,
-												(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
-												1000,
-												maxEpsilon,
-												0,
-												10)),
-								64)));
-				});
+		final LongAccumulator matchedPairs = sc.sc().longAccumulator("matched pairs");
+		final JavaPairRDD<Tuple2<Integer, Integer>, ArrayList<PointMatch>> matches = matchFeatures(
+				sc,
+				sectionKeys,
+				distance,
+				maxEpsilon,
+				cacheDirName,
+				matchedPairs,
+				options.getThreadsPerTask());
 
 		final InterpolatedAffineModel2DSupplier modelSupplier = new Transform.InterpolatedAffineModel2DSupplier(
 				(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
 				(Supplier<TranslationModel2D> & Serializable)TranslationModel2D::new, 1.0);
 
+		/* models saved for the same sections of the same dataset */
+		final double[][] savedAffines = new double[nSlices][];
+		boolean warmStart = false;
+		for (int i = 0; i < nSlices; ++i) {
+			savedAffines[i] = readAffine(modelsDirName + "/" + modelKey(n5Input, inDataset, i));
+			warmStart |= savedAffines[i] != null;
+		}
+
+		/* start from the saved models, sections without a saved model start from the closest section with one */
 		final ArrayList<Tile<?>> tiles = new ArrayList<>();
-		for (int i = 0; i < nSlices; ++i)
-			tiles.add(new Tile<>(modelSupplier.get()));
+		for (int i = 0; i < nSlices; ++i) {
+			if (warmStart) {
+				double[] affine = null;
+				for (int d = 0; affine == null; ++d) {
+					if (i - d >= 0 && savedAffines[i - d] != null)
+						affine = savedAffines[i - d];
+					else if (i + d < nSlices && savedAffines[i + d] != null)
+						affine = savedAffines[i + d];
+				}
+				tiles.add(new Tile<>(createModel(affine, lambdaModel)));
+			} else
+				tiles.add(new Tile<>(modelSupplier.get()));
+		}
 
 		for (final Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>> entry : matches.collect()) {
 			final ArrayList<PointMatch> pairMatches = entry._2();
@@ -377,6 +820,10 @@ public class SparkSeriesAlignSIFT {
 				tiles.get(entry._1()._1()).connect(tiles.get(entry._1()._2()), entry._2());
 		}
 
+		/* the matches of saved models have to be in their world coordinates before the first optimization */
+		if (warmStart)
+			tiles.forEach(Tile::apply);
+
 		final List<Tile<?>> nonEmptyTiles = tiles.stream().filter(tile -> tile.getConnectedTiles().size() > 0).collect(Collectors.toList());
 
 		/* optimize */
@@ -384,12 +831,17 @@ public class SparkSeriesAlignSIFT {
 		final TileConfiguration tc = new TileConfiguration();
 		tc.addTiles(nonEmptyTiles);
 
-		/* three pass optimization, first using the regularizer exclusively ... */
-		try {
-			tc.preAlign();
-			tc.optimize(0.01, numIterations, numIterations, 0.75);
-		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
-			e.printStackTrace();
+		/* three pass optimization, first using the regularizer exclusively unless starting from saved models ... */
+		if (!warmStart) {
+			try {
+				tc.preAlign();
+				if (options.isDirectSolver())
+					new DirectTileOptimizer(100, 0.01, options.getDirectSolverDamp()).optimize(tc);
+				else
+					tc.optimize(0.01, numIterations, numIterations, 0.75);
+			} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				e.printStackTrace();
+			}
 		}
 
 		/* ... then using the desired model with low regularization ... */
@@ -397,7 +849,10 @@ public class SparkSeriesAlignSIFT {
 				t -> ((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(lambdaModel));
 
 		try {
-			tc.optimize(0.01, numIterations, numIterations, 0.5);
+			if (options.isDirectSolver())
+				new DirectTileOptimizer(100, 0.01, options.getDirectSolverDamp()).optimize(tc);
+			else
+				tc.optimize(0.01, numIterations, numIterations, 0.5);
 		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
@@ -419,6 +874,7 @@ public class SparkSeriesAlignSIFT {
 			final double[] affine = Transform.convertAffine2DtoAffineTransform2D((Affine2D)tiles.get(i).getModel()).getRowPackedCopy();
 			transforms.add(new Tuple2<>(i, affine));
 			affines.add(affine);
+			saveAffine(affine, modelsDirName + "/" + modelKey(n5Input, inDataset, i));
 		}
 
 		/* bounding box, too fast locally to spend time to parallelize */
@@ -21,6 +21,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -178,9 +180,8 @@ public class SparkSurfaceFit implements Callable<Void>{
 	 * @param cost
 	 * @return
 	 */
-	private static <T extends Type<T>> RandomAccessibleInterval<UnsignedByteType> costMask(final RandomAccessibleInterval<T> cost) {
+	static <T extends Type<T>> RandomAccessibleInterval<UnsignedByteType> costMask(final RandomAccessibleInterval<T> cost) {
 
-		System.out.println(net.imglib2.util.Util.printInterval(cost));
 		final ArrayImg<UnsignedByteType, ByteArray> mask = ArrayImgs.unsignedBytes(cost.dimension(0), cost.dimension(1));
 		final T reference = net.imglib2.util.Util.getTypeFromInterval(cost).createVariable();
 		final ArrayCursor<UnsignedByteType> maskCursor = mask.cursor();
@@ -312,10 +313,20 @@ public class SparkSurfaceFit implements Callable<Void>{
 
 
 
+	/**
+	 * Solvers are not thread-safe but re-use their graph arrays, so keep
+	 * one per thread for all blocks processed by that thread.
+	 */
+	private static final ThreadLocal<MinCostZSurfaceSolver> surfaceSolver =
+			ThreadLocal.withInitial(MinCostZSurfaceSolver::new);
+
 	/**
 	 * Extract a single surface.
 	 *
 	 * Stolen from https://github.com/JaneliaSciComp/SurfaceFit/blob/master/src/main/java/net/preibisch/surface/Test.java
+	 * but solved with {@link MinCostZSurfaceSolver} instead of
+	 * {@link MinCostZSurface}.  The returned altitudes are 1-based like
+	 * {@link MinCostZSurface#get_Altitude_MapInt(int)}.
 	 *
 	 * @param <T>
 	 * @param cost
@@ -326,19 +337,46 @@ public class SparkSurfaceFit implements Callable<Void>{
 			final RandomAccessibleInterval<T> cost,
 			final int maxDz) {
 
+		return extractSurface(cost, null, null, maxDz);
+	}
+
+	/**
+	 * Extract a single surface from a z-band of the cost.
+	 *
+	 * @param <T>
+	 * @param cost
+	 * @param lo lowest z per column relative to cost.min(2), x fastest, null for all
+	 * @param hi highest z per column relative to cost.min(2), x fastest, null for all
+	 * @param maxDz max delta z, default = 1, constraint on the surface altitude change from one pixel to another
+	 * @return
+	 */
+	static <T extends RealType<T>> RandomAccessibleInterval<IntType> extractSurface(
+			final RandomAccessibleInterval<T> cost,
+			final int[] lo,
+			final int[] hi,
+			final int maxDz) {
+
 		final int n = cost.numDimensions();
 
 		assert (n == 3) :"number of dimensions = 3 required.";
 
-		final MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		final int width = (int)cost.dimension(0);
+		final int height = (int)cost.dimension(1);
+		final int depth = (int)cost.dimension(2);
 
-		ZSurface_detector.Create_Surface_Graph(Views.zeroMin(cost), maxDz);
+		final float[] costArray = new float[width * height * depth];
+		int i = 0;
+		for (final T t : Views.flatIterable(cost))
+			costArray[i++] = t.getRealFloat();
 
-		ZSurface_detector.Process();
+		final long startTime = System.currentTimeMillis();
+		final int[] surface = surfaceSolver.get().solve(costArray, width, height, depth, lo, hi, maxDz);
+		System.out.println("solved surface " + width + "x" + height + "x" + depth + " in " + (System.currentTimeMillis() - startTime) + "ms");
 
-		final Img<IntType> heightField =  ZSurface_detector.get_Altitude_MapInt(1);
+		for (int j = 0; j < surface.length; ++j)
+			++surface[j];
 
-		return Views.translate(heightField, cost.min(0), cost.min(1));
+		return Views.translate(ArrayImgs.ints(surface, width, height), cost.min(0), cost.min(1));
 	}
 
 
@@ -632,15 +670,65 @@ public class SparkSurfaceFit implements Callable<Void>{
 			final long padding,
 			final int maxStepSize) throws IOException {
 
-		final N5Reader n5Cost = isZarr( n5CostPath ) ? new N5ZarrReader( n5CostPath ) : new N5FSWriter(n5CostPath);
-		final N5Writer n5Field = isZarr( n5FieldPath ) ? new N5ZarrWriter( n5FieldPath ) : new N5FSWriter(n5FieldPath);
+		return processBlock(
+				null,
+				n5CostPath,
+				n5FieldPath,
+				costDataset,
+				heightFieldGroup,
+				heightFieldGroupOutput,
+				blockMinOut,
+				blockSizeOut,
+				blockPadding,
+				padding,
+				maxStepSize);
+	}
 
-		@SuppressWarnings("unchecked")
-		final RandomAccessibleInterval<UnsignedByteType> fullCost =
-		Views.permute(
-				(RandomAccessibleInterval<UnsignedByteType>)wrap( N5Utils.open(n5Cost, costDataset) ),
-				1,
-				2);
+
+	/**
+	 * Update the height field for a block, sharing open containers, decoded
+	 * blocks and the cost mask with all blocks of the same context in this
+	 * executor.
+	 *
+	 * @param contextId id of the {@link SurfaceFitBlockContext}, unique per
+	 * 		scale level and job, null to open all inputs for this block only
+	 * @param n5CostPath n5 container for cost, input only
+	 * @param n5FieldPath n5 container for height fields, both in put and output
+	 * @param costDataset
+	 * @param heightFieldGroup input height field group
+	 * @param heightFieldGroupOutput output height field group
+	 * @param blockMinOut 2D min coordinates of the out put block
+	 * @param blockSizeOut 2D size of the output block
+	 * @param blockPadding 2D padding of the output block for processing
+	 * @param padding padding in z around the previous surface
+	 * @param maxStepSize maximum z step size for surface update in output space
+	 *
+	 * @return value and weight sums of the updated height fields (can be all 0 if everything is masked)
+	 *
+	 * @throws IOException if something goes wrong with the n5 containers
+	 */
+	public static double[][] processBlock(
+			final String contextId,
+			final String n5CostPath,
+			final String n5FieldPath,
+			final String costDataset,
+			final String heightFieldGroup,
+			final String heightFieldGroupOutput,
+			final long[] blockMinOut,
+			final long[] blockSizeOut,
+			final long[] blockPadding,
+			final long padding,
+			final int maxStepSize) throws IOException {
+
+		final SurfaceFitBlockContext context = SurfaceFitBlockContext.get(
+				contextId,
+				n5CostPath,
+				n5FieldPath,
+				costDataset,
+				heightFieldGroup);
+
+		final N5Writer n5Field = context.n5Field;
+		final RandomAccessibleInterval<UnsignedByteType> fullCost = context.fullCost;
 
 		final long[] blockMin = new long[blockMinOut.length];
 		Arrays.setAll(
@@ -666,23 +754,23 @@ public class SparkSurfaceFit implements Callable<Void>{
 							blockMin[0] + blockSize[0] - 1,
 							blockMin[1] + blockSize[1] - 1,
 							fullCost.max(2)});
-		final RandomAccessibleInterval<UnsignedByteType> mask = costMask(cost);
+		final RandomAccessibleInterval<UnsignedByteType> mask = 
+				Views.interval(
+						context.mask,
+						new long[] {cost.min(0), cost.min(1)},
+						new long[] {cost.max(0), cost.max(1)});
 
 		if (maskEmpty(Views.iterable(mask)))
 			return new double[][] {{0, 0}, {0, 0}};
 
-		final double[] downsamplingFactorsXZY = n5Cost.getAttribute(costDataset, "downsamplingFactors", double[].class);
-		final double[] downsamplingFactors = new double[]{
-				downsamplingFactorsXZY[0],
-				downsamplingFactorsXZY[2],
-				downsamplingFactorsXZY[1]};
+		final double[] downsamplingFactors = context.downsamplingFactors;
 
-		final RandomAccessibleInterval<FloatType> minField = N5Utils.open(n5Field, heightFieldGroup + "/min");
-		final RandomAccessibleInterval<FloatType> maxField = N5Utils.open(n5Field, heightFieldGroup + "/max");
-		final double minAvg = n5Field.getAttribute(heightFieldGroup + "/min", "avg", double.class);
-		final double maxAvg = n5Field.getAttribute(heightFieldGroup + "/max", "avg", double.class);
+		final RandomAccessibleInterval<FloatType> minField = context.minField;
+		final RandomAccessibleInterval<FloatType> maxField = context.maxField;
+		final double minAvg = context.minAvg;
+		final double maxAvg = context.maxAvg;
 
-		final double[] downsamplingHeightField = n5Field.getAttribute(heightFieldGroup, "downsamplingFactors", double[].class);
+		final double[] downsamplingHeightField = context.downsamplingHeightField;
 		final double[] scale = new double[] {
 				downsamplingHeightField[0] / downsamplingFactors[0],
 				downsamplingHeightField[1] / downsamplingFactors[1],
@@ -817,15 +905,21 @@ public class SparkSurfaceFit implements Callable<Void>{
 				maxDataset,
 				attributes);
 
-		final JavaRDD<long[][]> grid = sc.parallelize(
-				Grid.create(
-						Arrays.copyOf(dimensions, 2),
-						new int[] {
-								(int)blockSizeOut[0],
-								(int)blockSizeOut[1]}));
+		/* neighboring blocks share most of their input, keep them in the same partitions */
+		final List<long[][]> gridBlocks = Grid.create(
+				Arrays.copyOf(dimensions, 2),
+				new int[] {
+						(int)blockSizeOut[0],
+						(int)blockSizeOut[1]});
+		Grid.sortZOrder(gridBlocks);
+
+		final String contextId = heightFieldGroupOutput + "-" + UUID.randomUUID();
+
+		final JavaRDD<long[][]> grid = sc.parallelize(gridBlocks);
 		final JavaRDD<double[][]> avgs =
 				grid.map(cell ->
 					processBlock(
+							contextId,
 							n5CostPath,
 							n5FieldPath,
 							costDataset,
@@ -0,0 +1,264 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.hotknife.util.Lazy;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Inputs of {@link SparkSurfaceFit#processBlock} that are shared by all
+ * blocks of one scale level processed in the same executor: the open N5
+ * containers, the permuted cost, its column mask, the height fields of the
+ * previous scale level and their attributes.  Cost and height field blocks
+ * are decoded once into a cache that is bounded by
+ * {@link #setMaxCachedBlocks(int)}, the mask is computed once per cost
+ * block column.
+ *
+ * Contexts are identified by an id that is unique per scale level and
+ * Spark job, such that height fields that are re-written by a later job
+ * are not served from the cache.  The least recently used contexts are
+ * evicted first.
+ */
+public class SurfaceFitBlockContext {
+
+	private static int maxSize = 2;
+	private static int maxCachedBlocks = 256;
+
+	private static final AtomicLong reads = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<String, SurfaceFitBlockContext> contexts =
+			new LinkedHashMap<String, SurfaceFitBlockContext>(16, 0.75f, true) {
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, SurfaceFitBlockContext> eldest) {
+
+					return size() > maxSize;
+				}
+			};
+
+	public final N5Reader n5Cost;
+	public final N5Writer n5Field;
+	public final RandomAccessibleInterval<UnsignedByteType> fullCost;
+	public final RandomAccessibleInterval<UnsignedByteType> mask;
+	public final RandomAccessibleInterval<FloatType> minField;
+	public final RandomAccessibleInterval<FloatType> maxField;
+	public final double minAvg;
+	public final double maxAvg;
+	public final double[] downsamplingFactors;
+	public final double[] downsamplingHeightField;
+
+	@SuppressWarnings("unchecked")
+	private SurfaceFitBlockContext(
+			final String n5CostPath,
+			final String n5FieldPath,
+			final String costDataset,
+			final String heightFieldGroup) throws IOException {
+
+		n5Cost = openCountingReader(n5CostPath);
+		n5Field = openCountingWriter(n5FieldPath);
+
+		fullCost = Views.permute(
+				(RandomAccessibleInterval<UnsignedByteType>)SparkSurfaceFit.wrap(N5Utils.openWithBoundedSoftRefCache(n5Cost, costDataset, maxCachedBlocks)),
+				1,
+				2);
+
+		final int[] costBlockSizeXZY = n5Cost.getDatasetAttributes(costDataset).getBlockSize();
+		mask = Lazy.createImg(
+				new FinalDimensions(fullCost.dimension(0), fullCost.dimension(1)),
+				new int[] {costBlockSizeXZY[0], costBlockSizeXZY[2]},
+				new UnsignedByteType(),
+				AccessFlags.setOf(),
+				cell -> {
+					final RandomAccessibleInterval<UnsignedByteType> cellMask = SparkSurfaceFit.costMask(
+							Views.interval(
+									fullCost,
+									new long[] {cell.min(0), cell.min(1), fullCost.min(2)},
+									new long[] {cell.max(0), cell.max(1), fullCost.max(2)}));
+					final Cursor<UnsignedByteType> cellMaskCursor = Views.flatIterable(cellMask).cursor();
+					for (final UnsignedByteType t : Views.flatIterable(cell))
+						t.set(cellMaskCursor.next());
+				});
+
+		final double[] downsamplingFactorsXZY = n5Cost.getAttribute(costDataset, "downsamplingFactors", double[].class);
+		downsamplingFactors = new double[]{
+				downsamplingFactorsXZY[0],
+				downsamplingFactorsXZY[2],
+				downsamplingFactorsXZY[1]};
+
+		minField = N5Utils.openWithBoundedSoftRefCache(n5Field, heightFieldGroup + "/min", maxCachedBlocks);
+		maxField = N5Utils.openWithBoundedSoftRefCache(n5Field, heightFieldGroup + "/max", maxCachedBlocks);
+		minAvg = n5Field.getAttribute(heightFieldGroup + "/min", "avg", double.class);
+		maxAvg = n5Field.getAttribute(heightFieldGroup + "/max", "avg", double.class);
+		downsamplingHeightField = n5Field.getAttribute(heightFieldGroup, "downsamplingFactors", double[].class);
+	}
+
+	/**
+	 * Returns the context with the given id, opens it if it is not cached.
+	 * Without an id, a new context is opened for each call.
+	 *
+	 * @param id unique per scale level and job, or null
+	 * @param n5CostPath
+	 * @param n5FieldPath
+	 * @param costDataset
+	 * @param heightFieldGroup
+	 * @return
+	 * @throws IOException
+	 */
+	public static SurfaceFitBlockContext get(
+			final String id,
+			final String n5CostPath,
+			final String n5FieldPath,
+			final String costDataset,
+			final String heightFieldGroup) throws IOException {
+
+		if (id == null)
+			return new SurfaceFitBlockContext(n5CostPath, n5FieldPath, costDataset, heightFieldGroup);
+
+		synchronized (contexts) {
+			SurfaceFitBlockContext context = contexts.get(id);
+			if (context == null) {
+				context = new SurfaceFitBlockContext(n5CostPath, n5FieldPath, costDataset, heightFieldGroup);
+				if (maxSize > 0)
+					contexts.put(id, context);
+			}
+			return context;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of contexts cached in this JVM, 0 opens a new
+	 * context for every block.
+	 *
+	 * @param maxSize
+	 */
+	public static void setMaxSize(final int maxSize) {
+
+		synchronized (contexts) {
+			SurfaceFitBlockContext.maxSize = maxSize;
+			while (contexts.size() > maxSize)
+				contexts.remove(contexts.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Sets the maximum number of decoded blocks cached per dataset for
+	 * contexts opened afterwards.
+	 *
+	 * @param maxCachedBlocks
+	 */
+	public static void setMaxCachedBlocks(final int maxCachedBlocks) {
+
+		SurfaceFitBlockContext.maxCachedBlocks = maxCachedBlocks;
+	}
+
+	public static void clear() {
+
+		synchronized (contexts) {
+			contexts.clear();
+		}
+	}
+
+	/**
+	 * @return blocks read by contexts of this JVM since startup
+	 */
+	public static long getReads() {
+
+		return reads.get();
+	}
+
+	private static N5Reader openCountingReader(final String path) throws IOException {
+
+		if (SparkSurfaceFit.isZarr(path))
+			return new N5ZarrReader(path) {
+
+				@Override
+				public DataBlock<?> readBlock(
+						final String pathName,
+						final DatasetAttributes datasetAttributes,
+						final long... gridPosition) throws IOException {
+
+					reads.incrementAndGet();
+					return super.readBlock(pathName, datasetAttributes, gridPosition);
+				}
+			};
+		else
+			return new N5FSReader(path) {
+
+				@Override
+				public DataBlock<?> readBlock(
+						final String pathName,
+						final DatasetAttributes datasetAttributes,
+						final long... gridPosition) throws IOException {
+
+					reads.incrementAndGet();
+					return super.readBlock(pathName, datasetAttributes, gridPosition);
+				}
+			};
+	}
+
+	private static N5Writer openCountingWriter(final String path) throws IOException {
+
+		if (SparkSurfaceFit.isZarr(path))
+			return new N5ZarrWriter(path) {
+
+				@Override
+				public DataBlock<?> readBlock(
+						final String pathName,
+						final DatasetAttributes datasetAttributes,
+						final long... gridPosition) throws IOException {
+
+					reads.incrementAndGet();
+					return super.readBlock(pathName, datasetAttributes, gridPosition);
+				}
+			};
+		else
+			return new N5FSWriter(path) {
+
+				@Override
+				public DataBlock<?> readBlock(
+						final String pathName,
+						final DatasetAttributes datasetAttributes,
+						final long... gridPosition) throws IOException {
+
+					reads.incrementAndGet();
+					return super.readBlock(pathName, datasetAttributes, gridPosition);
+				}
+			};
+	}
+}
@@ -5,8 +5,6 @@ import ij.ImagePlus;
 import net.imagej.ops.OpService;
 import net.imglib2.*;
 import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.algorithm.gauss3.SeparableSymmetricConvolution;
-import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -51,10 +49,6 @@ public class DagmarCost {
     private int startThresh = 50;
     private int kernelSize = 5;// for valsCount
 
-    private double smallGauss = 3;
-    private double bigGauss = 8;
-    private double gaussMaskThreshold = 30;
-
     public Img<FloatType> computeResin(RandomAccessibleInterval<UnsignedByteType> image, ExecutorService executorService) throws Exception {
         return computeResin(image, true, true, executorService);
     }
@@ -65,52 +59,15 @@ public class DagmarCost {
                                               boolean bottom,
                                               ExecutorService executorService) throws Exception {
 
-        // Compute a big and small gaussian
-        // TODO: combine gausses
-        RandomAccessibleInterval<UnsignedByteType> g03 = gauss(image, smallGauss, executorService);
-        RandomAccessibleInterval<UnsignedByteType> g08 = gauss(image, bigGauss, executorService);
-
-        //System.out.println("cost: gauss done");
-
-        // Compute a mask as the DoG thresholded by gaussMaskThreshold from the prev gaussians
-        Img<BitType> mask = ArrayImgs.bits(g03.dimension(0), g03.dimension(1));
-        RandomAccess<UnsignedByteType> g03Access = g03.randomAccess();
-        RandomAccess<UnsignedByteType> g08Access = g08.randomAccess();
-        Cursor<BitType> mCur = mask.localizingCursor();
-        while (mCur.hasNext()) {
-            mCur.next();
-            g03Access.setPosition(mCur);
-            g08Access.setPosition(mCur);
-            int v03 = g03Access.get().get();
-            int v08 = g08Access.get().get();
-            if (v03 - v08 < gaussMaskThreshold)
-                mCur.get().setZero();
-            else
-                mCur.get().setOne();
-        }
-
         // Compute top then bottom cost
         Img<FloatType> topCost = null;
         IntervalView<FloatType> botCost = null;
 
         RandomAccess<UnsignedByteType> imageRA = image.randomAccess();
 
-//        Img<UnsignedByteType> maskedImage = ArrayImgs.unsignedBytes(image.dimension(0), image.dimension(1));
-//        RandomAccess<UnsignedByteType> outRA = maskedImage.randomAccess();
-//
-//        mCur = mask.localizingCursor();
-//        while (mCur.hasNext()) {
-//            mCur.fwd();
-//            outRA.setPosition(mCur);
-//            imageRA.setPosition(mCur);
-//
-//            if (mCur.get().get())
-//                outRA.get().set(imageRA.get());
-//            else
-//                outRA.get().setZero();
-//        }
-
-        RandomAccessibleInterval<UnsignedByteType> subsampledImage = Views.subsample(image, stepSize, 1);
+        // Only the sampled columns are evaluated, anti-aliased along x for stepSize > 1
+        RandomAccessibleInterval<UnsignedByteType> subsampledImage =
+                stepSize > 1 ? antiAliasedColumns(image) : Views.zeroMin(image);
         RandomAccess<UnsignedByteType> subsampledRA = subsampledImage.randomAccess();
 
         long[] min = new long[3];
@@ -166,22 +123,60 @@ public class DagmarCost {
     }
 
 
-    private RandomAccessibleInterval<UnsignedByteType> gauss(RandomAccessibleInterval<UnsignedByteType> image, double sigma, ExecutorService executorService) {
+    /**
+     * Samples every stepSize-th column of the image after smoothing it along x
+     * with a Gaussian of sigma sqrt(stepSize^2 - 0.25), the sigma that
+     * SparkComputeCost uses to downsample a full resolution cost.  Only the
+     * sampled columns are convolved.  Empty (0) and saturated (255) pixels are
+     * excluded from the convolution and keep their value, so that the band
+     * detection sees the same empty and saturated pixels as without smoothing.
+     */
+    private Img<UnsignedByteType> antiAliasedColumns(RandomAccessibleInterval<UnsignedByteType> image) {
+
+        final int width = (int) image.dimension(0);
+        final int height = (int) image.dimension(1);
+        final int sampledWidth = (width - 1) / stepSize + 1;
 
-        RandomAccessibleInterval<UnsignedByteType> output = ArrayImgs.unsignedBytes(image.dimension(0), image.dimension(1));
-        RandomAccessible<UnsignedByteType> eIn = Views.extendMirrorSingle(image);
+        final double[] halfKernel = Gauss3.halfkernels(new double[]{Math.sqrt(stepSize * stepSize - 0.25)})[0];
 
-        //System.out.println("gauss of: " + Arrays.toString(Intervals.dimensionsAsLongArray(image)));
+        final Img<UnsignedByteType> sampled = ArrayImgs.unsignedBytes(sampledWidth, height);
+        final RandomAccess<UnsignedByteType> imageAccess = Views.zeroMin(image).randomAccess();
+        final RandomAccess<UnsignedByteType> sampledAccess = sampled.randomAccess();
 
-        RandomAccessible<UnsignedByteType> in = Views.extendMirrorSingle(image);
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            imageAccess.setPosition(0, 0);
+            imageAccess.setPosition(y, 1);
+            for (int x = 0; x < width; x++) {
+                row[x] = imageAccess.get().get();
+                imageAccess.fwd(0);
+            }
 
-        try {
-            SeparableSymmetricConvolution.convolve(Gauss3.halfkernels(new double[]{sigma, sigma}), in, output, executorService);
-        } catch (IncompatibleTypeException var5) {
-            throw new RuntimeException(var5);
+            sampledAccess.setPosition(0, 0);
+            sampledAccess.setPosition(y, 1);
+            for (int x = 0; x < width; x += stepSize) {
+                int v = row[x];
+                if (v > 0 && v < 255) {
+                    double sum = 0;
+                    double weights = 0;
+                    final int kMin = Math.max(-x, 1 - halfKernel.length);
+                    final int kMax = Math.min(width - 1 - x, halfKernel.length - 1);
+                    for (int k = kMin; k <= kMax; k++) {
+                        final int vk = row[x + k];
+                        if (vk > 0 && vk < 255) {
+                            final double w = halfKernel[Math.abs(k)];
+                            sum += w * vk;
+                            weights += w;
+                        }
+                    }
+                    v = (int) Math.round(sum / weights);
+                }
+                sampledAccess.get().set(v);
+                sampledAccess.fwd(0);
+            }
         }
 
-        return output;
+        return sampled;
     }
 
 
@@ -305,8 +300,10 @@ public class DagmarCost {
             if (contraBand == null) contraBand = new double[]{1e6};
 
             if (doSlopeCorrection) {
-                long minCol = Math.max(image.min(0), x - slopeCorrXRange);
-                long maxCol = Math.min(x + slopeCorrXRange + 1, image.max(0));
+                // slopeCorrXRange is in full resolution pixels, columns are stepSize apart
+                int xRange = Math.round((float) slopeCorrXRange / stepSize);
+                long minCol = Math.max(image.min(0), x - xRange);
+                long maxCol = Math.min(x + xRange + 1, image.max(0));
                 long minRow = startIdx;
                 long maxRow = (long) Math.min(startIdx + slopeCorrBandFactor * bandSize, endIdx);
 
@@ -980,30 +977,6 @@ public class DagmarCost {
         this.kernelSize = kernelSize;
     }
 
-    public double getSmallGauss() {
-        return smallGauss;
-    }
-
-    public void setSmallGauss(double smallGauss) {
-        this.smallGauss = smallGauss;
-    }
-
-    public double getBigGauss() {
-        return bigGauss;
-    }
-
-    public void setBigGauss(double bigGauss) {
-        this.bigGauss = bigGauss;
-    }
-
-    public double getGaussMaskThreshold() {
-        return gaussMaskThreshold;
-    }
-
-    public void setGaussMaskThreshold(double gaussMaskThreshold) {
-        this.gaussMaskThreshold = gaussMaskThreshold;
-    }
-
     public HashMap<String, Object> columnStats(
             RandomAccessibleInterval<UnsignedByteType> image,
             Img<UnsignedByteType> maskedImage,
@@ -1043,8 +1016,10 @@ public class DagmarCost {
             if (contraBand == null) contraBand = new double[]{1e6};
 
             if (doSlopeCorrection) {
-                long minCol = Math.max(image.min(0), x - slopeCorrXRange);
-                long maxCol = Math.min(x + slopeCorrXRange + 1, image.max(0));
+                // slopeCorrXRange is in full resolution pixels, columns are stepSize apart
+                int xRange = Math.round((float) slopeCorrXRange / stepSize);
+                long minCol = Math.max(image.min(0), x - xRange);
+                long maxCol = Math.min(x + xRange + 1, image.max(0));
                 long minRow = startIdx;
                 long maxRow = (long) Math.min(startIdx + slopeCorrBandFactor * bandSize, endIdx);
 
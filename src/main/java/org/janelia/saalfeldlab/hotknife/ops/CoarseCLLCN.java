@@ -0,0 +1,345 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.ops;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.hotknife.util.Lazy;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Slice-wise contrast limited local contrast normalization like
+ * {@link CLLCN#run(int, int, float, float, float, boolean, boolean, boolean)}
+ * with center and stretch, but with block statistics on a coarse grid.
+ *
+ * Count, sum, and sum of squares of the input are aggregated per square
+ * tile in a lazy cell image, so that every input pixel is read once, no
+ * matter how many output cells use it.  Mean and standard deviation of
+ * blocks of (2 tileRadius + 1)<sup>2</sup> tiles are computed at the tile
+ * centers with integral images over these tile statistics, and bilinearly
+ * interpolated for each pixel.  Blocks are clipped at the boundary of the
+ * input like in {@link CLLCN}.  The output can be requested in cells of
+ * any size with {@link Lazy#process}, only the tile statistics around a
+ * cell are needed.
+ *
+ * @param <T> type of input and output
+ */
+public class CoarseCLLCN<T extends RealType<T>> implements Consumer<RandomAccessibleInterval<T>> {
+
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int SUM_OF_SQUARES = 2;
+
+	final RandomAccessibleInterval<T> input;
+	final int tileSize;
+	final int tileRadius;
+	final double meanFactor;
+	final double limit;
+	final double gamma;
+	final boolean keepMinMax;
+	final double minIntensity, maxIntensity;
+
+	final long[] numTiles;
+	final RandomAccessibleInterval<DoubleType> tileStatistics;
+
+	/**
+	 * @param input
+	 * @param tileSize edge length of the square tiles that statistics are
+	 * 		aggregated for, e.g. 64
+	 * @param blockRadius block radius of the equivalent {@link CLLCN},
+	 * 		rounded to the nearest odd number of tiles
+	 * @param meanFactor
+	 * @param limit
+	 * @param gamma no limit if 1
+	 * @param keepMinMax keep values that are equal to minIntensity or
+	 * 		maxIntensity
+	 * @param minIntensity
+	 * @param maxIntensity
+	 */
+	public CoarseCLLCN(
+			final RandomAccessibleInterval<T> input,
+			final int tileSize,
+			final int blockRadius,
+			final double meanFactor,
+			final double limit,
+			final double gamma,
+			final boolean keepMinMax,
+			final double minIntensity,
+			final double maxIntensity) {
+
+		this.input = input;
+		this.tileSize = tileSize;
+		this.tileRadius = Math.max(0, (int)Math.round(((2.0 * blockRadius + 1) / tileSize - 1) / 2));
+		this.meanFactor = meanFactor;
+		this.limit = limit;
+		this.gamma = gamma;
+		this.keepMinMax = keepMinMax;
+		this.minIntensity = minIntensity;
+		this.maxIntensity = maxIntensity;
+
+		final int n = input.numDimensions();
+		numTiles = new long[] {
+				(input.dimension(0) + tileSize - 1) / tileSize,
+				(input.dimension(1) + tileSize - 1) / tileSize};
+
+		/* tile x, tile y, slice dimensions, count|sum|sumOfSquares */
+		final long[] statisticsDimensions = new long[n + 1];
+		statisticsDimensions[0] = numTiles[0];
+		statisticsDimensions[1] = numTiles[1];
+		for (int d = 2; d < n; ++d)
+			statisticsDimensions[d] = input.dimension(d);
+		statisticsDimensions[n] = 3;
+
+		final int[] statisticsBlockSize = new int[n + 1];
+		Arrays.fill(statisticsBlockSize, 1);
+		statisticsBlockSize[0] = 8;
+		statisticsBlockSize[1] = 8;
+		statisticsBlockSize[n] = 3;
+
+		tileStatistics = Lazy.createImg(
+				new FinalInterval(statisticsDimensions),
+				statisticsBlockSize,
+				new DoubleType(),
+				AccessFlags.setOf(),
+				this::aggregateTiles);
+	}
+
+	/**
+	 * Aggregates count, sum, and sum of squares of all tiles in a cell of
+	 * the tile statistics.  The cell is stored in flat order with the
+	 * statistics channel last, the local accumulators use the same order.
+	 *
+	 * @param cell
+	 */
+	private void aggregateTiles(final RandomAccessibleInterval<DoubleType> cell) {
+
+		final int n = input.numDimensions();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < 2; ++d) {
+			min[d] = input.min(d) + cell.min(d) * tileSize;
+			max[d] = Math.min(input.max(d), input.min(d) + (cell.max(d) + 1) * tileSize - 1);
+		}
+		for (int d = 2; d < n; ++d) {
+			min[d] = input.min(d) + cell.min(d);
+			max[d] = input.min(d) + cell.max(d);
+		}
+
+		final int cellWidth = (int)cell.dimension(0);
+		final int cellSize = (int)(Intervals.numElements(cell) / 3);
+		final double[] statistics = new double[cellSize * 3];
+
+		final Cursor<T> cursor = Views.flatIterable(Views.interval(input, min, max)).localizingCursor();
+		while (cursor.hasNext()) {
+			final double v = cursor.next().getRealDouble();
+			int i = (int)((cursor.getLongPosition(0) - input.min(0)) / tileSize - cell.min(0));
+			int step = cellWidth;
+			i += (int)((cursor.getLongPosition(1) - input.min(1)) / tileSize - cell.min(1)) * step;
+			step *= (int)cell.dimension(1);
+			for (int d = 2; d < n; ++d) {
+				i += (int)(cursor.getLongPosition(d) - min[d]) * step;
+				step *= (int)cell.dimension(d);
+			}
+			statistics[i + COUNT * cellSize] += 1;
+			statistics[i + SUM * cellSize] += v;
+			statistics[i + SUM_OF_SQUARES * cellSize] += v * v;
+		}
+
+		int i = 0;
+		for (final DoubleType t : Views.flatIterable(cell))
+			t.set(statistics[i++]);
+	}
+
+	private static double limit(
+			final double x,
+			final double limit,
+			final double gamma,
+			final double gradientOnePointMinusLimit,
+			final double limitMinusGradientOnePointPowGamma) {
+
+		return x < limit ? x : Math.pow(x + gradientOnePointMinusLimit, gamma) + limitMinusGradientOnePointPowGamma;
+	}
+
+	@Override
+	public void accept(final RandomAccessibleInterval<T> output) {
+
+		final int n = output.numDimensions();
+		final long[] slicePosition = Intervals.minAsLongArray(output);
+
+		for (int d = 2; d < n;) {
+
+			RandomAccessibleInterval<T> outputSlice = output;
+			for (int i = n - 1; i >= 2; --i)
+				outputSlice = Views.hyperSlice(outputSlice, i, slicePosition[i]);
+
+			normalizeSlice(outputSlice, slicePosition);
+
+			for (d = 2; d < n; ++d) {
+				++slicePosition[d];
+				if (slicePosition[d] <= output.max(d))
+					break;
+				else
+					slicePosition[d] = output.min(d);
+			}
+		}
+	}
+
+	/**
+	 * Tile index of the node left of or at position x in dimension d,
+	 * may be -1 or numTiles[d] - 1.
+	 */
+	private long floorNode(final double x, final int d) {
+
+		return (long)Math.floor((x - input.min(d) - 0.5 * (tileSize - 1)) / tileSize);
+	}
+
+	private void normalizeSlice(final RandomAccessibleInterval<T> outputSlice, final long[] slicePosition) {
+
+		final int n = input.numDimensions();
+
+		/* nodes needed for bilinear interpolation in this slice */
+		final long[] nodeMin = new long[2];
+		final long[] nodeMax = new long[2];
+		final long[] tileMin = new long[2];
+		final long[] tileMax = new long[2];
+		final int[] nodeDimensions = new int[2];
+		final int[] tileDimensions = new int[2];
+		for (int d = 0; d < 2; ++d) {
+			nodeMin[d] = Math.max(0, floorNode(outputSlice.min(d), d));
+			nodeMax[d] = Math.min(numTiles[d] - 1, floorNode(outputSlice.max(d), d) + 1);
+			nodeDimensions[d] = (int)(nodeMax[d] - nodeMin[d] + 1);
+			tileMin[d] = Math.max(0, nodeMin[d] - tileRadius);
+			tileMax[d] = Math.min(numTiles[d] - 1, nodeMax[d] + tileRadius);
+			tileDimensions[d] = (int)(tileMax[d] - tileMin[d] + 1);
+		}
+
+		/* integral images of count, sum, and sum of squares with a leading zero row and column */
+		final int integralWidth = tileDimensions[0] + 1;
+		final int integralSize = integralWidth * (tileDimensions[1] + 1);
+		final double[] integrals = new double[3 * integralSize];
+		final RandomAccess<DoubleType> statisticsAccess = tileStatistics.randomAccess();
+		for (int d = 2; d < n; ++d)
+			statisticsAccess.setPosition(slicePosition[d] - input.min(d), d);
+		for (int c = 0; c < 3; ++c) {
+			statisticsAccess.setPosition(c, n);
+			final int offset = c * integralSize;
+			for (int y = 0; y < tileDimensions[1]; ++y) {
+				statisticsAccess.setPosition(tileMin[1] + y, 1);
+				statisticsAccess.setPosition(tileMin[0], 0);
+				double rowSum = 0;
+				final int row = offset + (y + 1) * integralWidth;
+				for (int x = 0; x < tileDimensions[0]; ++x) {
+					rowSum += statisticsAccess.get().get();
+					integrals[row + x + 1] = integrals[row - integralWidth + x + 1] + rowSum;
+					statisticsAccess.fwd(0);
+				}
+			}
+		}
+
+		/* mean and standard deviation at the nodes */
+		final double[] means = new double[nodeDimensions[0] * nodeDimensions[1]];
+		final double[] stds = new double[means.length];
+		for (int y = 0, i = 0; y < nodeDimensions[1]; ++y) {
+			final long node = nodeMin[1] + y;
+			final int yMin = (int)(Math.max(tileMin[1], node - tileRadius) - tileMin[1]);
+			final int yMax = (int)(Math.min(tileMax[1], node + tileRadius) - tileMin[1]) + 1;
+			for (int x = 0; x < nodeDimensions[0]; ++x, ++i) {
+				final long nodeX = nodeMin[0] + x;
+				final int xMin = (int)(Math.max(tileMin[0], nodeX - tileRadius) - tileMin[0]);
+				final int xMax = (int)(Math.min(tileMax[0], nodeX + tileRadius) - tileMin[0]) + 1;
+				final double[] s = new double[3];
+				for (int c = 0; c < 3; ++c) {
+					final int offset = c * integralSize;
+					s[c] =
+							integrals[offset + yMax * integralWidth + xMax] -
+							integrals[offset + yMin * integralWidth + xMax] -
+							integrals[offset + yMax * integralWidth + xMin] +
+							integrals[offset + yMin * integralWidth + xMin];
+				}
+				final double bs = s[COUNT];
+				final double var = s[SUM_OF_SQUARES] / (bs - 1) - s[SUM] * s[SUM] / (bs * bs - bs);
+				means[i] = s[SUM] / bs;
+				stds[i] = var < 0 || bs < 2 ? 0 : Math.sqrt(var);
+			}
+		}
+
+		/* normalize */
+		final double gradientOnePoint = 1.0 / (Math.pow(gamma, 1.0 / (gamma - 1.0)));
+		final double gradientOnePointMinusLimit = gradientOnePoint - limit;
+		final double limitMinusGradientOnePointPowGamma = limit - Math.pow(gradientOnePoint, gamma);
+		final double length = maxIntensity - minIntensity;
+
+		RandomAccessibleInterval<T> inputSlice = input;
+		for (int d = n - 1; d >= 2; --d)
+			inputSlice = Views.hyperSlice(inputSlice, d, slicePosition[d]);
+
+		final Cursor<T> inputCursor = Views.flatIterable(Views.interval(inputSlice, outputSlice)).cursor();
+		final Cursor<T> outputCursor = Views.flatIterable(outputSlice).localizingCursor();
+		while (outputCursor.hasNext()) {
+			final T t = outputCursor.next();
+			final double v = Math.max(minIntensity, Math.min(maxIntensity, inputCursor.next().getRealDouble()));
+
+			if (keepMinMax && (v == minIntensity || v == maxIntensity)) {
+				t.setReal(v);
+				continue;
+			}
+
+			double mean = 0;
+			double std = 0;
+			final long x = outputCursor.getLongPosition(0);
+			final long y = outputCursor.getLongPosition(1);
+			final long x0 = floorNode(x, 0);
+			final long y0 = floorNode(y, 1);
+			final double wx = (x - input.min(0) - 0.5 * (tileSize - 1)) / tileSize - x0;
+			final double wy = (y - input.min(1) - 0.5 * (tileSize - 1)) / tileSize - y0;
+			for (int dy = 0; dy < 2; ++dy) {
+				final int iy = (int)(Math.max(nodeMin[1], Math.min(nodeMax[1], y0 + dy)) - nodeMin[1]);
+				final double weightY = dy == 0 ? 1.0 - wy : wy;
+				for (int dx = 0; dx < 2; ++dx) {
+					final int ix = (int)(Math.max(nodeMin[0], Math.min(nodeMax[0], x0 + dx)) - nodeMin[0]);
+					final double weight = (dx == 0 ? 1.0 - wx : wx) * weightY;
+					final int i = iy * nodeDimensions[0] + ix;
+					mean += means[i] * weight;
+					std += stds[i] * weight;
+				}
+			}
+
+			final double d = meanFactor * std;
+			final double value;
+			if (d == 0)
+				value = minIntensity;
+			else {
+				final double s = gamma == 1 ?
+						0.5 * length / d :
+						0.5 * limit(length / d, limit, gamma, gradientOnePointMinusLimit, limitMinusGradientOnePointPowGamma);
+				final double min = mean - length / s * 0.5;
+				value = (v - min) * s + minIntensity;
+			}
+			t.setReal(Math.max(minIntensity, Math.min(maxIntensity, value)));
+		}
+	}
+}
@@ -4,16 +4,18 @@ import java.util.ArrayList;
 import java.util.List;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
-import net.imglib2.RandomAccess;
-import net.imglib2.RealPoint;
 import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.SingleCellArrayImg;
 import net.imglib2.img.Img;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.RealTransformSequence;
+import net.imglib2.realtransform.Scale2D;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Lazy;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
 
 public class Bake {
 
@@ -131,34 +133,13 @@ public class Bake {
 
 		@Override
 		public void load(final SingleCellArrayImg<DoubleType, ?> cell) throws Exception {
-			final int coX = (int) cell.min(0);
-			final int coY = (int) cell.min(1);
-			final int csX = (int) cell.dimension(0);
-			final int csY = (int) cell.dimension(1);
+			final RealTransformSequence transform = new RealTransformSequence();
+			transform.add(new Scale2D(invscale, invscale));
+			transform.add(incrementalTransform.copy());
+			transform.add(positionField.getTransform(0));
+			transform.add(new Scale2D(scale, scale));
 
-			final double[] tmp1 = new double[2];
-			final double[] tmp2 = new double[2];
-			final RealPoint tmp1p = RealPoint.wrap(tmp1);
-			final RealPoint tmp2p = RealPoint.wrap(tmp2);
-
-			final RealTransform positionFieldTransform = positionField.getTransform(0);
-			final RandomAccess<DoubleType> a = cell.randomAccess();
-			cell.min(a);
-			for (int y = 0; y < csY; ++y) {
-				for (int x = 0; x < csX; ++x) {
-					tmp1[0] = (x + coX + offsetX) * invscale;
-					tmp1[1] = (y + coY + offsetY) * invscale;
-					incrementalTransform.apply(tmp1p, tmp2p);
-					positionFieldTransform.apply(tmp2p, tmp1p);
-					a.get().set(tmp1[0] * scale);
-					a.fwd(2);
-					a.get().set(tmp1[1] * scale);
-					a.bck(2);
-					a.fwd(0);
-				}
-				a.setPosition(coX, 0);
-				a.fwd(1);
-			}
+			Transform.fillPositionField(transform, Views.translate(cell, offsetX, offsetY, 0));
 		}
 	}
 }
@@ -44,7 +44,7 @@ public class PositionField {
 		boundsMin = n5.getAttribute(datasetName, "boundsMin", double[].class);
 		boundsMax = n5.getAttribute(datasetName, "boundsMax", double[].class);
 		offset = Grid.floorScaled(boundsMin, scale);
-		positionField = N5Utils.open(n5, datasetName);
+		positionField = Transform.openPositionField(n5, datasetName);
 //		System.out.println("positionField = " + Intervals.toString(positionField));
 		positionFieldLookup = Transform.createPositionFieldTransform(positionField);
 	}
@@ -58,6 +58,7 @@ public class PositionField {
 			N5Utils.save(positionField, n5, datasetName, blockSize, new GzipCompression(), exec);
 			n5.setAttribute(datasetName, "scale", scale);
 			n5.setAttribute(datasetName, "boundsMin", boundsMin);
+			n5.setAttribute(datasetName, Transform.LAYOUT_ATTRIBUTE, Transform.PLANAR);
 			n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		} catch (InterruptedException | ExecutionException e) {
 			throw new IOException(e);
@@ -60,6 +60,12 @@ import net.imglib2.util.Pair;
  */
 public class Align {
 
+	/**
+	 * Exhaustive descriptor matching with
+	 * {@link #matchFeatures(List, List, double)}.
+	 */
+	public static final FeatureMatcher bruteForceMatcher = Align::matchFeatures;
+
 	private Align() {}
 
 	static public void unScalePointMatches(
@@ -176,7 +182,27 @@ public class Align {
 			final double rod,
 			final ConsensusFilter filter) {
 
-		final ArrayList<PointMatch> candidates = matchFeatures(fs1, fs2, rod);
+		return filterMatchFeatures(fs1, fs2, rod, filter, bruteForceMatcher);
+	}
+
+	/**
+	 * Match and filter two feature sets.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param filter
+	 * @param matcher
+	 * @return
+	 */
+	static public ArrayList<PointMatch> filterMatchFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<PointMatch> candidates = matcher.match(fs1, fs2, rod);
 		final int nCandidates = candidates.size();
 		final ArrayList<PointMatch> matches = filter.filter(candidates);
 
@@ -208,6 +234,33 @@ public class Align {
 			final double rod,
 			final double scale) {
 
+		return matchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, bruteForceMatcher);
+	}
+
+	/**
+	 * Match two images with SIFT features.
+	 *
+	 * @param a
+	 * @param b
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @param rod
+	 * @param scale
+	 * @param matcher
+	 *
+	 * @return
+	 */
+	static public ArrayList<PointMatch> matchSIFT(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final double scale,
+			final FeatureMatcher matcher) {
+
 		final ArrayList<Feature> fs1 = extractFeatures(a, maxScale, minScale, fdSize);
 		final ArrayList<Feature> fs2 = extractFeatures(b, maxScale, minScale, fdSize);
 		fs1.forEach(
@@ -224,7 +277,7 @@ public class Align {
 		System.out.printf("%d and %d features extracted.", fs1.size(), fs2.size());
 		System.out.println();
 
-		final ArrayList<PointMatch> candidates = matchFeatures(fs1, fs2, rod);
+		final ArrayList<PointMatch> candidates = matcher.match(fs1, fs2, rod);
 
 		return candidates;
 	}
@@ -253,7 +306,36 @@ public class Align {
 			final double scale,
 			final ConsensusFilter filter) {
 
-		final ArrayList<PointMatch> candidates = matchSIFT(a, b, maxScale, minScale, fdSize, rod, scale);
+		return filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, filter, bruteForceMatcher);
+	}
+
+	/**
+	 * Match and filter two images with SIFT features and a filter model.
+	 *
+	 * @param a
+	 * @param b
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param matcher
+	 *
+	 * @return
+	 */
+	static public ArrayList<PointMatch> filterMatchSIFT(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<PointMatch> candidates = matchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, matcher);
 		final int numCandidates = candidates.size(); // size of candidates is changed below
 
 		final ArrayList<PointMatch> matches = filter.filter(candidates);
@@ -293,7 +375,97 @@ public class Align {
 			final Supplier<M> modelSupplier,
 			final Function<M, R> modelTransformConverter) {
 
-		final ArrayList<PointMatch> matches = filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, filter);
+		return alignSIFT(a, b, maxScale, minScale, fdSize, rod, scale, filter, modelSupplier, modelTransformConverter, bruteForceMatcher);
+	}
+
+	/**
+	 * Align two images with SIFT features matched by a {@link FeatureMatcher}.
+	 *
+	 * @param a
+	 * @param b
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @param matcher
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignSIFT(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final double maxScale,
+			final double minScale,
+			final int fdSize,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<PointMatch> matches = filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, filter, matcher);
+
+		return fit(matches, modelSupplier, modelTransformConverter);
+	}
+
+	/**
+	 * Align two feature sets.  Returns the inverse transform of mapping fs1
+	 * into fs2 like
+	 * {@link #alignSIFT(RandomAccessibleInterval, RandomAccessibleInterval, double, double, int, double, double, ConsensusFilter, Supplier, Function)}.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param filter
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final ConsensusFilter filter,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
+
+		return alignFeatures(fs1, fs2, rod, filter, modelSupplier, modelTransformConverter, bruteForceMatcher);
+	}
+
+	/**
+	 * Align two feature sets matched by a {@link FeatureMatcher}.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param filter
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @param matcher
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final ConsensusFilter filter,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<PointMatch> matches = filterMatchFeatures(fs1, fs2, rod, filter, matcher);
+
+		return fit(matches, modelSupplier, modelTransformConverter);
+	}
+
+	private static <M extends Model<M>, R extends RealTransform> R fit(
+			final List<PointMatch> matches,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
 
 		final M model = modelSupplier.get();
 		try {
@@ -386,12 +558,30 @@ public class Align {
 			final double sigma,
 			final int numIterations) {
 
+		return alignFlow(a, b, radius, sigma, numIterations, PMCCScaleSpaceBlockFlow.REFERENCE);
+	}
+
+	/**
+	 * Align two images with block matching using the given block PMCC
+	 * engine, e.g. {@link org.janelia.saalfeldlab.hotknife.IntegralPMCCBlockFlow}.
+	 *
+	 * @see #alignFlow(RandomAccessibleInterval, RandomAccessibleInterval, short, double, int)
+	 */
+	static public RealTransform alignFlow(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final short radius,
+			final double sigma,
+			final int numIterations,
+			final PMCCScaleSpaceBlockFlow.OpticFlow opticFlow) {
+
 		final Pair<PositionFieldTransform<DoubleType>, FloatProcessor> transformAndWeights = PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(
 				Util.materialize(b),
 				Util.materialize(a),
 				radius,
 				sigma,
-				numIterations);
+				numIterations,
+				opticFlow);
 
 		final double[] offset = Intervals.minAsDoubleArray(a);
 		final double[] inverseOffset = new double[offset.length];
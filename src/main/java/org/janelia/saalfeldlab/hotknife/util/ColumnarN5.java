@@ -0,0 +1,124 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Reads and writes flat arrays of fixed width elements as [width,
+ * numElements] INT32 or FLOAT32 datasets that are chunked along
+ * numElements, e.g. point coordinates or feature descriptors.
+ */
+public class ColumnarN5 {
+
+	private ColumnarN5() {}
+
+	/**
+	 * Writes width values per element as a [width, numElements] dataset that
+	 * is chunked along numElements.
+	 */
+	public static void writeInts(
+			final N5Writer n5,
+			final String dataset,
+			final int[] data,
+			final int width,
+			final int blockSize) throws IOException {
+
+		final int numElements = data.length / width;
+		n5.createDataset(dataset, new long[] {width, numElements}, new int[] {width, blockSize}, DataType.INT32, new GzipCompression());
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+
+		for (int b = 0, offset = 0; offset < numElements; ++b, offset += blockSize) {
+			final int size = Math.min(blockSize, numElements - offset);
+			final int[] block = new int[size * width];
+			System.arraycopy(data, offset * width, block, 0, block.length);
+			n5.writeBlock(dataset, attributes, new IntArrayDataBlock(new int[] {width, size}, new long[] {0, b}, block));
+		}
+	}
+
+	/**
+	 * Reads a dataset written by {@link #writeInts(N5Writer, String, int[], int, int)}.
+	 */
+	public static int[] readInts(final N5Reader n5, final String dataset) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final int width = (int)attributes.getDimensions()[0];
+		final int numElements = (int)attributes.getDimensions()[1];
+		final int blockSize = attributes.getBlockSize()[1];
+
+		final int[] data = new int[numElements * width];
+		for (int b = 0, offset = 0; offset < numElements; ++b, offset += blockSize) {
+			final DataBlock<?> block = n5.readBlock(dataset, attributes, 0, b);
+			final int[] blockData = (int[])block.getData();
+			System.arraycopy(blockData, 0, data, offset * width, Math.min(blockData.length, data.length - offset * width));
+		}
+
+		return data;
+	}
+
+	/**
+	 * Writes width values per element as a [width, numElements] dataset that
+	 * is chunked along numElements.
+	 */
+	public static void writeFloats(
+			final N5Writer n5,
+			final String dataset,
+			final float[] data,
+			final int width,
+			final int blockSize) throws IOException {
+
+		final int numElements = data.length / width;
+		n5.createDataset(dataset, new long[] {width, numElements}, new int[] {width, blockSize}, DataType.FLOAT32, new GzipCompression());
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+
+		for (int b = 0, offset = 0; offset < numElements; ++b, offset += blockSize) {
+			final int size = Math.min(blockSize, numElements - offset);
+			final float[] block = new float[size * width];
+			System.arraycopy(data, offset * width, block, 0, block.length);
+			n5.writeBlock(dataset, attributes, new FloatArrayDataBlock(new int[] {width, size}, new long[] {0, b}, block));
+		}
+	}
+
+	/**
+	 * Reads a dataset written by {@link #writeFloats(N5Writer, String, float[], int, int)}.
+	 */
+	public static float[] readFloats(final N5Reader n5, final String dataset) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(dataset);
+		final int width = (int)attributes.getDimensions()[0];
+		final int numElements = (int)attributes.getDimensions()[1];
+		final int blockSize = attributes.getBlockSize()[1];
+
+		final float[] data = new float[numElements * width];
+		for (int b = 0, offset = 0; offset < numElements; ++b, offset += blockSize) {
+			final DataBlock<?> block = n5.readBlock(dataset, attributes, 0, b);
+			final float[] blockData = (float[])block.getData();
+			System.arraycopy(blockData, 0, data, offset * width, Math.min(blockData.length, data.length - offset * width));
+		}
+
+		return data;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * Uniform grid over the locations of a list of 2D SIFT features that
+ * answers which features are contained in a box without scanning all
+ * features.  The grid is built once per face, cells are square and sized
+ * for about {@link #featuresPerCell} features on average.
+ *
+ * Query results are in the order of the original list, i.e. identical to
+ * a linear scan.
+ */
+public class FeatureIndex {
+
+	public static final int featuresPerCell = 16;
+
+	private final List<Feature> features;
+
+	private final double[] min = new double[2];
+	private final double cellSize;
+	private final int[] numCells = new int[2];
+
+	/* indices of the features in cell c are cellFeatures[cellStart[c]] ... cellFeatures[cellStart[c + 1] - 1], ascending */
+	private final int[] cellStart;
+	private final int[] cellFeatures;
+
+	public FeatureIndex(final List<Feature> features) {
+
+		this.features = features;
+
+		final int numFeatures = features.size();
+
+		final double[] max = new double[2];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (final Feature feature : features) {
+			for (int d = 0; d < 2; ++d) {
+				min[d] = Math.min(min[d], feature.location[d]);
+				max[d] = Math.max(max[d], feature.location[d]);
+			}
+		}
+		if (numFeatures == 0) {
+			min[0] = min[1] = max[0] = max[1] = 0;
+		}
+
+		/* square cells, coarsened until there are at most as many cells as features */
+		final double area = Math.max(1, max[0] - min[0]) * Math.max(1, max[1] - min[1]);
+		double size = Math.max(1, Math.sqrt(area * featuresPerCell / Math.max(1, numFeatures)));
+		long totalNumCells;
+		do {
+			for (int d = 0; d < 2; ++d)
+				numCells[d] = (int)Math.min(Integer.MAX_VALUE / 2, (long)Math.floor((max[d] - min[d]) / size) + 1);
+			totalNumCells = (long)numCells[0] * numCells[1];
+			size *= 2;
+		} while (totalNumCells > Math.max(1, numFeatures));
+		cellSize = size / 2;
+
+		/* counting sort of the feature indices by cell, stable such that indices are ascending per cell */
+		final int[] featureCell = new int[numFeatures];
+		cellStart = new int[(int)totalNumCells + 1];
+		for (int i = 0; i < numFeatures; ++i) {
+			final double[] l = features.get(i).location;
+			featureCell[i] = cellIndex(l[1], 1) * numCells[0] + cellIndex(l[0], 0);
+			++cellStart[featureCell[i] + 1];
+		}
+		for (int c = 0; c < totalNumCells; ++c)
+			cellStart[c + 1] += cellStart[c];
+
+		cellFeatures = new int[numFeatures];
+		final int[] next = Arrays.copyOf(cellStart, (int)totalNumCells);
+		for (int i = 0; i < numFeatures; ++i)
+			cellFeatures[next[featureCell[i]]++] = i;
+	}
+
+	private int cellIndex(final double p, final int d) {
+
+		return Math.max(0, Math.min(numCells[d] - 1, (int)Math.floor((p - min[d]) / cellSize)));
+	}
+
+	public List<Feature> getFeatures() {
+
+		return features;
+	}
+
+	/**
+	 * @param boxMin
+	 * @param boxMax
+	 * @return the features with boxMin &lt;= location &lt;= boxMax, in the
+	 * order of the original list
+	 */
+	public ArrayList<Feature> containedFeatures(final double[] boxMin, final double[] boxMax) {
+
+		final ArrayList<Feature> containedFeatures = new ArrayList<>();
+		if (features.isEmpty())
+			return containedFeatures;
+
+		for (int d = 0; d < 2; ++d)
+			if (boxMax[d] < min[d] || boxMin[d] > min[d] + numCells[d] * cellSize)
+				return containedFeatures;
+
+		int[] indices = new int[16];
+		int size = 0;
+		final int xMin = cellIndex(boxMin[0], 0), xMax = cellIndex(boxMax[0], 0);
+		final int yMin = cellIndex(boxMin[1], 1), yMax = cellIndex(boxMax[1], 1);
+		for (int y = yMin; y <= yMax; ++y) {
+			for (int x = xMin; x <= xMax; ++x) {
+				final int c = y * numCells[0] + x;
+				for (int j = cellStart[c]; j < cellStart[c + 1]; ++j) {
+					final int i = cellFeatures[j];
+					final double[] l = features.get(i).location;
+					if (l[0] >= boxMin[0] && l[0] <= boxMax[0] && l[1] >= boxMin[1] && l[1] <= boxMax[1]) {
+						if (size == indices.length)
+							indices = Arrays.copyOf(indices, size * 2);
+						indices[size++] = i;
+					}
+				}
+			}
+		}
+
+		Arrays.sort(indices, 0, size);
+		containedFeatures.ensureCapacity(size);
+		for (int k = 0; k < size; ++k)
+			containedFeatures.add(features.get(indices[k]));
+
+		return containedFeatures;
+	}
+}
@@ -0,0 +1,438 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * SIFT features of a face that are extracted once, in the coordinates of
+ * the untransformed face, and stored in N5 such that they can be mapped
+ * through the current transform of the face instead of being extracted
+ * again from every transformed grid cell.
+ *
+ * A feature store is a group with the dataset
+ * <ul>
+ * <li>features, FLOAT32 [4 + descriptorSize, n], x, y, scale, orientation
+ * and the descriptor of each feature</li>
+ * </ul>
+ * chunked along n as by {@link ColumnarN5#writeFloats}, and the extraction
+ * parameters as attributes.
+ */
+public class FeatureStore {
+
+	public static final String featuresDatasetName = "features";
+
+	public static final String numFeaturesKey = "numFeatures";
+	public static final String descriptorSizeKey = "descriptorSize";
+	public static final String tileSizeKey = "tileSize";
+	public static final String marginKey = "margin";
+	public static final String maxScaleKey = "maxScale";
+	public static final String minScaleKey = "minScale";
+	public static final String fdSizeKey = "fdSize";
+
+	public static final int blockSize = 1 << 14;
+
+	private static class Key {
+
+		private final String n5Path;
+		private final String group;
+
+		public Key(final String n5Path, final String group) {
+
+			this.n5Path = n5Path;
+			this.group = group;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof Key))
+				return false;
+			final Key key = (Key)other;
+			return n5Path.equals(key.n5Path) &&
+					group.equals(key.group);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Objects.hash(n5Path, group);
+		}
+	}
+
+	private static int maxCacheSize = 8;
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<Key, FeatureIndex> cache =
+			new LinkedHashMap<Key, FeatureIndex>(16, 0.75f, true) {
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Key, FeatureIndex> eldest) {
+
+					return size() > maxCacheSize;
+				}
+			};
+
+	private FeatureStore() {}
+
+	/**
+	 * @param datasetName multi-scale dataset group of the face
+	 * @param scaleIndex
+	 * @return the feature store group of the face at scaleIndex
+	 */
+	public static String featureGroup(final String datasetName, final int scaleIndex) {
+
+		return datasetName + "/sift/s" + scaleIndex;
+	}
+
+	/**
+	 * Extracts SIFT features from overlapping tiles of tileSize pixels.
+	 * Features are kept only from the inner part of each tile, margin
+	 * pixels away from the borders of tiles that have neighbors, such that
+	 * each pixel is featurized (tileSize / (tileSize - 2 margin))<sup>2</sup>
+	 * times.  The octave sizes are relative to the size of each tile as in
+	 * {@link Align#extractFeatures(RandomAccessibleInterval, double, double, int)}.
+	 *
+	 * @param source
+	 * @param tileSize
+	 * @param margin
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @return features in source coordinates
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			final RandomAccessibleInterval<FloatType> source,
+			final int tileSize,
+			final int margin,
+			final double maxScale,
+			final double minScale,
+			final int fdSize) {
+
+		final int step = tileSize - 2 * margin;
+		if (step < 1)
+			throw new IllegalArgumentException("Tile size " + tileSize + " leaves no inner part with margin " + margin + ".");
+
+		final ArrayList<Feature> features = new ArrayList<>();
+		for (long y = source.min(1); y <= source.max(1); y += step) {
+			for (long x = source.min(0); x <= source.max(0); x += step) {
+				final FinalInterval core = Intervals.intersect(
+						source,
+						new FinalInterval(new long[]{x, y}, new long[]{x + step - 1, y + step - 1}));
+				final FinalInterval tile = Intervals.intersect(
+						source,
+						Intervals.expand(core, margin));
+				for (final Feature feature : Align.extractFeatures(Views.interval(source, tile), maxScale, minScale, fdSize)) {
+					if (
+							feature.location[0] >= core.min(0) && feature.location[0] < core.max(0) + 1 &&
+							feature.location[1] >= core.min(1) && feature.location[1] < core.max(1) + 1)
+						features.add(feature);
+				}
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * @return true if group is a feature store that was extracted with the
+	 * given parameters
+	 */
+	public static boolean exists(
+			final N5Reader n5,
+			final String group,
+			final int tileSize,
+			final int margin,
+			final double maxScale,
+			final double minScale,
+			final int fdSize) throws IOException {
+
+		if (!n5.exists(group))
+			return false;
+
+		final Integer numFeatures = n5.getAttribute(group, numFeaturesKey, Integer.class);
+		final Integer storedTileSize = n5.getAttribute(group, tileSizeKey, Integer.class);
+		final Integer storedMargin = n5.getAttribute(group, marginKey, Integer.class);
+		final Double storedMaxScale = n5.getAttribute(group, maxScaleKey, Double.class);
+		final Double storedMinScale = n5.getAttribute(group, minScaleKey, Double.class);
+		final Integer storedFdSize = n5.getAttribute(group, fdSizeKey, Integer.class);
+
+		return
+				numFeatures != null &&
+				storedTileSize != null && storedTileSize == tileSize &&
+				storedMargin != null && storedMargin == margin &&
+				storedMaxScale != null && storedMaxScale == maxScale &&
+				storedMinScale != null && storedMinScale == minScale &&
+				storedFdSize != null && storedFdSize == fdSize;
+	}
+
+	public static void save(
+			final N5Writer n5,
+			final String group,
+			final List<Feature> features,
+			final int tileSize,
+			final int margin,
+			final double maxScale,
+			final double minScale,
+			final int fdSize) throws IOException {
+
+		if (n5.exists(group))
+			n5.remove(group);
+
+		final int numFeatures = features.size();
+		final int descriptorSize = numFeatures == 0 ? 0 : features.get(0).descriptor.length;
+		final int width = 4 + descriptorSize;
+
+		n5.createGroup(group);
+		if (numFeatures > 0) {
+			final float[] data = new float[numFeatures * width];
+			int j = 0;
+			for (final Feature feature : features) {
+				data[j++] = (float)feature.location[0];
+				data[j++] = (float)feature.location[1];
+				data[j++] = (float)feature.scale;
+				data[j++] = (float)feature.orientation;
+				System.arraycopy(feature.descriptor, 0, data, j, descriptorSize);
+				j += descriptorSize;
+			}
+			ColumnarN5.writeFloats(n5, group + "/" + featuresDatasetName, data, width, blockSize);
+		}
+
+		/* written last, a store is complete only if it has all attributes */
+		n5.setAttribute(group, descriptorSizeKey, descriptorSize);
+		n5.setAttribute(group, tileSizeKey, tileSize);
+		n5.setAttribute(group, marginKey, margin);
+		n5.setAttribute(group, maxScaleKey, maxScale);
+		n5.setAttribute(group, minScaleKey, minScale);
+		n5.setAttribute(group, fdSizeKey, fdSize);
+		n5.setAttribute(group, numFeaturesKey, numFeatures);
+	}
+
+	public static ArrayList<Feature> load(final N5Reader n5, final String group) throws IOException {
+
+		final int numFeatures = n5.getAttribute(group, numFeaturesKey, Integer.class);
+		final int descriptorSize = n5.getAttribute(group, descriptorSizeKey, Integer.class);
+		final int width = 4 + descriptorSize;
+
+		final ArrayList<Feature> features = new ArrayList<>(numFeatures);
+		if (numFeatures == 0)
+			return features;
+
+		final float[] data = ColumnarN5.readFloats(n5, group + "/" + featuresDatasetName);
+		for (int i = 0, j = 0; i < numFeatures; ++i, j += width) {
+			final double[] location = new double[]{data[j], data[j + 1]};
+			final double scale = data[j + 2];
+			final double orientation = data[j + 3];
+			final float[] descriptor = new float[descriptorSize];
+			System.arraycopy(data, j + 4, descriptor, 0, descriptorSize);
+			features.add(new Feature(scale, orientation, location, descriptor));
+		}
+		return features;
+	}
+
+	/**
+	 * Loads a feature store like {@link #load(N5Reader, String)} but shares
+	 * the features and their {@link FeatureIndex} with all previous and
+	 * concurrent requests for the same group in this JVM.  Cached stores
+	 * are assumed to not change for the lifetime of the JVM and a lookup
+	 * does not touch the file system once the store is cached.  Code that
+	 * rewrites a feature store and reads it again in the same JVM has to
+	 * {@link #invalidate(String, String)} it.  The returned features must
+	 * not be modified.
+	 *
+	 * @param n5Path
+	 * @param group
+	 * @return
+	 * @throws IOException
+	 */
+	public static FeatureIndex get(final String n5Path, final String group) throws IOException {
+
+		final Key key = new Key(n5Path, group);
+
+		synchronized (cache) {
+			FeatureIndex index = cache.get(key);
+			if (index == null) {
+				index = new FeatureIndex(load(new N5FSReader(n5Path), group));
+				cache.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Removes a feature store from the cache of this JVM such that the next
+	 * {@link #get(String, String)} loads it again.
+	 *
+	 * @param n5Path
+	 * @param group
+	 */
+	public static void invalidate(final String n5Path, final String group) {
+
+		synchronized (cache) {
+			cache.remove(new Key(n5Path, group));
+		}
+	}
+
+	public static void clearCache() {
+
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Maps features from source into target coordinates.  The transform
+	 * maps target into source coordinates as for rendering, so each feature
+	 * location is inverted with Newton's method starting from an affine
+	 * approximation of the inverse over the target interval.
+	 *
+	 * @param features in source coordinates
+	 * @param targetToSource
+	 * @param targetInterval
+	 * @return copies of the features that fall into targetInterval, in target
+	 * coordinates, sharing their descriptors with features
+	 */
+	public static ArrayList<Feature> transformFeatures(
+			final List<Feature> features,
+			final RealTransform targetToSource,
+			final Interval targetInterval) {
+
+		return transformFeatures(new FeatureIndex(features), targetToSource, targetInterval);
+	}
+
+	/**
+	 * Maps the features of an index like
+	 * {@link #transformFeatures(List, RealTransform, Interval)} but visits
+	 * only the features in the source bounding box of targetInterval.
+	 *
+	 * @param index of features in source coordinates
+	 * @param targetToSource
+	 * @param targetInterval
+	 * @return copies of the features that fall into targetInterval, in target
+	 * coordinates, sharing their descriptors with the indexed features
+	 */
+	public static ArrayList<Feature> transformFeatures(
+			final FeatureIndex index,
+			final RealTransform targetToSource,
+			final Interval targetInterval) {
+
+		final ArrayList<Feature> transformedFeatures = new ArrayList<>();
+
+		/* affine approximation of the inverse and bounding box in source coordinates */
+		final int numSamples = 5;
+		final ArrayList<PointMatch> samples = new ArrayList<>();
+		final double[] sourceMin = new double[]{Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		final double[] sourceMax = new double[]{Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for (int j = 0; j < numSamples; ++j) {
+			for (int i = 0; i < numSamples; ++i) {
+				final double[] target = new double[]{
+						targetInterval.min(0) + (targetInterval.dimension(0) - 1) * i / (numSamples - 1.0),
+						targetInterval.min(1) + (targetInterval.dimension(1) - 1) * j / (numSamples - 1.0)};
+				final double[] source = new double[2];
+				targetToSource.apply(target, source);
+				for (int d = 0; d < 2; ++d) {
+					sourceMin[d] = Math.min(sourceMin[d], source[d]);
+					sourceMax[d] = Math.max(sourceMax[d], source[d]);
+				}
+				samples.add(new PointMatch(new Point(source), new Point(target)));
+			}
+		}
+
+		final AffineModel2D sourceToTarget = new AffineModel2D();
+		try {
+			sourceToTarget.fit(samples);
+		} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+			return transformedFeatures;
+		}
+
+		/* the interior of a deformation may bulge beyond the sampled border */
+		for (int d = 0; d < 2; ++d) {
+			final double pad = 0.1 * (sourceMax[d] - sourceMin[d]) + 1;
+			sourceMin[d] -= pad;
+			sourceMax[d] += pad;
+		}
+
+		final double[] x = new double[2];
+		final double[] y = new double[2];
+		final double[] yx = new double[2];
+		final double[] yy = new double[2];
+		for (final Feature feature : index.containedFeatures(sourceMin, sourceMax)) {
+			final double[] l = feature.location;
+
+			x[0] = l[0];
+			x[1] = l[1];
+			sourceToTarget.applyInPlace(x);
+
+			boolean converged = false;
+			for (int k = 0; k < 10; ++k) {
+				targetToSource.apply(x, y);
+				final double rx = y[0] - l[0];
+				final double ry = y[1] - l[1];
+				if (rx * rx + ry * ry < 1e-6) {
+					converged = true;
+					break;
+				}
+
+				/* finite difference Jacobian over half a pixel */
+				x[0] += 0.5;
+				targetToSource.apply(x, yx);
+				x[0] -= 0.5;
+				x[1] += 0.5;
+				targetToSource.apply(x, yy);
+				x[1] -= 0.5;
+				final double j00 = (yx[0] - y[0]) * 2, j01 = (yy[0] - y[0]) * 2;
+				final double j10 = (yx[1] - y[1]) * 2, j11 = (yy[1] - y[1]) * 2;
+				final double det = j00 * j11 - j01 * j10;
+				if (det == 0)
+					break;
+
+				x[0] -= (j11 * rx - j01 * ry) / det;
+				x[1] -= (j00 * ry - j10 * rx) / det;
+			}
+
+			if (
+					converged &&
+					x[0] >= targetInterval.min(0) && x[0] < targetInterval.max(0) + 1 &&
+					x[1] >= targetInterval.min(1) && x[1] < targetInterval.max(1) + 1)
+				transformedFeatures.add(new Feature(feature.scale, feature.orientation, x.clone(), feature.descriptor));
+		}
+
+		return transformedFeatures;
+	}
+}
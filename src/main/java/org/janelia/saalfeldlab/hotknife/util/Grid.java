@@ -123,6 +123,33 @@ public class Grid {
 	}
 
 
+	/**
+	 * Sort a {@link List} of grid blocks as created by
+	 * {@link #create(long[], int[], int[])} in Z-order (Morton order) of
+	 * their grid coordinates, such that consecutive runs of blocks, e.g. the
+	 * partitions of a parallelized list, cover compact regions.
+	 *
+	 * @param gridBlocks
+	 */
+	public static void sortZOrder(final List<long[][]> gridBlocks) {
+
+		gridBlocks.sort((a, b) -> {
+			final long[] p = a[2];
+			final long[] q = b[2];
+			int dMax = 0;
+			long xMax = 0;
+			for (int d = 0; d < p.length; ++d) {
+				final long x = p[d] ^ q[d];
+				/* x has a higher most significant bit than xMax */
+				if (xMax < x && xMax < (xMax ^ x)) {
+					dMax = d;
+					xMax = x;
+				}
+			}
+			return Long.compare(p[dMax], q[dMax]);
+		});
+	}
+
 	/**
 	 * Create a {@link List} of grid block offsets in world coordinates
 	 * covering an {@link Interval} at a given spacing.
@@ -72,7 +72,8 @@ public class Spark {
 							transform,
 							scale,
 							boundsMin,
-							boundsMax);
+							boundsMax,
+							Transform.getLayout(n5, tuple._1()));
 				});
 	}
 }
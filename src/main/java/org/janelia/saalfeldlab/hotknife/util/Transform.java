@@ -43,12 +43,17 @@ import mpicbg.models.InterpolatedAffineModel3D;
 import mpicbg.models.InterpolatedModel;
 import mpicbg.models.Model;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
@@ -72,6 +77,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 /**
@@ -81,6 +87,26 @@ import net.imglib2.view.Views;
  */
 public class Transform {
 
+	/**
+	 * Attribute that specifies the storage layout of a position field
+	 * dataset, either {@link #PLANAR} or {@link #INTERLEAVED}.  Datasets
+	 * without this attribute are {@link #PLANAR}.
+	 */
+	public static final String LAYOUT_ATTRIBUTE = "layout";
+
+	/**
+	 * Coordinate index is the last (slowest running) dimension, i.e. each
+	 * block stores one plane per coordinate, [x, y, ..., n].
+	 */
+	public static final String PLANAR = "planar";
+
+	/**
+	 * Coordinate index is the first (fastest running) dimension, i.e. all
+	 * coordinates of a position are stored next to each other,
+	 * [n, x, y, ...].
+	 */
+	public static final String INTERLEAVED = "interleaved";
+
 	private Transform() {}
 
 	public static class TransformedSource<T> implements Source<T>, MipmapOrdering {
@@ -434,6 +460,102 @@ public class Transform {
 				transform);
 	}
 
+	/**
+	 * Fills a position field block with the target coordinates of a
+	 * {@link RealTransform}.  The last dimension of the block enumerates the
+	 * coordinates, i.e. the block has shape (&hellip;, n).  The transform is
+	 * applied once per pixel and all n coordinates are written from that
+	 * single evaluation.  The transform is used as is, pass a
+	 * {@link RealTransform#copy() copy} if it is shared between threads.
+	 *
+	 * @param transform
+	 * @param positionField
+	 */
+	public static void fillPositionField(
+			final RealTransform transform,
+			final RandomAccessibleInterval<DoubleType> positionField) {
+
+		final int n = positionField.numDimensions() - 1;
+		final long minN = positionField.min(n);
+		final double[] source = new double[transform.numSourceDimensions()];
+		final double[] target = new double[transform.numTargetDimensions()];
+
+		final Cursor<DoubleType> cursor = Views.flatIterable(Views.hyperSlice(positionField, n, minN)).localizingCursor();
+		final RandomAccess<DoubleType> access = positionField.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			for (int d = 0; d < n; ++d) {
+				final long position = cursor.getLongPosition(d);
+				source[d] = position;
+				access.setPosition(position, d);
+			}
+			transform.apply(source, target);
+			access.setPosition(minN, n);
+			for (int d = 0; d < n; ++d) {
+				access.get().set(target[d]);
+				access.fwd(n);
+			}
+		}
+	}
+
+	/**
+	 * Creates a materialized position raster for all dimensions.  The size of
+	 * the raster is [sizeof(interval),interval.numDimensions()].  The
+	 * transform is evaluated once per pixel.
+	 *
+	 * @param transform
+	 * @param interval
+	 * @return
+	 */
+	public static RandomAccessibleInterval<DoubleType> createPositionFieldBlock(
+			final RealTransform transform,
+			final Interval interval) {
+
+		final int n = interval.numDimensions();
+		final long[] dimensions = Arrays.copyOf(Intervals.dimensionsAsLongArray(interval), n + 1);
+		dimensions[n] = n;
+		final long[] min = Arrays.copyOf(Intervals.minAsLongArray(interval), n + 1);
+		final RandomAccessibleInterval<DoubleType> positionField = Views.translate(ArrayImgs.doubles(dimensions), min);
+		fillPositionField(transform, positionField);
+		return positionField;
+	}
+
+	/**
+	 * Creates a lazily evaluated, cached position raster for all dimensions.
+	 * The size of the raster is [sizeof(interval),interval.numDimensions()].
+	 * The raster is generated in cells of the given size, the transform is
+	 * evaluated once per pixel for all dimensions.  Unlike
+	 * {@link #createPositionField(RealTransform, Interval)}, generated cells
+	 * are kept in memory until they are evicted from the cache.
+	 *
+	 * @param transform
+	 * @param interval
+	 * @param cellSize
+	 * @return
+	 */
+	public static RandomAccessibleInterval<DoubleType> createCachedPositionField(
+			final RealTransform transform,
+			final Interval interval,
+			final int cellSize) {
+
+		final int n = interval.numDimensions();
+		final long[] dimensions = Arrays.copyOf(Intervals.dimensionsAsLongArray(interval), n + 1);
+		dimensions[n] = n;
+		final int[] blockSize = new int[n + 1];
+		Arrays.fill(blockSize, cellSize);
+		blockSize[n] = n;
+		final long[] min = Arrays.copyOf(Intervals.minAsLongArray(interval), n + 1);
+
+		final RandomAccessibleInterval<DoubleType> positionField = Lazy.createImg(
+				new FinalDimensions(dimensions),
+				blockSize,
+				new DoubleType(),
+				AccessFlags.setOf(),
+				cell -> fillPositionField(transform.copy(), Views.translate(cell, min)));
+
+		return Views.translate(positionField, min);
+	}
+
 	/**
 	 * Creates a virtual position raster for all dimensions.  The size of the
 	 * raster is [sizeof(interval),interval.numDimensions()].
@@ -486,6 +608,115 @@ public class Transform {
 		return new PositionFieldTransform<>(positionAccesses);
 	}
 
+	/**
+	 * Creates a {@link RealTransform} from a positionField raster stored in
+	 * the given layout.
+	 *
+	 * @param positionField
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @return
+	 */
+	public static <T extends RealType<T>> PositionFieldTransform<T> createPositionFieldTransform(
+			final RandomAccessibleInterval<T> positionField,
+			final String layout) {
+
+		return createPositionFieldTransform(toPlanarLayout(positionField, layout));
+	}
+
+	/**
+	 * Returns a {@link #PLANAR} view of a position field raster stored in
+	 * the given layout.
+	 *
+	 * @param positionField
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @return
+	 */
+	public static <T> RandomAccessibleInterval<T> toPlanarLayout(
+			final RandomAccessibleInterval<T> positionField,
+			final String layout) {
+
+		switch (layout) {
+		case PLANAR:
+			return positionField;
+		case INTERLEAVED:
+			return Views.moveAxis(positionField, 0, positionField.numDimensions() - 1);
+		default:
+			throw new IllegalArgumentException("Unknown position field layout '" + layout + "'.");
+		}
+	}
+
+	/**
+	 * Returns a view of a {@link #PLANAR} position field raster in the given
+	 * layout.
+	 *
+	 * @param positionField
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @return
+	 */
+	public static <T> RandomAccessibleInterval<T> fromPlanarLayout(
+			final RandomAccessibleInterval<T> positionField,
+			final String layout) {
+
+		switch (layout) {
+		case PLANAR:
+			return positionField;
+		case INTERLEAVED:
+			return Views.moveAxis(positionField, positionField.numDimensions() - 1, 0);
+		default:
+			throw new IllegalArgumentException("Unknown position field layout '" + layout + "'.");
+		}
+	}
+
+	/**
+	 * Reads the storage layout of a position field dataset, datasets without
+	 * {@link #LAYOUT_ATTRIBUTE} are {@link #PLANAR}.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static String getLayout(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final String layout = n5.getAttribute(datasetName, LAYOUT_ATTRIBUTE, String.class);
+		return layout == null ? PLANAR : layout;
+	}
+
+	/**
+	 * Opens a position field dataset of either layout as a {@link #PLANAR}
+	 * raster.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static RandomAccessibleInterval<DoubleType> openPositionField(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final RandomAccessibleInterval<DoubleType> positionField = N5Utils.open(n5, datasetName);
+		return toPlanarLayout(positionField, getLayout(n5, datasetName));
+	}
+
+	/**
+	 * Block size of a position field dataset with 1024 pixels per dimension
+	 * and all coordinates in one block.
+	 *
+	 * @param n
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @return
+	 */
+	public static int[] positionFieldBlockSize(final int n, final String layout) {
+
+		final int[] blockSize = new int[n + 1];
+		Arrays.fill(blockSize, 1024);
+		blockSize[INTERLEAVED.equals(layout) ? 0 : n] = n;
+		return blockSize;
+	}
+
 	/**
 	 * 2D boundaries approximated by only testing transformed corner coordinates.
 	 *
@@ -575,7 +806,7 @@ public class Transform {
 			final double transformScale,
 			final double[] boundsMin) throws IOException {
 
-		final RandomAccessibleInterval<DoubleType> positionField = N5Utils.open(n5, datasetName);
+		final RandomAccessibleInterval<DoubleType> positionField = openPositionField(n5, datasetName);
 		final int n = positionField.numDimensions() - 1;
 		final long[] translation = Arrays.copyOf(Grid.floorScaled(boundsMin, transformScale), n + 1);
 		final PositionFieldTransform<DoubleType> transform = Transform.createPositionFieldTransform(
@@ -612,25 +843,54 @@ public class Transform {
 			final double[] boundsMin,
 			final double[] boundsMax) throws IOException {
 
-		final int n = transform.numSourceDimensions();
+		saveScaledTransform(n5, datasetName, transform, transformScale, boundsMin, boundsMax, PLANAR);
+	}
+
+	/**
+	 * Saves a transform as a position field in an N5 dataset with the given
+	 * storage layout.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param transform
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @throws IOException
+	 */
+	public static void saveScaledTransform(
+			final N5Writer n5,
+			final String datasetName,
+			final RealTransform transform,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final String layout) throws IOException {
+
 		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
 		final RandomAccessibleInterval<DoubleType> positionField =
-				Transform.createPositionField(
+				Transform.createCachedPositionField(
 						scaledTransform,
 						new FinalInterval(
 								Grid.floorScaled(boundsMin, transformScale),
-								Grid.ceilScaled(boundsMax, transformScale)));
-		final int[] blockSize = new int[n + 1];
-		Arrays.fill(blockSize, 1024);
-		blockSize[n] = n;
-		N5Utils.save(positionField, n5, datasetName, blockSize, new GzipCompression());
-		n5.setAttribute(datasetName, "boundsMin", boundsMin);
-		n5.setAttribute(datasetName, "boundsMax", boundsMax);
-		n5.setAttribute(datasetName, "scale", transformScale);
+								Grid.ceilScaled(boundsMax, transformScale)),
+						1024);
+		savePositionField(
+				n5,
+				datasetName,
+				positionField,
+				transformScale,
+				boundsMin,
+				boundsMax,
+				layout);
 	}
 
 	/**
-	 * Saves a transform as a position field in an N5 dataset
+	 * Saves a position field in an N5 dataset.  Position fields created by
+	 * {@link #createCachedPositionField(RealTransform, Interval, int)} with a cell
+	 * size of 1024 are generated block by block with a single transform
+	 * evaluation per pixel.
 	 *
 	 * @param n5
 	 * @param datasetName
@@ -648,14 +908,42 @@ public class Transform {
 			final double[] boundsMin,
 			final double[] boundsMax) throws IOException {
 
+		savePositionField(n5, datasetName, positionField, transformScale, boundsMin, boundsMax, PLANAR);
+	}
+
+	/**
+	 * Saves a {@link #PLANAR} position field in an N5 dataset with the given
+	 * storage layout.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param positionField
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param layout {@link #PLANAR} or {@link #INTERLEAVED}
+	 * @throws IOException
+	 */
+	public static void savePositionField(
+			final N5Writer n5,
+			final String datasetName,
+			final RandomAccessibleInterval<DoubleType> positionField,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final String layout) throws IOException {
+
 		final int n = positionField.numDimensions() - 1;
-		final int[] blockSize = new int[n + 1];
-		Arrays.fill(blockSize, 1024);
-		blockSize[n] = n;
-		N5Utils.save(positionField, n5, datasetName, blockSize, new GzipCompression());
+		N5Utils.save(
+				fromPlanarLayout(positionField, layout),
+				n5,
+				datasetName,
+				positionFieldBlockSize(n, layout),
+				new GzipCompression());
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		n5.setAttribute(datasetName, LAYOUT_ATTRIBUTE, layout);
 	}
 
 	public static DatasetAttributes createScaledTransformDataset(
@@ -686,6 +974,7 @@ public class Transform {
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		n5.setAttribute(datasetName, LAYOUT_ATTRIBUTE, PLANAR);
 		return attributes;
 	}
 
@@ -734,6 +1023,7 @@ public class Transform {
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		n5.setAttribute(datasetName, LAYOUT_ATTRIBUTE, PLANAR);
 
 		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
 
@@ -743,7 +1033,7 @@ public class Transform {
 		Arrays.setAll(intervalMax, i -> Math.min(dimensions[i] + floorScaledMin[i], intervalMin[i] + gridSize[i] * 2) - 1);
 
 		final RandomAccessibleInterval<DoubleType> positionField =
-				Transform.createPositionField(
+				Transform.createPositionFieldBlock(
 						scaledTransform,
 						new FinalInterval(
 								intervalMin,
@@ -0,0 +1,279 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * JVM-wide, size-bounded cache of position field transforms loaded with
+ * {@link Transform#loadScaledTransform(N5Reader, String)}.
+ *
+ * Entries are keyed by N5 path and dataset name and hold the opened
+ * position field whose decoded blocks are shared by all tasks running in
+ * the same executor.  Cached transform datasets are assumed to not change
+ * for the lifetime of the JVM, i.e. of the executors of a Spark
+ * application, and a lookup does not touch the file system once the
+ * dataset is cached.  Code that rewrites a transform dataset and reads it
+ * again in the same JVM has to {@link #invalidate(String, String)} it.
+ * {@link #get(String, String, Counters)} returns a new
+ * {@link RealTransform} backed by the cached field on each call because
+ * the interpolating accessors of a transform are not thread-safe.  The
+ * least recently used entries are evicted first.
+ */
+public class TransformCache {
+
+	/**
+	 * Hit and miss counters that are aggregated over all executors of a
+	 * Spark job.  Create them once per job and {@link #report()} them once
+	 * after the last action.  Lookups in transformations are counted again
+	 * when Spark re-executes a task or recomputes an evicted partition, so
+	 * the counts are an upper bound unless all lookups happen in actions.
+	 */
+	@SuppressWarnings("serial")
+	public static class Counters implements Serializable {
+
+		private final String name;
+		private final LongAccumulator hits;
+		private final LongAccumulator misses;
+
+		private Counters(final String name, final LongAccumulator hits, final LongAccumulator misses) {
+
+			this.name = name;
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		/**
+		 * Registers new hit and miss accumulators with the Spark context.
+		 *
+		 * @param sc
+		 * @param name
+		 * @return
+		 */
+		public static Counters create(final JavaSparkContext sc, final String name) {
+
+			return new Counters(
+					name,
+					sc.sc().longAccumulator(name + " transform cache hits"),
+					sc.sc().longAccumulator(name + " transform cache misses"));
+		}
+
+		public long getHits() {
+
+			return hits.value();
+		}
+
+		public long getMisses() {
+
+			return misses.value();
+		}
+
+		/**
+		 * Prints the accumulated hits and misses, call on the driver after
+		 * the actions that used the cache.
+		 */
+		public void report() {
+
+			System.out.println(name + " transform cache: " + getHits() + " hits, " + getMisses() + " misses");
+		}
+	}
+
+	private static class Key {
+
+		private final String n5Path;
+		private final String datasetName;
+
+		public Key(
+				final String n5Path,
+				final String datasetName) {
+
+			this.n5Path = n5Path;
+			this.datasetName = datasetName;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof Key))
+				return false;
+			final Key key = (Key)other;
+			return n5Path.equals(key.n5Path) &&
+					datasetName.equals(key.datasetName);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Objects.hash(n5Path, datasetName);
+		}
+	}
+
+	private static class CachedPositionField {
+
+		private final RandomAccessibleInterval<DoubleType> positionField;
+		private final double scale;
+
+		public CachedPositionField(final RandomAccessibleInterval<DoubleType> positionField, final double scale) {
+
+			this.positionField = positionField;
+			this.scale = scale;
+		}
+	}
+
+	private static int maxSize = 64;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<Key, CachedPositionField> cache =
+			new LinkedHashMap<Key, CachedPositionField>(16, 0.75f, true) {
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Key, CachedPositionField> eldest) {
+
+					return size() > maxSize;
+				}
+			};
+
+	private TransformCache() {}
+
+	/**
+	 * Sets the maximum number of cached position fields of this JVM.
+	 *
+	 * @param maxSize
+	 */
+	public static void setMaxSize(final int maxSize) {
+
+		synchronized (cache) {
+			TransformCache.maxSize = maxSize;
+			while (cache.size() > maxSize)
+				cache.remove(cache.keySet().iterator().next());
+		}
+	}
+
+	public static int size() {
+
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public static void clear() {
+
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Removes a dataset from the cache of this JVM such that the next
+	 * {@link #get(String, String, Counters)} loads it again.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 */
+	public static void invalidate(final String n5Path, final String datasetName) {
+
+		synchronized (cache) {
+			cache.remove(new Key(n5Path, datasetName));
+		}
+	}
+
+	/**
+	 * @return hits of this JVM since startup
+	 */
+	public static long getHits() {
+
+		return hits.get();
+	}
+
+	/**
+	 * @return misses of this JVM since startup
+	 */
+	public static long getMisses() {
+
+		return misses.get();
+	}
+
+	/**
+	 * Loads a scaled transform like
+	 * {@link Transform#loadScaledTransform(N5Reader, String)} but shares the
+	 * position field with all previous and concurrent requests for the same
+	 * dataset.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @param counters Spark counters to update, may be null
+	 * @return
+	 * @throws IOException
+	 */
+	public static RealTransform get(
+			final String n5Path,
+			final String datasetName,
+			final Counters counters) throws IOException {
+
+		final Key key = new Key(n5Path, datasetName);
+
+		CachedPositionField entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry == null) {
+				final N5Reader n5 = new N5FSReader(n5Path);
+				final double scale = n5.getAttribute(datasetName, "scale", double.class);
+				final double[] boundsMin = n5.getAttribute(datasetName, "boundsMin", double[].class);
+				final RandomAccessibleInterval<DoubleType> planarPositionField = Transform.openPositionField(n5, datasetName);
+				final int n = planarPositionField.numDimensions() - 1;
+				final long[] translation = Arrays.copyOf(Grid.floorScaled(boundsMin, scale), n + 1);
+				entry = new CachedPositionField(Views.translate(planarPositionField, translation), scale);
+				cache.put(key, entry);
+				misses.incrementAndGet();
+				if (counters != null)
+					counters.misses.add(1);
+			} else {
+				hits.incrementAndGet();
+				if (counters != null)
+					counters.hits.add(1);
+			}
+		}
+
+		return Transform.createScaledRealTransform(Transform.createPositionFieldTransform(entry.positionField), entry.scale);
+	}
+
+	public static RealTransform get(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		return get(n5Path, datasetName, null);
+	}
+}
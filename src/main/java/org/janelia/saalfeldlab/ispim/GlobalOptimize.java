@@ -18,8 +18,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
+import org.janelia.saalfeldlab.hotknife.DirectTileOptimizer;
 import org.janelia.saalfeldlab.ispim.render.Render3D.MyTileConfig;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
@@ -72,6 +72,12 @@ public class GlobalOptimize implements Callable<Void>, Serializable
 	@Option(names = "--n5Path", required = true, description = "N5 path, e.g. /nrs/saalfeld/from_mdas/mar24_bis25_s5_r6.n5")
 	private String n5Path = null;
 
+	@Option(names = "--directSolver", required = false, description = "solve the tile configuration with a sparse direct solver instead of iteratively")
+	private boolean directSolver = false;
+
+	@Option(names = "--directSolverDamp", required = false, description = "damp matches of the direct solver with residuals larger than this times the median residual, <= 0 for no damping")
+	private double directSolverDamp = 0;
+
 	public static class Description
 	{
 		public String id, channel, cam;
@@ -160,9 +166,8 @@ public class GlobalOptimize implements Callable<Void>, Serializable
 					final String camB = dataset.substring( indexCamB, indexCamB + 4 );
 
 					final String datasetName = idA + "/" + dataset;
-					final DatasetAttributes datasetAttributes = n5.getDatasetAttributes(datasetName);
 
-					final ArrayList<PointMatch> matchesLocal = n5.readSerializedBlock(datasetName, datasetAttributes, new long[] {0});
+					final ArrayList<PointMatch> matchesLocal = PointStore.readPointMatches(n5, datasetName);
 
 					while ( matchesLocal.size() > maxNumMatches )
 						matchesLocal.remove( rnd.nextInt( matchesLocal.size() ) );
@@ -366,6 +371,12 @@ public class GlobalOptimize implements Callable<Void>, Serializable
 			if ( render )
 				((MyTileConfig)tileConfig).setObserver( observer );
 
+			if ( directSolver )
+			{
+				new DirectTileOptimizer( param.numIterations, 0.01, param.blockMaxAllowedError, directSolverDamp ).optimize( tileConfig );
+				continue;
+			}
+
 			final float damp = 1.0f;
 			TileUtil.optimizeConcurrently(
 					observer,
@@ -0,0 +1,242 @@
+package org.janelia.saalfeldlab.ispim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RealInterval;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Uniform grid over the local coordinates ({@link InterestPoint#getL()}) of
+ * a list of interest points that answers which points are contained in an
+ * interval without scanning all points.  The grid is built once per view,
+ * cells are sized for about {@link #pointsPerCell} points on average.
+ *
+ * Query results are in the order of the original list, i.e. identical to a
+ * linear scan.
+ */
+public class InterestPointIndex
+{
+	public static final int pointsPerCell = 16;
+
+	final List< InterestPoint > points;
+	final int n;
+
+	// coordinates of point i at [ i * n + d ]
+	final double[] coordinates;
+
+	final double[] min;
+	final double[] cellSize;
+	final int[] numCells;
+
+	// indices of the points in cell c are cellPoints[ cellStart[ c ] ] ... cellPoints[ cellStart[ c + 1 ] - 1 ], ascending
+	final int[] cellStart;
+	final int[] cellPoints;
+
+	public InterestPointIndex( final List< InterestPoint > points )
+	{
+		this.points = points;
+		this.n = points.isEmpty() ? 3 : points.get( 0 ).getL().length;
+
+		final int numPoints = points.size();
+
+		coordinates = new double[ numPoints * n ];
+		min = new double[ n ];
+		final double[] max = new double[ n ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final double[] l = points.get( i ).getL();
+			for ( int d = 0; d < n; ++d )
+			{
+				coordinates[ i * n + d ] = l[ d ];
+				min[ d ] = Math.min( min[ d ], l[ d ] );
+				max[ d ] = Math.max( max[ d ], l[ d ] );
+			}
+		}
+
+		// cubic cells, such that the bounding box holds about numPoints / pointsPerCell cells
+		double volume = 1;
+		for ( int d = 0; d < n; ++d )
+			volume *= numPoints == 0 ? 1 : Math.max( 1, max[ d ] - min[ d ] );
+
+		double size = Math.max( 1, Math.pow( volume * pointsPerCell / Math.max( 1, numPoints ), 1.0 / n ) );
+
+		cellSize = new double[ n ];
+		numCells = new int[ n ];
+		long totalNumCells;
+
+		// flat point clouds would get too many cells, coarsen until there are at most as many cells as points
+		do
+		{
+			totalNumCells = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				cellSize[ d ] = size;
+				numCells[ d ] = numPoints == 0 ? 1 : ( int )Math.min( Integer.MAX_VALUE / 2, ( long )Math.floor( ( max[ d ] - min[ d ] ) / size ) + 1 );
+				totalNumCells = Math.min( Long.MAX_VALUE / Integer.MAX_VALUE, totalNumCells * numCells[ d ] );
+			}
+			size *= 2;
+		}
+		while ( totalNumCells > Math.max( 1, numPoints ) );
+
+		// counting sort of the point indices by cell, stable such that indices are ascending per cell
+		final int[] pointCell = new int[ numPoints ];
+		cellStart = new int[ ( int )totalNumCells + 1 ];
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			int cell = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				cell = cell * numCells[ d ] + cellIndex( coordinates[ i * n + d ], d );
+
+			pointCell[ i ] = cell;
+			++cellStart[ cell + 1 ];
+		}
+
+		for ( int c = 0; c < totalNumCells; ++c )
+			cellStart[ c + 1 ] += cellStart[ c ];
+
+		cellPoints = new int[ numPoints ];
+		final int[] next = Arrays.copyOf( cellStart, ( int )totalNumCells );
+		for ( int i = 0; i < numPoints; ++i )
+			cellPoints[ next[ pointCell[ i ] ]++ ] = i;
+	}
+
+	protected int cellIndex( final double p, final int d )
+	{
+		return Math.max( 0, Math.min( numCells[ d ] - 1, ( int )Math.floor( ( p - min[ d ] ) / cellSize[ d ] ) ) );
+	}
+
+	public List< InterestPoint > getPoints()
+	{
+		return points;
+	}
+
+	/**
+	 * @param interval
+	 * @return the points contained in the interval (including its bounds), in the order of the original list
+	 */
+	public ArrayList< InterestPoint > containedPoints( final RealInterval interval )
+	{
+		final int[] indices = containedIndices( interval );
+		final ArrayList< InterestPoint > containedPoints = new ArrayList<>( indices.length );
+
+		for ( final int i : indices )
+			containedPoints.add( points.get( i ) );
+
+		return containedPoints;
+	}
+
+	/**
+	 * @param intervals
+	 * @return the points contained in any of the intervals (including their bounds), in the order of the original list
+	 */
+	public ArrayList< InterestPoint > containedPoints( final List< ? extends RealInterval > intervals )
+	{
+		final boolean[] contained = new boolean[ points.size() ];
+
+		for ( final RealInterval interval : intervals )
+			for ( final int i : containedIndices( interval ) )
+				contained[ i ] = true;
+
+		final ArrayList< InterestPoint > containedPoints = new ArrayList<>();
+
+		for ( int i = 0; i < contained.length; ++i )
+			if ( contained[ i ] )
+				containedPoints.add( points.get( i ) );
+
+		return containedPoints;
+	}
+
+	/**
+	 * @param interval
+	 * @return the number of points contained in the interval (including its bounds)
+	 */
+	public int numContainedPoints( final RealInterval interval )
+	{
+		return containedIndices( interval ).length;
+	}
+
+	/**
+	 * @param interval
+	 * @return ascending indices of the points contained in the interval (including its bounds)
+	 */
+	public int[] containedIndices( final RealInterval interval )
+	{
+		if ( points.isEmpty() )
+			return new int[ 0 ];
+
+		final int[] cellMin = new int[ n ];
+		final int[] cellMax = new int[ n ];
+		final double[] intervalMin = new double[ n ];
+		final double[] intervalMax = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			intervalMin[ d ] = interval.realMin( d );
+			intervalMax[ d ] = interval.realMax( d );
+
+			// the interval does not overlap the bounding box of the points
+			if ( intervalMax[ d ] < min[ d ] || intervalMin[ d ] > min[ d ] + numCells[ d ] * cellSize[ d ] )
+				return new int[ 0 ];
+
+			cellMin[ d ] = cellIndex( intervalMin[ d ], d );
+			cellMax[ d ] = cellIndex( intervalMax[ d ], d );
+		}
+
+		int[] indices = new int[ 16 ];
+		int size = 0;
+
+		// iterate over all cells in [cellMin, cellMax], odometer style with dimension 0 fastest
+		final int[] cell = cellMin.clone();
+		while ( true )
+		{
+			int c = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				c = c * numCells[ d ] + cell[ d ];
+
+			for ( int j = cellStart[ c ]; j < cellStart[ c + 1 ]; ++j )
+			{
+				final int i = cellPoints[ j ];
+
+				boolean isOutside = false;
+				for ( int d = 0; d < n && !isOutside; ++d )
+				{
+					final double p = coordinates[ i * n + d ];
+					if ( p < intervalMin[ d ] || p > intervalMax[ d ] )
+						isOutside = true;
+				}
+
+				if ( !isOutside )
+				{
+					if ( size == indices.length )
+						indices = Arrays.copyOf( indices, size * 2 );
+					indices[ size++ ] = i;
+				}
+			}
+
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( cell[ d ] < cellMax[ d ] )
+				{
+					++cell[ d ];
+					break;
+				}
+				cell[ d ] = cellMin[ d ];
+			}
+
+			if ( d == n )
+				break;
+		}
+
+		indices = Arrays.copyOf( indices, size );
+		Arrays.sort( indices );
+
+		return indices;
+	}
+}
@@ -0,0 +1,243 @@
+package org.janelia.saalfeldlab.ispim;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.janelia.saalfeldlab.hotknife.util.ColumnarN5;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Columnar N5 storage for interest points and point matches as an
+ * alternative to Java-serialized lists in a single OBJECT block.
+ *
+ * Interest points are stored in a group with the datasets
+ * <ul>
+ * <li>id, INT32 [n]</li>
+ * <li>location, FLOAT32 [numDimensions, n]</li>
+ * </ul>
+ * point matches in a group with the datasets
+ * <ul>
+ * <li>pairs, INT32 [2, n], the ids of both points of each match</li>
+ * <li>p1, FLOAT32 [numDimensions, n], the local coordinates of the first points</li>
+ * <li>p2, FLOAT32 [numDimensions, n], the local coordinates of the second points</li>
+ * <li>weight, FLOAT32 [n]</li>
+ * </ul>
+ * all chunked along n.  The group attribute {@link #typeKey} tells both
+ * apart.  The readers also read the Java-serialized format, so callers do
+ * not have to know whether a dataset was migrated
+ * ({@link SparkMigratePointStore}).
+ *
+ * Coordinates are stored with single precision, which is below 0.01px
+ * for coordinates up to 100,000px.
+ */
+public class PointStore
+{
+	public static final String typeKey = "pointStoreType";
+	public static final String interestPointsType = "interestPoints";
+	public static final String pointMatchesType = "pointMatches";
+
+	public static final String numPointsKey = "numPoints";
+	public static final String numDimensionsKey = "numDimensions";
+
+	public static final int defaultBlockSize = 1 << 16;
+
+	/**
+	 * @return true if path is a Java-serialized OBJECT dataset
+	 */
+	public static boolean isSerialized( final N5Reader n5, final String path ) throws IOException
+	{
+		return n5.datasetExists( path ) && n5.getDatasetAttributes( path ).getDataType() == DataType.OBJECT;
+	}
+
+	public static void writeInterestPoints(
+			final N5Writer n5,
+			final String group,
+			final List< InterestPoint > points ) throws IOException
+	{
+		writeInterestPoints( n5, group, points, defaultBlockSize );
+	}
+
+	public static void writeInterestPoints(
+			final N5Writer n5,
+			final String group,
+			final List< InterestPoint > points,
+			final int blockSize ) throws IOException
+	{
+		final int numPoints = points.size();
+		final int n = numPoints == 0 ? 3 : points.get( 0 ).getL().length;
+
+		final int[] ids = new int[ numPoints ];
+		final float[] locations = new float[ numPoints * n ];
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final InterestPoint p = points.get( i );
+			ids[ i ] = p.getId();
+			copy( p.getL(), locations, i * n );
+		}
+
+		createGroup( n5, group, interestPointsType, numPoints, n );
+		ColumnarN5.writeInts( n5, group + "/id", ids, 1, blockSize );
+		ColumnarN5.writeFloats( n5, group + "/location", locations, n, blockSize );
+	}
+
+	/**
+	 * Reads interest points from the columnar or the Java-serialized format.
+	 */
+	public static ArrayList< InterestPoint > readInterestPoints(
+			final N5Reader n5,
+			final String path ) throws IOException
+	{
+		if ( isSerialized( n5, path ) )
+			return readSerialized( n5, path );
+
+		checkType( n5, path, interestPointsType );
+
+		final int n = n5.getAttribute( path, numDimensionsKey, Integer.class );
+		final int[] ids = ColumnarN5.readInts( n5, path + "/id" );
+		final float[] locations = ColumnarN5.readFloats( n5, path + "/location" );
+
+		final ArrayList< InterestPoint > points = new ArrayList<>( ids.length );
+		for ( int i = 0; i < ids.length; ++i )
+			points.add( new InterestPoint( ids[ i ], copy( locations, i * n, n ) ) );
+
+		return points;
+	}
+
+	public static void writePointMatches(
+			final N5Writer n5,
+			final String group,
+			final List< PointMatch > matches ) throws IOException
+	{
+		writePointMatches( n5, group, matches, defaultBlockSize );
+	}
+
+	/**
+	 * Points that are not {@link InterestPoint}s are stored with their index
+	 * in matches as id.
+	 */
+	public static void writePointMatches(
+			final N5Writer n5,
+			final String group,
+			final List< PointMatch > matches,
+			final int blockSize ) throws IOException
+	{
+		final int numMatches = matches.size();
+		final int n = numMatches == 0 ? 3 : matches.get( 0 ).getP1().getL().length;
+
+		final int[] pairs = new int[ numMatches * 2 ];
+		final float[] p1 = new float[ numMatches * n ];
+		final float[] p2 = new float[ numMatches * n ];
+		final float[] weights = new float[ numMatches ];
+
+		for ( int i = 0; i < numMatches; ++i )
+		{
+			final PointMatch pm = matches.get( i );
+			pairs[ 2 * i ] = id( pm.getP1(), i );
+			pairs[ 2 * i + 1 ] = id( pm.getP2(), i );
+			copy( pm.getP1().getL(), p1, i * n );
+			copy( pm.getP2().getL(), p2, i * n );
+			weights[ i ] = ( float )pm.getWeight();
+		}
+
+		createGroup( n5, group, pointMatchesType, numMatches, n );
+		ColumnarN5.writeInts( n5, group + "/pairs", pairs, 2, blockSize );
+		ColumnarN5.writeFloats( n5, group + "/p1", p1, n, blockSize );
+		ColumnarN5.writeFloats( n5, group + "/p2", p2, n, blockSize );
+		ColumnarN5.writeFloats( n5, group + "/weight", weights, 1, blockSize );
+	}
+
+	/**
+	 * Reads point matches from the columnar or the Java-serialized format.
+	 * Both points of a columnar match are {@link InterestPoint}s with
+	 * world coordinates equal to their local coordinates.
+	 */
+	public static ArrayList< PointMatch > readPointMatches(
+			final N5Reader n5,
+			final String path ) throws IOException
+	{
+		if ( isSerialized( n5, path ) )
+			return readSerialized( n5, path );
+
+		checkType( n5, path, pointMatchesType );
+
+		final int n = n5.getAttribute( path, numDimensionsKey, Integer.class );
+		final int[] pairs = ColumnarN5.readInts( n5, path + "/pairs" );
+		final float[] p1 = ColumnarN5.readFloats( n5, path + "/p1" );
+		final float[] p2 = ColumnarN5.readFloats( n5, path + "/p2" );
+		final float[] weights = ColumnarN5.readFloats( n5, path + "/weight" );
+
+		final ArrayList< PointMatch > matches = new ArrayList<>( weights.length );
+		for ( int i = 0; i < weights.length; ++i )
+			matches.add(
+					new PointMatch(
+							new InterestPoint( pairs[ 2 * i ], copy( p1, i * n, n ) ),
+							new InterestPoint( pairs[ 2 * i + 1 ], copy( p2, i * n, n ) ),
+							weights[ i ] ) );
+
+		return matches;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static < T > ArrayList< T > readSerialized( final N5Reader n5, final String path ) throws IOException
+	{
+		try
+		{
+			return ( ArrayList< T > )n5.readSerializedBlock( path, n5.getDatasetAttributes( path ), new long[] { 0 } );
+		}
+		catch ( final ClassNotFoundException e )
+		{
+			throw new IOException( "Could not deserialize " + path, e );
+		}
+	}
+
+	protected static void createGroup(
+			final N5Writer n5,
+			final String group,
+			final String type,
+			final int numPoints,
+			final int n ) throws IOException
+	{
+		if ( n5.exists( group ) )
+			n5.remove( group );
+
+		n5.createGroup( group );
+		n5.setAttribute( group, typeKey, type );
+		n5.setAttribute( group, numPointsKey, numPoints );
+		n5.setAttribute( group, numDimensionsKey, n );
+	}
+
+	protected static void checkType( final N5Reader n5, final String path, final String type ) throws IOException
+	{
+		final String storedType = n5.getAttribute( path, typeKey, String.class );
+		if ( !type.equals( storedType ) )
+			throw new IOException( path + " is not a point store of type " + type + " but " + storedType );
+	}
+
+	protected static int id( final Point p, final int index )
+	{
+		return p instanceof InterestPoint ? ( ( InterestPoint )p ).getId() : index;
+	}
+
+	protected static void copy( final double[] source, final float[] target, final int offset )
+	{
+		for ( int d = 0; d < source.length; ++d )
+			target[ offset + d ] = ( float )source[ d ];
+	}
+
+	protected static double[] copy( final float[] source, final int offset, final int n )
+	{
+		final double[] target = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			target[ d ] = source[ offset + d ];
+
+		return target;
+	}
+}
@@ -72,6 +72,9 @@ public class SparkExtractAllSIFTMatches implements Callable<Void>, Serializable
 	@Option(names = "--minNumInliers", required = false, description = "minimal number of inliers for RANSAC (default 10)")
 	private int minNumInliers = 10;
 
+	@Option(names = "--threadsPerTask", required = false, description = "number of threads for RANSAC of one pair of slices, results do not depend on it (default: 1)")
+	private int threadsPerTask = 1;
+
 	@Option(names = "--excludeIds", split=",", required = false, description = "ids to be exluded")
 	private HashSet<String> excludeIds = new HashSet<>();
 
@@ -121,7 +124,8 @@ public class SparkExtractAllSIFTMatches implements Callable<Void>, Serializable
 							maxIntensity,
 							maxEpsilon,
 							numIterations,
-							minNumInliers);
+							minNumInliers,
+							threadsPerTask);
 				} catch (IOException | FormatException e) {
 					System.err.println("Failed to extract features for " + n5Path + " : " + n5.groupPath(idc) + " because:");
 					e.printStackTrace(System.err);
@@ -37,9 +37,6 @@ import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.ispim.SparkPaiwiseAlignChannelsGeo.Block;
 import org.janelia.saalfeldlab.ispim.SparkPaiwiseAlignChannelsGeo.N5Data;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -396,22 +393,8 @@ public class SparkExtractGeoPoints3D implements Callable<Void>, Serializable {
 	
 				if (n5Writer.exists(featuresGroupName))
 					n5Writer.remove(featuresGroupName);
-				
-				n5Writer.createDataset(
-						featuresGroupName,
-						new long[] {1},
-						new int[] {1},
-						DataType.OBJECT,
-						new GzipCompression());
-	
-				final String datasetName = entry.getKey().getA() + "/" + entry.getKey().getB() + "/Stack-DoG-detections";
-				final DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes(datasetName);
-	
-				n5Writer.writeSerializedBlock(
-						entry.getValue(),
-						datasetName,
-						datasetAttributes,
-						new long[] {0});
+
+				PointStore.writeInterestPoints( n5Writer, featuresGroupName, entry.getValue() );
 			}
 		}
 	}
@@ -98,6 +98,9 @@ public class SparkExtractSIFTMatches implements Callable<Void>, Serializable {
 	@Option(names = "--minNumInliers", required = false, description = "minimal number of inliers for RANSAC (default 10)")
 	private int minNumInliers = 10;
 
+	@Option(names = "--threadsPerTask", required = false, description = "number of threads for RANSAC of one pair of slices, results do not depend on it (default: 1)")
+	private int threadsPerTask = 1;
+
 	@SuppressWarnings("serial")
 	public static void extractStackSIFTMatches(
 			final JavaSparkContext sc,
@@ -110,7 +113,8 @@ public class SparkExtractSIFTMatches implements Callable<Void>, Serializable {
 			final double maxIntensity,
 			final double maxEpsilon,
 			final int numIterations,
-			final int minNumInliers) throws IOException, FormatException {
+			final int minNumInliers,
+			final int numThreads) throws IOException, FormatException {
 
 		final ArrayList<Slice> stack;
 		final String groupName;
@@ -263,7 +267,9 @@ public class SparkExtractSIFTMatches implements Callable<Void>, Serializable {
 											numIterations,
 											maxEpsilon,
 											0,
-											minNumInliers)),
+											minNumInliers,
+											0L,
+											numThreads)),
 							64));
 
 					if (matches.size() > 0) {
@@ -316,7 +322,8 @@ public class SparkExtractSIFTMatches implements Callable<Void>, Serializable {
 				maxIntensity,
 				maxEpsilon,
 				numIterations,
-				minNumInliers);
+				minNumInliers,
+				threadsPerTask);
 
 		sc.close();
 
@@ -0,0 +1,174 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.ispim;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import mpicbg.models.PointMatch;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * Converts all Java-serialized interest point (id/channel/Stack-DoG-detections)
+ * and point match (id/matches_*) datasets of an iSPIM N5 container into the
+ * columnar {@link PointStore} format, in place.
+ *
+ * Each dataset is first written and verified next to the serialized dataset
+ * (path-columnar).  Then the serialized dataset is moved aside
+ * (path-serialized), the columnar dataset is moved into its place, and the
+ * serialized dataset is removed.  Both moves are renames within the
+ * container, so at no time is the only copy of the data partially written.
+ * An interrupted migration can be re-run, it finds the datasets that were
+ * moved aside and finishes their migration.
+ */
+@Command(
+		name = "SparkMigratePointStore",
+		mixinStandardHelpOptions = true,
+		version = "0.0.4-SNAPSHOT",
+		description = "Convert serialized interest points and point matches into columnar point stores")
+public class SparkMigratePointStore implements Callable<Void>, Serializable {
+
+	private static final long serialVersionUID = 2838829412467613394L;
+
+	public static final String pointsDatasetName = "Stack-DoG-detections";
+	public static final String matchesPrefix = "matches_";
+	public static final String columnarSuffix = "-columnar";
+	public static final String serializedSuffix = "-serialized";
+
+	@Option(names = "--n5Path", required = true, description = "N5 path, e.g. /nrs/saalfeld/from_mdas/mar24_bis25_s5_r6.n5")
+	private String n5Path = null;
+
+	/**
+	 * @return paths of all serialized interest point and point match datasets
+	 * below the stack groups of the container, and of those whose migration
+	 * was interrupted after the serialized dataset was moved aside
+	 */
+	public static ArrayList<String> findSerializedDatasets(final N5Reader n5) throws IOException {
+
+		final ArrayList<String> paths = new ArrayList<>();
+		for (final String id : n5.list("/")) {
+			if (!n5.exists(id) || n5.datasetExists(id))
+				continue;
+			for (final String child : n5.list(id)) {
+				final String childPath = id + "/" + child;
+				if (child.startsWith(matchesPrefix)) {
+					if (child.endsWith(serializedSuffix))
+						paths.add(childPath.substring(0, childPath.length() - serializedSuffix.length()));
+					else if (!child.endsWith(columnarSuffix) && PointStore.isSerialized(n5, childPath))
+						paths.add(childPath);
+				} else if (!n5.datasetExists(childPath)) {
+					final String pointsPath = childPath + "/" + pointsDatasetName;
+					if (PointStore.isSerialized(n5, pointsPath) || n5.exists(pointsPath + serializedSuffix))
+						paths.add(pointsPath);
+				}
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Replaces a serialized dataset by a columnar point store, or finishes
+	 * an interrupted replacement.
+	 *
+	 * @return the number of points or matches
+	 */
+	public static int migrate(final String n5Path, final String path) throws IOException {
+
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+		final String tmpPath = path + columnarSuffix;
+		final String oldPath = path + serializedSuffix;
+
+		if (!n5.exists(oldPath)) {
+
+			final boolean isMatches = Paths.get(path).getFileName().toString().startsWith(matchesPrefix);
+			if (isMatches) {
+				final ArrayList<PointMatch> matches = PointStore.readPointMatches(n5, path);
+				PointStore.writePointMatches(n5, tmpPath, matches);
+				if (PointStore.readPointMatches(n5, tmpPath).size() != matches.size())
+					throw new IOException("Failed to verify " + tmpPath);
+			} else {
+				final ArrayList<InterestPoint> points = PointStore.readInterestPoints(n5, path);
+				PointStore.writeInterestPoints(n5, tmpPath, points);
+				if (PointStore.readInterestPoints(n5, tmpPath).size() != points.size())
+					throw new IOException("Failed to verify " + tmpPath);
+			}
+
+			move(n5Path, path, oldPath);
+		}
+
+		/* the columnar dataset was verified before the serialized dataset was moved aside */
+		if (!n5.exists(path)) {
+			if (!n5.exists(tmpPath))
+				throw new IOException("Neither " + path + " nor " + tmpPath + " exist, the serialized data is in " + oldPath);
+			move(n5Path, tmpPath, path);
+		}
+
+		n5.remove(oldPath);
+
+		return n5.getAttribute(path, PointStore.numPointsKey, Integer.class);
+	}
+
+	private static void move(final String n5Path, final String source, final String target) throws IOException {
+
+		Files.move(Paths.get(n5Path, source), Paths.get(n5Path, target), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public Void call() throws IOException {
+
+		final List<String> paths = findSerializedDatasets(new N5FSReader(n5Path));
+
+		System.out.println("Migrating " + paths.size() + " datasets.");
+
+		final SparkConf conf = new SparkConf().setAppName("SparkMigratePointStore");
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+		sc.setLogLevel("ERROR");
+
+		final JavaRDD<String> rddPaths = sc.parallelize(paths, Math.max(1, paths.size()));
+
+		final List<String> results = rddPaths.map(path -> path + ": " + migrate(n5Path, path)).collect();
+
+		results.forEach(System.out::println);
+
+		sc.close();
+
+		System.out.println("Done.");
+
+		return null;
+	}
+
+	public static final void main(final String... args) {
+
+		System.exit(new CommandLine(new SparkMigratePointStore()).execute(args));
+	}
+}
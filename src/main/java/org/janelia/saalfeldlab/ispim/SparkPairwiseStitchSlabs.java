@@ -13,6 +13,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -20,9 +23,6 @@ import org.janelia.saalfeldlab.hotknife.MultiConsensusFilter;
 import org.janelia.saalfeldlab.ispim.SparkPaiwiseAlignChannelsGeo.MovingLeastSquaresTransform3;
 import org.janelia.saalfeldlab.ispim.SparkPaiwiseAlignChannelsGeo.N5Data;
 import org.janelia.saalfeldlab.ispim.imglib2.NonRigidRealRandomAccessible;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 
 import com.google.gson.Gson;
@@ -101,6 +101,9 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 	@Option(names = {"-b", "--blocksize"}, required = false, description = "blocksize for point extraction (default: 250, 250, 100)")
 	private int[] blocksize = new int[]{ 2000, 2000, 1000 };
 
+	@Option(names = "--numThreads", required = false, description = "number of threads for aligning blocks, results do not depend on it (default: number of available processors)")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
 	/*
 	 * cmdline params for tim's data
 	 * 
@@ -127,55 +130,40 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 			final Supplier matchingModel,
 			final int minNumInliersICP, //20
 			final Supplier icpModel ) throws NotEnoughDataPointsException
+	{
+		return alignAllBlocks( blocks, blockATransform, pointsA, pointsB, minNumInliers, matchingModel, minNumInliersICP, icpModel, 1 );
+	}
+
+	public static Pair< ArrayList<PointMatch>, Double > alignAllBlocks(
+			final ArrayList< Interval > blocks,
+			final TranslationModel3D blockATransform, // can be null
+			final ArrayList<InterestPoint> pointsA,
+			final ArrayList<InterestPoint> pointsB,
+			final int minNumInliers, //12
+			final Supplier matchingModel,
+			final int minNumInliersICP, //20
+			final Supplier icpModel,
+			final int numThreads ) throws NotEnoughDataPointsException
 	{
 		int blocksWithMatches = 0;
 		int blocksWithoutMatches = 0;
 
 		ArrayList< PointMatch > allMatches = new ArrayList<>();
 
-		int i = 0;
-		for ( final Interval block : blocks )
-		{
-			System.out.println( "aligning block " + (++i) + "/" + blocks.size() );
-
-			final RealInterval blockA;
-
-			if ( blockATransform == null )
-			{
-				blockA = block;
-			}
-			else
-			{
-				final double[] min = new double[ 3 ];
-				final double[] max = new double[ 3 ];
-	
-				block.realMin( min );
-				block.realMax( max );
-	
-				blockATransform.applyInverseInPlace( min );
-				blockATransform.applyInverseInPlace( max );
+		final ArrayList< ArrayList< PointMatch > > blockMatches =
+				alignBlocks( blocks, blockATransform, pointsA, pointsB, minNumInliers, matchingModel, minNumInliersICP, icpModel, numThreads );
 
-				blockA = new FinalRealInterval( min, max );
-			}
-
-			//Supplier modelSupplier = (Supplier<TranslationModel3D> & Serializable)TranslationModel3D::new;
-			ArrayList< PointMatch > matches = alignBlock( pointsA, pointsB, blockA, block, minNumInliers, matchingModel, minNumInliersICP, icpModel );
+		// lookup maps for existing Interestpoints that were matched, updated after each block
+		HashMap< InterestPoint, PointMatch > p1 = new HashMap<>();
+		HashMap< InterestPoint, PointMatch > p2 = new HashMap<>();
 
+		for ( final ArrayList< PointMatch > matches : blockMatches )
+		{
 			if ( matches.size() > 0 )
 				++blocksWithMatches;
 			else
 				++blocksWithoutMatches;
 
-			// build two lookup trees for existing Interestpoints that were matched
-			HashMap< InterestPoint, PointMatch > p1 = new HashMap<>();
-			HashMap< InterestPoint, PointMatch > p2 = new HashMap<>();
-
-			for ( final PointMatch pm : allMatches )
-			{
-				p1.put( (InterestPoint)pm.getP1(), pm );
-				p2.put( (InterestPoint)pm.getP2(), pm );
-			}
-		
 			int sameMatch = 0;
 			int differentMatch = 0;
 			int added = 0;
@@ -206,6 +194,13 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 				}
 			}
 
+			// matches of this block are only looked up by the following blocks
+			for ( final PointMatch pm : allMatches.subList( allMatches.size() - added, allMatches.size() ) )
+			{
+				p1.put( (InterestPoint)pm.getP1(), pm );
+				p2.put( (InterestPoint)pm.getP2(), pm );
+			}
+
 			if ( matches.size() > 0 )
 				System.out.println( "added: " + added  + " same: " + sameMatch + " different: " + differentMatch );
 		}
@@ -213,6 +208,101 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		return new ValuePair<>( allMatches, (double)blocksWithMatches / (double)( blocksWithMatches + blocksWithoutMatches ) );
 	}
 
+	/**
+	 * Aligns all blocks independently with a bounded number of threads.  The
+	 * RANSAC filters of each block are seeded with the block index and all
+	 * models are created per block, so the matches of each block are the
+	 * same for any number of threads.
+	 *
+	 * @return the matches of each block, in the order of blocks
+	 */
+	public static ArrayList< ArrayList< PointMatch > > alignBlocks(
+			final ArrayList< Interval > blocks,
+			final TranslationModel3D blockATransform, // can be null
+			final ArrayList<InterestPoint> pointsA,
+			final ArrayList<InterestPoint> pointsB,
+			final int minNumInliers, //12
+			final Supplier matchingModel,
+			final int minNumInliersICP, //20
+			final Supplier icpModel,
+			final int numThreads )
+	{
+		// index both point sets once instead of scanning all points for every block
+		final InterestPointIndex indexA = new InterestPointIndex( pointsA );
+		final InterestPointIndex indexB = new InterestPointIndex( pointsB );
+
+		final ArrayList< Callable< ArrayList< PointMatch > > > tasks = new ArrayList<>();
+
+		for ( int i = 0; i < blocks.size(); ++i )
+		{
+			final Interval block = blocks.get( i );
+			final long seed = i;
+			final String name = "block " + (i + 1) + "/" + blocks.size();
+
+			final RealInterval blockA;
+
+			if ( blockATransform == null )
+			{
+				blockA = block;
+			}
+			else
+			{
+				final double[] min = new double[ 3 ];
+				final double[] max = new double[ 3 ];
+	
+				block.realMin( min );
+				block.realMax( max );
+	
+				blockATransform.applyInverseInPlace( min );
+				blockATransform.applyInverseInPlace( max );
+
+				blockA = new FinalRealInterval( min, max );
+			}
+
+			tasks.add( () -> {
+				System.out.println( "aligning " + name );
+
+				//Supplier modelSupplier = (Supplier<TranslationModel3D> & Serializable)TranslationModel3D::new;
+				return alignBlock( indexA.containedPoints( blockA ), indexB.containedPoints( block ), blockA, block, minNumInliers, matchingModel, minNumInliersICP, icpModel, seed );
+			} );
+		}
+
+		final ArrayList< ArrayList< PointMatch > > blockMatches = new ArrayList<>();
+
+		if ( numThreads <= 1 )
+		{
+			try
+			{
+				for ( final Callable< ArrayList< PointMatch > > task : tasks )
+					blockMatches.add( task.call() );
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+		else
+		{
+			final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+			try
+			{
+				for ( final Future< ArrayList< PointMatch > > future : service.invokeAll( tasks ) )
+					blockMatches.add( future.get() );
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( e );
+			}
+			finally
+			{
+				service.shutdown();
+			}
+		}
+
+		return blockMatches;
+	}
+
 	/*
 	public static void alignBlock(
 			final String n5Path,
@@ -247,6 +337,23 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 			final Supplier matchingModel,
 			final int minNumInliersICP, //20
 			final Supplier icpModel )
+	{
+		return alignBlock( pointsChA, pointsChB, intervalA, intervalB, minNumInliers, matchingModel, minNumInliersICP, icpModel, null );
+	}
+
+	/**
+	 * @param seed for the RANSAC filters, null to use the shared random number generator of mpicbg's models
+	 */
+	public static ArrayList<PointMatch> alignBlock(
+			final ArrayList<InterestPoint> pointsChA,
+			final ArrayList<InterestPoint> pointsChB,
+			final RealInterval intervalA,
+			final RealInterval intervalB,
+			final int minNumInliers, //12
+			final Supplier matchingModel,
+			final int minNumInliersICP, //20
+			final Supplier icpModel,
+			final Long seed )
 	{
 		final boolean fastMatching = false;
 		final int numNeighbors = 3;
@@ -267,7 +374,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		final ArrayList<PointMatch> matches = SparkPaiwiseAlignChannelsGeo.matchBlock(pointsChA, pointsChB, intervalA,
 				intervalB, fastMatching, numNeighbors, redundancy, ratioOfDistance, numIterations, maxEpsilon,
 				minNumInliers, matchingModel, doICP, maxDistanceICP, maxNumIterationsICP, minNumInliersICP, numIterationsICP,
-				maxEpsilonICP, icpModel);
+				maxEpsilonICP, icpModel, seed);
 
 		return matches;
 	}
@@ -293,9 +400,8 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		try
 		{
 			final String datasetNameA = id + "/" + channel + "/Stack-DoG-detections";
-			final DatasetAttributes datasetAttributesA = n5data.n5.getDatasetAttributes(datasetNameA);
 
-			pointsCh = n5data.n5.readSerializedBlock(datasetNameA, datasetAttributesA, new long[] {0});
+			pointsCh = PointStore.readInterestPoints( n5data.n5, datasetNameA );
 		}
 		catch ( Exception e ) // java.nio.file.NoSuchFileException
 		{
@@ -434,10 +540,13 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 
 		final ArrayList< Interval > intervals = new ArrayList<>();
 
+		final InterestPointIndex indexA = new InterestPointIndex( pointsChA );
+		final InterestPointIndex indexB = new InterestPointIndex( pointsChB );
+
 		for ( final Interval block : tmpIntervals )
 		{
-			final long countA = containedPoints( block, pointsChA ).size();
-			final long countB = containedPoints( block, pointsChB ).size();
+			final long countA = indexA.numContainedPoints( block );
+			final long countB = indexB.numContainedPoints( block );
 
 			sumA += countA;
 			sumB += countB;
@@ -475,7 +584,10 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		return containedPoints;
 	}
 
-	// TODO: more efficient
+	/**
+	 * Linear scan over all points, use {@link InterestPointIndex} for
+	 * querying many intervals.
+	 */
 	public static ArrayList<InterestPoint> containedPoints( final Interval block, List<InterestPoint> points )
 	{
 		final ArrayList<InterestPoint> containedPoints = new ArrayList<>();
@@ -666,7 +778,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		mls.setMatches( matchesTmp );
 		SparkPaiwiseAlignChannelsGeo.error( matchesTmp, mls );
 
-		List< InterestPoint > pointsChATmp = containedPoints( blocks, pointsA );
+		List< InterestPoint > pointsChATmp = new InterestPointIndex( pointsA ).containedPoints( blocks );
 		List< InterestPoint > pointsChANew = new ArrayList<InterestPoint>();
 
 		if ( nonRigid )
@@ -746,23 +858,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 
 			final String datasetName = idA + "/matches_" + idA + "_" + channelA + "_" + camA + "__" + idB + "_" + channelB + "_" + camB;
 
-			if (n5Writer.exists(datasetName))
-				n5Writer.remove(datasetName);
-			
-			n5Writer.createDataset(
-					datasetName,
-					new long[] {1},
-					new int[] {1},
-					DataType.OBJECT,
-					new GzipCompression());
-
-			final DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes(datasetName);
-
-			n5Writer.writeSerializedBlock(
-					matches,
-					datasetName,
-					datasetAttributes,
-					new long[] {0});
+			PointStore.writePointMatches( n5Writer, datasetName, matches );
 		}
 
 		System.out.println( "saved" + idA + "<>" + idB );
@@ -805,6 +901,22 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 			final String camA,
 			final String camB,
 			final int[] blockSize ) throws IOException, FormatException, NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		return align( positionFile, avgShear, n5Path, idA, idB, channelA, channelB, camA, camB, blockSize, 1 );
+	}
+
+	public static AlignStatistics align(
+			final String positionFile,
+			final double avgShear,
+			final String n5Path,
+			final String idA,
+			final String idB,
+			final String channelA,
+			final String channelB,
+			final String camA,
+			final String camB,
+			final int[] blockSize,
+			final int numThreads ) throws IOException, FormatException, NotEnoughDataPointsException, IllDefinedDataPointsException
 	{
 		final AlignStatistics statistics = new AlignStatistics();
 		statistics.idA = idA;
@@ -832,7 +944,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		final Supplier affineSupplier = (Supplier<AffineModel3D> & Serializable)AffineModel3D::new;
 
 		// align all blocks with translation
-		Pair< ArrayList<PointMatch>, Double > resultTmp = alignAllBlocks( blocks, null, pairA.getA(), pairB.getA(), 12, translationSupplier, 20, affineSupplier );
+		Pair< ArrayList<PointMatch>, Double > resultTmp = alignAllBlocks( blocks, null, pairA.getA(), pairB.getA(), 12, translationSupplier, 20, affineSupplier, numThreads );
 
 		statistics.firstPassInliers = resultTmp.getA().size();
 		statistics.firstPassRatio = resultTmp.getB();
@@ -851,7 +963,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		blockAtransform.fit( resultTmp.getA() );
 		System.out.println( "Adjusting block offset to: " + blockAtransform );
 
-		resultTmp = alignAllBlocks( blocks, blockAtransform, pairA.getA(), pairB.getA(), 12, translationSupplier, 20, affineSupplier );
+		resultTmp = alignAllBlocks( blocks, blockAtransform, pairA.getA(), pairB.getA(), 12, translationSupplier, 20, affineSupplier, numThreads );
 
 		statistics.secondPassInliers = resultTmp.getA().size();
 		statistics.secondPassRatio = resultTmp.getB();
@@ -868,7 +980,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		blockAtransform.fit( resultTmp.getA() );
 		System.out.println( "Adjusting block offset to: " + blockAtransform );
 
-		resultTmp = alignAllBlocks( blocks, blockAtransform, pairA.getA(), pairB.getA(), 12, null, 40, () -> blockAtransform.copy() );
+		resultTmp = alignAllBlocks( blocks, blockAtransform, pairA.getA(), pairB.getA(), 12, null, 40, () -> blockAtransform.copy(), numThreads );
 
 		statistics.thirdPassInliers = resultTmp.getA().size();
 		statistics.thirdPassRatio = resultTmp.getB();
@@ -887,7 +999,9 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 				10000,
 				50.0,
 				0,
-				400 );
+				400,
+				0L,
+				numThreads );
 
 		ArrayList< PointMatch > matches = filter.filter( resultTmp.getA() );
 
@@ -1070,7 +1184,7 @@ public class SparkPairwiseStitchSlabs implements Callable<Void>, Serializable {
 		final double avgShear = 3.5; //JAYARAM
 
 		final AlignStatistics result =
-				align( positionFile, avgShear, n5Path, idA, idB, channelA, channelB, camA, camB, blocksize );
+				align( positionFile, avgShear, n5Path, idA, idB, channelA, channelB, camA, camB, blocksize, numThreads );
 
 		System.out.println( result );
 
@@ -26,9 +26,6 @@ import org.janelia.saalfeldlab.ispim.imglib2.NonRigidRealRandomAccessible;
 import org.janelia.saalfeldlab.ispim.imglib2.st.filter.GaussianFilterFactory;
 import org.janelia.saalfeldlab.ispim.imglib2.st.filter.GaussianFilterFactory.WeightType;
 import org.janelia.saalfeldlab.ispim.imglib2.st.render.Render;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
@@ -323,13 +320,10 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 		try
 		{
 			final String datasetNameA = id + "/" + channelA + "/Stack-DoG-detections";
-			final DatasetAttributes datasetAttributesA = n5data.n5.getDatasetAttributes(datasetNameA);
-
 			final String datasetNameB = id + "/" + channelB + "/Stack-DoG-detections";
-			final DatasetAttributes datasetAttributesB = n5data.n5.getDatasetAttributes(datasetNameB);
 
-			pointsChA = n5data.n5.readSerializedBlock(datasetNameA, datasetAttributesA, new long[] {0});
-			pointsChB = n5data.n5.readSerializedBlock(datasetNameB, datasetAttributesB, new long[] {0});
+			pointsChA = PointStore.readInterestPoints( n5data.n5, datasetNameA );
+			pointsChB = PointStore.readInterestPoints( n5data.n5, datasetNameB );
 		}
 		catch ( Exception e ) // java.nio.file.NoSuchFileException
 		{
@@ -423,23 +417,7 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 
 			final String datasetName = id + "/matches_" + channelA + "_" + channelB;
 
-			if (n5Writer.exists(datasetName))
-				n5Writer.remove(datasetName);
-			
-			n5Writer.createDataset(
-					datasetName,
-					new long[] {1},
-					new int[] {1},
-					DataType.OBJECT,
-					new GzipCompression());
-
-			final DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes(datasetName);
-
-			n5Writer.writeSerializedBlock(
-					matches,
-					datasetName,
-					datasetAttributes,
-					new long[] {0});
+			PointStore.writePointMatches( n5Writer, datasetName, matches );
 		}
 
 		return resultTmp.getB();
@@ -454,9 +432,8 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 		final N5Data n5data = openN5( n5Path, id );
 
 		final String datasetNameA = id + "/" + channel + "/Stack-DoG-detections";
-		final DatasetAttributes datasetAttributes = n5data.n5.getDatasetAttributes(datasetNameA);
 
-		final ArrayList<InterestPoint> pointsCh = n5data.n5.readSerializedBlock(datasetNameA, datasetAttributes, new long[] {0});
+		final ArrayList<InterestPoint> pointsCh = PointStore.readInterestPoints( n5data.n5, datasetNameA );
 
 		System.out.println( new Date(System.currentTimeMillis() ) + ": channel '" + channel+ "': " + pointsCh.size() + " points for " + id );
 
@@ -477,21 +454,17 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 		final N5Data n5data = openN5( n5Path, id );
 
 		final String datasetNameA = id + "/" + channelA + "/Stack-DoG-detections";
-		final DatasetAttributes datasetAttributesA = n5data.n5.getDatasetAttributes(datasetNameA);
-
 		final String datasetNameB = id + "/" + channelB + "/Stack-DoG-detections";
-		final DatasetAttributes datasetAttributesB = n5data.n5.getDatasetAttributes(datasetNameB);
 
-		final ArrayList<InterestPoint> pointsChA = n5data.n5.readSerializedBlock(datasetNameA, datasetAttributesA, new long[] {0});
-		final ArrayList<InterestPoint> pointsChB = n5data.n5.readSerializedBlock(datasetNameB, datasetAttributesB, new long[] {0});
+		final ArrayList<InterestPoint> pointsChA = PointStore.readInterestPoints( n5data.n5, datasetNameA );
+		final ArrayList<InterestPoint> pointsChB = PointStore.readInterestPoints( n5data.n5, datasetNameB );
 
 		System.out.println( new Date(System.currentTimeMillis() ) + ": channelA: " + pointsChA.size() + " points for " + id );
 		System.out.println( new Date(System.currentTimeMillis() ) + ": channelB: " + pointsChB.size() + " points for " + id );
 
 		final String datasetName = id + "/matches_" + channelA + "_" + channelB;
-		final DatasetAttributes datasetAttributes = n5data.n5.getDatasetAttributes(datasetName);
 
-		final ArrayList<PointMatch> matches = n5data.n5.readSerializedBlock(datasetName, datasetAttributes, new long[] {0});
+		final ArrayList<PointMatch> matches = PointStore.readPointMatches( n5data.n5, datasetName );
 
 		System.out.println( new Date(System.currentTimeMillis() ) + ": Loaded " + matches.size() + " matches" );
 
@@ -780,6 +753,38 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 			final int numIterationsICP,
 			final double maxEpsilonICP,
 			final Supplier<Model> icpModel )
+	{
+		return matchBlock(pointsChAIn, pointsChBIn, intervalA, intervalB, fastMatching, numNeighbors, redundancy,
+				ratioOfDistance, numIterations, maxEpsilon, minNumInliers, matchingModel, doICP, maxDistanceICP,
+				maxNumIterationsICP, minNumInliersICP, numIterationsICP, maxEpsilonICP, icpModel, null);
+	}
+
+	/**
+	 * @param seed for the RANSAC filters, null to use the shared random number
+	 * generator of mpicbg's models which is not reproducible when blocks are
+	 * matched in parallel
+	 */
+	public static ArrayList<PointMatch> matchBlock(
+			final List<InterestPoint> pointsChAIn,
+			final List<InterestPoint> pointsChBIn,
+			final RealInterval intervalA,
+			final RealInterval intervalB,
+			final boolean fastMatching,
+			final int numNeighbors,
+			final int redundancy,
+			final double ratioOfDistance,
+			final int numIterations,
+			final double maxEpsilon,
+			final int minNumInliers,
+			final Supplier<Model> matchingModel,
+			final boolean doICP,
+			final double maxDistanceICP,
+			final int maxNumIterationsICP,
+			final int minNumInliersICP,
+			final int numIterationsICP,
+			final double maxEpsilonICP,
+			final Supplier<Model> icpModel,
+			final Long seed )
 	{
 		final ArrayList<InterestPoint> pointsChA = new ArrayList<InterestPoint>();
 		final ArrayList<InterestPoint> pointsChB = new ArrayList<InterestPoint>();
@@ -863,7 +868,8 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 					numIterations,
 					maxEpsilon,
 					0,
-					minNumInliers);
+					minNumInliers,
+					seed);
 
 			matches = filter.filter(candidates);
 
@@ -911,7 +917,8 @@ public class SparkPaiwiseAlignChannelsGeo implements Callable<Void>, Serializabl
 										numIterationsICP,
 										Math.min( avgError * 3.0, maxEpsilonICP ),
 										0,
-										minNumInliersICP);
+										minNumInliersICP,
+										seed);
 
 				matches = filterICP.filter( candidatesICP );
 
@@ -17,9 +17,6 @@ import java.util.stream.Collectors;
 import org.janelia.saalfeldlab.hotknife.MultiConsensusFilter;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.ispim.SparkPaiwiseAlignChannelsGeo.N5Data;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 
 import bdv.util.BdvFunctions;
@@ -377,7 +374,8 @@ public class SparkPaiwiseAlignChannelsPCM implements Callable<Void>, Serializabl
 					1000,
 					5,
 					0,
-					5 );
+					5,
+					0L );
 
 			final ArrayList<PointMatch> matches = filter.filter(candidatesLocal);
 
@@ -482,7 +480,9 @@ public class SparkPaiwiseAlignChannelsPCM implements Callable<Void>, Serializabl
 				numIterations,
 				maxEpsilon,
 				0,
-				minNumInliers);
+				minNumInliers,
+				0L,
+				numThreads);
 
 		final ArrayList<PointMatch> matches = filter.filter(candidates);
 
@@ -506,23 +506,7 @@ public class SparkPaiwiseAlignChannelsPCM implements Callable<Void>, Serializabl
 
 			final String datasetName = id + "/matches_" + channelA + "_" + channelB;
 
-			if (n5Writer.exists(datasetName))
-				n5Writer.remove(datasetName);
-			
-			n5Writer.createDataset(
-					datasetName,
-					new long[] {1},
-					new int[] {1},
-					DataType.OBJECT,
-					new GzipCompression());
-
-			final DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes(datasetName);
-
-			n5Writer.writeSerializedBlock(
-					matches,
-					datasetName,
-					datasetAttributes,
-					new long[] {0});
+			PointStore.writePointMatches( n5Writer, datasetName, matches );
 		}
 
 		return matches;
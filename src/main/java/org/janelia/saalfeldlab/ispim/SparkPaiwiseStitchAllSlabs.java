@@ -92,6 +92,9 @@ public class SparkPaiwiseStitchAllSlabs implements Callable<Void>, Serializable
 	@Option(names = "--excludeIds", split=",", required = false, description = "ids to be exluded")
 	private HashSet<String> excludeIds = new HashSet<>();
 
+	@Option(names = "--threadsPerTask", required = false, description = "number of threads for aligning the blocks of one pair, results do not depend on it (default: 1)")
+	private int threadsPerTask = 1;
+
 	/*
 	--n5Path=/nrs/saalfeld/from_mdas/mar24_bis25_s5_r6-backup.n5
 	--positionFile=/nrs/saalfeld/from_mdas/mar24_bis25_s5_r6-backup.n5/m24o.edited.pos.json
@@ -188,7 +191,7 @@ public class SparkPaiwiseStitchAllSlabs implements Callable<Void>, Serializable
 		final JavaPairRDD<Tuple2< String, String >, AlignStatistics > rddResults = rddIds.mapToPair( pair -> {
 
 			final AlignStatistics result = 
-					SparkPairwiseStitchSlabs.align( positionFile, avgShear, n5Path, pair._1(), pair._2(), channelA, channelB, camA, camB, blocksize );
+					SparkPairwiseStitchSlabs.align( positionFile, avgShear, n5Path, pair._1(), pair._2(), channelA, channelB, camA, camB, blocksize, threadsPerTask );
 
 			return new Tuple2<>(pair, result );
 		});
@@ -39,6 +39,7 @@ import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.hotknife.DirectTileOptimizer;
 import org.janelia.saalfeldlab.hotknife.MultiConsensusFilter;
 import org.janelia.saalfeldlab.hotknife.util.Align;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
@@ -115,6 +116,15 @@ public class SparkTiffSeriesAlignSIFT implements Callable<Void>, Serializable {
 	@Option(names = "--iterations", required = false, description = "number of iterations")
 	private int numIterations = 2000;
 
+	@Option(names = "--directSolver", required = false, description = "solve the tile configuration with a sparse direct solver instead of iteratively")
+	private boolean directSolver = false;
+
+	@Option(names = "--directSolverDamp", required = false, description = "damp matches of the direct solver with residuals larger than this times the median residual, <= 0 for no damping")
+	private double directSolverDamp = 0;
+
+	@Option(names = "--threadsPerTask", required = false, description = "number of threads for RANSAC of one pair of slices, results do not depend on it (default: 1)")
+	private int threadsPerTask = 1;
+
 	@Option(names = "--tmpPath", required = true, description = "path for temporary files, e.g. /nrs/saalfeld/projects/wangt/bis25/march18_bis25_sample4_spim_r4/affineC/pos012_exp488AND561AND647nm_Z0989_cam1affine.tmp")
 	private String tmpPath = null;
 
@@ -291,7 +301,9 @@ public class SparkTiffSeriesAlignSIFT implements Callable<Void>, Serializable {
 												1000,
 												maxEpsilon,
 												0,
-												10)),
+												10,
+												0L,
+												threadsPerTask)),
 								64)));
 				});
 
@@ -319,7 +331,10 @@ public class SparkTiffSeriesAlignSIFT implements Callable<Void>, Serializable {
 		/* three pass optimization, first using the regularizer exclusively ... */
 		try {
 			tc.preAlign();
-			tc.optimize(0.01, numIterations, numIterations, 0.75);
+			if (directSolver)
+				new DirectTileOptimizer(100, 0.01, directSolverDamp).optimize(tc);
+			else
+				tc.optimize(0.01, numIterations, numIterations, 0.75);
 		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
@@ -329,7 +344,10 @@ public class SparkTiffSeriesAlignSIFT implements Callable<Void>, Serializable {
 				t -> ((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(lambdaModel));
 
 		try {
-			tc.optimize(0.01, numIterations, numIterations, 0.5);
+			if (directSolver)
+				new DirectTileOptimizer(100, 0.01, directSolverDamp).optimize(tc);
+			else
+				tc.optimize(0.01, numIterations, numIterations, 0.5);
 		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,112 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.ops.CLLCN;
+import org.janelia.saalfeldlab.hotknife.ops.CoarseCLLCN;
+import org.janelia.saalfeldlab.hotknife.util.Lazy;
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+public class CoarseCLLCNTest {
+
+	private static final int width = 256;
+	private static final int height = 256;
+	private static final int depth = 2;
+	private static final int blockRadius = 60;
+	private static final int tileSize = 8;
+
+	private static ArrayImg<UnsignedByteType, ByteArray> createVolume() {
+
+		final Random rnd = new Random(42);
+		final ArrayImg<UnsignedByteType, ByteArray> img = ArrayImgs.unsignedBytes(width, height, depth);
+		final RandomAccess<UnsignedByteType> access = img.randomAccess();
+		for (int z = 0; z < depth; ++z) {
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					/* smooth background and noise of increasing contrast, no saturated pixels */
+					final double v =
+							128 +
+							50 * Math.sin(x / 40.0 + z) * Math.cos(y / 50.0) +
+							rnd.nextGaussian() * (8 + 16.0 * x / width);
+					access.setPosition(new int[] {x, y, z});
+					access.get().set((int)Math.max(1, Math.min(254, Math.round(v))));
+				}
+			}
+		}
+		return img;
+	}
+
+	@Test
+	public void testAgainstCLLCN() {
+
+		final ArrayImg<UnsignedByteType, ByteArray> img = createVolume();
+
+		final RandomAccessibleInterval<UnsignedByteType> coarse = Lazy.process(
+				img,
+				new int[] {64, 48, 1},
+				new UnsignedByteType(),
+				AccessFlags.setOf(),
+				new CoarseCLLCN<>(img, tileSize, blockRadius, 3, 10, 0.5, true, 0, 255));
+
+		final RandomAccess<UnsignedByteType> imgAccess = img.randomAccess();
+		final RandomAccess<UnsignedByteType> coarseAccess = coarse.randomAccess();
+
+		double sumOfDifferences = 0;
+		double maxDifference = 0;
+		for (int z = 0; z < depth; ++z) {
+
+			final FloatProcessor fp = new FloatProcessor(width, height);
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					imgAccess.setPosition(new int[] {x, y, z});
+					fp.setf(x, y, imgAccess.get().getRealFloat());
+				}
+			}
+			fp.setMinAndMax(0, 255);
+			new CLLCN(fp).run(blockRadius, blockRadius, 3f, 10, 0.5f, true, true, true);
+
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					final double expected = Math.round(Math.max(0, Math.min(255, fp.getf(x, y))));
+					coarseAccess.setPosition(new int[] {x, y, z});
+					final double difference = Math.abs(coarseAccess.get().getRealDouble() - expected);
+					sumOfDifferences += difference;
+					maxDifference = Math.max(maxDifference, difference);
+				}
+			}
+		}
+
+		final double meanDifference = sumOfDifferences / (width * height * depth);
+		System.out.println("mean absolute difference " + meanDifference + ", max absolute difference " + maxDifference);
+
+		assertTrue(meanDifference < 1.0);
+		assertTrue(maxDifference <= 8);
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import org.janelia.saalfeldlab.hotknife.DirectTileOptimizerTest.Problem;
+
+/**
+ * Optimizes a synthetic chain of 2000 sections and a 50x50 grid of tiles
+ * with {@link DirectTileOptimizer} and then with
+ * {@link mpicbg.models.TileConfiguration} until it reaches the same error,
+ * and reports the times.
+ */
+public class DirectTileOptimizerBenchmark {
+
+	private static void run(
+			final String name,
+			final int width,
+			final int height,
+			final int type,
+			final int maxIterations) throws Exception {
+
+		final Problem direct = DirectTileOptimizerTest.createProblem(width, height, type, 0, 0);
+		long time = System.currentTimeMillis();
+		direct.tc.preAlign();
+		final double directError = new DirectTileOptimizer().optimize(direct.tc);
+		final long directTime = System.currentTimeMillis() - time;
+
+		System.out.println(
+				name + " direct: error " + directError + "px, deviation " + DirectTileOptimizerTest.maxDeviation(direct) + "px in " + directTime + "ms");
+
+		final Problem iterative = DirectTileOptimizerTest.createProblem(width, height, type, 0, 0);
+		time = System.currentTimeMillis();
+		iterative.tc.preAlign();
+		int iterations = 0;
+		do {
+			iterative.tc.optimize(0, 100, 100, 0.5);
+			iterations += 100;
+		} while (iterative.tc.getError() > Math.max(directError, 0.01) && iterations < maxIterations);
+		final long iterativeTime = System.currentTimeMillis() - time;
+
+		System.out.println(
+				name + " TileConfiguration: error " + iterative.tc.getError() + "px, deviation " + DirectTileOptimizerTest.maxDeviation(iterative) + "px after " + iterations + " iterations in " + iterativeTime + "ms");
+	}
+
+	public static void main(final String... args) throws Exception {
+
+		run("chain 2000 affine", 2000, 1, DirectTileOptimizerTest.affine, 100000);
+		run("grid 50x50 rigid regularized", 50, 50, DirectTileOptimizerTest.rigid, 100000);
+	}
+}
@@ -0,0 +1,297 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.InterpolatedAffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel2D;
+
+/**
+ * Optimizes a synthetic chain of 2000 sections and a 50x50 grid of tiles
+ * with known ground truth and {@link DirectTileOptimizer}, see
+ * {@link DirectTileOptimizerBenchmark} for the comparison with
+ * {@link TileConfiguration}.
+ */
+public class DirectTileOptimizerTest {
+
+	static final double size = 1000;
+
+	/* ground truth and tile models */
+	static final int affine = 0;
+	static final int rigid = 1;
+	static final int translation = 2;
+
+	static class Problem {
+
+		final ArrayList<Tile<?>> tiles = new ArrayList<>();
+		final ArrayList<double[]> truth = new ArrayList<>();
+		final TileConfiguration tc = new TileConfiguration();
+	}
+
+	private static double[] apply(final double[] a, final double x, final double y) {
+
+		return new double[]{
+				a[0] * x + a[1] * y + a[2],
+				a[3] * x + a[4] * y + a[5]};
+	}
+
+	private static double[] invert(final double[] a) {
+
+		final double det = a[0] * a[4] - a[1] * a[3];
+		final double i0 = a[4] / det, i1 = -a[1] / det, i3 = -a[3] / det, i4 = a[0] / det;
+		return new double[]{i0, i1, -(i0 * a[2] + i1 * a[5]), i3, i4, -(i3 * a[2] + i4 * a[5])};
+	}
+
+	private static ArrayList<PointMatch> createMatches(
+			final double[] a,
+			final double[] b,
+			final int numMatches,
+			final double outlierRatio,
+			final Random rnd) {
+
+		final double[] bInverse = invert(b);
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int k = 0; k < numMatches; ++k) {
+			final double x = rnd.nextDouble() * size;
+			final double y = rnd.nextDouble() * size;
+			final double[] world = apply(a, x, y);
+			final double[] q = apply(bInverse, world[0], world[1]);
+			if (rnd.nextDouble() < outlierRatio) {
+				q[0] += 200 * rnd.nextGaussian();
+				q[1] += 200 * rnd.nextGaussian();
+			}
+			matches.add(new PointMatch(new Point(new double[]{x, y}), new Point(q)));
+		}
+		return matches;
+	}
+
+	/**
+	 * Creates a grid of width x height tiles with random ground truth
+	 * connected to their right and lower neighbors.  Affine tiles have
+	 * affine models, rigid tiles affine models regularized with a rigid
+	 * model (lambda = 0.25) and translation tiles affine models regularized
+	 * with a translation model (lambda = 1).  Chains (height = 1) are also
+	 * connected to the section after the next.  The first tile is fixed at
+	 * its ground truth.
+	 */
+	static Problem createProblem(
+			final int width,
+			final int height,
+			final int type,
+			final double outlierRatio,
+			final long seed) throws Exception {
+
+		final Random rnd = new Random(seed);
+		final Problem problem = new Problem();
+
+		for (int i = 0; i < width * height; ++i) {
+			final double angle = type == translation ? 0 : rnd.nextGaussian() * 0.05;
+			final double scale = type == affine ? 1 + rnd.nextGaussian() * 0.03 : 1;
+			final double shear = type == affine ? rnd.nextGaussian() * 0.02 : 0;
+			final double cos = Math.cos(angle);
+			final double sin = Math.sin(angle);
+
+			/* sections of a chain overlap almost entirely, tiles of a grid by 10% */
+			final double offset = height == 1 ? 0 : size * 0.9;
+			problem.truth.add(new double[]{
+					cos * scale, -sin + shear, (i % width) * offset + rnd.nextGaussian() * 50,
+					sin, cos / scale, (i / width) * offset + rnd.nextGaussian() * 50});
+
+			if (type == rigid)
+				problem.tiles.add(new Tile<>(new InterpolatedAffineModel2D<>(new AffineModel2D(), new RigidModel2D(), 0.25)));
+			else if (type == translation)
+				problem.tiles.add(new Tile<>(new InterpolatedAffineModel2D<>(new AffineModel2D(), new TranslationModel2D(), 1.0)));
+			else
+				problem.tiles.add(new Tile<>(new AffineModel2D()));
+		}
+
+		for (int i = 0; i < width * height; ++i) {
+			final ArrayList<Integer> neighbors = new ArrayList<>();
+			if (i % width < width - 1)
+				neighbors.add(i + 1);
+			if (height == 1 && i % width < width - 2)
+				neighbors.add(i + 2);
+			if (i + width < width * height)
+				neighbors.add(i + width);
+			for (final int j : neighbors)
+				problem.tiles.get(i).connect(
+						problem.tiles.get(j),
+						createMatches(problem.truth.get(i), problem.truth.get(j), 30, outlierRatio, rnd));
+		}
+
+		final ArrayList<PointMatch> truthMatches = new ArrayList<>();
+		for (final double[] corner : new double[][]{{0, 0}, {size, 0}, {0, size}, {size, size}})
+			truthMatches.add(new PointMatch(new Point(corner.clone()), new Point(apply(problem.truth.get(0), corner[0], corner[1]))));
+		problem.tiles.get(0).getModel().fit(truthMatches);
+		problem.tiles.get(0).apply();
+
+		problem.tc.addTiles(problem.tiles);
+		problem.tc.fixTile(problem.tiles.get(0));
+
+		return problem;
+	}
+
+	/**
+	 * @return the maximum distance of the tile corners from their ground truth
+	 */
+	static double maxDeviation(final Problem problem) {
+
+		double max = 0;
+		for (int i = 0; i < problem.tiles.size(); ++i) {
+			for (final double[] corner : new double[][]{{0, 0}, {size, 0}, {0, size}, {size, size}}) {
+				final double[] a = problem.tiles.get(i).getModel().apply(corner);
+				final double[] b = apply(problem.truth.get(i), corner[0], corner[1]);
+				max = Math.max(max, Math.hypot(a[0] - b[0], a[1] - b[1]));
+			}
+		}
+		return max;
+	}
+
+	@Test
+	public void testAffineChain() throws Exception {
+
+		final Problem problem = createProblem(2000, 1, affine, 0, 0);
+		final double error = new DirectTileOptimizer().optimize(problem.tc);
+
+		assertTrue("error " + error, error < 0.01);
+		assertTrue("deviation " + maxDeviation(problem), maxDeviation(problem) < 0.01);
+	}
+
+	@Test
+	public void testRigidGrid() throws Exception {
+
+		final Problem problem = createProblem(50, 50, rigid, 0, 0);
+		final double error = new DirectTileOptimizer().optimize(problem.tc);
+
+		assertTrue("error " + error, error < 0.01);
+		assertTrue("deviation " + maxDeviation(problem), maxDeviation(problem) < 0.01);
+	}
+
+	/**
+	 * The two passes of {@link SparkSeriesAlignSIFT}, lambda = 1 and then
+	 * lambda = 0.1.
+	 */
+	@Test
+	public void testTranslationChain() throws Exception {
+
+		final Problem problem = createProblem(2000, 1, translation, 0, 0);
+		final DirectTileOptimizer optimizer = new DirectTileOptimizer();
+
+		optimizer.optimize(problem.tc);
+		assertTrue("deviation " + maxDeviation(problem), maxDeviation(problem) < 0.01);
+
+		problem.tiles.forEach(t -> ((InterpolatedAffineModel2D<?, ?>)t.getModel()).setLambda(0.1));
+		final double error = optimizer.optimize(problem.tc);
+
+		assertTrue("error " + error, error < 0.01);
+		assertTrue("deviation " + maxDeviation(problem), maxDeviation(problem) < 0.01);
+	}
+
+	@Test
+	public void testOutliers() throws Exception {
+
+		final Problem problem = createProblem(50, 50, rigid, 0.1, 0);
+		final double error = new DirectTileOptimizer(100, 0.001, 3).optimize(problem.tc);
+
+		assertTrue("error " + error, error > 0);
+		assertTrue("deviation " + maxDeviation(problem), maxDeviation(problem) < 0.01);
+	}
+
+	/**
+	 * Matches that a tile stores twice must not weigh more than matches
+	 * stored once, i.e. storing copies of all matches of every other tile
+	 * does not change the solution.
+	 */
+	@Test
+	public void testDuplicatedMatches() throws Exception {
+
+		final Problem problem = createProblem(10, 10, affine, 0.1, 0);
+		final Problem duplicated = createProblem(10, 10, affine, 0.1, 0);
+		for (int i = 0; i < duplicated.tiles.size(); i += 2) {
+			final ArrayList<PointMatch> copies = new ArrayList<>();
+			for (final PointMatch pm : duplicated.tiles.get(i).getMatches())
+				copies.add(new PointMatch(pm.getP1(), pm.getP2(), pm.getWeight()));
+			duplicated.tiles.get(i).addMatches(copies);
+		}
+
+		new DirectTileOptimizer().optimize(problem.tc);
+		new DirectTileOptimizer().optimize(duplicated.tc);
+
+		for (int i = 0; i < problem.tiles.size(); ++i) {
+			for (final double[] corner : new double[][]{{0, 0}, {size, 0}, {0, size}, {size, size}}) {
+				final double[] a = problem.tiles.get(i).getModel().apply(corner);
+				final double[] b = duplicated.tiles.get(i).getModel().apply(corner);
+				assertTrue("tile " + i, Math.hypot(a[0] - b[0], a[1] - b[1]) < 1e-6);
+			}
+		}
+	}
+
+	/**
+	 * A match that only one tile stores is a match to the current world
+	 * coordinates of its second point, as for {@link TileConfiguration},
+	 * even if the second point belongs to another optimized tile.
+	 */
+	@Test
+	public void testOneSidedMatches() throws Exception {
+
+		final Tile<TranslationModel2D> a = new Tile<>(new TranslationModel2D());
+		final Tile<TranslationModel2D> b = new Tile<>(new TranslationModel2D());
+		final TranslationModel2D shift = new TranslationModel2D();
+		shift.set(5, 3);
+
+		final Random rnd = new Random(11);
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int k = 0; k < 20; ++k) {
+			final Point p = new Point(new double[]{rnd.nextDouble() * size, rnd.nextDouble() * size});
+			final Point q = new Point(shift.apply(p.getL()));
+			matches.add(new PointMatch(p, q));
+		}
+		a.addMatches(matches);
+		a.addConnectedTile(b);
+		b.addConnectedTile(a);
+
+		/* b has its own matches, independent of the second points of a */
+		final ArrayList<PointMatch> bMatches = new ArrayList<>();
+		for (int k = 0; k < 20; ++k) {
+			final double[] l = new double[]{rnd.nextDouble() * size, rnd.nextDouble() * size};
+			bMatches.add(new PointMatch(new Point(l), new Point(new double[]{l[0] - 2, l[1] + 1})));
+		}
+		b.addMatches(bMatches);
+
+		final TileConfiguration tc = new TileConfiguration();
+		tc.addTile(a);
+		tc.addTile(b);
+		new DirectTileOptimizer().optimize(tc);
+
+		final double[] ta = a.getModel().apply(new double[2]);
+		final double[] tb = b.getModel().apply(new double[2]);
+		assertTrue(Math.hypot(ta[0] - 5, ta[1] - 3) < 1e-6);
+		assertTrue(Math.hypot(tb[0] + 2, tb[1] - 1) < 1e-6);
+	}
+}
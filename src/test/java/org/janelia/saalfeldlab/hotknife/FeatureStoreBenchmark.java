@@ -0,0 +1,144 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.FeatureIndex;
+import org.janelia.saalfeldlab.hotknife.util.FeatureStore;
+import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.array.ArrayLocalizingCursor;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Matches a synthetic textured pair on a grid of 50% overlapping cells,
+ * once by extracting SIFT features from each transformed cell as
+ * {@link SparkPairAlignSIFT} does by default, and once by extracting
+ * features per face with {@link FeatureStore} and mapping them through the
+ * transforms, and reports match counts and times.
+ */
+public class FeatureStoreBenchmark {
+
+	static final int size = 2048;
+	static final int stepSize = 256;
+
+	/**
+	 * Sum of random Gaussian blobs of different sizes.
+	 */
+	static ArrayImg<FloatType, ?> createTexture(final long seed) {
+
+		final Random rnd = new Random(seed);
+		final float[] pixels = new float[size * size];
+		for (int k = 0; k < size * size / 200; ++k) {
+			final double x0 = rnd.nextDouble() * size;
+			final double y0 = rnd.nextDouble() * size;
+			final double sigma = 2 + rnd.nextDouble() * 6;
+			final double amplitude = rnd.nextDouble() * 2 - 1;
+			final int r = (int)Math.ceil(3 * sigma);
+			for (int y = Math.max(0, (int)y0 - r); y < Math.min(size, (int)y0 + r); ++y)
+				for (int x = Math.max(0, (int)x0 - r); x < Math.min(size, (int)x0 + r); ++x) {
+					final double dx = x - x0, dy = y - y0;
+					pixels[y * size + x] += amplitude * Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+				}
+		}
+		return ArrayImgs.floats(pixels, size, size);
+	}
+
+	static ArrayImg<FloatType, ?> materialize(final RandomAccessibleInterval<FloatType> source) {
+
+		final ArrayImg<FloatType, ?> target = ArrayImgs.floats(size, size);
+		final ArrayLocalizingCursor<FloatType> c = target.localizingCursor();
+		final RandomAccess<FloatType> a = source.randomAccess();
+		while (c.hasNext()) {
+			c.fwd();
+			a.setPosition(c);
+			c.get().set(a.get());
+		}
+		return target;
+	}
+
+	public static void main(final String... args) throws Exception {
+
+		/* face A is untransformed, face B is rotated and shifted, its current transform undoes that */
+		final ArrayImg<FloatType, ?> a = createTexture(0);
+		final AffineTransform2D transformB = new AffineTransform2D();
+		transformB.rotate(0.1);
+		transformB.translate(40, -25);
+		final ArrayImg<FloatType, ?> b = materialize(
+				Transform.createTransformedInterval(a, a, transformB.inverse(), new FloatType(0)));
+		final AffineTransform2D transformA = new AffineTransform2D();
+
+		final FinalInterval interval = new FinalInterval(size, size);
+		final List<long[]> gridOffsets = Grid.createOffsets(interval, new int[]{stepSize, stepSize});
+		final int gridCellWidth = stepSize * 2;
+
+		/* per cell */
+		long time = System.currentTimeMillis();
+		int numCellMatches = 0;
+		for (final long[] offset : gridOffsets) {
+			final FinalInterval cell = new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
+			final MultiConsensusFilter<RigidModel2D> filter = new MultiConsensusFilter<>(RigidModel2D::new, 1000, 5, 0, 7, 0L);
+			final ArrayList<PointMatch> matches = Align.filterMatchSIFT(
+					Views.interval(Transform.createTransformedInterval(b, interval, transformB, new FloatType(0)), cell),
+					Views.interval(Transform.createTransformedInterval(a, interval, transformA, new FloatType(0)), cell),
+					SparkPairAlignSIFT.maxScale,
+					SparkPairAlignSIFT.minScale,
+					SparkPairAlignSIFT.fdSize,
+					0.92,
+					1.0,
+					filter);
+			numCellMatches += matches.size();
+		}
+		final long cellTime = System.currentTimeMillis() - time;
+
+		/* per face */
+		time = System.currentTimeMillis();
+		final FeatureIndex featuresA = new FeatureIndex(FeatureStore.extractFeatures(a, gridCellWidth, gridCellWidth / 8, SparkPairAlignSIFT.maxScale, SparkPairAlignSIFT.minScale, SparkPairAlignSIFT.fdSize));
+		final FeatureIndex featuresB = new FeatureIndex(FeatureStore.extractFeatures(b, gridCellWidth, gridCellWidth / 8, SparkPairAlignSIFT.maxScale, SparkPairAlignSIFT.minScale, SparkPairAlignSIFT.fdSize));
+		final long extractionTime = System.currentTimeMillis() - time;
+		int numFaceMatches = 0;
+		for (final long[] offset : gridOffsets) {
+			final FinalInterval cell = new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
+			final MultiConsensusFilter<RigidModel2D> filter = new MultiConsensusFilter<>(RigidModel2D::new, 1000, 5, 0, 7, 0L);
+			final ArrayList<PointMatch> matches = Align.filterMatchFeatures(
+					FeatureStore.transformFeatures(featuresB, transformB, cell),
+					FeatureStore.transformFeatures(featuresA, transformA, cell),
+					0.92,
+					filter);
+			numFaceMatches += matches.size();
+		}
+		final long faceTime = System.currentTimeMillis() - time;
+
+		System.out.println(gridOffsets.size() + " grid cells");
+		System.out.println("per cell: " + numCellMatches + " matches in " + cellTime + "ms");
+		System.out.println("per face: " + numFaceMatches + " matches in " + faceTime + "ms, " + extractionTime + "ms of which for extracting " + (featuresA.size() + featuresB.size()) + " features");
+	}
+}
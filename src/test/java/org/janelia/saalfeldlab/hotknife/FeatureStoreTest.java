@@ -0,0 +1,192 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.FeatureIndex;
+import org.janelia.saalfeldlab.hotknife.util.FeatureStore;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.array.ArrayLocalizingCursor;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class FeatureStoreTest {
+
+	private String n5Path;
+
+	@Before
+	public void setUp() throws IOException {
+
+		n5Path = Files.createTempDirectory("hot-knife-feature-store-test-").toString() + "/test.n5";
+		FeatureStore.clearCache();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		FeatureStore.clearCache();
+		new N5FSWriter(n5Path).remove();
+	}
+
+	private static ArrayList<Feature> createFeatures(final int numFeatures, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final ArrayList<Feature> features = new ArrayList<>();
+		for (int i = 0; i < numFeatures; ++i) {
+			final float[] descriptor = new float[128];
+			for (int j = 0; j < descriptor.length; ++j)
+				descriptor[j] = rnd.nextFloat();
+			features.add(
+					new Feature(
+							1 + rnd.nextDouble() * 4,
+							(rnd.nextDouble() - 0.5) * 2 * Math.PI,
+							new double[]{rnd.nextDouble() * 512, rnd.nextDouble() * 512},
+							descriptor));
+		}
+		return features;
+	}
+
+	/**
+	 * A smooth, non-linear deformation of 512x512 pixels.
+	 */
+	private static RealTransform createDeformation() {
+
+		final ArrayImg<DoubleType, ?> positionField = ArrayImgs.doubles(512, 512, 2);
+		final ArrayLocalizingCursor<DoubleType> c = positionField.localizingCursor();
+		while (c.hasNext()) {
+			final DoubleType t = c.next();
+			final double x = c.getDoublePosition(0);
+			final double y = c.getDoublePosition(1);
+			if (c.getIntPosition(2) == 0)
+				t.set(x + 3 * Math.sin(y / 40) + 20);
+			else
+				t.set(y + 3 * Math.cos(x / 40) - 10);
+		}
+		return Transform.createPositionFieldTransform(positionField);
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		final ArrayList<Feature> features = createFeatures(40000, 0);
+		final String group = FeatureStore.featureGroup("/face", 2);
+
+		assertFalse(FeatureStore.exists(n5, group, 1024, 128, 1.0, 0.5, 4));
+
+		FeatureStore.save(n5, group, features, 1024, 128, 1.0, 0.5, 4);
+
+		assertTrue(FeatureStore.exists(n5, group, 1024, 128, 1.0, 0.5, 4));
+		assertFalse(FeatureStore.exists(n5, group, 512, 128, 1.0, 0.5, 4));
+
+		final List<Feature> loaded = FeatureStore.get(n5Path, group).getFeatures();
+		assertEquals(features.size(), loaded.size());
+		for (int i = 0; i < features.size(); ++i) {
+			final Feature a = features.get(i);
+			final Feature b = loaded.get(i);
+			assertArrayEquals(a.location, b.location, 0.001);
+			assertEquals(a.scale, b.scale, 0.001);
+			assertEquals(a.orientation, b.orientation, 0.001);
+			assertArrayEquals(a.descriptor, b.descriptor, 0);
+		}
+
+		/* served from the cache until invalidated */
+		assertTrue(loaded == FeatureStore.get(n5Path, group).getFeatures());
+
+		FeatureStore.save(n5, group, new ArrayList<>(), 1024, 128, 1.0, 0.5, 4);
+		assertEquals(0, FeatureStore.load(n5, group).size());
+		assertTrue(loaded == FeatureStore.get(n5Path, group).getFeatures());
+
+		FeatureStore.invalidate(n5Path, group);
+		assertEquals(0, FeatureStore.get(n5Path, group).getFeatures().size());
+	}
+
+	@Test
+	public void testFeatureIndex() {
+
+		final ArrayList<Feature> features = createFeatures(10000, 2);
+		final FeatureIndex index = new FeatureIndex(features);
+		final Random rnd = new Random(3);
+		for (int k = 0; k < 100; ++k) {
+			final double[] min = new double[]{rnd.nextDouble() * 600 - 50, rnd.nextDouble() * 600 - 50};
+			final double[] max = new double[]{min[0] + rnd.nextDouble() * 200, min[1] + rnd.nextDouble() * 200};
+
+			final ArrayList<Feature> expected = new ArrayList<>();
+			for (final Feature f : features)
+				if (f.location[0] >= min[0] && f.location[0] <= max[0] && f.location[1] >= min[1] && f.location[1] <= max[1])
+					expected.add(f);
+
+			final ArrayList<Feature> contained = index.containedFeatures(min, max);
+			assertEquals(expected.size(), contained.size());
+			for (int i = 0; i < expected.size(); ++i)
+				assertTrue(expected.get(i) == contained.get(i));
+		}
+
+		assertEquals(0, new FeatureIndex(new ArrayList<>()).containedFeatures(new double[]{0, 0}, new double[]{1, 1}).size());
+	}
+
+	@Test
+	public void testTransformFeatures() {
+
+		final RealTransform deformation = createDeformation();
+		final ArrayList<Feature> features = createFeatures(10000, 1);
+		final FinalInterval cell = new FinalInterval(new long[]{100, 50}, new long[]{355, 305});
+
+		final ArrayList<Feature> transformed = FeatureStore.transformFeatures(features, deformation, cell);
+
+		final double[] source = new double[2];
+		for (final Feature feature : transformed) {
+			assertTrue(feature.location[0] >= 100 && feature.location[0] < 356);
+			assertTrue(feature.location[1] >= 50 && feature.location[1] < 306);
+			deformation.apply(feature.location, source);
+			boolean found = false;
+			for (final Feature f : features)
+				found |= f.descriptor == feature.descriptor && Math.hypot(f.location[0] - source[0], f.location[1] - source[1]) < 0.01;
+			assertTrue(found);
+		}
+
+		/* all features that map into the cell are found */
+		int count = 0;
+		for (final Feature f : features) {
+			final double x = f.location[0] - 20;
+			final double y = f.location[1] + 10;
+			if (x >= 104 && x < 352 && y >= 54 && y < 302)
+				++count;
+		}
+		assertTrue(transformed.size() >= count);
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Flattens a 128^3 block through the per-pixel {@link FlattenTransform} and
+ * with {@link FlattenColumns}, and reports the throughput of both and the
+ * largest difference of their outputs.
+ */
+public class FlattenColumnsBenchmark {
+
+	public static void main(final String... args) {
+
+		final RandomAccessibleInterval<UnsignedByteType> raw = FlattenTransformTest.createRaw(128, 128, 256);
+		final RealRandomAccessible<DoubleType> minSurface = FlattenTransformTest.createSurface(128, 128, 40, 10, 11);
+		final RealRandomAccessible<DoubleType> maxSurface = FlattenTransformTest.createSurface(128, 128, 200, 15, 13);
+		final Interval interval = new FinalInterval(new long[] {0, 0, 36}, new long[] {127, 127, 163});
+		final long numVoxels = Intervals.numElements(interval);
+
+		for (int i = 0; i < 3; ++i) {
+
+			long t = System.nanoTime();
+			final RandomAccessibleInterval<UnsignedByteType> reference =
+					FlattenTransformTest.flattenWithTransform(raw, minSurface, maxSurface, interval);
+			final double transformSeconds = (System.nanoTime() - t) * 1e-9;
+
+			t = System.nanoTime();
+			final RandomAccessibleInterval<UnsignedByteType> columns =
+					FlattenTransformTest.flattenColumns(raw, minSurface, maxSurface, interval);
+			final double columnsSeconds = (System.nanoTime() - t) * 1e-9;
+
+			int maxDifference = 0;
+			final Cursor<UnsignedByteType> r = Views.flatIterable(reference).cursor();
+			final Cursor<UnsignedByteType> c = Views.flatIterable(columns).cursor();
+			while (r.hasNext())
+				maxDifference = Math.max(maxDifference, Math.abs(r.next().get() - c.next().get()));
+
+			System.out.println(String.format(
+					"128^3 block: FlattenTransform %.1f Mvoxel/s, columns %.1f Mvoxel/s, max difference %d",
+					numVoxels / transformSeconds * 1e-6,
+					numVoxels / columnsSeconds * 1e-6,
+					maxDifference));
+		}
+	}
+}
@@ -4,16 +4,28 @@
 package org.janelia.saalfeldlab.hotknife;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 import java.util.Arrays;
+import java.util.Random;
 
+import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.junit.Test;
 
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 
 /**
@@ -95,4 +107,90 @@ public class FlattenTransformTest {
 			assertArrayEquals(testVectors[i], source, 0.01);
 		}
 	}
+
+	static RealRandomAccessible<DoubleType> createSurface(
+			final long width,
+			final long height,
+			final double offset,
+			final double amplitude,
+			final double period) {
+
+		final ArrayImg<DoubleType, DoubleArray> surface = ArrayImgs.doubles(width, height);
+		final Cursor<DoubleType> cursor = surface.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(
+					offset +
+					amplitude * Math.sin(cursor.getDoublePosition(0) / period) *
+					Math.cos(cursor.getDoublePosition(1) / period / 1.7));
+		}
+		return Views.interpolate(Views.extendBorder(surface), new NLinearInterpolatorFactory<>());
+	}
+
+	static RandomAccessibleInterval<UnsignedByteType> createRaw(final long... dimensions) {
+
+		final Random rnd = new Random(1);
+		final ArrayImg<UnsignedByteType, ?> raw = ArrayImgs.unsignedBytes(dimensions);
+		for (final UnsignedByteType t : raw)
+			t.set(rnd.nextInt(256));
+		return raw;
+	}
+
+	static RandomAccessibleInterval<UnsignedByteType> flattenWithTransform(
+			final RandomAccessibleInterval<UnsignedByteType> raw,
+			final RealRandomAccessible<DoubleType> minSurface,
+			final RealRandomAccessible<DoubleType> maxSurface,
+			final Interval interval) {
+
+		final ArrayImg<UnsignedByteType, ?> block = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(interval));
+		final RandomAccessibleInterval<UnsignedByteType> flattened =
+				Transform.createTransformedInterval(
+						raw,
+						interval,
+						new FlattenTransform<>(minSurface, maxSurface, minPosition, maxPosition).inverse(),
+						new UnsignedByteType());
+		final Cursor<UnsignedByteType> source = Views.flatIterable(flattened).cursor();
+		for (final UnsignedByteType t : block)
+			t.set(source.next());
+		return Views.translate(block, Intervals.minAsLongArray(interval));
+	}
+
+	static RandomAccessibleInterval<UnsignedByteType> flattenColumns(
+			final RandomAccessibleInterval<UnsignedByteType> raw,
+			final RealRandomAccessible<DoubleType> minSurface,
+			final RealRandomAccessible<DoubleType> maxSurface,
+			final Interval interval) {
+
+		final RandomAccessibleInterval<UnsignedByteType> block =
+				Views.translate(
+						ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(interval)),
+						Intervals.minAsLongArray(interval));
+		FlattenColumns.flatten(
+				Views.extendValue(raw, new UnsignedByteType()),
+				minSurface,
+				maxSurface,
+				minPosition,
+				maxPosition,
+				block);
+		return block;
+	}
+
+	@Test
+	public void testFlattenColumns() {
+
+		final RandomAccessibleInterval<UnsignedByteType> raw = createRaw(48, 40, 160);
+		final RealRandomAccessible<DoubleType> minSurface = createSurface(48, 40, 30, 8, 7);
+		final RealRandomAccessible<DoubleType> maxSurface = createSurface(48, 40, 120, 12, 5);
+
+		/* padded beyond the flattened min and max, partially outside of raw */
+		final Interval interval = new FinalInterval(new long[] {-2, 3, 90}, new long[] {45, 39, 210});
+
+		final RandomAccessibleInterval<UnsignedByteType> reference = flattenWithTransform(raw, minSurface, maxSurface, interval);
+		final RandomAccessibleInterval<UnsignedByteType> columns = flattenColumns(raw, minSurface, maxSurface, interval);
+
+		final Cursor<UnsignedByteType> r = Views.flatIterable(reference).cursor();
+		final Cursor<UnsignedByteType> c = Views.flatIterable(columns).cursor();
+		while (r.hasNext())
+			assertEquals(r.next().get(), c.next().get(), 1);
+	}
 }
@@ -0,0 +1,181 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.KDForestMatcher;
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+public class KDForestMatcherTest {
+
+	static final int numFeatures = 100000;
+	static final int numQueries = 1000;
+	static final int descriptorSize = 128;
+	static final int latentSize = 12;
+
+	/**
+	 * Descriptors are normalized non-negative random projections of a
+	 * low-dimensional latent vector, like SIFT descriptors they have a much
+	 * lower intrinsic than nominal dimension.
+	 */
+	static float[] createDescriptor(final double[][] projection, final double[] z) {
+
+		final float[] descriptor = new float[descriptorSize];
+		double norm = 0;
+		for (int i = 0; i < descriptorSize; ++i) {
+			double x = 0;
+			for (int j = 0; j < latentSize; ++j)
+				x += projection[i][j] * z[j];
+			descriptor[i] = (float)Math.abs(x);
+			norm += x * x;
+		}
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < descriptorSize; ++i)
+			descriptor[i] /= norm;
+
+		return descriptor;
+	}
+
+	static Feature createFeature(final Random rnd, final double[][] projection, final double[] z) {
+
+		return new Feature(
+				1,
+				0,
+				new double[]{rnd.nextDouble() * 10000, rnd.nextDouble() * 10000},
+				createDescriptor(projection, z));
+	}
+
+	static double[] randomLatent(final Random rnd) {
+
+		final double[] z = new double[latentSize];
+		for (int j = 0; j < latentSize; ++j)
+			z[j] = rnd.nextGaussian();
+		return z;
+	}
+
+	/**
+	 * Creates two feature sets of which half of the second are noisy copies
+	 * of features of the first and the rest are distractors.
+	 */
+	static List<List<Feature>> createFeatureSets(final long seed) {
+
+		final Random rnd = new Random(seed);
+		final double[][] projection = new double[descriptorSize][latentSize];
+		for (final double[] row : projection)
+			for (int j = 0; j < latentSize; ++j)
+				row[j] = rnd.nextGaussian();
+
+		final ArrayList<Feature> fs1 = new ArrayList<>();
+		final ArrayList<Feature> fs2 = new ArrayList<>();
+		for (int i = 0; i < numFeatures; ++i) {
+			final double[] z = randomLatent(rnd);
+			fs1.add(createFeature(rnd, projection, z));
+			if (i % 2 == 0) {
+				for (int j = 0; j < latentSize; ++j)
+					z[j] += rnd.nextGaussian() * 0.2;
+				fs2.add(createFeature(rnd, projection, z));
+			} else
+				fs2.add(createFeature(rnd, projection, randomLatent(rnd)));
+		}
+		Collections.shuffle(fs2, rnd);
+
+		final ArrayList<List<Feature>> sets = new ArrayList<>();
+		sets.add(fs1);
+		sets.add(fs2);
+		return sets;
+	}
+
+	static HashSet<List<Double>> matchKeys(final List<PointMatch> matches) {
+
+		final HashSet<List<Double>> keys = new HashSet<>();
+		for (final PointMatch match : matches) {
+			final double[] p1 = match.getP1().getL();
+			final double[] p2 = match.getP2().getL();
+			final ArrayList<Double> key = new ArrayList<>();
+			key.add(p1[0]);
+			key.add(p1[1]);
+			key.add(p2[0]);
+			key.add(p2[1]);
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	@Test
+	public void testRecall() {
+
+		final List<List<Feature>> sets = createFeatureSets(0);
+		final List<Feature> queries = sets.get(0).subList(0, numQueries);
+		final List<Feature> fs2 = sets.get(1);
+
+		long time = System.currentTimeMillis();
+		final ArrayList<PointMatch> bruteForceMatches = Align.matchFeatures(queries, fs2, 0.92);
+		final long bruteForceTime = System.currentTimeMillis() - time;
+
+		time = System.currentTimeMillis();
+		final ArrayList<PointMatch> kdForestMatches = new KDForestMatcher().match(queries, fs2, 0.92);
+		final long kdForestTime = System.currentTimeMillis() - time;
+
+		final HashSet<List<Double>> bruteForceKeys = matchKeys(bruteForceMatches);
+		final HashSet<List<Double>> kdForestKeys = matchKeys(kdForestMatches);
+		int numRecovered = 0;
+		for (final List<Double> key : kdForestKeys)
+			if (bruteForceKeys.contains(key))
+				++numRecovered;
+
+		System.out.println(
+				String.format(
+						"brute force: %d matches in %dms, k-d forest: %d matches in %dms, %d recovered",
+						bruteForceMatches.size(),
+						bruteForceTime,
+						kdForestMatches.size(),
+						kdForestTime,
+						numRecovered));
+
+		assertTrue(bruteForceMatches.size() > numQueries / 4);
+		assertTrue(numRecovered >= 0.98 * bruteForceMatches.size());
+	}
+
+	@Test
+	public void testThreads() {
+
+		final List<List<Feature>> sets = createFeatureSets(1);
+		final List<Feature> queries = sets.get(0).subList(0, numQueries * 10);
+
+		final ArrayList<PointMatch> matches1 = new KDForestMatcher(1).match(queries, sets.get(1), 0.92);
+		final ArrayList<PointMatch> matches4 = new KDForestMatcher(4).match(queries, sets.get(1), 0.92);
+
+		assertEquals(matches1.size(), matches4.size());
+		for (int i = 0; i < matches1.size(); ++i) {
+			assertArrayEquals(matches1.get(i).getP1().getL(), matches4.get(i).getP1().getL(), 0);
+			assertArrayEquals(matches1.get(i).getP2().getL(), matches4.get(i).getP2().getL(), 0);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.mpicbg.scf.mincostsurface.MinCostZSurface;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Extracts the surface from a noisy synthetic cost volume with
+ * {@link MinCostZSurface}, with {@link MinCostZSurfaceSolver} over the full
+ * depth and with {@link MinCostZSurfaceSolver} in a band around the true
+ * surface.
+ */
+public class MinCostZSurfaceSolverTest {
+
+	private static final int width = 96;
+	private static final int height = 80;
+	private static final int depth = 64;
+	private static final int maxDz = 1;
+	private static final int delta = 8;
+
+	private static double trueSurface(final int x, final int y) {
+
+		return 32 + 12 * Math.sin(x / 25.0) * Math.cos(y / 20.0);
+	}
+
+	private static float[] createCost() {
+
+		final Random rnd = new Random(0);
+		final float[] cost = new float[width * height * depth];
+		for (int z = 0; z < depth; ++z) {
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					final double dz = (z - trueSurface(x, y)) / 3.0;
+					cost[(z * height + y) * width + x] = (float)(200 * (1 - Math.exp(-dz * dz)) + 40 * rnd.nextDouble());
+				}
+			}
+		}
+		return cost;
+	}
+
+	private static double surfaceCost(final float[] cost, final int[] surface) {
+
+		double sum = 0;
+		for (int c = 0; c < surface.length; ++c)
+			sum += cost[surface[c] * width * height + c];
+		return sum;
+	}
+
+	private static void assertSlope(final int[] surface) {
+
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int c = y * width + x;
+				if (x > 0)
+					assertTrue(Math.abs(surface[c] - surface[c - 1]) <= maxDz);
+				if (y > 0)
+					assertTrue(Math.abs(surface[c] - surface[c - width]) <= maxDz);
+			}
+		}
+	}
+
+	@Test
+	public void testBandedEqualsUnbanded() {
+
+		final float[] cost = createCost();
+		final MinCostZSurfaceSolver solver = new MinCostZSurfaceSolver();
+
+		/* warm up */
+		solver.solve(cost, width, height, depth, null, null, maxDz);
+
+		long t = System.currentTimeMillis();
+		final int[] unbanded = solver.solve(cost, width, height, depth, null, null, maxDz);
+		final long unbandedTime = System.currentTimeMillis() - t;
+
+		final int[] lo = new int[width * height];
+		final int[] hi = new int[width * height];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int c = y * width + x;
+				final int z = (int)Math.round(trueSurface(x, y));
+				lo[c] = z - delta;
+				hi[c] = z + delta;
+				assertTrue(unbanded[c] > lo[c] && unbanded[c] < hi[c]);
+			}
+		}
+
+		t = System.currentTimeMillis();
+		final int[] banded = solver.solve(cost, width, height, depth, lo, hi, maxDz);
+		final long bandedTime = System.currentTimeMillis() - t;
+
+		System.out.println("unbanded " + unbandedTime + "ms, banded +-" + delta + " " + bandedTime + "ms");
+
+		assertSlope(unbanded);
+		assertArrayEquals(unbanded, banded);
+	}
+
+	@Test
+	public void testAgainstMinCostZSurface() {
+
+		final float[] cost = createCost();
+
+		long t = System.currentTimeMillis();
+		final int[] surface = new MinCostZSurfaceSolver().solve(cost, width, height, depth, null, null, maxDz);
+		final long solverTime = System.currentTimeMillis() - t;
+
+		t = System.currentTimeMillis();
+		final MinCostZSurface<FloatType> zSurfaceDetector = new MinCostZSurface<>();
+		zSurfaceDetector.Create_Surface_Graph(ArrayImgs.floats(cost, width, height, depth), maxDz);
+		zSurfaceDetector.Process();
+		final Img<IntType> altitudes = zSurfaceDetector.get_Altitude_MapInt(1);
+		final long minCostZSurfaceTime = System.currentTimeMillis() - t;
+
+		final int[] reference = new int[width * height];
+		final Cursor<IntType> cursor = altitudes.localizingCursor();
+		while (cursor.hasNext()) {
+			final int altitude = cursor.next().get();
+			reference[cursor.getIntPosition(1) * width + cursor.getIntPosition(0)] = altitude - 1;
+		}
+
+		System.out.println("MinCostZSurfaceSolver " + solverTime + "ms, MinCostZSurface " + minCostZSurfaceTime + "ms");
+
+		assertSlope(surface);
+
+		/* costs are quantized, so equally good surfaces may differ slightly */
+		assertEquals(surfaceCost(cost, reference), surfaceCost(cost, surface), width * height / 1024.0);
+	}
+}
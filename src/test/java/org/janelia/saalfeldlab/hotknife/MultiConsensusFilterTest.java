@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+
+/**
+ * Finds 5 rigid consensus sets in 2,000 synthetic matches with
+ * {@link MultiConsensusFilter} and compares with peeling by
+ * {@link RigidModel2D#filterRansac} and {@link ArrayList#removeAll}.
+ */
+public class MultiConsensusFilterTest {
+
+	static final int numSets = 5;
+	static final int numMatchesPerSet = 400;
+
+	static final int numIterations = 200;
+	static final double maxEpsilon = 5;
+	static final int minNumInliers = 100;
+
+	/**
+	 * Creates numSets * numMatchesPerSet matches in random order, the
+	 * matches of set k are transformed by a rotation of k * 0.01 and a
+	 * translation of (k * 1000, 0) with Gaussian noise (sigma = 0.5px).
+	 *
+	 * @return the matches and the set index of each match
+	 */
+	static ArrayList<PointMatch> createMatches(final IdentityHashMap<PointMatch, Integer> sets, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int i = 0; i < numSets * numMatchesPerSet; ++i) {
+			final int k = rnd.nextInt(numSets);
+			final double angle = k * 0.01;
+			final double x = rnd.nextDouble() * 10000;
+			final double y = rnd.nextDouble() * 10000;
+			final PointMatch match = new PointMatch(
+					new Point(new double[]{x, y}),
+					new Point(new double[]{
+							Math.cos(angle) * x - Math.sin(angle) * y + k * 1000 + rnd.nextGaussian() * 0.5,
+							Math.sin(angle) * x + Math.cos(angle) * y + rnd.nextGaussian() * 0.5}));
+			matches.add(match);
+			sets.put(match, k);
+		}
+		return matches;
+	}
+
+	/**
+	 * Checks that each consensus set contains almost all matches of one
+	 * ground truth set and no others.  Sets are drawn at random, so their
+	 * sizes vary around numMatchesPerSet.
+	 */
+	private static void assertSets(
+			final ArrayList<ArrayList<PointMatch>> consensusSets,
+			final IdentityHashMap<PointMatch, Integer> sets) {
+
+		assertEquals(numSets, consensusSets.size());
+
+		final int[] setSizes = new int[numSets];
+		for (final int k : sets.values())
+			++setSizes[k];
+
+		final boolean[] found = new boolean[numSets];
+		for (final ArrayList<PointMatch> consensusSet : consensusSets) {
+			final int k = sets.get(consensusSet.get(0));
+			assertTrue("set " + k + " found twice", !found[k]);
+			found[k] = true;
+			for (final PointMatch match : consensusSet)
+				assertEquals(k, (int)sets.get(match));
+			assertTrue("set " + k + " size " + consensusSet.size(), consensusSet.size() > 0.95 * setSizes[k]);
+		}
+	}
+
+	/**
+	 * Checks that two lists of consensus sets contain the same sets of
+	 * matches, in any order.
+	 */
+	private static void assertSameSets(
+			final ArrayList<ArrayList<PointMatch>> expected,
+			final ArrayList<ArrayList<PointMatch>> actual) {
+
+		assertEquals(expected.size(), actual.size());
+		for (final ArrayList<PointMatch> actualSet : actual) {
+			final Set<PointMatch> actualMatches = Collections.newSetFromMap(new IdentityHashMap<>());
+			actualMatches.addAll(actualSet);
+			boolean found = false;
+			for (final ArrayList<PointMatch> expectedSet : expected) {
+				if (expectedSet.size() == actualSet.size() && actualMatches.containsAll(expectedSet)) {
+					found = true;
+					break;
+				}
+			}
+			assertTrue("consensus set of " + actualSet.size() + " matches not found", found);
+		}
+	}
+
+	@Test
+	public void testMultiConsensusSets() {
+
+		final IdentityHashMap<PointMatch, Integer> sets = new IdentityHashMap<>();
+		final ArrayList<PointMatch> matches = createMatches(sets, 0);
+
+		/* reference, peeling with mpicbg and removeAll */
+		final ArrayList<PointMatch> referenceCandidates = new ArrayList<>(matches);
+		final ArrayList<ArrayList<PointMatch>> referenceSets = new ArrayList<>();
+		while (true) {
+			final RigidModel2D model = new RigidModel2D();
+			final ArrayList<PointMatch> inliers = new ArrayList<>();
+			boolean modelFound;
+			try {
+				modelFound = model.filterRansac(referenceCandidates, inliers, numIterations, maxEpsilon, 0, minNumInliers, 3f);
+			} catch (final Exception e) {
+				modelFound = false;
+			}
+			if (!modelFound)
+				break;
+			referenceSets.add(inliers);
+			referenceCandidates.removeAll(inliers);
+		}
+
+		assertSets(referenceSets, sets);
+
+		final ArrayList<PointMatch> candidates = new ArrayList<>(matches);
+		final ArrayList<ArrayList<PointMatch>> consensusSets =
+				new MultiConsensusFilter<>(RigidModel2D::new, numIterations, maxEpsilon, 0, minNumInliers, 0L, 4).filterMultiConsensusSets(candidates);
+
+		assertSameSets(referenceSets, consensusSets);
+		int numInliers = 0;
+		for (final ArrayList<PointMatch> consensusSet : consensusSets)
+			numInliers += consensusSet.size();
+		assertEquals(matches.size() - numInliers, candidates.size());
+	}
+
+	/**
+	 * A dominant first consensus set must not prevent finding smaller sets
+	 * with a lower inlier ratio in later rounds, seeded or not.
+	 */
+	@Test
+	public void testUnequalSets() {
+
+		final IdentityHashMap<PointMatch, Integer> sets = new IdentityHashMap<>();
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		int i = 0;
+		for (final PointMatch match : createMatches(sets, 2))
+			if (sets.get(match) == 0 || i++ % 4 == 0)
+				matches.add(match);
+
+		for (final Long seed : new Long[]{null, 2L}) {
+			final ArrayList<ArrayList<PointMatch>> consensusSets =
+					new MultiConsensusFilter<>(RigidModel2D::new, numIterations, maxEpsilon, 0, minNumInliers / 4, seed).filterMultiConsensusSets(new ArrayList<>(matches));
+
+			assertEquals("seed " + seed, numSets, consensusSets.size());
+			for (final ArrayList<PointMatch> consensusSet : consensusSets)
+				for (final PointMatch match : consensusSet)
+					assertEquals(sets.get(consensusSet.get(0)), sets.get(match));
+		}
+	}
+
+	@Test
+	public void testReproducible() {
+
+		final IdentityHashMap<PointMatch, Integer> sets = new IdentityHashMap<>();
+		final ArrayList<PointMatch> matches = createMatches(sets, 1);
+
+		final ArrayList<ArrayList<PointMatch>> singleThreaded =
+				new MultiConsensusFilter<>(RigidModel2D::new, numIterations, maxEpsilon, 0, minNumInliers, 1L, 1).filterMultiConsensusSets(new ArrayList<>(matches));
+		final ArrayList<ArrayList<PointMatch>> multiThreaded =
+				new MultiConsensusFilter<>(RigidModel2D::new, numIterations, maxEpsilon, 0, minNumInliers, 1L, 4).filterMultiConsensusSets(new ArrayList<>(matches));
+
+		final ExecutorService service = Executors.newFixedThreadPool(3);
+		final ArrayList<ArrayList<PointMatch>> ownService;
+		try {
+			ownService = new MultiConsensusFilter<>(RigidModel2D::new, numIterations, maxEpsilon, 0, minNumInliers, 1L, service).filterMultiConsensusSets(new ArrayList<>(matches));
+		} finally {
+			service.shutdown();
+		}
+
+		assertSets(singleThreaded, sets);
+		assertSameOrder(singleThreaded, multiThreaded);
+		assertSameOrder(singleThreaded, ownService);
+	}
+
+	private static void assertSameOrder(final ArrayList<ArrayList<PointMatch>> expected, final ArrayList<ArrayList<PointMatch>> actual) {
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).size(), actual.get(i).size());
+			for (int j = 0; j < expected.get(i).size(); ++j)
+				assertSame(expected.get(i).get(j), actual.get(i).get(j));
+		}
+	}
+}
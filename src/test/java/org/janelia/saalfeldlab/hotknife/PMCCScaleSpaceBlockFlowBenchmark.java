@@ -0,0 +1,65 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.concurrent.ForkJoinPool;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Computes the block PMCC flow of a shifted 2048x2048 texture pair with the
+ * reference engine and with {@link IntegralPMCCBlockFlow} on all available
+ * processors, and reports the times and the largest difference of the
+ * correlation coefficients.
+ */
+public class PMCCScaleSpaceBlockFlowBenchmark {
+
+	public static void main(final String... args) {
+
+		final FloatProcessor[] ips = PMCCScaleSpaceBlockFlowTest.createShiftedPair(2048, 1, 2, 23);
+		final int distance = 3;
+
+		long t = System.currentTimeMillis();
+		final ImageStack[] reference = PMCCScaleSpaceBlockFlowTest.runOpticFlow(PMCCScaleSpaceBlockFlow.REFERENCE, ips[0], ips[1], distance);
+		final long tReference = System.currentTimeMillis() - t;
+
+		final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		t = System.currentTimeMillis();
+		final ImageStack[] integral = PMCCScaleSpaceBlockFlowTest.runOpticFlow(new IntegralPMCCBlockFlow(pool), ips[0], ips[1], distance);
+		final long tIntegral = System.currentTimeMillis() - t;
+		pool.shutdown();
+
+		double maxDifference = 0;
+		for (int i = 0; i < reference[0].getSize(); ++i) {
+			final float[] rReference = (float[])reference[0].getImageArray()[i];
+			final float[] rIntegral = (float[])integral[0].getImageArray()[i];
+			for (int j = 0; j < rReference.length; ++j)
+				maxDifference = Math.max(maxDifference, Math.abs(rReference[j] - rIntegral[j]));
+		}
+
+		System.out.println(
+				String.format(
+						"2048x2048 block PMCC flow, distance %d: reference %dms, integral %dms with %d threads, speedup %.2f, max r difference %g",
+						distance,
+						tReference,
+						tIntegral,
+						pool.getParallelism(),
+						(double)tReference / tIntegral,
+						maxDifference));
+	}
+}
@@ -1,14 +1,23 @@
 package org.janelia.saalfeldlab.hotknife;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
 import org.janelia.saalfeldlab.hotknife.util.Show;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
 import ij.process.FloatProcessor;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.PositionFieldTransform;
@@ -35,6 +44,194 @@ public class PMCCScaleSpaceBlockFlowTest {
 	public void tearDown() throws Exception {
 	}
 
+	/**
+	 * Smooth random texture and a copy shifted by (dx, dy) with some noise.
+	 */
+	static FloatProcessor[] createShiftedPair(final int size, final int dx, final int dy, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final FloatProcessor texture = new FloatProcessor(size + 2 * Math.abs(dx), size + 2 * Math.abs(dy));
+		final float[] texturePixels = (float[])texture.getPixels();
+		for (int i = 0; i < texturePixels.length; ++i)
+			texturePixels[i] = rnd.nextFloat() * 255;
+		new GaussianBlur().blurGaussian(texture, 1.5);
+
+		final FloatProcessor ip1 = new FloatProcessor(size, size);
+		final FloatProcessor ip2 = new FloatProcessor(size, size);
+		for (int y = 0; y < size; ++y) {
+			for (int x = 0; x < size; ++x) {
+				ip1.setf(x, y, texture.getf(x + Math.abs(dx), y + Math.abs(dy)));
+				ip2.setf(x, y, texture.getf(x + Math.abs(dx) + dx, y + Math.abs(dy) + dy) + (float)rnd.nextGaussian());
+			}
+		}
+		return new FloatProcessor[] {ip1, ip2};
+	}
+
+	static ImageStack[] runOpticFlow(
+			final PMCCScaleSpaceBlockFlow.OpticFlow engine,
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance) {
+
+		final ImageStack r = new ImageStack(ip1.getWidth(), ip1.getHeight());
+		final ImageStack shiftVectors = new ImageStack(ip1.getWidth(), ip1.getHeight());
+		engine.opticFlow(ip1, ip2, distance, r, shiftVectors, 1.5);
+		return new ImageStack[] {r, shiftVectors};
+	}
+
+	/**
+	 * Checks that the correlation coefficients of the integral engine match
+	 * those of the reference engine and that the shift vectors differ only
+	 * where two offsets have the same r within rounding.
+	 */
+	private static void assertMatchesReference(final ImageStack[] reference, final ImageStack[] integral) {
+
+		assertEquals(reference[0].getSize(), integral[0].getSize());
+		assertEquals(reference[1].getSize(), integral[1].getSize());
+
+		long numShiftMismatches = 0;
+		long numShifts = 0;
+		for (int i = 0; i < reference[0].getSize(); ++i) {
+
+			final float[] rReference = (float[])reference[0].getImageArray()[i];
+			final float[] rIntegral = (float[])integral[0].getImageArray()[i];
+			final short[] xReference = (short[])reference[1].getImageArray()[i << 1];
+			final short[] xIntegral = (short[])integral[1].getImageArray()[i << 1];
+			final short[] yReference = (short[])reference[1].getImageArray()[(i << 1) | 1];
+			final short[] yIntegral = (short[])integral[1].getImageArray()[(i << 1) | 1];
+
+			for (int j = 0; j < rReference.length; ++j) {
+				assertEquals(rReference[j], rIntegral[j], 1e-5);
+				if (xReference[j] != xIntegral[j] || yReference[j] != yIntegral[j])
+					++numShiftMismatches;
+				++numShifts;
+			}
+		}
+
+		assertTrue("too many different shift vectors: " + numShiftMismatches, numShiftMismatches < numShifts / 1000);
+	}
+
+	@Test
+	public void testIntegralEngineMatchesReference() {
+
+		final FloatProcessor[] ips = createShiftedPair(256, 2, -1, 42);
+		final int distance = 4;
+
+		final ImageStack[] reference = runOpticFlow(PMCCScaleSpaceBlockFlow.REFERENCE, ips[0], ips[1], distance);
+		final ImageStack[] integral;
+		try (final IntegralPMCCBlockFlow engine = new IntegralPMCCBlockFlow(4)) {
+			integral = runOpticFlow(engine, ips[0], ips[1], distance);
+		}
+
+		assertMatchesReference(reference, integral);
+	}
+
+	/**
+	 * The engine on a shared pool, as used by
+	 * {@link PMCCScaleSpaceBlockFlowBenchmark}, produces the same output as
+	 * the reference engine.
+	 */
+	@Test
+	public void testIntegralEngineOnSharedPoolMatchesReference() {
+
+		final FloatProcessor[] ips = createShiftedPair(128, 1, 2, 23);
+		final int distance = 3;
+
+		final ImageStack[] reference = runOpticFlow(PMCCScaleSpaceBlockFlow.REFERENCE, ips[0], ips[1], distance);
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			assertMatchesReference(reference, runOpticFlow(new IntegralPMCCBlockFlow(pool), ips[0], ips[1], distance));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Counts the block PMCC passes, one per iteration.
+	 */
+	private static class CountingOpticFlow implements PMCCScaleSpaceBlockFlow.OpticFlow {
+
+		private final PMCCScaleSpaceBlockFlow.OpticFlow opticFlow;
+		private int numCalls = 0;
+
+		CountingOpticFlow(final PMCCScaleSpaceBlockFlow.OpticFlow opticFlow) {
+
+			this.opticFlow = opticFlow;
+		}
+
+		@Override
+		public void opticFlow(
+				final FloatProcessor ip1,
+				final FloatProcessor ip2,
+				final int distance,
+				final ImageStack r,
+				final ImageStack shiftVectors,
+				final double scaleFactor) {
+
+			++numCalls;
+			opticFlow.opticFlow(ip1, ip2, distance, r, shiftVectors, scaleFactor);
+		}
+	}
+
+	/**
+	 * The accumulated flow of all iterations is baked into one dense field
+	 * such that evaluating the transform costs one n-linear field lookup
+	 * regardless of the number of iterations.  Inside of the field, the
+	 * transform is therefore exactly the n-linear interpolation of its
+	 * values at the pixel positions which is not true for a chain of
+	 * interpolated transforms.
+	 */
+	@Test
+	public void testIterationsComposeIntoSingleField() {
+
+		final int size = 64;
+		final FloatProcessor[] ips = createShiftedPair(size, 2, 1, 7);
+		final IntegralPMCCBlockFlow engine = new IntegralPMCCBlockFlow();
+
+		for (final int numIterations : new int[] {1, 4, 8}) {
+
+			final CountingOpticFlow countingEngine = new CountingOpticFlow(engine);
+			final PositionFieldTransform<DoubleType> transform =
+					PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(ips[0], ips[1], (short)3, 5.0, numIterations, countingEngine).getA();
+
+			assertEquals(numIterations, countingEngine.numCalls);
+
+			final double[][] field = new double[2][size * size];
+			final double[] source = new double[2];
+			final double[] target = new double[2];
+			double maxShift = 0;
+			for (int y = 0, i = 0; y < size; ++y) {
+				for (int x = 0; x < size; ++x, ++i) {
+					source[0] = x;
+					source[1] = y;
+					transform.apply(source, target);
+					field[0][i] = target[0];
+					field[1][i] = target[1];
+					maxShift = Math.max(maxShift, Math.abs(target[0] - x) + Math.abs(target[1] - y));
+				}
+			}
+			assertTrue("flow is identity after " + numIterations + " iterations", maxShift > 0.5);
+
+			final Random rnd = new Random(numIterations);
+			for (int k = 0; k < 1000; ++k) {
+				source[0] = rnd.nextDouble() * (size - 1);
+				source[1] = rnd.nextDouble() * (size - 1);
+				transform.apply(source, target);
+
+				final int x0 = Math.min(size - 2, (int)source[0]);
+				final int y0 = Math.min(size - 2, (int)source[1]);
+				final double lambdaX = source[0] - x0;
+				final double lambdaY = source[1] - y0;
+				final int i = y0 * size + x0;
+				for (int d = 0; d < 2; ++d) {
+					final double v0 = (field[d][i + 1] - field[d][i]) * lambdaX + field[d][i];
+					final double v1 = (field[d][i + size + 1] - field[d][i + size]) * lambdaX + field[d][i + size];
+					assertEquals((v1 - v0) * lambdaY + v0, target[d], 1e-6);
+				}
+			}
+		}
+	}
+
 	static public void main(final String... args) {
 
 		new ImageJ();
@@ -0,0 +1,164 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Compares Gzip ratio and interpolation throughput of
+ * {@link Transform#PLANAR} and {@link Transform#INTERLEAVED} position
+ * fields on a synthetic smooth 2D field.
+ */
+public class PositionFieldLayoutBenchmark {
+
+	private static final int size = 4096;
+	private static final int numLookups = 10000000;
+
+	private static final RealTransform smoothTransform = new RealTransform() {
+
+		@Override
+		public int numSourceDimensions() {
+			return 2;
+		}
+
+		@Override
+		public int numTargetDimensions() {
+			return 2;
+		}
+
+		@Override
+		public void apply(final double[] source, final double[] target) {
+			final double x = source[0];
+			final double y = source[1];
+			target[0] = x + 12.5 * Math.sin(x / 731.0) * Math.cos(y / 517.0);
+			target[1] = y + 9.25 * Math.cos(x / 389.0 + y / 1033.0);
+		}
+
+		@Override
+		public void apply(final float[] source, final float[] target) {
+			final double[] tmp = new double[] {source[0], source[1]};
+			apply(tmp, tmp);
+			target[0] = (float)tmp[0];
+			target[1] = (float)tmp[1];
+		}
+
+		@Override
+		public void apply(final RealLocalizable source, final RealPositionable target) {
+			final double[] tmp = new double[2];
+			source.localize(tmp);
+			apply(tmp, tmp);
+			target.setPosition(tmp);
+		}
+
+		@Override
+		public RealTransform copy() {
+			return this;
+		}
+	};
+
+	private static long datasetBytes(final String path) throws IOException {
+
+		try (final Stream<Path> files = Files.walk(Paths.get(path))) {
+			return files
+					.filter(Files::isRegularFile)
+					.filter(p -> !p.getFileName().toString().equals("attributes.json"))
+					.mapToLong(p -> p.toFile().length())
+					.sum();
+		}
+	}
+
+	private static double lookupsPerSecond(final RealTransform transform, final int repetitions) {
+
+		final Random rnd = new Random(0);
+		final double[] p = new double[2];
+		double checksum = 0;
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < repetitions; ++r) {
+			final long t = System.nanoTime();
+			for (int i = 0; i < numLookups; ++i) {
+				p[0] = rnd.nextDouble() * (size - 1);
+				p[1] = rnd.nextDouble() * (size - 1);
+				transform.apply(p, p);
+				checksum += p[0];
+			}
+			best = Math.min(best, System.nanoTime() - t);
+		}
+		if (checksum == 42)
+			System.out.println();
+		return numLookups / (best * 1e-9);
+	}
+
+	public static void main(final String... args) throws IOException {
+
+		final String n5Path = Files.createTempDirectory("position-field-layout-").toString() + "/benchmark.n5";
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+
+		final RandomAccessibleInterval<DoubleType> positionField =
+				Transform.createPositionFieldBlock(
+						smoothTransform,
+						new FinalInterval(new long[] {size, size}));
+		final long rawBytes = Intervals.numElements(positionField) * 8;
+
+		for (final String layout : new String[] {Transform.PLANAR, Transform.INTERLEAVED}) {
+
+			final String datasetName = "/" + layout;
+			Transform.savePositionField(n5, datasetName, positionField, 1.0, new double[] {0, 0}, new double[] {size - 1, size - 1}, layout);
+			final long storedBytes = datasetBytes(n5Path + datasetName);
+
+			/* materialize in storage order to compare memory access only */
+			final RandomAccessibleInterval<DoubleType> stored = N5Utils.open(n5, datasetName);
+			final ArrayImg<DoubleType, DoubleArray> copy = ArrayImgs.doubles(Intervals.dimensionsAsLongArray(stored));
+			final Cursor<DoubleType> source = Views.flatIterable(stored).cursor();
+			for (final DoubleType t : copy)
+				t.set(source.next());
+
+			final RealTransform transform = Transform.createPositionFieldTransform(copy, layout);
+
+			System.out.println(String.format(
+					"%-12s gzip ratio %.2f (%d / %d bytes), NLinear lookups %.2f M/s",
+					layout,
+					(double)rawBytes / storedBytes,
+					rawBytes,
+					storedBytes,
+					lookupsPerSecond(transform, 5) * 1e-6));
+		}
+
+		n5.remove();
+	}
+}
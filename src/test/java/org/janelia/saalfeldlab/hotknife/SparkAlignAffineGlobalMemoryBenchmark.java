@@ -0,0 +1,143 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.SizeEstimator;
+import org.janelia.saalfeldlab.hotknife.util.KDForestMatcher;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import scala.Tuple2;
+
+/**
+ * Matches the block faces of a synthetic series of 30 slabs with
+ * {@link SparkAlignAffineGlobal} and reports how much driver memory the
+ * features would occupy if collected to the driver, as they were before
+ * matching was distributed, and how much the filtered matches occupy that
+ * are collected for optimization.
+ */
+public class SparkAlignAffineGlobalMemoryBenchmark {
+
+	static final int numSlabs = 30;
+	static final int numFeatures = 20000;
+
+	/**
+	 * The bottom face of slab k and the top face of slab k + 1 share
+	 * features that are slightly rotated, shifted and noisy.
+	 */
+	static ArrayList<Feature> createFeatures(final int faceIndex) {
+
+		final int pairIndex = (faceIndex + 1) / 2;
+		final Random pairRnd = new Random(pairIndex);
+		final Random faceRnd = new Random(-1 - faceIndex);
+		final boolean isTop = faceIndex % 2 == 0;
+		final double angle = isTop ? 0.01 * pairIndex : 0;
+		final double cos = Math.cos(angle), sin = Math.sin(angle);
+
+		final ArrayList<Feature> features = new ArrayList<>();
+		for (int i = 0; i < numFeatures; ++i) {
+			final double x = pairRnd.nextDouble() * 4096;
+			final double y = pairRnd.nextDouble() * 4096;
+			final float[] descriptor = new float[128];
+			for (int d = 0; d < descriptor.length; ++d)
+				descriptor[d] = pairRnd.nextFloat() + (float)faceRnd.nextGaussian() * 0.02f;
+			features.add(
+					new Feature(
+							1,
+							0,
+							new double[]{cos * x - sin * y + (isTop ? 20 : 0), sin * x + cos * y},
+							descriptor));
+		}
+		return features;
+	}
+
+	public static void main(final String... args) {
+
+		final SparkConf conf = new SparkConf()
+				.setMaster("local[*]")
+				.setAppName("SparkAlignAffineGlobalMemoryBenchmark");
+
+		try (final JavaSparkContext sc = new JavaSparkContext(conf)) {
+
+			final List<String> datasetNames = new ArrayList<>();
+			final List<Integer> faceIndices = new ArrayList<>();
+			for (int k = 0; k < numSlabs; ++k) {
+				faceIndices.add(datasetNames.size());
+				datasetNames.add("/slab-" + k + "/top");
+				faceIndices.add(datasetNames.size());
+				datasetNames.add("/slab-" + k + "/bot");
+			}
+
+			final JavaPairRDD<String, ArrayList<Feature>> features = sc
+					.parallelize(faceIndices, faceIndices.size())
+					.mapToPair(i -> new Tuple2<>(datasetNames.get(i), createFeatures(i)));
+			features.persist(StorageLevel.MEMORY_AND_DISK_SER());
+			features.count();
+
+			/* before: all features on the driver */
+			final Map<String, ArrayList<Feature>> featuresMap = features.collectAsMap();
+			final long featuresSize = SizeEstimator.estimate(featuresMap);
+
+			/* after: only filtered matches on the driver */
+			final long time = System.currentTimeMillis();
+			final List<Tuple2<String[], ArrayList<PointMatch>>> filteredMatches =
+					SparkAlignAffineGlobal.filterBlockFaceMatches(
+							SparkAlignAffineGlobal.matchBlockFaces(
+									sc,
+									datasetNames,
+									features,
+									new KDForestMatcher(4, 256, 1, 0)),
+							new Transform.InterpolatedAffineModel2DSupplier<>(
+									(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+									(Supplier<RigidModel2D> & Serializable)RigidModel2D::new, 0.25),
+							1000,
+							20,
+							0,
+							7,
+							1).collect();
+			final long matchTime = System.currentTimeMillis() - time;
+			final long matchesSize = SizeEstimator.estimate(new ArrayList<>(filteredMatches));
+
+			int numMatches = 0;
+			for (final Tuple2<String[], ArrayList<PointMatch>> entry : filteredMatches)
+				numMatches += entry._2().size();
+
+			System.out.println(numSlabs + " slabs, " + numFeatures + " features per face");
+			System.out.println(String.format("features collected to the driver: %.1fMB", featuresSize / 1024.0 / 1024.0));
+			System.out.println(String.format(
+					"filtered matches collected to the driver: %.1fMB, %d matches of %d pairs in %dms",
+					matchesSize / 1024.0 / 1024.0,
+					numMatches,
+					filteredMatches.size(),
+					matchTime));
+		}
+	}
+}
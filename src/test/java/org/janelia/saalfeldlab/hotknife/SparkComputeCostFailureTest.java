@@ -0,0 +1,157 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * Computes the cost of a small synthetic volume in 2x2 columns with two
+ * threads per task, once intact and once with a truncated block in column
+ * 0,0.
+ */
+public class SparkComputeCostFailureTest {
+
+	private static final long[] dimensions = new long[] {96, 64, 96};
+	private static final int[] blockSize = new int[] {8, 64, 8};
+
+	private String n5Path;
+	private JavaSparkContext sc;
+
+	@Before
+	public void setUp() throws IOException {
+
+		n5Path = Files.createTempDirectory("hot-knife-compute-cost-test-").toString() + "/test.n5";
+
+		final Random rnd = new Random(3);
+		final ArrayImg<UnsignedByteType, ByteArray> zcorr = ArrayImgs.unsignedBytes(dimensions);
+		final RandomAccess<UnsignedByteType> access = zcorr.randomAccess();
+		for (int z = 0; z < dimensions[2]; ++z)
+			for (int y = 4; y < dimensions[1] - 4; ++y)
+				for (int x = 0; x < dimensions[0]; ++x) {
+					access.setPosition(new int[] {x, y, z});
+					final double v = y < 20 || y >= 44 ? 170 + 5 * rnd.nextGaussian() : 90 + 20 * rnd.nextGaussian();
+					access.get().set((int)Math.max(1, Math.min(254, Math.round(v))));
+				}
+
+		N5Utils.save(zcorr, new N5FSWriter(n5Path), "/zcorr", blockSize, new GzipCompression());
+
+		sc = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("SparkComputeCostFailureTest"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		sc.close();
+		new N5FSWriter(n5Path).remove();
+	}
+
+	private SparkComputeCost.Options options() {
+
+		final SparkComputeCost.Options options = new SparkComputeCost.Options(new String[] {
+				"--inputN5Path", n5Path,
+				"--outputN5Path", n5Path,
+				"--inputN5Group", "/zcorr",
+				"--costN5Group", "/cost",
+				"--axisMode", "2",
+				"--costSteps", "6,1,6",
+				"--threadsPerTask", "2"});
+		assertTrue(options.parsedSuccessfully);
+		return options;
+	}
+
+	private RandomAccessibleInterval<UnsignedByteType> columnStatus() throws IOException {
+
+		return N5Utils.open(new N5FSWriter(n5Path), "/cost/columnStatus");
+	}
+
+	@Test
+	public void testAllColumnsDone() throws IOException {
+
+		SparkComputeCost.computeCost(sc, options());
+
+		final RandomAccessibleInterval<UnsignedByteType> columnStatus = columnStatus();
+		assertEquals(2, columnStatus.dimension(0));
+		assertEquals(2, columnStatus.dimension(1));
+		Views.iterable(columnStatus).forEach(status -> assertEquals(SparkComputeCost.COLUMN_DONE, status.get()));
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		for (long x = 0; x < 2; ++x)
+			for (long z = 0; z < 2; ++z)
+				assertNotNull(n5.readBlock("/cost/s1", n5.getDatasetAttributes("/cost/s1"), new long[] {x, 0, z}));
+	}
+
+	@Test
+	public void testFailingColumn() throws IOException {
+
+		/* truncate a block of column 0,0 */
+		Files.write(Paths.get(n5Path, "zcorr", "1", "0", "1"), new byte[] {0, 0, 0});
+
+		try {
+			SparkComputeCost.computeCost(sc, options());
+			fail("computeCost did not fail on a corrupted column");
+		} catch (final Exception e) {
+			System.out.println("computeCost failed as expected: " + e.getMessage());
+		}
+
+		final RandomAccessibleInterval<UnsignedByteType> columnStatus = columnStatus();
+		assertEquals(2, columnStatus.dimension(0));
+		assertEquals(2, columnStatus.dimension(1));
+		/* the status of the other columns follows the blocks that were written */
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		final Cursor<UnsignedByteType> cursor = Views.flatIterable(columnStatus).localizingCursor();
+		while (cursor.hasNext()) {
+			final int status = cursor.next().get();
+			final long x = cursor.getLongPosition(0);
+			final long z = cursor.getLongPosition(1);
+			if (x == 0 && z == 0)
+				assertEquals(SparkComputeCost.COLUMN_FAILED, status);
+			else
+				assertEquals(
+						n5.readBlock("/cost/s1", n5.getDatasetAttributes("/cost/s1"), new long[] {x, 1, z}) == null ?
+								SparkComputeCost.COLUMN_FAILED :
+								SparkComputeCost.COLUMN_DONE,
+						status);
+		}
+	}
+}
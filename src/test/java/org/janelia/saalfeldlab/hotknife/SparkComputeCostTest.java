@@ -0,0 +1,191 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.cost.DagmarCost;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Computes the cost of a synthetic slab with known resin faces once at full
+ * resolution followed by subsampling and once at the sampled columns only,
+ * compares the detected faces, and reports the speedup.
+ */
+public class SparkComputeCostTest {
+
+	private static final int width = 720;
+	private static final int height = 800;
+	private static final int repetitions = 3;
+
+	private static int topFace(final int x) {
+
+		return (int)Math.round(250 + 20 * Math.sin(x / 90.0));
+	}
+
+	private static int bottomFace(final int x) {
+
+		return (int)Math.round(550 + 15 * Math.cos(x / 70.0));
+	}
+
+	/**
+	 * Empty above and below a slanted data range, bright resin with little
+	 * noise outside of the faces, dark textured tissue between them.
+	 */
+	private static ArrayImg<UnsignedByteType, ByteArray> createSlab() {
+
+		final Random rnd = new Random(7);
+		final ArrayImg<UnsignedByteType, ByteArray> slab = ArrayImgs.unsignedBytes(width, height);
+		final RandomAccess<UnsignedByteType> access = slab.randomAccess();
+		for (int x = 0; x < width; ++x) {
+			final int dataMin = 20 + x / 20;
+			final int dataMax = height - 30 - x / 30;
+			access.setPosition(x, 0);
+			for (int y = dataMin; y <= dataMax; ++y) {
+				final double v;
+				if (y < topFace(x) || y >= bottomFace(x))
+					v = 170 + 5 * rnd.nextGaussian();
+				else
+					v = 90 + 30 * Math.sin(x / 7.0) * Math.cos(y / 5.0) + 10 * rnd.nextGaussian();
+				access.setPosition(y, 1);
+				access.get().set((int)Math.max(1, Math.min(254, Math.round(v))));
+			}
+		}
+		return slab;
+	}
+
+	private static int argMin(final RandomAccess<FloatType> access, final int yMin, final int yMax) {
+
+		int arg = yMin;
+		float min = Float.MAX_VALUE;
+		for (int y = yMin; y < yMax; ++y) {
+			access.setPosition(y, 1);
+			final float v = access.get().get();
+			if (v < min) {
+				min = v;
+				arg = y;
+			}
+		}
+		return arg;
+	}
+
+	private static RandomAccessibleInterval<FloatType> computeCostSlice(
+			final ArrayImg<UnsignedByteType, ByteArray> slab,
+			final boolean subsampled,
+			final int step) throws Exception {
+
+		final ArrayImg<UnsignedByteType, ByteArray> sliceCopy = ArrayImgs.unsignedBytes(width, height);
+		System.arraycopy(slab.update(null).getCurrentStorageArray(), 0, sliceCopy.update(null).getCurrentStorageArray(), 0, width * height);
+		final RandomAccessibleInterval<FloatType> costSlice =
+				SparkComputeCost.computeCostSlice(sliceCopy, new DagmarCost(), false, true, subsampled, step);
+		/* materialize, the full resolution path returns a lazy view */
+		final ArrayImg<FloatType, FloatArray> copy = ArrayImgs.floats(Intervals.dimensionsAsLongArray(costSlice));
+		final RandomAccess<FloatType> costAccess = costSlice.randomAccess();
+		final Cursor<FloatType> c = copy.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			costAccess.setPosition(c);
+			c.get().set(costAccess.get());
+		}
+		return copy;
+	}
+
+	private void testStep(final int step) throws Exception {
+
+		final ArrayImg<UnsignedByteType, ByteArray> slab = createSlab();
+
+		RandomAccessibleInterval<FloatType> fullRes = null;
+		RandomAccessibleInterval<FloatType> subsampled = null;
+
+		long fullResTime = 0;
+		long subsampledTime = 0;
+		for (int i = 0; i < repetitions; ++i) {
+			long t = System.nanoTime();
+			fullRes = computeCostSlice(slab, false, step);
+			fullResTime += System.nanoTime() - t;
+			t = System.nanoTime();
+			subsampled = computeCostSlice(slab, true, step);
+			subsampledTime += System.nanoTime() - t;
+		}
+
+		System.out.println(
+				"costStep " + step +
+				": full resolution " + fullResTime / repetitions / 1000000 + "ms" +
+				", subsampled " + subsampledTime / repetitions / 1000000 + "ms" +
+				", speedup " + String.format("%.1f", (double)fullResTime / subsampledTime));
+
+		assertArrayEquals(Intervals.dimensionsAsLongArray(fullRes), Intervals.dimensionsAsLongArray(subsampled));
+
+		final RandomAccess<FloatType> fullResAccess = fullRes.randomAccess();
+		final RandomAccess<FloatType> subsampledAccess = subsampled.randomAccess();
+
+		final int midline = height / 2;
+		int columns = 0;
+		int agreeing = 0;
+		int correct = 0;
+		for (int i = 0; i < fullRes.dimension(0); ++i) {
+			final int x = i * step;
+			fullResAccess.setPosition(i, 0);
+			subsampledAccess.setPosition(i, 0);
+
+			final int fullResTop = argMin(fullResAccess, 0, midline);
+			final int fullResBottom = argMin(fullResAccess, midline, height);
+			final int subsampledTop = argMin(subsampledAccess, 0, midline);
+			final int subsampledBottom = argMin(subsampledAccess, midline, height);
+
+			columns += 2;
+			if (Math.abs(fullResTop - subsampledTop) <= 3) ++agreeing;
+			if (Math.abs(fullResBottom - subsampledBottom) <= 3) ++agreeing;
+			if (Math.abs(topFace(x) - subsampledTop) <= 5) ++correct;
+			if (Math.abs(bottomFace(x) - subsampledBottom) <= 5) ++correct;
+		}
+
+		System.out.println(
+				"costStep " + step +
+				": " + agreeing + " of " + columns + " faces agree with full resolution" +
+				", " + correct + " of " + columns + " faces within 5px of the truth");
+
+		assertTrue(agreeing >= 0.9 * columns);
+		assertTrue(correct >= 0.9 * columns);
+	}
+
+	@Test
+	public void testCostStep6() throws Exception {
+
+		testStep(6);
+	}
+
+	@Test
+	public void testCostStep12() throws Exception {
+
+		testStep(12);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Converts a synthetic series of 64 TIFF slices once through the slices
+ * dataset and once in a single pass and compares both outputs voxel for
+ * voxel with the series.
+ */
+public class SparkConvertTiffSeriesToN5Test {
+
+	private static final int width = 100;
+	private static final int height = 90;
+	private static final int depth = 64;
+	private static final int[] blockSize = new int[] {32, 32, 16};
+
+	private String urlFormat;
+	private String n5Path;
+	private byte[][] slices;
+
+	private JavaSparkContext sc;
+
+	@Before
+	public void setUp() throws IOException {
+
+		final String tiffPath = Files.createTempDirectory("hot-knife-tiff-series-test-").toString();
+		urlFormat = tiffPath + "/slice.%05d.tif";
+		n5Path = Files.createTempDirectory("hot-knife-tiff-series-test-").toString() + "/test.n5";
+
+		final Random rnd = new Random(0);
+		slices = new byte[depth][width * height];
+		for (int z = 0; z < depth; ++z) {
+			rnd.nextBytes(slices[z]);
+			IJ.saveAsTiff(new ImagePlus("", new ByteProcessor(width, height, slices[z])), String.format(urlFormat, z));
+		}
+
+		sc = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("SparkConvertTiffSeriesToN5Test"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		sc.close();
+		new N5FSWriter(n5Path).remove();
+	}
+
+	@Test
+	public void testSinglePass() throws IOException {
+
+		final long[] min = new long[] {0, 0, 0};
+		final long[] size = new long[] {width, height, depth};
+
+		SparkConvertTiffSeriesToN5.saveTIFFSeries(sc, urlFormat, n5Path, "/two-pass-slices", min, size, blockSize, 0);
+		SparkConvertTiffSeriesToN5.reSave(sc, n5Path, "/two-pass-slices", "/two-pass", blockSize);
+		SparkConvertTiffSeriesToN5.saveTIFFSeriesBlocks(sc, urlFormat, n5Path, "/single-pass", min, size, blockSize, 0);
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		assertArrayEquals(blockSize, n5.getDatasetAttributes("/single-pass").getBlockSize());
+		assertArrayEquals(size, n5.getDatasetAttributes("/single-pass").getDimensions());
+
+		final RandomAccessibleInterval<UnsignedByteType> twoPass = N5Utils.open(n5, "/two-pass");
+		final RandomAccessibleInterval<UnsignedByteType> singlePass = N5Utils.open(n5, "/single-pass");
+		assertArrayEquals(Intervals.dimensionsAsLongArray(twoPass), Intervals.dimensionsAsLongArray(singlePass));
+
+		final RandomAccess<UnsignedByteType> singlePassAccess = singlePass.randomAccess();
+		final Cursor<UnsignedByteType> twoPassCursor = Views.iterable(twoPass).localizingCursor();
+		while (twoPassCursor.hasNext()) {
+			final UnsignedByteType t = twoPassCursor.next();
+			singlePassAccess.setPosition(twoPassCursor);
+			final int x = twoPassCursor.getIntPosition(0);
+			final int y = twoPassCursor.getIntPosition(1);
+			final int z = twoPassCursor.getIntPosition(2);
+			assertEquals(slices[z][y * width + x] & 0xff, t.get());
+			assertEquals(t.get(), singlePassAccess.get().get());
+		}
+	}
+}
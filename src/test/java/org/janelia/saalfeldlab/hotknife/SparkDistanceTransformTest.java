@@ -16,17 +16,38 @@
  */
 package org.janelia.saalfeldlab.hotknife;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.nio.file.Files;
 
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Test;
 
+import bdv.labels.labelset.Label;
 import ij.ImageJ;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform;
+import net.imglib2.algorithm.morphology.distance.DistanceTransform.DISTANCE_TYPE;
 import net.imglib2.img.NativeImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.IntervalView;
+import net.imglib2.view.SubsampleIntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -54,4 +75,100 @@ public class SparkDistanceTransformTest {
 
 //		fail("Not yet implemented");
 	}
+
+	/**
+	 * Distance transform of the entire volume in one block with enough
+	 * padding to include the boundaries to the outside.
+	 */
+	private static SubsampleIntervalView<FloatType> referenceDistanceTransform(
+			final RandomAccessibleInterval<UnsignedLongType> labels,
+			final double[] resolution) {
+
+		final IntervalView<UnsignedLongType> paddedLabels = Views.offsetInterval(
+				Views.extendValue(labels, new UnsignedLongType(Label.OUTSIDE)),
+				new long[] {-1, -1, -1},
+				new long[] {labels.dimension(0) + 2, labels.dimension(1) + 2, labels.dimension(2) + 2});
+
+		final double[] squareHalfResolution = new double[resolution.length];
+		double maxSquareDistance = 0;
+		for (int d = 0; d < resolution.length; ++d) {
+			squareHalfResolution[d] = 0.25 * resolution[d] * resolution[d];
+			maxSquareDistance += 4 * paddedLabels.dimension(d) * paddedLabels.dimension(d) * resolution[d] * resolution[d];
+		}
+		final NativeImg<FloatType, ?> target = SparkDistanceTransform.createBoundaries(paddedLabels, (float)maxSquareDistance, new UnsignedLongType(0));
+		DistanceTransform.transform(target, DISTANCE_TYPE.EUCLIDIAN, squareHalfResolution);
+
+		return Views.subsample(
+				Views.offsetInterval(
+						target,
+						new long[] {3, 3, 3},
+						new long[] {labels.dimension(0) * 2 - 1, labels.dimension(1) * 2 - 1, labels.dimension(2) * 2 - 1}),
+				2);
+	}
+
+	/**
+	 * Two small objects in a 64<sup>3</sup> volume, such that the largest
+	 * distances are about twice the block size.  The distributed distance
+	 * transform is exact and equal to that of the entire volume in one
+	 * block.
+	 */
+	@Test
+	public void testDistancesLargerThanBlockSize() throws IOException {
+
+		final long[] dimensions = new long[] {64, 64, 64};
+		final int[] blockSize = new int[] {16, 16, 16};
+		final double[] resolution = new double[] {1, 1, 2};
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = ArrayImgs.unsignedLongs(dimensions);
+		final Cursor<UnsignedLongType> cursor = labels.localizingCursor();
+		while (cursor.hasNext()) {
+			final UnsignedLongType t = cursor.next();
+			final long x = cursor.getLongPosition(0);
+			final long y = cursor.getLongPosition(1);
+			final long z = cursor.getLongPosition(2);
+			if ((x - 12) * (x - 12) + (y - 12) * (y - 12) + (z - 12) * (z - 12) < 16)
+				t.set(2);
+			else if (x >= 44 && x < 48 && y >= 36 && y < 42 && z >= 30 && z < 33)
+				t.set(3);
+			else
+				t.set(1);
+		}
+
+		final String n5Path = Files.createTempDirectory("hot-knife-distance-transform-test-").toString() + "/test.n5";
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+		N5Utils.save(labels, n5, "/labels", blockSize, new GzipCompression());
+
+		final JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("SparkDistanceTransformTest"));
+		final long numCorrectedBlocks;
+		try {
+			numCorrectedBlocks = SparkDistanceTransform.calculateDistanceTransform(
+					sc,
+					n5Path,
+					"/labels",
+					n5Path,
+					"/distances",
+					blockSize,
+					new long[] {2, 2, 2},
+					resolution);
+		} finally {
+			sc.close();
+		}
+
+		System.out.println(numCorrectedBlocks + " of 64 blocks recomputed in the correction pass");
+		assertTrue(numCorrectedBlocks > 0);
+
+		final RandomAccessibleInterval<UnsignedShortType> distances = N5Utils.open(n5, "/distances");
+		final RandomAccess<UnsignedShortType> distancesAccess = distances.randomAccess();
+		final Cursor<FloatType> referenceCursor = Views.flatIterable(referenceDistanceTransform(labels, resolution)).localizingCursor();
+		int maxDistance = 0;
+		while (referenceCursor.hasNext()) {
+			final int expected = Math.min(65535, (int)Math.round(Math.sqrt(referenceCursor.next().get())));
+			distancesAccess.setPosition(referenceCursor);
+			maxDistance = Math.max(maxDistance, expected);
+			assertEquals(expected, distancesAccess.get().get());
+		}
+		assertTrue(maxDistance > blockSize[0]);
+
+		n5.remove();
+	}
 }
@@ -0,0 +1,407 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.RealTransformSequence;
+import net.imglib2.realtransform.Scale2D;
+import net.imglib2.realtransform.Translation2D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+import scala.Tuple3;
+
+/**
+ * Aligns a synthetic series of 4 slabs (8 faces) once pair by pair and once
+ * with all pairs in flight and checks that both produce the same transforms
+ * as aligning and blending the grid cells of each pair sequentially on the
+ * driver.  Checks that blending shuffled grid cell quadrants produces
+ * the same blocks as blending the stored overlapping grid cells.
+ */
+public class SparkPairAlignFlowTest {
+
+	private static final int size = 256;
+	private static final int stepSize = 64;
+
+	private String n5Path;
+	private String[] datasetNames;
+	private String[] transformDatasetNames;
+	private double[] boundsMin;
+	private double[] boundsMax;
+
+	private JavaSparkContext sc;
+
+	@Before
+	public void setUp() throws Exception {
+
+		n5Path = Files.createTempDirectory("hot-knife-flow-test-").toString() + "/test.n5";
+		final N5Writer n5 = new N5FSWriter(n5Path);
+
+		datasetNames = new String[8];
+		transformDatasetNames = new String[8];
+		boundsMin = new double[] {0, 0};
+		boundsMax = new double[] {size, size};
+
+		final Random rnd = new Random(42);
+		final ArrayImg<FloatType, FloatArray> noise = ArrayImgs.floats(size + 16, size + 16);
+		for (final FloatType t : noise)
+			t.set(rnd.nextFloat() * 255);
+		final ArrayImg<FloatType, FloatArray> texture = ArrayImgs.floats(size + 16, size + 16);
+		Gauss3.gauss(2, Views.extendMirrorSingle(noise), texture);
+
+		for (int i = 0; i < datasetNames.length; ++i) {
+
+			datasetNames[i] = "/slab-" + i / 2 + (i % 2 == 0 ? "/top" : "/bot");
+			transformDatasetNames[i] = "slab-" + i / 2 + (i % 2 == 0 ? "-top" : "-bot");
+
+			/* every face is a slightly shifted crop of the same texture */
+			final RandomAccessibleInterval<FloatType> face = Views.offsetInterval(
+					texture,
+					new long[] {i % 3 + 4, (i + 1) % 3 + 4},
+					new long[] {size, size});
+			N5Utils.save(face, n5, datasetNames[i] + "/s0", new int[] {stepSize, stepSize}, new GzipCompression());
+			Transform.saveScaledTransform(
+					n5,
+					"/align-0/" + transformDatasetNames[i],
+					new Translation2D(),
+					1.0,
+					boundsMin,
+					boundsMax);
+		}
+
+		sc = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("SparkPairAlignFlowTest"));
+		sc.setLogLevel("ERROR");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		sc.close();
+		new N5FSWriter(n5Path).remove();
+	}
+
+	/**
+	 * Aligns pair <em>i</em> grid cell by grid cell on the driver as it was
+	 * done before the pairs were batched and the quadrants shuffled, i.e.
+	 * with transforms loaded from N5 and every overlapping grid cell
+	 * position field computed separately, and blends the grid cells per
+	 * output block.
+	 *
+	 * @return the blended blocks, indexed by block x, block y
+	 */
+	private double[][][] alignPairSequentially(
+			final String inGroupName,
+			final int i,
+			final List<long[]> gridOffsets,
+			final short radius,
+			final double sigma,
+			final int numIterations) throws IOException {
+
+		final double scale = 1.0;
+		final long[] scaledFloorMin = Grid.floorScaled(boundsMin, scale);
+		final long[] scaledCeilMax = Grid.ceilScaled(boundsMax, scale);
+		final long gridCellWidth = stepSize * 2;
+
+		final N5Reader n5 = new N5FSReader(n5Path);
+		final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5, datasetNames[i] + "/s0");
+		final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5, datasetNames[i + 1] + "/s0");
+		final RealTransform transformA = Transform.loadScaledTransform(n5, inGroupName + "/" + transformDatasetNames[i]);
+		final RealTransform transformB = Transform.loadScaledTransform(n5, inGroupName + "/" + transformDatasetNames[i + 1]);
+
+		final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
+				a,
+				new FinalInterval(scaledFloorMin, scaledCeilMax),
+				Transform.createScaledRealTransform(transformA, 0),
+				new FloatType(0));
+		final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
+				b,
+				new FinalInterval(scaledFloorMin, scaledCeilMax),
+				Transform.createScaledRealTransform(transformB, 0),
+				new FloatType(0));
+
+		final long[] lastGridCell = Grid.gridCell(gridOffsets.get(gridOffsets.size() - 1), scaledFloorMin, new int[] {stepSize, stepSize});
+		final int numCellsX = (int)lastGridCell[0] + 1;
+		final int numCellsY = (int)lastGridCell[1] + 1;
+		final double[][][] cells = new double[numCellsX][numCellsY][];
+		final int[][] cellWidths = new int[numCellsX][numCellsY];
+		final int[][] cellHeights = new int[numCellsX][numCellsY];
+
+		for (final long[] offset : gridOffsets) {
+
+			final FinalInterval gridBlockInterval =
+					new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
+			final RealTransform transform = Align.alignFlow(
+					Views.interval(transformedB, gridBlockInterval),
+					Views.interval(transformedA, gridBlockInterval),
+					radius,
+					sigma,
+					numIterations);
+
+			final long[] gridOffset = Grid.gridCell(offset, scaledFloorMin, new int[]{stepSize, stepSize});
+			final RealTransformSequence transformSequence = new RealTransformSequence();
+			transformSequence.add(new Scale2D(scale, scale));
+			transformSequence.add(transform);
+			transformSequence.add(new Scale2D(1.0 / scale, 1.0 / scale));
+			transformSequence.add(transformB);
+
+			final long[] intervalMin = new long[2];
+			Arrays.setAll(intervalMin, d -> gridOffset[d] * stepSize + scaledFloorMin[d]);
+			final long[] intervalMax = new long[2];
+			Arrays.setAll(intervalMax, d -> Math.min(scaledCeilMax[d], intervalMin[d] + gridCellWidth - 1));
+
+			final RandomAccessibleInterval<DoubleType> positionField = Transform.createPositionFieldBlock(
+					Transform.createScaledRealTransform(transformSequence, 1.0 / scale),
+					new FinalInterval(intervalMin, intervalMax));
+
+			final int gx = (int)gridOffset[0];
+			final int gy = (int)gridOffset[1];
+			cellWidths[gx][gy] = (int)positionField.dimension(0);
+			cellHeights[gx][gy] = (int)positionField.dimension(1);
+			cells[gx][gy] = new double[cellWidths[gx][gy] * cellHeights[gx][gy] * 2];
+			int j = 0;
+			for (final DoubleType t : Views.flatIterable(positionField))
+				cells[gx][gy][j++] = t.get();
+		}
+
+		final long width = scaledCeilMax[0] - scaledFloorMin[0] + 1;
+		final long height = scaledCeilMax[1] - scaledFloorMin[1] + 1;
+		final double[][][] blocks = new double[numCellsX][numCellsY][];
+		for (int bx = 0; bx < numCellsX; ++bx)
+			for (int by = 0; by < numCellsY; ++by)
+				blocks[bx][by] = blendStoredGridCells(
+						cells,
+						cellWidths,
+						cellHeights,
+						bx,
+						by,
+						(int)Math.min(stepSize, width - bx * stepSize),
+						(int)Math.min(stepSize, height - by * stepSize));
+
+		return blocks;
+	}
+
+	@Test
+	public void testConcurrentPairsMatchSequential() throws IOException {
+
+		final List<long[]> gridOffsets = Grid.createOffsets(
+				new FinalInterval(Grid.floorScaled(boundsMin, 1.0), Grid.ceilScaled(boundsMax, 1.0)),
+				new int[] {stepSize, stepSize});
+
+		for (final int maxConcurrentPairs : new int[] {1, 0})
+			SparkPairAlignFlow.alignSeriesFlow(
+					sc,
+					n5Path,
+					"/align-0",
+					maxConcurrentPairs == 1 ? "/align-batched" : "/align-concurrent",
+					datasetNames,
+					transformDatasetNames,
+					0,
+					boundsMin,
+					boundsMax,
+					stepSize,
+					gridOffsets,
+					(short)4,
+					10.0,
+					2,
+					maxConcurrentPairs,
+					0);
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+
+		/* no temporary grid cell datasets are left behind */
+		for (final String group : new String[] {"/align-batched", "/align-concurrent"})
+			assertEquals(0, Arrays.stream(n5.list(group)).filter(name -> name.contains(".")).count());
+
+		for (int i = 1; i < datasetNames.length - 2; i += 2) {
+
+			final double[][][] expected = alignPairSequentially("/align-0", i, gridOffsets, (short)4, 10.0, 2);
+
+			for (final String group : new String[] {"/align-batched", "/align-concurrent"}) {
+
+				final RandomAccessibleInterval<DoubleType> aligned = N5Utils.open(n5, group + "/" + transformDatasetNames[i + 1]);
+				for (int bx = 0; bx < expected.length; ++bx) {
+					for (int by = 0; by < expected[bx].length; ++by) {
+						final long width = Math.min(stepSize, aligned.dimension(0) - bx * stepSize);
+						final long height = Math.min(stepSize, aligned.dimension(1) - by * stepSize);
+						final RandomAccessibleInterval<DoubleType> block = Views.offsetInterval(
+								aligned,
+								new long[] {bx * stepSize, by * stepSize, 0},
+								new long[] {width, height, 2});
+						assertEquals(expected[bx][by].length, Intervals.numElements(block));
+						int j = 0;
+						for (final DoubleType t : Views.flatIterable(block))
+							assertEquals(
+									Double.doubleToLongBits(expected[bx][by][j++]),
+									Double.doubleToLongBits(t.get()));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Per-block blend of the stored, overlapping grid cells as it was done
+	 * before the quadrants were shuffled.  Grid cells are stored in global
+	 * coordinates, at the min border the missing cells are replaced by the
+	 * cell at the border.
+	 */
+	private static double[] blendStoredGridCells(
+			final double[][][] cells,
+			final int[][] cellWidths,
+			final int[][] cellHeights,
+			final int blockX,
+			final int blockY,
+			final int width,
+			final int height) {
+
+		final int[][] cellOffsets = new int[][] {
+			{Math.max(0, blockX - 1), Math.max(0, blockY - 1)},
+			{Math.max(0, blockX - 1), blockY},
+			{blockX, Math.max(0, blockY - 1)},
+			{blockX, blockY}};
+
+		final double[] blended = new double[width * height * 2];
+		final double[] v = new double[4];
+		for (int d = 0, i = 0; d < 2; ++d) {
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x, ++i) {
+					for (int k = 0; k < 4; ++k) {
+						final int gx = cellOffsets[k][0];
+						final int gy = cellOffsets[k][1];
+						final int w = cellWidths[gx][gy];
+						final int h = cellHeights[gx][gy];
+						final int cx = blockX * stepSize + x - gx * stepSize;
+						final int cy = blockY * stepSize + y - gy * stepSize;
+						v[k] = cells[gx][gy][cx + w * (cy + h * d)];
+					}
+					final double lambdaX = (double)x / stepSize;
+					final double lambdaY = (double)y / stepSize;
+					final double d0 = (v[2] - v[0]) * lambdaX + v[0];
+					final double d1 = (v[3] - v[1]) * lambdaX + v[1];
+					blended[i] = (d1 - d0) * lambdaY + d0;
+				}
+			}
+		}
+		return blended;
+	}
+
+	@Test
+	public void testBlendQuadrantsMatchesStoredGridCells() {
+
+		/* incomplete blocks at the max border */
+		final int width = 4 * stepSize + 13;
+		final int height = 2 * stepSize + 50;
+		final int numBlocksX = (width + stepSize - 1) / stepSize;
+		final int numBlocksY = (height + stepSize - 1) / stepSize;
+
+		final Random rnd = new Random(7);
+		final double[][][] cells = new double[numBlocksX][numBlocksY][];
+		final int[][] cellWidths = new int[numBlocksX][numBlocksY];
+		final int[][] cellHeights = new int[numBlocksX][numBlocksY];
+		final HashMap<Tuple3<Integer, Long, Long>, List<Tuple2<Integer, double[]>>> blocks = new HashMap<>();
+		long storedBytes = 0;
+		long shuffledBytes = 0;
+		for (int gx = 0; gx < numBlocksX; ++gx) {
+			for (int gy = 0; gy < numBlocksY; ++gy) {
+				cellWidths[gx][gy] = Math.min(2 * stepSize, width - gx * stepSize);
+				cellHeights[gx][gy] = Math.min(2 * stepSize, height - gy * stepSize);
+				cells[gx][gy] = new double[cellWidths[gx][gy] * cellHeights[gx][gy] * 2];
+				for (int i = 0; i < cells[gx][gy].length; ++i)
+					cells[gx][gy][i] = rnd.nextDouble() * 1000;
+				storedBytes += cells[gx][gy].length * Double.BYTES;
+
+				for (final Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> quadrant :
+						SparkPairAlignFlow.splitGridCell(
+								0,
+								new long[] {gx, gy},
+								ArrayImgs.doubles(cells[gx][gy], cellWidths[gx][gy], cellHeights[gx][gy], 2),
+								stepSize)) {
+					blocks.computeIfAbsent(quadrant._1(), k -> new ArrayList<>()).add(quadrant._2());
+					shuffledBytes += quadrant._2()._2().length * Double.BYTES;
+				}
+			}
+		}
+
+		assertEquals(numBlocksX * numBlocksY, blocks.size());
+
+		for (int bx = 0; bx < numBlocksX; ++bx) {
+			for (int by = 0; by < numBlocksY; ++by) {
+				final int blockWidth = Math.min(stepSize, width - bx * stepSize);
+				final int blockHeight = Math.min(stepSize, height - by * stepSize);
+				final double[] expected = blendStoredGridCells(cells, cellWidths, cellHeights, bx, by, blockWidth, blockHeight);
+				final double[] blended = SparkPairAlignFlow.blendGridCellQuadrants(
+						bx,
+						by,
+						blocks.get(new Tuple3<>(0, (long)bx, (long)by)),
+						blockWidth,
+						blockHeight,
+						stepSize);
+				assertEquals(expected.length, blended.length);
+				for (int i = 0; i < expected.length; ++i)
+					assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(blended[i]));
+			}
+		}
+
+		/*
+		 * every grid cell pixel is shuffled exactly once while the stored grid
+		 * cells were written once and read back for each of the 4 blocks they
+		 * overlap
+		 */
+		final long outputBytes = (long)width * height * 2 * Double.BYTES;
+		System.out.println(
+				String.format(
+						"grid cells: %d bytes written, %d bytes read, quadrants: %d bytes shuffled, output %d bytes",
+						storedBytes,
+						4 * outputBytes,
+						shuffledBytes,
+						outputBytes));
+		assertEquals(storedBytes, shuffledBytes);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+
+public class SparkSeriesAlignSIFTTest {
+
+	private JavaSparkContext sc;
+
+	@Before
+	public void setUp() {
+
+		sc = new JavaSparkContext(new SparkConf().setMaster("local[2]").setAppName("SparkSeriesAlignSIFTTest"));
+		sc.setLogLevel("ERROR");
+	}
+
+	@After
+	public void tearDown() {
+
+		sc.close();
+	}
+
+	@Test
+	public void testBandPairs() {
+
+		/* 100 slices, some failed */
+		final ArrayList<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < 100; ++i)
+			if (i % 7 != 3 && i != 50 && i != 51)
+				indices.add(i);
+
+		final JavaRDD<Integer> rddIndices = sc.parallelize(indices);
+
+		for (int distance = 1; distance <= 5; ++distance) {
+
+			final int d = distance;
+			final HashSet<Tuple2<Integer, Integer>> expected = new HashSet<>(
+					rddIndices.cartesian(rddIndices).filter(
+							pair -> {
+								final int diff = pair._2() - pair._1();
+								return diff > 0 && diff < d;
+							}).collect());
+
+			final List<Tuple2<Integer, Integer>> pairs = SparkSeriesAlignSIFT.bandPairs(sc, indices, distance).collect();
+
+			assertEquals(expected.size(), pairs.size());
+			assertEquals(expected, new HashSet<>(pairs));
+		}
+	}
+
+	@Test
+	public void testSaveReadFeatures() throws IOException {
+
+		final Random rnd = new Random(0);
+		final ArrayList<Feature> features = new ArrayList<>();
+		for (int i = 0; i < 1000; ++i) {
+			final float[] descriptor = new float[128];
+			for (int j = 0; j < descriptor.length; ++j)
+				descriptor[j] = rnd.nextFloat();
+			features.add(
+					new Feature(
+							1 + rnd.nextFloat() * 4,
+							rnd.nextFloat(),
+							new double[]{rnd.nextDouble() * 20000, rnd.nextDouble() * 20000},
+							descriptor));
+		}
+
+		final String filePath = Files.createTempFile("hot-knife-features-", "").toString();
+		try {
+			SparkSeriesAlignSIFT.saveFeatures(features, filePath);
+			final ArrayList<Feature> read = SparkSeriesAlignSIFT.readFeatures(filePath);
+
+			assertEquals(features.size(), read.size());
+			for (int i = 0; i < features.size(); ++i) {
+				final Feature a = features.get(i);
+				final Feature b = read.get(i);
+				assertArrayEquals(a.location, b.location, 0);
+				assertEquals(a.scale, b.scale, 0);
+				assertEquals(a.orientation, b.orientation, 0);
+				assertArrayEquals(a.descriptor, b.descriptor, 0);
+			}
+
+			SparkSeriesAlignSIFT.saveFeatures(new ArrayList<>(), filePath);
+			assertEquals(0, SparkSeriesAlignSIFT.readFeatures(filePath).size());
+		} finally {
+			Files.delete(Paths.get(filePath));
+		}
+	}
+
+	@Test
+	public void testAppendMatchesOnlyNewPairs() throws Exception {
+
+		final int size = 256;
+		final int distance = 3;
+		final Path tmpDir = Files.createTempDirectory("hot-knife-series-test-");
+		final String n5Path = tmpDir.toString() + "/test.n5";
+		final String cacheDirName = tmpDir.toString() + "/cache";
+
+		try {
+			final Random rnd = new Random(42);
+			final ArrayImg<FloatType, FloatArray> noise = ArrayImgs.floats(size + 2 * 22 + 8, size + 2 * 22 + 8);
+			for (final FloatType t : noise)
+				t.set(rnd.nextFloat() * 255);
+			final ArrayImg<FloatType, FloatArray> texture = ArrayImgs.floats(size + 2 * 22 + 8, size + 2 * 22 + 8);
+			Gauss3.gauss(2, Views.extendMirrorSingle(noise), texture);
+
+			/* every section is a differently shifted crop of the same texture, 22 sections extend the first 20 */
+			final N5Writer n5 = new N5FSWriter(n5Path);
+			final ArrayList<RandomAccessibleInterval<FloatType>> sections = new ArrayList<>();
+			for (int i = 0; i < 22; ++i) {
+				sections.add(
+						Views.offsetInterval(
+								texture,
+								new long[] {i + 4, 2 * i + 4},
+								new long[] {size, size}));
+				if (sections.size() == 20 || sections.size() == 22)
+					N5Utils.save(Views.stack(sections), n5, "/series-" + sections.size(), new int[] {size, size, 1}, new GzipCompression());
+			}
+
+			final List<String> keys20 = SparkSeriesAlignSIFT.extractFeatures(sc, n5Path, "/series-20", 20, 0, 255, 1.0, 0.25, 4, cacheDirName);
+			final LongAccumulator matchedPairs20 = sc.sc().longAccumulator();
+			final List<Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>>> matches20 =
+					SparkSeriesAlignSIFT.matchFeatures(sc, keys20, distance, 10, cacheDirName, matchedPairs20, 1).collect();
+
+			assertEquals(matches20.size(), matchedPairs20.value().longValue());
+
+			final List<String> keys22 = SparkSeriesAlignSIFT.extractFeatures(sc, n5Path, "/series-22", 22, 0, 255, 1.0, 0.25, 4, cacheDirName);
+			final LongAccumulator matchedPairs22 = sc.sc().longAccumulator();
+			final List<Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>>> matches22 =
+					SparkSeriesAlignSIFT.matchFeatures(sc, keys22, distance, 10, cacheDirName, matchedPairs22, 1).collect();
+
+			assertEquals(keys20, keys22.subList(0, 20));
+
+			/* only pairs with one of the appended sections are matched */
+			int numNewPairs = 0;
+			for (final Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>> entry : matches22)
+				if (entry._1()._2() >= 20)
+					++numNewPairs;
+
+			assertTrue(numNewPairs > 0);
+			assertEquals(matches20.size() + numNewPairs, matches22.size());
+			assertEquals(numNewPairs, matchedPairs22.value().longValue());
+
+			/* and the other pairs are read from the cache */
+			final HashMap<Tuple2<Integer, Integer>, ArrayList<PointMatch>> cached = new HashMap<>();
+			for (final Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>> entry : matches22)
+				cached.put(entry._1(), entry._2());
+			for (final Tuple2<Tuple2<Integer, Integer>, ArrayList<PointMatch>> entry : matches20) {
+				final ArrayList<PointMatch> a = entry._2();
+				final ArrayList<PointMatch> b = cached.get(entry._1());
+				assertEquals(a.size(), b.size());
+				for (int i = 0; i < a.size(); ++i) {
+					assertArrayEquals(a.get(i).getP1().getL(), b.get(i).getP1().getL(), 0);
+					assertArrayEquals(a.get(i).getP2().getL(), b.get(i).getP2().getL(), 0);
+				}
+			}
+		} finally {
+			new N5FSWriter(n5Path).remove();
+			try (final Stream<Path> paths = Files.walk(tmpDir)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+}
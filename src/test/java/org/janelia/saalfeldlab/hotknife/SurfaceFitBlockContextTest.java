@@ -0,0 +1,175 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Updates the height fields of one scale level of a synthetic cost volume
+ * with two surfaces, once opening all inputs for each block and once with
+ * shared block contexts, and compares the results, the number of block
+ * reads, and the wall time.
+ */
+public class SurfaceFitBlockContextTest {
+
+	private static final int width = 128;
+	private static final int height = 128;
+	private static final int depth = 64;
+
+	private String n5Path;
+	private JavaSparkContext sc;
+
+	private static double minSurface(final double x, final double y) {
+
+		return 16 + 3 * Math.sin(x / 20.0);
+	}
+
+	private static double maxSurface(final double x, final double y) {
+
+		return 48 + 3 * Math.cos(y / 25.0);
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		n5Path = Files.createTempDirectory("hot-knife-surface-fit-test-").toString() + "/test.n5";
+		final N5Writer n5 = new N5FSWriter(n5Path);
+
+		/* cost in XZY order as written by SparkComputeCost */
+		final ArrayImg<UnsignedByteType, ByteArray> cost = ArrayImgs.unsignedBytes(width, depth, height);
+		final Cursor<UnsignedByteType> costCursor = cost.localizingCursor();
+		while (costCursor.hasNext()) {
+			final UnsignedByteType t = costCursor.next();
+			final int x = costCursor.getIntPosition(0);
+			final int z = costCursor.getIntPosition(1);
+			final int y = costCursor.getIntPosition(2);
+			final double d = Math.min(Math.abs(z - minSurface(x, y)), Math.abs(z - maxSurface(x, y)));
+			t.set((int)Math.min(255, Math.round(20 * d)));
+		}
+		N5Utils.save(cost, n5, "/cost", new int[] {32, 32, 32}, new GzipCompression());
+		n5.setAttribute("/cost", "downsamplingFactors", new double[] {2, 1, 2});
+
+		/* previous scale level at half the resolution in x and y */
+		final ArrayImg<FloatType, FloatArray> minField = ArrayImgs.floats(width / 2, height / 2);
+		final ArrayImg<FloatType, FloatArray> maxField = ArrayImgs.floats(width / 2, height / 2);
+		final RandomAccess<FloatType> maxAccess = maxField.randomAccess();
+		final Cursor<FloatType> minCursor = minField.localizingCursor();
+		double minSum = 0;
+		double maxSum = 0;
+		while (minCursor.hasNext()) {
+			final FloatType t = minCursor.next();
+			maxAccess.setPosition(minCursor);
+			final double x = 2 * minCursor.getDoublePosition(0) + 0.5;
+			final double y = 2 * minCursor.getDoublePosition(1) + 0.5;
+			t.setReal(Math.round(minSurface(x, y)));
+			maxAccess.get().setReal(Math.round(maxSurface(x, y)));
+			minSum += t.getRealDouble();
+			maxSum += maxAccess.get().getRealDouble();
+		}
+		n5.createGroup("/heightfields/s1");
+		n5.setAttribute("/heightfields/s1", "downsamplingFactors", new double[] {4, 4, 1});
+		N5Utils.save(minField, n5, "/heightfields/s1/min", new int[] {32, 32}, new GzipCompression());
+		N5Utils.save(maxField, n5, "/heightfields/s1/max", new int[] {32, 32}, new GzipCompression());
+		n5.setAttribute("/heightfields/s1/min", "avg", minSum / minField.size());
+		n5.setAttribute("/heightfields/s1/max", "avg", maxSum / maxField.size());
+
+		sc = new JavaSparkContext(new SparkConf().setMaster("local[1]").setAppName("SurfaceFitBlockContextTest"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		sc.close();
+		SurfaceFitBlockContext.clear();
+		SurfaceFitBlockContext.setMaxSize(2);
+		new N5FSWriter(n5Path).remove();
+	}
+
+	private static float[] load(final String n5Path, final String datasetName) throws IOException {
+
+		final RandomAccessibleInterval<FloatType> field = N5Utils.open(new N5FSWriter(n5Path), datasetName);
+		final ArrayImg<FloatType, FloatArray> copy = ArrayImgs.floats(Intervals.dimensionsAsLongArray(field));
+		final Cursor<FloatType> fieldCursor = Views.flatIterable(field).cursor();
+		for (final FloatType t : copy)
+			t.set(fieldCursor.next());
+		return copy.update(null).getCurrentStorageArray();
+	}
+
+	/**
+	 * @return block reads and wall time in ms
+	 */
+	private long[] updateHeightFields(final String outputGroup) throws IOException {
+
+		final long reads = SurfaceFitBlockContext.getReads();
+		final long t = System.currentTimeMillis();
+		SparkSurfaceFit.updateHeightFields(
+				sc,
+				n5Path,
+				n5Path,
+				"/cost",
+				"/heightfields/s1",
+				outputGroup,
+				new long[] {32, 32},
+				new long[] {8, 8},
+				0.25,
+				2);
+		return new long[] {SurfaceFitBlockContext.getReads() - reads, System.currentTimeMillis() - t};
+	}
+
+	@Test
+	public void testReadsAndTime() throws IOException {
+
+		SurfaceFitBlockContext.setMaxSize(0);
+		final long[] before = updateHeightFields("/heightfields/s0-before");
+
+		SurfaceFitBlockContext.setMaxSize(2);
+		final long[] after = updateHeightFields("/heightfields/s0-after");
+
+		System.out.println("one scale level, reopening all inputs per block: " + before[0] + " block reads, " + before[1] + "ms");
+		System.out.println("one scale level, shared block contexts: " + after[0] + " block reads, " + after[1] + "ms");
+
+		assertArrayEquals(load(n5Path, "/heightfields/s0-before/min"), load(n5Path, "/heightfields/s0-after/min"), 0);
+		assertArrayEquals(load(n5Path, "/heightfields/s0-before/max"), load(n5Path, "/heightfields/s0-after/max"), 0);
+		assertTrue(after[0] < before[0]);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.TransformCache;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.Translation2D;
+
+public class TransformCacheTest {
+
+	private static final double[] boundsMin = new double[] {0, 0};
+	private static final double[] boundsMax = new double[] {100, 80};
+
+	private String n5Path;
+
+	@Before
+	public void setUp() throws IOException {
+
+		n5Path = Files.createTempDirectory("hot-knife-transform-cache-test-").toString() + "/test.n5";
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		Transform.saveScaledTransform(n5, "/a", new Translation2D(1.5, -2), 0.5, boundsMin, boundsMax);
+		Transform.saveScaledTransform(n5, "/b", new Translation2D(-3, 4.25), 0.5, boundsMin, boundsMax);
+		TransformCache.clear();
+		TransformCache.setMaxSize(64);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		TransformCache.clear();
+		TransformCache.setMaxSize(64);
+		new N5FSWriter(n5Path).remove();
+	}
+
+	@Test
+	public void testHitsAndMisses() throws IOException {
+
+		final long hits = TransformCache.getHits();
+		final long misses = TransformCache.getMisses();
+
+		final RealTransform a1 = TransformCache.get(n5Path, "/a");
+		final RealTransform a2 = TransformCache.get(n5Path, "/a");
+		final RealTransform b = TransformCache.get(n5Path, "/b");
+
+		assertEquals(1, TransformCache.getHits() - hits);
+		assertEquals(2, TransformCache.getMisses() - misses);
+		assertEquals(2, TransformCache.size());
+
+		final RealTransform reference = Transform.loadScaledTransform(new N5FSWriter(n5Path), "/a");
+		final double[] p = new double[] {17.3, 42.1};
+		final double[] q = new double[2];
+		final double[] q1 = new double[2];
+		final double[] q2 = new double[2];
+		reference.apply(p, q);
+		a1.apply(p, q1);
+		a2.apply(p, q2);
+		assertArrayEquals(q, q1, 0);
+		assertArrayEquals(q, q2, 0);
+
+		b.apply(p, q);
+		assertArrayEquals(new double[] {14.3, 46.35}, q, 1e-9);
+	}
+
+	@Test
+	public void testSizeBound() throws IOException {
+
+		TransformCache.setMaxSize(1);
+		final long misses = TransformCache.getMisses();
+
+		TransformCache.get(n5Path, "/a");
+		TransformCache.get(n5Path, "/b");
+		TransformCache.get(n5Path, "/a");
+
+		assertEquals(1, TransformCache.size());
+		assertEquals(3, TransformCache.getMisses() - misses);
+	}
+
+	@Test
+	public void testInvalidatedDatasetIsReloaded() throws IOException {
+
+		TransformCache.get(n5Path, "/a");
+		final long misses = TransformCache.getMisses();
+
+		Transform.saveScaledTransform(new N5FSWriter(n5Path), "/a", new Translation2D(1.5, -2), 0.25, boundsMin, boundsMax);
+		TransformCache.get(n5Path, "/a");
+		assertEquals(0, TransformCache.getMisses() - misses);
+
+		TransformCache.invalidate(n5Path, "/a");
+		final RealTransform a = TransformCache.get(n5Path, "/a");
+		assertEquals(1, TransformCache.getMisses() - misses);
+
+		final RealTransform reference = Transform.loadScaledTransform(new N5FSWriter(n5Path), "/a");
+		final double[] p = new double[] {17.3, 42.1};
+		final double[] q = new double[2];
+		final double[] q1 = new double[2];
+		reference.apply(p, q);
+		a.apply(p, q1);
+		assertArrayEquals(q, q1, 0);
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that position fields are generated with a single transform
+ * evaluation per pixel instead of one per pixel and dimension, and that
+ * both storage layouts are read transparently.
+ */
+public class TransformTest {
+
+	/**
+	 * Counts all invocations of the wrapped transform, including those of
+	 * its copies.
+	 */
+	private static class CountingTransform implements RealTransform {
+
+		private final RealTransform transform;
+		private final AtomicLong count;
+
+		public CountingTransform(final RealTransform transform, final AtomicLong count) {
+
+			this.transform = transform;
+			this.count = count;
+		}
+
+		@Override
+		public int numSourceDimensions() {
+
+			return transform.numSourceDimensions();
+		}
+
+		@Override
+		public int numTargetDimensions() {
+
+			return transform.numTargetDimensions();
+		}
+
+		@Override
+		public void apply(final double[] source, final double[] target) {
+
+			count.incrementAndGet();
+			transform.apply(source, target);
+		}
+
+		@Override
+		public void apply(final float[] source, final float[] target) {
+
+			count.incrementAndGet();
+			transform.apply(source, target);
+		}
+
+		@Override
+		public void apply(final RealLocalizable source, final RealPositionable target) {
+
+			count.incrementAndGet();
+			transform.apply(source, target);
+		}
+
+		@Override
+		public CountingTransform copy() {
+
+			return new CountingTransform(transform.copy(), count);
+		}
+	}
+
+	private static AffineTransform3D createAffine() {
+
+		final AffineTransform3D affine = new AffineTransform3D();
+		affine.set(
+				1.1, 0.2, -0.1, 3.5,
+				-0.3, 0.9, 0.05, -2.25,
+				0.1, 0.15, 1.05, 7.0);
+		return affine;
+	}
+
+	private static double[] toArray(final RandomAccessibleInterval<DoubleType> img) {
+
+		final double[] values = new double[(int)Intervals.numElements(img)];
+		final Cursor<DoubleType> cursor = Views.flatIterable(img).cursor();
+		for (int i = 0; cursor.hasNext(); ++i)
+			values[i] = cursor.next().get();
+		return values;
+	}
+
+	@Test
+	public void testSinglePassPositionField() {
+
+		final Interval interval = new FinalInterval(new long[] {-5, 3, 10}, new long[] {34, 27, 21});
+		final int n = interval.numDimensions();
+		final long numPixels = Intervals.numElements(interval);
+
+		final AtomicLong perDimensionCount = new AtomicLong();
+		final double[] perDimension = toArray(
+				Transform.createPositionField(new CountingTransform(createAffine(), perDimensionCount), interval));
+
+		final AtomicLong lazyCount = new AtomicLong();
+		final RandomAccessibleInterval<DoubleType> lazy =
+				Transform.createCachedPositionField(new CountingTransform(createAffine(), lazyCount), interval, 16);
+		assertArrayEquals(Intervals.minAsLongArray(interval), Intervals.minAsLongArray(Views.hyperSlice(lazy, n, 0)));
+		final double[] singlePass = toArray(lazy);
+
+		final AtomicLong blockCount = new AtomicLong();
+		final double[] block = toArray(
+				Transform.createPositionFieldBlock(new CountingTransform(createAffine(), blockCount), interval));
+
+		assertEquals(n * numPixels, perDimensionCount.get());
+		assertEquals(numPixels, lazyCount.get());
+		assertEquals(numPixels, blockCount.get());
+		assertEquals(n, perDimensionCount.get() / lazyCount.get());
+
+		assertArrayEquals(perDimension, singlePass, 1e-12);
+		assertArrayEquals(perDimension, block, 1e-12);
+	}
+
+	@Test
+	public void testPositionFieldLayouts() throws IOException {
+
+		final String n5Path = Files.createTempDirectory("hot-knife-transform-test-").toString() + "/test.n5";
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		try {
+			final AffineTransform2D affine = new AffineTransform2D();
+			affine.set(1.05, 0.1, -3.0, -0.05, 0.95, 12.5);
+			final double[] boundsMin = new double[] {-20, 10};
+			final double[] boundsMax = new double[] {300, 200};
+
+			Transform.saveScaledTransform(n5, "/planar", affine, 0.5, boundsMin, boundsMax, Transform.PLANAR);
+			Transform.saveScaledTransform(n5, "/interleaved", affine, 0.5, boundsMin, boundsMax, Transform.INTERLEAVED);
+
+			assertEquals(Transform.PLANAR, Transform.getLayout(n5, "/planar"));
+			assertEquals(Transform.INTERLEAVED, Transform.getLayout(n5, "/interleaved"));
+			assertEquals(2, n5.getDatasetAttributes("/planar").getDimensions()[2]);
+			assertEquals(2, n5.getDatasetAttributes("/interleaved").getDimensions()[0]);
+
+			final RealTransform planar = Transform.loadScaledTransform(n5, "/planar");
+			final RealTransform interleaved = Transform.loadScaledTransform(n5, "/interleaved");
+
+			final Random rnd = new Random(0);
+			final double[] p = new double[2];
+			final double[] q1 = new double[2];
+			final double[] q2 = new double[2];
+			for (int i = 0; i < 1000; ++i) {
+				p[0] = boundsMin[0] + rnd.nextDouble() * (boundsMax[0] - boundsMin[0]);
+				p[1] = boundsMin[1] + rnd.nextDouble() * (boundsMax[1] - boundsMin[1]);
+				planar.apply(p, q1);
+				interleaved.apply(p, q2);
+				assertArrayEquals(q1, q2, 0);
+				affine.apply(p, p);
+				assertArrayEquals(p, q1, 1e-6);
+			}
+		} finally {
+			n5.remove();
+		}
+	}
+}
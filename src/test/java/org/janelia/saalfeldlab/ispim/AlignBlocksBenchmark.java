@@ -0,0 +1,29 @@
+package org.janelia.saalfeldlab.ispim;
+
+import java.util.ArrayList;
+
+import mpicbg.models.PointMatch;
+import net.imglib2.Interval;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Aligns the blocks of two synthetic point clouds with 2M points each with
+ * 1 and 8 threads and reports the times.
+ */
+public class AlignBlocksBenchmark
+{
+	public static void main( final String... args ) throws Exception
+	{
+		final ArrayList< ArrayList< InterestPoint > > points = AlignBlocksTest.createPoints( 2000000, new double[] { 8000, 8000, 1000 }, 0 );
+		final ArrayList< Interval > blocks = SparkPairwiseStitchSlabs.findBlocks( points.get( 0 ), points.get( 1 ), new int[] { 1000, 1000, 1000 } );
+
+		for ( final int numThreads : new int[] { 1, 8 } )
+		{
+			final long time = System.currentTimeMillis();
+			final ArrayList< ArrayList< PointMatch > > matches = AlignBlocksTest.alignBlocks( points, blocks, numThreads );
+			final long numMatches = matches.stream().mapToLong( ArrayList::size ).sum();
+
+			System.out.println( numThreads + " thread(s): " + blocks.size() + " blocks, " + numMatches + " matches in " + ( System.currentTimeMillis() - time ) + "ms" );
+		}
+	}
+}
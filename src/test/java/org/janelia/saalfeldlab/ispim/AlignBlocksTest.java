@@ -0,0 +1,133 @@
+package org.janelia.saalfeldlab.ispim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.Interval;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Aligns the blocks of two synthetic point clouds that differ by a
+ * translation and noise with 1 and 8 threads and checks that the matches
+ * and models of every block are identical.
+ */
+public class AlignBlocksTest
+{
+	static final double[] translation = new double[] { 12.5, -7.25, 3.0 };
+
+	/**
+	 * @return random points A and B = A + translation + noise, with 10% of
+	 * the points of each set without a partner
+	 */
+	static ArrayList< ArrayList< InterestPoint > > createPoints( final int numPoints, final double[] size, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< InterestPoint > pointsA = new ArrayList<>();
+		final ArrayList< InterestPoint > pointsB = new ArrayList<>();
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final double[] a = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				a[ d ] = rnd.nextDouble() * size[ d ];
+
+			if ( rnd.nextDouble() > 0.1 )
+				pointsA.add( new InterestPoint( pointsA.size(), a ) );
+
+			if ( rnd.nextDouble() > 0.1 )
+			{
+				final double[] b = new double[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					b[ d ] = a[ d ] + translation[ d ] + rnd.nextGaussian() * 0.25;
+
+				pointsB.add( new InterestPoint( pointsB.size(), b ) );
+			}
+		}
+
+		final ArrayList< ArrayList< InterestPoint > > points = new ArrayList<>();
+		points.add( pointsA );
+		points.add( pointsB );
+
+		return points;
+	}
+
+	static ArrayList< ArrayList< PointMatch > > alignBlocks(
+			final ArrayList< ArrayList< InterestPoint > > points,
+			final ArrayList< Interval > blocks,
+			final int numThreads )
+	{
+		final Supplier translationSupplier = (Supplier<TranslationModel3D> & Serializable)TranslationModel3D::new;
+		final Supplier affineSupplier = (Supplier<AffineModel3D> & Serializable)AffineModel3D::new;
+
+		return SparkPairwiseStitchSlabs.alignBlocks(
+				blocks,
+				null,
+				points.get( 0 ),
+				points.get( 1 ),
+				12,
+				translationSupplier,
+				20,
+				affineSupplier,
+				numThreads );
+	}
+
+	@Test
+	public void testDeterministic() throws Exception
+	{
+		final ArrayList< ArrayList< InterestPoint > > points = createPoints( 30000, new double[] { 1200, 1200, 300 }, 0 );
+		final ArrayList< Interval > blocks = SparkPairwiseStitchSlabs.findBlocks( points.get( 0 ), points.get( 1 ), new int[] { 400, 400, 300 } );
+
+		final ArrayList< ArrayList< PointMatch > > matches1 = alignBlocks( points, blocks, 1 );
+		final ArrayList< ArrayList< PointMatch > > matches8 = alignBlocks( points, blocks, 8 );
+
+		assertEquals( blocks.size(), matches1.size() );
+		assertEquals( blocks.size(), matches8.size() );
+
+		int blocksWithModel = 0;
+
+		for ( int i = 0; i < blocks.size(); ++i )
+		{
+			final ArrayList< PointMatch > m1 = matches1.get( i );
+			final ArrayList< PointMatch > m8 = matches8.get( i );
+
+			assertEquals( m1.size(), m8.size() );
+
+			for ( int j = 0; j < m1.size(); ++j )
+			{
+				assertEquals( ( ( InterestPoint )m1.get( j ).getP1() ).getId(), ( ( InterestPoint )m8.get( j ).getP1() ).getId() );
+				assertEquals( ( ( InterestPoint )m1.get( j ).getP2() ).getId(), ( ( InterestPoint )m8.get( j ).getP2() ).getId() );
+			}
+
+			if ( m1.size() >= 4 )
+			{
+				final AffineModel3D model1 = new AffineModel3D();
+				final AffineModel3D model8 = new AffineModel3D();
+				model1.fit( m1 );
+				model8.fit( m8 );
+
+				assertArrayEquals( model1.getMatrix( new double[ 12 ] ), model8.getMatrix( new double[ 12 ] ), 0 );
+
+				// and the model is the translation
+				final double[] m = model1.getMatrix( new double[ 12 ] );
+				assertEquals( translation[ 0 ], m[ 3 ], 0.5 );
+				assertEquals( translation[ 1 ], m[ 7 ], 0.5 );
+				assertEquals( translation[ 2 ], m[ 11 ], 0.5 );
+
+				++blocksWithModel;
+			}
+		}
+
+		assertTrue( blocksWithModel > blocks.size() / 2 );
+	}
+}
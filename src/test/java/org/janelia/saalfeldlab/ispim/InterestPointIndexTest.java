@@ -0,0 +1,102 @@
+package org.janelia.saalfeldlab.ispim;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Compares interval queries of {@link InterestPointIndex} with the linear
+ * scans in {@link SparkPairwiseStitchSlabs} on random points and intervals,
+ * for a volume and for a flat point cloud.
+ */
+public class InterestPointIndexTest
+{
+	private static ArrayList< InterestPoint > createPoints( final Random rnd, final int numPoints, final double[] size )
+	{
+		final ArrayList< InterestPoint > points = new ArrayList<>();
+
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final double[] l = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				l[ d ] = rnd.nextDouble() * size[ d ] - 100;
+
+			// some points on integer coordinates to hit the interval bounds
+			if ( i % 10 == 0 )
+				for ( int d = 0; d < 3; ++d )
+					l[ d ] = Math.round( l[ d ] );
+
+			points.add( new InterestPoint( i, l ) );
+		}
+
+		return points;
+	}
+
+	private static Interval createInterval( final Random rnd, final double[] size )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			// partially and completely outside of the points too
+			min[ d ] = ( long )( rnd.nextDouble() * size[ d ] * 1.4 - 0.2 * size[ d ] ) - 100;
+			max[ d ] = min[ d ] + ( long )( rnd.nextDouble() * size[ d ] * 0.5 );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	private static void testQueries( final double[] size )
+	{
+		final Random rnd = new Random( 0 );
+		final ArrayList< InterestPoint > points = createPoints( rnd, 20000, size );
+		final InterestPointIndex index = new InterestPointIndex( points );
+
+		final ArrayList< Interval > intervals = new ArrayList<>();
+		for ( int i = 0; i < 200; ++i )
+		{
+			final Interval interval = createInterval( rnd, size );
+			intervals.add( interval );
+
+			final ArrayList< InterestPoint > expected = SparkPairwiseStitchSlabs.containedPoints( interval, points );
+
+			assertEquals( expected, index.containedPoints( interval ) );
+			assertEquals( expected.size(), index.numContainedPoints( interval ) );
+		}
+
+		// everything
+		final Interval all = new FinalInterval( new long[] { -1000, -1000, -1000 }, new long[] { 100000, 100000, 100000 } );
+		assertEquals( points, index.containedPoints( all ) );
+
+		assertEquals(
+				SparkPairwiseStitchSlabs.containedPoints( intervals, points ),
+				index.containedPoints( intervals ) );
+	}
+
+	@Test
+	public void testVolume()
+	{
+		testQueries( new double[] { 2000, 1500, 800 } );
+	}
+
+	@Test
+	public void testFlat()
+	{
+		testQueries( new double[] { 5000, 4000, 0 } );
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final InterestPointIndex index = new InterestPointIndex( new ArrayList<>() );
+		assertEquals( 0, index.containedPoints( new FinalInterval( new long[] { 0, 0, 0 }, new long[] { 10, 10, 10 } ) ).size() );
+	}
+}
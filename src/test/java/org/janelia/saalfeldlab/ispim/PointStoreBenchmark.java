@@ -0,0 +1,67 @@
+package org.janelia.saalfeldlab.ispim;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Compares load time and disk size of 10M interest points stored as a
+ * serialized list and as a columnar {@link PointStore}.
+ */
+public class PointStoreBenchmark
+{
+	private static final int numPoints = 10000000;
+
+	private static long size( final Path path ) throws IOException
+	{
+		try ( final Stream< Path > files = Files.walk( path ) )
+		{
+			return files.filter( Files::isRegularFile ).mapToLong( p -> p.toFile().length() ).sum();
+		}
+	}
+
+	public static void main( final String... args ) throws IOException, ClassNotFoundException
+	{
+		final String n5Path = Files.createTempDirectory( "hot-knife-point-store-benchmark-" ).toString() + "/test.n5";
+		final N5FSWriter n5 = new N5FSWriter( n5Path );
+
+		final ArrayList< InterestPoint > points = PointStoreTest.createPoints( new Random( 0 ), numPoints );
+
+		long time = System.currentTimeMillis();
+		n5.createDataset( "/serialized", new long[] { 1 }, new int[] { 1 }, DataType.OBJECT, new GzipCompression() );
+		n5.writeSerializedBlock( points, "/serialized", n5.getDatasetAttributes( "/serialized" ), new long[] { 0 } );
+		System.out.println( "serialized: write " + ( System.currentTimeMillis() - time ) + "ms" );
+
+		time = System.currentTimeMillis();
+		PointStore.writeInterestPoints( n5, "/columnar", points );
+		System.out.println( "columnar:   write " + ( System.currentTimeMillis() - time ) + "ms" );
+
+		for ( int i = 0; i < 3; ++i )
+		{
+			time = System.currentTimeMillis();
+			final int serializedSize = PointStore.readInterestPoints( n5, "/serialized" ).size();
+			final long serializedTime = System.currentTimeMillis() - time;
+
+			time = System.currentTimeMillis();
+			final int columnarSize = PointStore.readInterestPoints( n5, "/columnar" ).size();
+			final long columnarTime = System.currentTimeMillis() - time;
+
+			System.out.println( "load " + serializedSize + " serialized points " + serializedTime + "ms, " + columnarSize + " columnar points " + columnarTime + "ms" );
+		}
+
+		System.out.println( "serialized: " + size( Paths.get( n5Path, "serialized" ) ) + " bytes" );
+		System.out.println( "columnar:   " + size( Paths.get( n5Path, "columnar" ) ) + " bytes" );
+
+		n5.remove();
+	}
+}
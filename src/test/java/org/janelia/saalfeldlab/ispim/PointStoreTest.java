@@ -0,0 +1,198 @@
+package org.janelia.saalfeldlab.ispim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.models.PointMatch;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Writes interest points and point matches into columnar point stores and
+ * as serialized datasets, migrates the serialized datasets, and compares
+ * everything that is read back with the originals.
+ */
+public class PointStoreTest
+{
+	private static final double maxError = 0.01;
+
+	private String n5Path;
+	private N5FSWriter n5;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		n5Path = Files.createTempDirectory( "hot-knife-point-store-test-" ).toString() + "/test.n5";
+		n5 = new N5FSWriter( n5Path );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		n5.remove();
+	}
+
+	static ArrayList< InterestPoint > createPoints( final Random rnd, final int numPoints )
+	{
+		final ArrayList< InterestPoint > points = new ArrayList<>();
+		for ( int i = 0; i < numPoints; ++i )
+			points.add( new InterestPoint( i * 3 + 1, new double[] { rnd.nextDouble() * 100000, rnd.nextDouble() * 20000, rnd.nextDouble() * 5000 } ) );
+
+		return points;
+	}
+
+	private static ArrayList< PointMatch > createMatches( final Random rnd, final int numMatches )
+	{
+		final ArrayList< InterestPoint > p1 = createPoints( rnd, numMatches );
+		final ArrayList< InterestPoint > p2 = createPoints( rnd, numMatches );
+		final ArrayList< PointMatch > matches = new ArrayList<>();
+		for ( int i = 0; i < numMatches; ++i )
+			matches.add( new PointMatch( p1.get( i ), p2.get( numMatches - i - 1 ), rnd.nextDouble() ) );
+
+		return matches;
+	}
+
+	private static void assertPointsEquals( final List< InterestPoint > expected, final List< InterestPoint > actual )
+	{
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); ++i )
+			assertPointEquals( expected.get( i ), actual.get( i ) );
+	}
+
+	private static void assertPointEquals( final InterestPoint expected, final InterestPoint actual )
+	{
+		assertEquals( expected.getId(), actual.getId() );
+		for ( int d = 0; d < expected.getL().length; ++d )
+		{
+			assertEquals( expected.getL()[ d ], actual.getL()[ d ], maxError );
+			assertEquals( actual.getL()[ d ], actual.getW()[ d ], 0 );
+		}
+	}
+
+	private static void assertMatchesEquals( final List< PointMatch > expected, final List< PointMatch > actual )
+	{
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertPointEquals( ( InterestPoint )expected.get( i ).getP1(), ( InterestPoint )actual.get( i ).getP1() );
+			assertPointEquals( ( InterestPoint )expected.get( i ).getP2(), ( InterestPoint )actual.get( i ).getP2() );
+			assertEquals( expected.get( i ).getWeight(), actual.get( i ).getWeight(), 1e-6 );
+		}
+	}
+
+	private void writeSerialized( final String dataset, final ArrayList< ? > objects ) throws IOException
+	{
+		n5.createDataset( dataset, new long[] { 1 }, new int[] { 1 }, DataType.OBJECT, new GzipCompression() );
+		n5.writeSerializedBlock( objects, dataset, n5.getDatasetAttributes( dataset ), new long[] { 0 } );
+	}
+
+	@Test
+	public void testInterestPoints() throws IOException
+	{
+		final Random rnd = new Random( 0 );
+
+		// more than one block and an incomplete last block
+		final ArrayList< InterestPoint > points = createPoints( rnd, 2500 );
+		PointStore.writeInterestPoints( n5, "/points", points, 1000 );
+		assertFalse( PointStore.isSerialized( n5, "/points" ) );
+		assertPointsEquals( points, PointStore.readInterestPoints( n5, "/points" ) );
+
+		PointStore.writeInterestPoints( n5, "/empty", new ArrayList<>() );
+		assertEquals( 0, PointStore.readInterestPoints( n5, "/empty" ).size() );
+	}
+
+	@Test
+	public void testPointMatches() throws IOException
+	{
+		final Random rnd = new Random( 1 );
+
+		final ArrayList< PointMatch > matches = createMatches( rnd, 2500 );
+		PointStore.writePointMatches( n5, "/matches", matches, 1000 );
+		assertMatchesEquals( matches, PointStore.readPointMatches( n5, "/matches" ) );
+	}
+
+	@Test
+	public void testMigration() throws IOException
+	{
+		final Random rnd = new Random( 2 );
+
+		final ArrayList< InterestPoint > points = createPoints( rnd, 1200 );
+		final ArrayList< PointMatch > matches = createMatches( rnd, 300 );
+
+		final String pointsPath = "Pos000/Ch488nm/" + SparkMigratePointStore.pointsDatasetName;
+		final String matchesPath = "Pos000/matches_Pos000_Ch488nm_cam1__Pos001_Ch488nm_cam1";
+
+		writeSerialized( pointsPath, points );
+		writeSerialized( matchesPath, matches );
+
+		// serialized datasets are read transparently
+		assertPointsEquals( points, PointStore.readInterestPoints( n5, pointsPath ) );
+		assertMatchesEquals( matches, PointStore.readPointMatches( n5, matchesPath ) );
+
+		final ArrayList< String > paths = SparkMigratePointStore.findSerializedDatasets( n5 );
+		assertEquals( 2, paths.size() );
+		assertTrue( paths.contains( pointsPath ) );
+		assertTrue( paths.contains( matchesPath ) );
+
+		for ( final String path : paths )
+			SparkMigratePointStore.migrate( n5Path, path );
+
+		assertFalse( PointStore.isSerialized( n5, pointsPath ) );
+		assertFalse( PointStore.isSerialized( n5, matchesPath ) );
+		assertPointsEquals( points, PointStore.readInterestPoints( n5, pointsPath ) );
+		assertMatchesEquals( matches, PointStore.readPointMatches( n5, matchesPath ) );
+
+		assertEquals( 0, SparkMigratePointStore.findSerializedDatasets( n5 ).size() );
+	}
+
+	@Test
+	public void testInterruptedMigration() throws IOException
+	{
+		final Random rnd = new Random( 3 );
+
+		final ArrayList< InterestPoint > points = createPoints( rnd, 1200 );
+		final ArrayList< PointMatch > matches = createMatches( rnd, 300 );
+
+		final String pointsPath = "Pos000/Ch488nm/" + SparkMigratePointStore.pointsDatasetName;
+		final String matchesPath = "Pos000/matches_Pos000_Ch488nm_cam1__Pos001_Ch488nm_cam1";
+
+		// interrupted after the serialized points were moved aside
+		writeSerialized( pointsPath, points );
+		PointStore.writeInterestPoints( n5, pointsPath + SparkMigratePointStore.columnarSuffix, points );
+		Files.move( Paths.get( n5Path, pointsPath ), Paths.get( n5Path, pointsPath + SparkMigratePointStore.serializedSuffix ) );
+
+		// interrupted after the columnar matches were moved into place
+		writeSerialized( matchesPath + SparkMigratePointStore.serializedSuffix, matches );
+		PointStore.writePointMatches( n5, matchesPath, matches );
+
+		final ArrayList< String > paths = SparkMigratePointStore.findSerializedDatasets( n5 );
+		assertEquals( 2, paths.size() );
+		assertTrue( paths.contains( pointsPath ) );
+		assertTrue( paths.contains( matchesPath ) );
+
+		assertEquals( points.size(), SparkMigratePointStore.migrate( n5Path, pointsPath ) );
+		assertEquals( matches.size(), SparkMigratePointStore.migrate( n5Path, matchesPath ) );
+
+		assertPointsEquals( points, PointStore.readInterestPoints( n5, pointsPath ) );
+		assertMatchesEquals( matches, PointStore.readPointMatches( n5, matchesPath ) );
+		assertFalse( n5.exists( pointsPath + SparkMigratePointStore.columnarSuffix ) );
+		assertFalse( n5.exists( pointsPath + SparkMigratePointStore.serializedSuffix ) );
+		assertFalse( n5.exists( matchesPath + SparkMigratePointStore.serializedSuffix ) );
+
+		assertEquals( 0, SparkMigratePointStore.findSerializedDatasets( n5 ).size() );
+	}
+}